@@ -0,0 +1,207 @@
+-- --------------------------------------------------------
+-- Lookup latency benchmark for the sharing_index schema
+--
+-- Creates a separate sharing_index_bench database, grows a synthetic catalog in steps
+-- and measures the mean latency of the lookup queries issued by the index service at
+-- each catalog size. The benchmark is run twice: once against the V001 baseline schema
+-- (no fileName index, no fileshared primary key) and once against the schema produced
+-- by migration V002. Run as a user with CREATE privileges, e.g. root:
+--   mysql -u root -p < lookup_latency.sql
+--
+-- Results are written to sharing_index_bench.bench_result and printed at the end.
+-- The catalog sizes and number of lookups per query may be changed in the final CALL.
+-- --------------------------------------------------------
+
+CREATE DATABASE IF NOT EXISTS `sharing_index_bench` /*!40100 DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci */;
+USE `sharing_index_bench`;
+
+CREATE TABLE IF NOT EXISTS `bench_result` (
+  `runID` int(10) unsigned NOT NULL AUTO_INCREMENT,
+  `schemaVersion` int(10) unsigned NOT NULL,
+  `catalogSize` int(10) unsigned NOT NULL,
+  `query` varchar(32) NOT NULL,
+  `lookups` int(10) unsigned NOT NULL,
+  `meanMicros` decimal(12,2) NOT NULL,
+  PRIMARY KEY (`runID`)
+) ENGINE=InnoDB;
+
+DELIMITER //
+
+-- Recreates the peer, peerfile and fileshared tables with the V001 or V002 schema.
+DROP PROCEDURE IF EXISTS `create_tables`//
+CREATE PROCEDURE `create_tables`(IN schemaVersion INT)
+BEGIN
+  DROP TABLE IF EXISTS `fileshared`;
+  DROP TABLE IF EXISTS `peerfile`;
+  DROP TABLE IF EXISTS `peer`;
+
+  CREATE TABLE `peer` (
+    `peerGUID` int(10) unsigned NOT NULL AUTO_INCREMENT,
+    `hostAddress` varchar(64) COLLATE utf8mb4_unicode_ci NOT NULL,
+    PRIMARY KEY (`peerGUID`),
+    UNIQUE KEY `unique_addr` (`hostAddress`)
+  ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+  CREATE TABLE `peerfile` (
+    `fileGUID` int(10) unsigned NOT NULL AUTO_INCREMENT,
+    `fileName` varchar(256) COLLATE utf8mb4_unicode_ci NOT NULL,
+    PRIMARY KEY (`fileGUID`)
+  ) ENGINE=InnoDB ROW_FORMAT=DYNAMIC DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+  CREATE TABLE `fileshared` (
+    `peerID` int(10) unsigned NOT NULL,
+    `fileID` int(10) unsigned NOT NULL,
+    KEY `FK_peerID` (`peerID`),
+    KEY `FK_fileID` (`fileID`),
+    CONSTRAINT `FK_fileID` FOREIGN KEY (`fileID`) REFERENCES `peerfile` (`fileGUID`) ON DELETE CASCADE,
+    CONSTRAINT `FK_peerID` FOREIGN KEY (`peerID`) REFERENCES `peer` (`peerGUID`)
+  ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+  IF schemaVersion >= 2 THEN
+    ALTER TABLE `fileshared`
+      ADD PRIMARY KEY (`peerID`, `fileID`),
+      ADD KEY `idx_fileID_peerID` (`fileID`, `peerID`),
+      DROP KEY `FK_peerID`,
+      DROP KEY `FK_fileID`;
+
+    ALTER TABLE `peerfile` ADD KEY `idx_fileName` (`fileName`);
+  END IF;
+END//
+
+
+-- Grows the catalog to targetSize files. Each peer shares 100 files.
+DROP PROCEDURE IF EXISTS `grow_catalog`//
+CREATE PROCEDURE `grow_catalog`(IN targetSize INT)
+BEGIN
+  DECLARE current INT;
+  DECLARE batchEnd INT;
+
+  SELECT COUNT(*) INTO current FROM `peerfile`;
+
+  WHILE current < targetSize DO
+    SET batchEnd = LEAST(current + 10000, targetSize);
+
+    INSERT IGNORE INTO `peer` (`peerGUID`, `hostAddress`)
+      SELECT DISTINCT n DIV 100 + 1, CONCAT('10.', (n DIV 100) DIV 65536 MOD 256, '.', (n DIV 100) DIV 256 MOD 256, '.', (n DIV 100) MOD 256)
+      FROM `seq` WHERE n >= current AND n < batchEnd;
+
+    INSERT INTO `peerfile` (`fileGUID`, `fileName`)
+      SELECT n + 1, CONCAT('shared-file-', n, '.dat') FROM `seq` WHERE n >= current AND n < batchEnd;
+
+    INSERT INTO `fileshared` (`peerID`, `fileID`)
+      SELECT n DIV 100 + 1, n + 1 FROM `seq` WHERE n >= current AND n < batchEnd;
+
+    SET current = batchEnd;
+  END WHILE;
+
+  ANALYZE TABLE `peer`, `peerfile`, `fileshared`;
+END//
+
+
+-- Times the lookup queries issued by PeerFile and FileShared for random existing files.
+DROP PROCEDURE IF EXISTS `measure_lookups`//
+CREATE PROCEDURE `measure_lookups`(IN schemaVersion INT, IN lookups INT)
+BEGIN
+  DECLARE catalogSize INT;
+  DECLARE i INT;
+  DECLARE fileNo INT;
+  DECLARE name VARCHAR(256);
+  DECLARE peerNo INT;
+  DECLARE found INT;
+  DECLARE startTime DATETIME(6);
+  DECLARE fileExistsMicros BIGINT DEFAULT 0;
+  DECLARE getFilePeerMicros BIGINT DEFAULT 0;
+  DECLARE checkFileSharedMicros BIGINT DEFAULT 0;
+  DECLARE deleteSelectMicros BIGINT DEFAULT 0;
+
+  SELECT COUNT(*) INTO catalogSize FROM `peerfile`;
+  SET i = 0;
+
+  WHILE i < lookups DO
+    SET fileNo = FLOOR(RAND() * catalogSize);
+    SET name = CONCAT('shared-file-', fileNo, '.dat');
+    SET peerNo = fileNo DIV 100 + 1;
+
+    -- PeerFile.fileExists
+    SET startTime = SYSDATE(6);
+    SELECT 1 INTO found FROM `peerfile` WHERE `fileName` = name LIMIT 1;
+    SET fileExistsMicros = fileExistsMicros + TIMESTAMPDIFF(MICROSECOND, startTime, SYSDATE(6));
+
+    -- FileShared.getFilePeer
+    SET startTime = SYSDATE(6);
+    SELECT `peer`.`peerGUID` INTO found
+      FROM `peerfile`
+      INNER JOIN `fileshared` ON `fileshared`.`fileID` = `peerfile`.`fileGUID`
+      INNER JOIN `peer` ON `peer`.`peerGUID` = `fileshared`.`peerID`
+      WHERE `peerfile`.`fileName` = name LIMIT 1;
+    SET getFilePeerMicros = getFilePeerMicros + TIMESTAMPDIFF(MICROSECOND, startTime, SYSDATE(6));
+
+    -- FileShared.checkFileShared
+    SET startTime = SYSDATE(6);
+    SELECT 1 INTO found
+      FROM `peerfile`
+      INNER JOIN `fileshared` ON `fileshared`.`fileID` = `peerfile`.`fileGUID` AND `fileshared`.`peerID` = peerNo
+      WHERE `peerfile`.`fileName` = name LIMIT 1;
+    SET checkFileSharedMicros = checkFileSharedMicros + TIMESTAMPDIFF(MICROSECOND, startTime, SYSDATE(6));
+
+    -- Row selection of FileShared.deleteAssociation, without deleting the row
+    SET startTime = SYSDATE(6);
+    SELECT COUNT(*) INTO found
+      FROM `peerfile`
+      INNER JOIN `fileshared` ON `fileshared`.`fileID` = `peerfile`.`fileGUID`
+      WHERE `peerfile`.`fileName` = name AND `fileshared`.`peerID` = peerNo;
+    SET deleteSelectMicros = deleteSelectMicros + TIMESTAMPDIFF(MICROSECOND, startTime, SYSDATE(6));
+
+    SET i = i + 1;
+  END WHILE;
+
+  INSERT INTO `bench_result` (`schemaVersion`, `catalogSize`, `query`, `lookups`, `meanMicros`) VALUES
+    (schemaVersion, catalogSize, 'fileExists', lookups, fileExistsMicros / lookups),
+    (schemaVersion, catalogSize, 'getFilePeer', lookups, getFilePeerMicros / lookups),
+    (schemaVersion, catalogSize, 'checkFileShared', lookups, checkFileSharedMicros / lookups),
+    (schemaVersion, catalogSize, 'deleteAssociation', lookups, deleteSelectMicros / lookups);
+END//
+
+
+-- Runs the benchmark for one schema version over a comma separated list of increasing catalog sizes.
+DROP PROCEDURE IF EXISTS `run_benchmark`//
+CREATE PROCEDURE `run_benchmark`(IN schemaVersion INT, IN catalogSizes VARCHAR(200), IN lookups INT)
+BEGIN
+  DECLARE remaining VARCHAR(200);
+  DECLARE size INT;
+
+  CALL `create_tables`(schemaVersion);
+  SET remaining = catalogSizes;
+
+  WHILE LENGTH(remaining) > 0 DO
+    SET size = CAST(SUBSTRING_INDEX(remaining, ',', 1) AS UNSIGNED);
+    SET remaining = IF(LOCATE(',', remaining) > 0, SUBSTRING(remaining, LOCATE(',', remaining) + 1), '');
+
+    CALL `grow_catalog`(size);
+    CALL `measure_lookups`(schemaVersion, lookups);
+  END WHILE;
+END//
+
+DELIMITER ;
+
+
+-- Number sequence 0..999999 used to generate the catalog.
+DROP TABLE IF EXISTS `digit`;
+CREATE TABLE `digit` (`d` int NOT NULL) ENGINE=InnoDB;
+INSERT INTO `digit` VALUES (0), (1), (2), (3), (4), (5), (6), (7), (8), (9);
+
+DROP TABLE IF EXISTS `seq`;
+CREATE TABLE `seq` (`n` int(10) unsigned NOT NULL, PRIMARY KEY (`n`)) ENGINE=InnoDB;
+INSERT INTO `seq` (`n`)
+  SELECT a.d + 10 * b.d + 100 * c.d + 1000 * e.d + 10000 * f.d + 100000 * g.d
+  FROM `digit` a, `digit` b, `digit` c, `digit` e, `digit` f, `digit` g;
+
+TRUNCATE TABLE `bench_result`;
+
+-- The baseline schema full-scans peerfile, so it is measured with fewer lookups.
+CALL `run_benchmark`(1, '1000,10000,100000,1000000', 20);
+CALL `run_benchmark`(2, '1000,10000,100000,1000000', 1000);
+
+SELECT `schemaVersion`, `catalogSize`, `query`, `lookups`, `meanMicros`
+  FROM `bench_result`
+  ORDER BY `query`, `schemaVersion`, `catalogSize`;
@@ -0,0 +1,56 @@
+-- --------------------------------------------------------
+-- Migration V002: indexes for the peerfile/fileshared lookup paths
+--
+-- Applies to a sharing_index database created from sharing_index.sql (V001).
+-- Must be run by a user with ALTER and CREATE privileges, e.g. root:
+--   mysql -u root -p < V002__lookup_indexes.sql
+--
+-- 1) Records applied migrations in the schema_version table.
+-- 2) Removes duplicate (peerID, fileID) rows from fileshared and adds a composite
+--    primary key on (peerID, fileID). This serves the peer-first lookups used by
+--    checkFileShared and deleteAssociation, and the peerID foreign key.
+-- 3) Replaces the single-column fileID key with a covering (fileID, peerID) key,
+--    so the file-first join used by getFilePeer never reads the clustered index.
+-- 4) Adds an index on peerfile.fileName. The full column fits within the InnoDB
+--    key length limit for DYNAMIC rows, and secondary keys include the primary
+--    key, so the index covers (fileName, fileGUID) and name lookups are index-only.
+-- --------------------------------------------------------
+
+USE `sharing_index`;
+
+CREATE TABLE IF NOT EXISTS `schema_version` (
+  `version` int(10) unsigned NOT NULL,
+  `description` varchar(200) COLLATE utf8mb4_unicode_ci NOT NULL,
+  `appliedOn` timestamp NOT NULL DEFAULT current_timestamp(),
+  PRIMARY KEY (`version`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+INSERT IGNORE INTO `schema_version` (`version`, `description`) VALUES (1, 'Baseline schema from sharing_index.sql');
+
+
+-- Remove duplicate associations so that the primary key can be created.
+CREATE TEMPORARY TABLE `fileshared_distinct` AS
+  SELECT DISTINCT `peerID`, `fileID` FROM `fileshared`;
+
+DELETE FROM `fileshared`;
+
+INSERT INTO `fileshared` (`peerID`, `fileID`)
+  SELECT `peerID`, `fileID` FROM `fileshared_distinct`;
+
+DROP TEMPORARY TABLE `fileshared_distinct`;
+
+
+-- The primary key replaces FK_peerID as the index for the peerID foreign key, and
+-- idx_fileID_peerID replaces FK_fileID as the index for the fileID foreign key.
+ALTER TABLE `fileshared`
+  ADD PRIMARY KEY (`peerID`, `fileID`),
+  ADD KEY `idx_fileID_peerID` (`fileID`, `peerID`),
+  DROP KEY `FK_peerID`,
+  DROP KEY `FK_fileID`;
+
+ALTER TABLE `peerfile`
+  ROW_FORMAT=DYNAMIC,
+  ADD KEY `idx_fileName` (`fileName`);
+
+
+INSERT INTO `schema_version` (`version`, `description`) VALUES (2, 'Lookup indexes on peerfile and fileshared');
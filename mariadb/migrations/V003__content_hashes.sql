@@ -0,0 +1,21 @@
+-- --------------------------------------------------------
+-- Migration V003: content hashes of shared files
+--
+-- Applies to a sharing_index database migrated to V002.
+-- Must be run by a user with ALTER privileges, e.g. root:
+--   mysql -u root -p < V003__content_hashes.sql
+--
+-- Adds the content hash and size of each shared file to peerfile. The content hash
+-- is the SHA-256 hash of the SHA-256 hashes of the file's 256 KB chunks, as 64
+-- hexadecimal digits. Both columns are NULL for files registered by peers which do
+-- not compute hashes, and for all existing records.
+-- --------------------------------------------------------
+
+USE `sharing_index`;
+
+ALTER TABLE `peerfile`
+  ADD COLUMN `contentHash` char(64) CHARACTER SET ascii COLLATE ascii_general_ci NULL DEFAULT NULL,
+  ADD COLUMN `fileSize` bigint(20) unsigned NULL DEFAULT NULL;
+
+
+INSERT INTO `schema_version` (`version`, `description`) VALUES (3, 'Content hash and size of shared files');
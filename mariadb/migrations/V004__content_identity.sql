@@ -0,0 +1,118 @@
+-- --------------------------------------------------------
+-- Migration V004: one peerfile record per unique content
+--
+-- Applies to a sharing_index database migrated to V003.
+-- Must be run by a user with ALTER, CREATE and CREATE TEMPORARY TABLES privileges, e.g. root:
+--   mysql -u root -p < V004__content_identity.sql
+--
+-- Until now a peerfile record was created every time a peer shared a file, so the
+-- table grew with the number of shares. After this migration:
+-- 1) peerfile holds one record per unique content. Content with a hash is identified
+--    by its content hash and size, which the new uq_content key enforces. Content
+--    without a hash (from peers which do not compute hashes) can only be identified by
+--    its name, so it has one record per name. peerfile.fileName keeps the name under
+--    which the content was first shared, and is no longer used for lookups, so
+--    idx_fileName is dropped.
+-- 2) The new filealias table maps each name to the content shared under it. The same
+--    content may have several names, and the same name may refer to different content.
+--    The uq_fileName_fileID key serves lookups by name.
+-- 3) fileshared links a peer to the content it shares, through fileID, and to the name
+--    it shares it under, through the new aliasID column, since peers serve files by
+--    name. The primary key becomes (peerID, aliasID), and idx_aliasID_peerID covers
+--    the name-first join used by the peer lookups.
+-- Existing records are merged: for each content, the record with the lowest GUID is
+-- kept, and the shares of the other records are moved to it.
+-- --------------------------------------------------------
+
+USE `sharing_index`;
+
+CREATE TABLE `filealias` (
+  `aliasID` int(10) unsigned NOT NULL AUTO_INCREMENT,
+  `fileID` int(10) unsigned NOT NULL,
+  `fileName` varchar(256) COLLATE utf8mb4_unicode_ci NOT NULL,
+  PRIMARY KEY (`aliasID`),
+  UNIQUE KEY `uq_fileName_fileID` (`fileName`, `fileID`),
+  KEY `FK_alias_fileID` (`fileID`),
+  CONSTRAINT `FK_alias_fileID` FOREIGN KEY (`fileID`) REFERENCES `peerfile` (`fileGUID`) ON DELETE CASCADE
+) ENGINE=InnoDB ROW_FORMAT=DYNAMIC DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+
+-- Map every peerfile record to the record which will hold its content.
+CREATE TEMPORARY TABLE `peerfile_content` (
+  `fileGUID` int(10) unsigned NOT NULL,
+  `contentID` int(10) unsigned NOT NULL,
+  `fileName` varchar(256) COLLATE utf8mb4_unicode_ci NOT NULL,
+  PRIMARY KEY (`fileGUID`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+INSERT INTO `peerfile_content` (`fileGUID`, `contentID`, `fileName`)
+  SELECT `peerfile`.`fileGUID`, `canonical`.`contentID`, `peerfile`.`fileName`
+  FROM `peerfile`
+  INNER JOIN (SELECT `contentHash`, `fileSize`, MIN(`fileGUID`) AS `contentID`
+              FROM `peerfile`
+              WHERE `contentHash` IS NOT NULL
+              GROUP BY `contentHash`, `fileSize`) AS `canonical`
+    ON `canonical`.`contentHash` = `peerfile`.`contentHash` AND `canonical`.`fileSize` <=> `peerfile`.`fileSize`;
+
+INSERT INTO `peerfile_content` (`fileGUID`, `contentID`, `fileName`)
+  SELECT `peerfile`.`fileGUID`, `canonical`.`contentID`, `peerfile`.`fileName`
+  FROM `peerfile`
+  INNER JOIN (SELECT `fileName`, MIN(`fileGUID`) AS `contentID`
+              FROM `peerfile`
+              WHERE `contentHash` IS NULL
+              GROUP BY `fileName`) AS `canonical`
+    ON `canonical`.`fileName` = `peerfile`.`fileName`
+  WHERE `peerfile`.`contentHash` IS NULL;
+
+-- Names which differ only in case are merged by the collation of uq_fileName_fileID.
+INSERT IGNORE INTO `filealias` (`fileID`, `fileName`)
+  SELECT `contentID`, `fileName` FROM `peerfile_content`;
+
+
+-- The primary key is dropped first, as moving shares to the kept records may create
+-- duplicate (peerID, fileID) pairs. idx_peerID serves the peerID foreign key meanwhile.
+ALTER TABLE `fileshared`
+  DROP PRIMARY KEY,
+  ADD KEY `idx_peerID` (`peerID`),
+  ADD COLUMN `aliasID` int(10) unsigned NULL DEFAULT NULL;
+
+UPDATE `fileshared`
+  INNER JOIN `peerfile_content` ON `peerfile_content`.`fileGUID` = `fileshared`.`fileID`
+  INNER JOIN `filealias` ON `filealias`.`fileID` = `peerfile_content`.`contentID`
+    AND `filealias`.`fileName` = `peerfile_content`.`fileName`
+  SET `fileshared`.`fileID` = `peerfile_content`.`contentID`,
+      `fileshared`.`aliasID` = `filealias`.`aliasID`;
+
+-- Remove duplicate shares of the same name by the same peer, so that the primary key can be created.
+CREATE TEMPORARY TABLE `fileshared_distinct` AS
+  SELECT DISTINCT `peerID`, `fileID`, `aliasID` FROM `fileshared` WHERE `aliasID` IS NOT NULL;
+
+DELETE FROM `fileshared`;
+
+INSERT IGNORE INTO `fileshared` (`peerID`, `fileID`, `aliasID`)
+  SELECT `peerID`, `fileID`, `aliasID` FROM `fileshared_distinct`;
+
+DROP TEMPORARY TABLE `fileshared_distinct`;
+
+ALTER TABLE `fileshared`
+  MODIFY COLUMN `aliasID` int(10) unsigned NOT NULL,
+  ADD PRIMARY KEY (`peerID`, `aliasID`),
+  ADD KEY `idx_aliasID_peerID` (`aliasID`, `peerID`),
+  DROP KEY `idx_peerID`,
+  ADD CONSTRAINT `FK_aliasID` FOREIGN KEY (`aliasID`) REFERENCES `filealias` (`aliasID`) ON DELETE CASCADE;
+
+
+-- The shares of the merged records were moved, so deleting them cascades to nothing.
+DELETE `peerfile`
+  FROM `peerfile`
+  INNER JOIN `peerfile_content` ON `peerfile_content`.`fileGUID` = `peerfile`.`fileGUID`
+  WHERE `peerfile_content`.`contentID` <> `peerfile_content`.`fileGUID`;
+
+DROP TEMPORARY TABLE `peerfile_content`;
+
+ALTER TABLE `peerfile`
+  ADD UNIQUE KEY `uq_content` (`contentHash`, `fileSize`),
+  DROP KEY `idx_fileName`;
+
+
+INSERT INTO `schema_version` (`version`, `description`) VALUES (4, 'One peerfile record per unique content, with name aliases');
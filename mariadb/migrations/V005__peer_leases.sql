@@ -0,0 +1,33 @@
+-- --------------------------------------------------------
+-- Migration V005: peer leases
+--
+-- Applies to a sharing_index database migrated to V004.
+-- Must be run by a user with ALTER privileges, e.g. root:
+--   mysql -u root -p < V005__peer_leases.sql
+--
+-- Peers hold a lease which they renew with heartbeats. Lookups only return peers
+-- whose lease has not expired, and the index service deletes expired peers, with
+-- their shares, in the background.
+-- 1) Adds peer.leaseExpiry, the time at which the lease of the peer expires, in
+--    milliseconds since the epoch. Existing peers get one hour, so that they can
+--    start sending heartbeats before they are removed.
+-- 2) Recreates FK_peerID with ON DELETE CASCADE, so deleting an expired peer also
+--    deletes its fileshared rows. Aliases and content which are no longer shared
+--    are then deleted by the index service, as when a file is unshared.
+-- --------------------------------------------------------
+
+USE `sharing_index`;
+
+ALTER TABLE `peer`
+  ADD COLUMN `leaseExpiry` bigint(20) NOT NULL DEFAULT 0;
+
+UPDATE `peer` SET `leaseExpiry` = (UNIX_TIMESTAMP() + 3600) * 1000;
+
+ALTER TABLE `fileshared`
+  DROP FOREIGN KEY `FK_peerID`;
+
+ALTER TABLE `fileshared`
+  ADD CONSTRAINT `FK_peerID` FOREIGN KEY (`peerID`) REFERENCES `peer` (`peerGUID`) ON DELETE CASCADE;
+
+
+INSERT INTO `schema_version` (`version`, `description`) VALUES (5, 'Peer leases with expiry of dead peers');
@@ -0,0 +1,290 @@
+/**
+ * BandwidthLimiter.java
+ *
+ * Limits the rate at which a peer sends or receives file data, and shares that rate fairly between
+ * the connections doing so. One instance limits all uploads, whichever send engine serves them, and
+ * another limits all downloads. Both are unlimited unless a rate is set, which may be changed at any
+ * time (see PeerConfig).
+ *
+ * The rate is enforced by a token bucket, which fills at the rate up to BURST_MILLIS worth of bytes,
+ * or QUANTUM_BYTES if that is more. Each connection is a Flow, and the tokens are handed to the flows
+ * waiting for them by deficit round robin: each flow in turn may take up to QUANTUM_BYTES per round,
+ * so a peer downloading over several connections, or a fast peer, cannot take the share of another.
+ *
+ * A thread which may block calls acquire(), which waits until its flow has been granted bytes. An
+ * event loop calls tryAcquire(), which returns at once with the bytes granted so far, possibly none,
+ * and leaves the flow waiting, so it is granted its turn when the loop tries again. A flow which is
+ * no longer used must be passed to release(), which returns the bytes granted to it but not taken.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+public class BandwidthLimiter
+{
+	public static final int QUANTUM_BYTES = 16 * 1024;                       //Bytes a flow may take per round.
+	public static final long BURST_MILLIS = 100;                             //Bytes the bucket holds, as time at the rate.
+	public static final long MAX_WAIT_MILLIS = 100;                          //Longest wait before a waiting flow checks again.
+
+	private static final BandwidthLimiter uploads = new BandwidthLimiter();
+	private static final BandwidthLimiter downloads = new BandwidthLimiter();
+
+	private volatile long rate;                                              //Bytes per second, or 0 if unlimited.
+
+	/*Tokens and waiting flows, guarded by this */
+	private double tokens;
+	private long refilledNanos = System.nanoTime();
+	private final Deque<Flow> active = new ArrayDeque<>();                  //Flows waiting for their turn, in order.
+
+
+	/**
+	 * The state of a single connection sending or receiving data. Only used by one thread at a time,
+	 * but granted bytes by whichever thread runs the scheduler.
+	 */
+	public static final class Flow
+	{
+		private long demand;                                                 //Bytes wanted but not yet granted.
+		private long granted;                                                //Bytes granted but not yet taken.
+		private long deficit;
+		private boolean queued;
+		private boolean roundStarted;
+	}
+
+
+	/**
+	 * Get the limiter shared by all uploads to other peers.
+	 * @return BandwidthLimiter for uploads
+	 */
+	public static BandwidthLimiter getUploadInstance()
+	{
+		return uploads;
+	}
+
+	/**
+	 * Get the limiter shared by all downloads from other peers.
+	 * @return BandwidthLimiter for downloads
+	 */
+	public static BandwidthLimiter getDownloadInstance()
+	{
+		return downloads;
+	}
+
+
+	/**
+	 * Get the rate at which data may be transferred.
+	 * @return long bytes per second, or 0 if unlimited
+	 */
+	public long getRate()
+	{
+		return rate;
+	}
+
+	/**
+	 * Set the rate at which data may be transferred. Flows waiting for bytes are granted them at the
+	 * new rate from now on.
+	 * @param bytesPerSecond long rate, or 0 for no limit
+	 */
+	public synchronized void setRate(long bytesPerSecond)
+	{
+		long now = System.nanoTime();
+		refill(now);
+		rate = Math.max(0, bytesPerSecond);
+		tokens = Math.min(tokens, burst());
+		notifyAll();                                                         //Waiting threads see the new rate.
+	}
+
+	public boolean isLimited()
+	{
+		return rate > 0;
+	}
+
+
+	/**
+	 * Waits until the flow is granted bytes, and takes them.
+	 * @param flow Flow of the connection
+	 * @param wanted long most bytes the connection will transfer next
+	 * @return long bytes which may be transferred, from 1 to wanted, or wanted if there is no limit
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public long acquire(Flow flow, long wanted) throws InterruptedException
+	{
+		if (rate <= 0 || wanted <= 0)
+			return wanted;
+
+		synchronized (this)
+		{
+			try
+			{
+				while (true)
+				{
+					if (rate <= 0)
+						return wanted;                                       //The limit was removed while waiting.
+
+					if (flow.granted < wanted)
+					{
+						flow.demand = wanted - flow.granted;
+						enqueue(flow);
+						schedule(System.nanoTime());
+					}
+					if (flow.granted > 0)
+						return take(flow, wanted);
+					wait(getRetryMillis());
+				}
+			}
+			finally
+			{
+				flow.demand = 0;                                             //Not granted further bytes until asked again.
+			}
+		}
+	}
+
+
+	/**
+	 * Takes the bytes granted to the flow without waiting. If fewer bytes than wanted have been granted,
+	 * the flow waits for its turn, and is granted further bytes by later calls of any flow.
+	 * @param flow Flow of the connection
+	 * @param wanted long most bytes the connection will transfer next
+	 * @return long bytes which may be transferred, from 0 to wanted, or wanted if there is no limit
+	 */
+	public long tryAcquire(Flow flow, long wanted)
+	{
+		if (rate <= 0 || wanted <= 0)
+			return wanted;
+
+		synchronized (this)
+		{
+			if (flow.granted < wanted)
+			{
+				flow.demand = wanted - flow.granted;
+				enqueue(flow);
+				schedule(System.nanoTime());
+			}
+			return take(flow, wanted);
+		}
+	}
+
+
+	/**
+	 * Stops a flow waiting for bytes, and returns those granted to it but not taken.
+	 * @param flow Flow of a connection which has finished transferring data
+	 */
+	public synchronized void release(Flow flow)
+	{
+		flow.demand = 0;
+		if (flow.granted > 0)
+		{
+			tokens = Math.min(burst(), tokens + flow.granted);
+			flow.granted = 0;
+		}
+	}
+
+
+	/**
+	 * Get the time after which a flow which was granted no bytes should try again.
+	 * @return long milliseconds, from 1 to MAX_WAIT_MILLIS
+	 */
+	public synchronized long getRetryMillis()
+	{
+		long limit = rate;
+		if (limit <= 0)
+			return 1;
+		double missing = Math.max(0, QUANTUM_BYTES - tokens);
+		return Math.max(1, Math.min(MAX_WAIT_MILLIS, (long) Math.ceil(missing * 1000 / limit)));
+	}
+
+
+	/**
+	 * Takes up to wanted of the bytes granted to the flow.
+	 */
+	private long take(Flow flow, long wanted)
+	{
+		long taken = Math.min(flow.granted, wanted);
+		flow.granted -= taken;
+		return taken;
+	}
+
+
+	private void enqueue(Flow flow)
+	{
+		if (!flow.queued)
+		{
+			flow.queued = true;
+			active.addLast(flow);
+		}
+	}
+
+
+	/**
+	 * Grants the tokens in the bucket to the waiting flows by deficit round robin. The flow at the head
+	 * adds QUANTUM_BYTES to its deficit when its turn starts, and is granted its deficit, or its demand
+	 * if that is less, once the bucket holds as many tokens. A flow which wants nothing more leaves the
+	 * queue and loses its deficit, and any other goes to the back. Must be called holding the lock.
+	 */
+	private void schedule(long now)
+	{
+		refill(now);
+		boolean grantedAny = false;
+		while (!active.isEmpty())
+		{
+			Flow flow = active.peekFirst();
+			if (flow.demand == 0)
+			{
+				active.pollFirst();
+				flow.queued = false;
+				flow.roundStarted = false;
+				flow.deficit = 0;
+				continue;
+			}
+
+			if (!flow.roundStarted)
+			{
+				flow.deficit += QUANTUM_BYTES;
+				flow.roundStarted = true;
+			}
+			long grant = Math.min(flow.deficit, flow.demand);
+			if (grant > tokens)
+				break;                                                       //Wait until the bucket holds the turn of this flow.
+
+			tokens -= grant;
+			flow.deficit -= grant;
+			flow.demand -= grant;
+			flow.granted += grant;
+			grantedAny = true;
+			active.pollFirst();
+			flow.roundStarted = false;
+			if (flow.demand == 0)
+			{
+				flow.queued = false;
+				flow.deficit = 0;
+			}
+			else
+			{
+				active.addLast(flow);
+			}
+		}
+
+		if (grantedAny)
+			notifyAll();                                                     //Threads whose flows were granted bytes may continue.
+	}
+
+
+	private void refill(long now)
+	{
+		long limit = rate;
+		if (limit > 0)
+			tokens = Math.min(burst(), tokens + limit * ((now - refilledNanos) / 1e9));
+		refilledNanos = now;
+	}
+
+
+	/**
+	 * Get the most tokens the bucket holds, which is always enough for the turn of a flow.
+	 */
+	private double burst()
+	{
+		return Math.max(QUANTUM_BYTES, rate * BURST_MILLIS / 1000.0);
+	}
+}
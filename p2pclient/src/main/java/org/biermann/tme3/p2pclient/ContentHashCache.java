@@ -0,0 +1,170 @@
+/**
+ * ContentHashCache.java
+ *
+ * Caches the ContentHashes of shared files, so each file is hashed only once. A cached result is
+ * used for as long as the size and modification time of the file are unchanged, and is computed
+ * again once either changes.
+ *
+ * Files are hashed when they are shared, so the hashes are normally cached before any peer asks for
+ * them. The NIO send engine never hashes on its event loops. If the hashes of a file are not cached,
+ * it asks for them to be computed in the background and meanwhile replies with an error.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ContentHashCache
+{
+	private static ContentHashCache instance;                             //Single cache shared by all send engines.
+
+	private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+	private final Set<Path> pending = ConcurrentHashMap.newKeySet();       //Files being hashed in the background.
+	private ExecutorService backgroundHasher;
+
+
+	/**
+	 * The hashes of a file, with the attributes of the file when it was hashed.
+	 */
+	private static final class Entry
+	{
+		final long size;
+		final FileTime lastModified;
+		final ContentHashes hashes;
+
+		Entry(long size, FileTime lastModified, ContentHashes hashes)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hashes = hashes;
+		}
+	}
+
+
+	/**
+	 * Get the application-wide ContentHashCache, creating it on first use.
+	 * @return ContentHashCache shared by the peer
+	 */
+	public static synchronized ContentHashCache getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new ContentHashCache();
+		}
+		return instance;
+	}
+
+
+	/**
+	 * Get the hashes of the file, computing them if they are not cached or the file has changed.
+	 * @param filePath Path of the file
+	 * @return ContentHashes of the current content of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public ContentHashes get(Path filePath) throws IOException
+	{
+		Path key = filePath.toAbsolutePath().normalize();
+		ContentHashes cached = getIfCached(key);
+		if (cached != null)
+			return cached;
+
+		BasicFileAttributes before = Files.readAttributes(key, BasicFileAttributes.class);
+		ContentHashes hashes = ContentHashes.compute(key);
+		BasicFileAttributes after = Files.readAttributes(key, BasicFileAttributes.class);
+
+		/*Only cache the result if the file did not change while it was read */
+		if (before.size() == after.size() && before.lastModifiedTime().equals(after.lastModifiedTime())
+				&& hashes.getFileSize() == after.size())
+			entries.put(key, new Entry(after.size(), after.lastModifiedTime(), hashes));
+
+		return hashes;
+	}
+
+
+	/**
+	 * Get the hashes of the file if they are cached and the file has not changed since. Does not
+	 * read the file.
+	 * @param filePath Path of the file
+	 * @return ContentHashes of the file, or null if they are not cached
+	 * @throws IOException if the attributes of the file cannot be read
+	 */
+	public ContentHashes getIfCached(Path filePath) throws IOException
+	{
+		Path key = filePath.toAbsolutePath().normalize();
+		Entry entry = entries.get(key);
+		if (entry == null)
+			return null;
+
+		BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+		if (attributes.size() != entry.size || !attributes.lastModifiedTime().equals(entry.lastModified))
+		{
+			entries.remove(key, entry);                                      //The file has changed.
+			return null;
+		}
+
+		return entry.hashes;
+	}
+
+
+	/**
+	 * Computes the hashes of the file on a background thread, unless that is already under way.
+	 * @param filePath Path of the file
+	 */
+	public void computeLater(Path filePath)
+	{
+		Path key = filePath.toAbsolutePath().normalize();
+		if (!pending.add(key))
+			return;
+
+		getBackgroundHasher().submit(() ->
+		{
+			try
+			{
+				get(key);
+			}
+			catch (IOException hashEx)
+			{
+				System.err.println("Unable to hash the shared file " + key + ": " + hashEx.getMessage());
+			}
+			finally
+			{
+				pending.remove(key);
+			}
+		});
+	}
+
+
+	private synchronized ExecutorService getBackgroundHasher()
+	{
+		if (backgroundHasher == null)
+		{
+			/*A single thread, so hashing does not compete with uploads for more than one core */
+			backgroundHasher = Executors.newSingleThreadExecutor(task ->
+			{
+				Thread thread = new Thread(task, "p2p-hasher");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return backgroundHasher;
+	}
+
+
+	/**
+	 * Removes the cached hashes of the file, e.g. when it is no longer shared.
+	 * @param filePath Path of the file
+	 */
+	public void invalidate(Path filePath)
+	{
+		entries.remove(filePath.toAbsolutePath().normalize());
+	}
+}
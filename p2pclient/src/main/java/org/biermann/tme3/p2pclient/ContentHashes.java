@@ -0,0 +1,211 @@
+/**
+ * ContentHashes.java
+ *
+ * Holds the hashes which identify the content of a file and allow it to be verified as it is received.
+ * The file is divided into chunks of CHUNK_SIZE bytes (the last may be shorter), and each chunk is
+ * hashed with SHA-256. The content hash of the whole file is the SHA-256 hash of the chunk hashes
+ * in order, so it can be verified from the chunk hashes without a second pass over the file.
+ *
+ * The content hash is advertised through the index service, and the chunk hashes are requested from
+ * a sharing peer (see PeerProtocol) and checked against it before being used.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public final class ContentHashes
+{
+	public static final int CHUNK_SIZE = 256 * 1024;
+	public static final String ALGORITHM = "SHA-256";
+	public static final int HASH_LENGTH = 32;
+
+	private final long fileSize;
+	private final byte[] chunkHashes;                                      //HASH_LENGTH bytes for each chunk, in order.
+	private final String contentHash;
+
+
+	/**
+	 * Creates ContentHashes from the hashes of the chunks of a file.
+	 * @param fileSize long size of the file
+	 * @param chunkHashes byte[] with the hash of every chunk, in order
+	 * @throws IllegalArgumentException if the number of hashes does not match the file size
+	 */
+	public ContentHashes(long fileSize, byte[] chunkHashes)
+	{
+		if (fileSize < 0 || chunkHashes.length != getChunkCount(fileSize) * (long) HASH_LENGTH)
+			throw new IllegalArgumentException("The number of chunk hashes does not match the file size.");
+
+		this.fileSize = fileSize;
+		this.chunkHashes = chunkHashes;
+		this.contentHash = toHex(newDigest().digest(chunkHashes));
+	}
+
+
+	/**
+	 * Reads the file and computes its hashes.
+	 * @param filePath Path of the file to hash
+	 * @return ContentHashes of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public static ContentHashes compute(Path filePath) throws IOException
+	{
+		Hasher hasher = new Hasher();
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+
+		try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ))
+		{
+			while (file.read(buf) >= 0)
+			{
+				hasher.update(buf.array(), 0, buf.position());
+				buf.clear();
+			}
+		}
+
+		return hasher.finish();
+	}
+
+
+	/**
+	 * Computes the hashes of data which arrives in order, a chunk at a time, such as a file
+	 * received from a peer.
+	 */
+	public static final class Hasher
+	{
+		private final MessageDigest digest = newDigest();
+		private final ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+		private long total;
+		private int inChunk;                                               //Bytes of the current chunk added so far.
+
+		public void update(byte[] data, int offset, int length)
+		{
+			while (length > 0)
+			{
+				int count = Math.min(length, CHUNK_SIZE - inChunk);
+				digest.update(data, offset, count);
+				inChunk += count;
+				total += count;
+				offset += count;
+				length -= count;
+
+				if (inChunk == CHUNK_SIZE)
+				{
+					hashes.write(digest.digest(), 0, HASH_LENGTH);
+					inChunk = 0;
+				}
+			}
+		}
+
+		/**
+		 * Completes the hash of the last chunk.
+		 * @return ContentHashes of all the data added
+		 */
+		public ContentHashes finish()
+		{
+			if (inChunk > 0)
+			{
+				hashes.write(digest.digest(), 0, HASH_LENGTH);
+				inChunk = 0;
+			}
+
+			return new ContentHashes(total, hashes.toByteArray());
+		}
+	}
+
+
+	/**
+	 * Get the number of chunks in a file of the specified size.
+	 * @param fileSize long size of the file
+	 * @return int number of chunks
+	 */
+	public static int getChunkCount(long fileSize)
+	{
+		return (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+
+	/**
+	 * Determines if the specified digest matches the hash of a chunk.
+	 * @param chunk int index of the chunk
+	 * @param digest byte[] hash of the received chunk
+	 * @return boolean true if the chunk is intact
+	 */
+	public boolean matchesChunk(int chunk, byte[] digest)
+	{
+		int from = chunk * HASH_LENGTH;
+		return chunk >= 0 && from < chunkHashes.length
+				&& Arrays.equals(digest, Arrays.copyOfRange(chunkHashes, from, from + HASH_LENGTH));
+	}
+
+
+	public long getFileSize()
+	{
+		return fileSize;
+	}
+
+	/**
+	 * Get the hash of the whole file.
+	 * @return String with the content hash as lower case hexadecimal
+	 */
+	public String getContentHash()
+	{
+		return contentHash;
+	}
+
+	/**
+	 * Get the hashes of all chunks, in order. The array is not copied, so it must not be modified.
+	 * @return byte[] with HASH_LENGTH bytes for each chunk
+	 */
+	byte[] getChunkHashes()
+	{
+		return chunkHashes;
+	}
+
+
+	/**
+	 * Creates a MessageDigest for ALGORITHM, which every Java platform is required to support.
+	 * @return MessageDigest for SHA-256
+	 */
+	public static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance(ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException noSha256)
+		{
+			throw new RuntimeException("The " + ALGORITHM + " algorithm is not available.", noSha256);
+		}
+	}
+
+
+	public static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+
+	/**
+	 * Determines if the string is a content hash, i.e. HASH_LENGTH bytes as hexadecimal.
+	 * @param hash String to check, which may be null
+	 * @return boolean true if the string is a valid content hash
+	 */
+	public static boolean isContentHash(String hash)
+	{
+		return hash != null && hash.matches("[0-9a-fA-F]{" + (HASH_LENGTH * 2) + "}");
+	}
+}
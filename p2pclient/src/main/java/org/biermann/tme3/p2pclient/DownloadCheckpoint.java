@@ -0,0 +1,230 @@
+/**
+ * DownloadCheckpoint.java
+ *
+ * Records which chunks of a download have been written, so that an interrupted download can resume
+ * where it stopped. While a file is downloaded its data is written to "<fileName>.part" in the receive
+ * directory, and the checkpoint is kept next to it in "<fileName>.part.ckpt". Once the download
+ * completes, the part file is renamed to the file name and the checkpoint is deleted.
+ *
+ * The checkpoint holds the size and content hash of the file, the chunk size, and one bit for every chunk. A bit is
+ * only set after the data of the chunk has been forced to storage, so a chunk marked in a checkpoint
+ * is complete in the part file even after a crash. The checkpoint is replaced atomically when saved.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+public class DownloadCheckpoint
+{
+	public static final String PART_SUFFIX = ".part";
+	public static final String CHECKPOINT_SUFFIX = ".ckpt";
+	public static final String RECEIVE_SUFFIX = ".receive";
+	private static final int MAGIC = 0x50325043;                           //"P2PC"
+	private static final int VERSION = 2;
+
+	private final Path checkpointPath;
+	private final long fileSize;
+	private final int chunkSize;
+	private final String contentHash;                                     //Empty if the content was not known.
+	private final BitSet completed;
+
+
+	/**
+	 * Creates an empty checkpoint, in which no chunks are complete.
+	 * @param checkpointPath Path of the checkpoint file
+	 * @param fileSize long size of the file being downloaded
+	 * @param chunkSize int size of every chunk except the last
+	 * @param contentHash String with the content hash of the file, or null if not known
+	 */
+	public DownloadCheckpoint(Path checkpointPath, long fileSize, int chunkSize, String contentHash)
+	{
+		this(checkpointPath, fileSize, chunkSize, contentHash, new BitSet());
+	}
+
+
+	private DownloadCheckpoint(Path checkpointPath, long fileSize, int chunkSize, String contentHash, BitSet completed)
+	{
+		this.checkpointPath = checkpointPath;
+		this.fileSize = fileSize;
+		this.chunkSize = chunkSize;
+		this.contentHash = (contentHash == null) ? "" : contentHash.toLowerCase();
+		this.completed = completed;
+	}
+
+
+	/**
+	 * Get the path of the part file holding the data of a download in progress.
+	 * @param receiveDir Path of the receive directory
+	 * @param fileName String with the name of the file being downloaded
+	 * @return Path of the part file
+	 */
+	public static Path getPartPath(Path receiveDir, String fileName)
+	{
+		return receiveDir.resolve(fileName + PART_SUFFIX);
+	}
+
+
+	/**
+	 * Get the path of the file holding the data of a download which cannot be resumed (see
+	 * FileReceiveHelper). It is kept apart from the part file, so that such a download never
+	 * overwrites a part file which a later download could resume.
+	 * @param receiveDir Path of the receive directory
+	 * @param fileName String with the name of the file being downloaded
+	 * @return Path of the file being received
+	 */
+	public static Path getReceivePath(Path receiveDir, String fileName)
+	{
+		return receiveDir.resolve(fileName + RECEIVE_SUFFIX);
+	}
+
+
+	/**
+	 * Get the path of the checkpoint kept next to a part file.
+	 * @param partPath Path of the part file
+	 * @return Path of the checkpoint file
+	 */
+	public static Path getCheckpointPath(Path partPath)
+	{
+		return partPath.resolveSibling(partPath.getFileName() + CHECKPOINT_SUFFIX);
+	}
+
+
+	/**
+	 * Reads the checkpoint at the specified path.
+	 * @param checkpointPath Path of the checkpoint file
+	 * @return DownloadCheckpoint read from the file, or null if there is no checkpoint or it is not valid
+	 */
+	public static DownloadCheckpoint load(Path checkpointPath)
+	{
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(checkpointPath))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+
+			long fileSize = in.readLong();
+			int chunkSize = in.readInt();
+			String contentHash = in.readUTF();
+			byte[] bits = new byte[in.readInt()];
+			in.readFully(bits);
+			if (fileSize < 0 || chunkSize <= 0)
+				return null;
+
+			return new DownloadCheckpoint(checkpointPath, fileSize, chunkSize, contentHash, BitSet.valueOf(bits));
+		}
+		catch (NoSuchFileException noCheckpoint)
+		{
+			return null;
+		}
+		catch (IOException | RuntimeException invalidCheckpoint)
+		{
+			System.err.println("Ignoring the invalid download checkpoint " + checkpointPath);
+			return null;
+		}
+	}
+
+
+	/**
+	 * Writes the checkpoint to a temporary file and moves it over the previous checkpoint, so a
+	 * valid checkpoint exists at all times.
+	 * @throws IOException if the checkpoint cannot be written
+	 */
+	public synchronized void save() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes))
+		{
+			byte[] bits = completed.toByteArray();
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileSize);
+			out.writeInt(chunkSize);
+			out.writeUTF(contentHash);
+			out.writeInt(bits.length);
+			out.write(bits);
+		}
+
+		Path tempPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+		Files.write(tempPath, bytes.toByteArray());
+		try
+		{
+			Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException notAtomic)
+		{
+			Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+
+	/**
+	 * Deletes the checkpoint file, once the download has completed.
+	 * @throws IOException if the checkpoint exists but cannot be deleted
+	 */
+	public void delete() throws IOException
+	{
+		Files.deleteIfExists(checkpointPath);
+	}
+
+
+	public long getFileSize()
+	{
+		return fileSize;
+	}
+
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	/**
+	 * Determines if the checkpoint is for a file with the specified content. The data in the part
+	 * file is only kept if it is, so data of a file which has since changed is never resumed.
+	 * @param hash String with the content hash of the file now being downloaded, or null if not known
+	 * @return boolean true if the content hash is the same as when the checkpoint was created
+	 */
+	public boolean matchesContent(String hash)
+	{
+		return contentHash.equalsIgnoreCase((hash == null) ? "" : hash);
+	}
+
+	public synchronized boolean isComplete(int chunk)
+	{
+		return completed.get(chunk);
+	}
+
+	public synchronized void setComplete(int chunk)
+	{
+		completed.set(chunk);
+	}
+
+	public synchronized void clearComplete(int chunk)
+	{
+		completed.clear(chunk);
+	}
+
+	/**
+	 * Get the number of bytes of the file held by the complete chunks.
+	 * @return long number of bytes already downloaded
+	 */
+	public synchronized long getCompletedBytes()
+	{
+		long bytes = 0;
+		for (int chunk = completed.nextSetBit(0); chunk >= 0; chunk = completed.nextSetBit(chunk + 1))
+		{
+			bytes += Math.max(0, Math.min(chunkSize, fileSize - (long) chunk * chunkSize));
+		}
+		return bytes;
+	}
+}
@@ -5,6 +5,10 @@
  * downloading or completely downloaded. Allows threads to communicate the status of a download
  * between each other.
  * 
+ * A busy peer may queue the download until it has a free upload slot (see UploadSlots). While it is
+ * queued, the position in the queue and the wait estimated by the peer are kept, and shown in the
+ * status message.
+ * 
  * @author Oloff Biermann
  */
 package org.biermann.tme3.p2pclient;
@@ -20,6 +24,8 @@ public class DownloadStatus
 	private Condition terminatedCondition;
 	private Lock lock;
 	private boolean downloadTerminated;
+	private int queuePosition = 0;                                        //0 unless queued by a peer.
+	private long estimatedWaitMillis = -1;
 	
 	public DownloadStatus(String fileName)
 	{
@@ -103,4 +109,58 @@ public class DownloadStatus
 	}
 	
 	
+	/**
+	 * Records that a peer has queued the download, and shows the position in the status message.
+	 * @param position int position in the queue of the peer, starting at 1
+	 * @param estimatedWaitMillis long wait estimated by the peer, or -1 if not known
+	 */
+	public synchronized void setQueued(int position, long estimatedWaitMillis)
+	{
+		queuePosition = position;
+		this.estimatedWaitMillis = estimatedWaitMillis;
+		statusMessage = "Download status for " + fileName + ": queued by the peer at position " + position
+				+ ((estimatedWaitMillis >= 0) ? ", about " + (estimatedWaitMillis + 999) / 1000 + " s to wait..." : "...");
+	}
+	
+	
+	/**
+	 * Records that the download is no longer queued. The status message is left to the caller.
+	 */
+	public synchronized void clearQueued()
+	{
+		queuePosition = 0;
+		estimatedWaitMillis = -1;
+	}
+	
+	
+	/**
+	 * Determines if a peer has queued the download until it has a free upload slot.
+	 * @return boolean true while the download is queued
+	 */
+	public synchronized boolean isQueued()
+	{
+		return queuePosition > 0;
+	}
+	
+	
+	/**
+	 * Get the position of the download in the queue of the peer.
+	 * @return int position starting at 1, or 0 if not queued
+	 */
+	public synchronized int getQueuePosition()
+	{
+		return queuePosition;
+	}
+	
+	
+	/**
+	 * Get the time for which the peer expects the download to remain queued.
+	 * @return long milliseconds, or -1 if not queued or not known
+	 */
+	public synchronized long getEstimatedWaitMillis()
+	{
+		return estimatedWaitMillis;
+	}
+	
+	
 }
@@ -1,25 +1,57 @@
 /**
  * FileReceiveHelper.java
- * 
+ *
  * FileReceiveHelper is a Runnable which supports a file receive operation from a particular host.
  * The location in which to store the file and file name are considered when performing receive operation
  * to recreate the file on local storage from the received data.
+ *
+ * The data is written to a temporary file (see DownloadCheckpoint.getReceivePath()), which is renamed
+ * once the whole file has been received. A failed download cannot be resumed, so its temporary file is
+ * deleted. It is not the part file of a SwarmDownload, so a part file which could be resumed is kept.
+ *
+ * The connection to the peer is opened by a PeerConnectionPool, which asks the peer to keep it alive.
+ * If the peer agrees, the file is requested as a series of ranges of RECEIVE_RANGE_BYTES, the next
+ * of which is requested as soon as the header of the current one has arrived, so the peer never waits
+ * for a request. Every reply states its length, so a connection closed early is detected, and a peer
+ * which sends frames also sends the CRC-32 of each range, which is checked as the range arrives. Such
+ * a peer may send a range compressed, in which case each of its blocks is checked once inflated (see
+ * RangeDecompressor).
+ *
+ * A peer which does not keep connections alive is sent the name of the file, and the file is read
+ * until the connection closes. As the reply does not hold the size of the file, a connection closed
+ * early cannot be told apart from the end of the file. In either case, if the content hash of the file
+ * is known, the data is hashed as it is received and the file is only kept if the hash matches, which
+ * detects both truncated and damaged data.
+ *
+ * A busy peer may queue each range until it has a free upload slot. Its queue frames are shown in the
+ * DownloadStatus until the range arrives.
+ *
+ * Data is only read once the download BandwidthLimiter has granted it, so downloads share the
+ * configured rate, and a peer sending faster is held back by the flow control of TCP.
  */
 package org.biermann.tme3.p2pclient;
 
 import java.io.*;
-import java.net.Socket;
-import java.net.SocketException;
-import java.nio.ByteBuffer;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
 
 public class FileReceiveHelper implements Runnable
 {
-	private Socket fileReceiveSock;
+	public static final int RECEIVE_RANGE_BYTES = 1024 * 1024;         //Bytes requested at once from a peer which keeps connections alive.
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
 	private String remoteHost, receiveDir;
 	private int remotePort;
 	private DownloadStatus downloadStatus;
-	
+	private final BandwidthLimiter limiter = BandwidthLimiter.getDownloadInstance();
+	private final BandwidthLimiter.Flow flow = new BandwidthLimiter.Flow();
+	private long allowance;                                             //Bytes granted by the download limiter but not yet read.
+	private String contentHash;                                           //Null if the content cannot be verified.
+
 	/**
 	 * Creates a FileReceiveHelper with the specified remote host and port, and directory
 	 * for receiving files. The DownloadStatus instance is used to obtain the file name
@@ -30,52 +62,80 @@ public class FileReceiveHelper implements Runnable
 	 * @param downloadStatus DownloadStatus instance which holds name of file to be received, among other
 	 * status data.
 	 */
-	public FileReceiveHelper(String remoteHost, int remotePort, String receiveDir, DownloadStatus downloadStatus) 
+	public FileReceiveHelper(String remoteHost, int remotePort, String receiveDir, DownloadStatus downloadStatus)
+	{
+		this(remoteHost, remotePort, receiveDir, downloadStatus, null);
+	}
+
+
+	/**
+	 * Creates a FileReceiveHelper which verifies the received file against the specified content hash.
+	 * @param remoteHost String with host address of the sender
+	 * @param remotePort int with remote port on sender
+	 * @param receiveDir String holding path to directory for receiving file.
+	 * @param downloadStatus DownloadStatus instance which holds name of file to be received, among other
+	 * status data.
+	 * @param contentHash String with the content hash of the file (see ContentHashes), or null if not known
+	 */
+	public FileReceiveHelper(String remoteHost, int remotePort, String receiveDir, DownloadStatus downloadStatus, String contentHash)
 	{
+		this.contentHash = contentHash;
 		this.receiveDir = receiveDir;
 		this.remoteHost = remoteHost;
 		this.remotePort = remotePort;
 		this.downloadStatus = downloadStatus;
 	}
-	
-	
+
+
 	/**Reads file data from the remote host and store data to disk in the receive
-	 * directory 
+	 * directory
 	 */
 	public void run()
+	{
+		try
+		{
+			receive();
+		}
+		finally
+		{
+			downloadStatus.setTerminated();                            //ALWAYS notify waiting threads that download is terminated.
+		}
+	}
+
+
+	/**Reads file data from the remote host and store data to disk in the receive
+	 * directory. The outcome is set as the status message, but the download is not marked
+	 * as terminated, so that the caller may try again.
+	 * @return boolean true if the whole file was received
+	 */
+	public boolean receive()
 	{
 		String errMsg = null;
-		InputStream inStream = null;
 		String outcome = "";
 		boolean success = false;
 		String receiveFileName = downloadStatus.getFileName();            //Get name of file to download.
-		
+		PeerConnectionPool connections = new PeerConnectionPool(PeerConfig.DEFAULT_KEEP_ALIVE, PeerConfig.DEFAULT_KEEP_ALIVE_MILLIS);
+		PeerConnectionPool.Connection connection;
+
 		try
 		{
-			fileReceiveSock = new Socket(remoteHost, remotePort);         //Create the socket.
+			connection = connections.acquire(InetSocketAddress.createUnresolved(remoteHost, remotePort));    //Create the connection.
 		}
 		catch (Exception socketCreationEx)
 		{
 			errMsg = "Error. Could not create connection to peer at " + remoteHost + ":" + remotePort + ". "
 					+ "Exception: " + socketCreationEx.getMessage();
-			return;
+			System.err.println(errMsg);
+			downloadStatus.setStatusMessage("Download status for " + receiveFileName + ": " + errMsg);
+			return false;
 		}
 
-		try
-		{
-			inStream = fileReceiveSock.getInputStream();
-		} catch (IOException inStreamEx)
-		{
-			errMsg = "Error. Could not get the input stream for peer connection " + fileReceiveSock.getRemoteSocketAddress();
-			return;
-		}
-		
 		try
 		{
 			/*Set status message to indicate download is starting */
 			downloadStatus.setStatusMessage("Download status for " + receiveFileName + ": Download starting...");
-			
-			success = receiveFileData(inStream);                      //Attempt to get data from peer.
+
+			success = receiveFileData(connection);                    //Attempt to get data from peer.
 			/*Outcome message is determined by success or failure of the receive operation */
 			outcome = success ? "Finished downloading." :
 				"Error. The shared file could not be transmitted. It may no longer be available from this peer.";
@@ -84,52 +144,47 @@ public class FileReceiveHelper implements Runnable
 		{
 			errMsg = "Exception occurred while transmitting data from peer.";
 		}
-		
+
 		finally
 		{
 			System.out.println(outcome);                                //Output the outcome to standard output stream.
-			
-			try
-			{
-			  inStream.close();
-			}
-			catch (IOException inStreamCloseEx)
-			{
-				System.err.println("Error closing the connection input stream");
-			}
-			
+
+			connections.discard(connection);                            //The connection is not used again.
+			connections.close();
+
 			if (errMsg != null)                                          //Output any specific error message.
 			{
 				System.err.println(errMsg);
 				outcome = errMsg;                                        //Set outcome to error message.
 			}
-			
+
+			downloadStatus.clearQueued();
 			downloadStatus.setStatusMessage("Download status for " + receiveFileName + ": " + outcome);   //Set status message of downloadStatus to outcome.
-			downloadStatus.setTerminated();                            //ALWAYS notify waiting threads that download is terminated.
 		}
-		
+
+		return success && errMsg == null;
 	}
-	
-	
-	
-	/**Reads the file data from the InputStream and stores it in a new local file.
-	 * 
-	 * @param inputStream InputStream from which to read file bytes
+
+
+
+	/**Reads the file data from the connection and stores it in a new local file.
+	 *
+	 * @param connection PeerConnectionPool.Connection to the peer
 	 * @return boolean true if transmission completes successfully, false otherwise.
 	 */
-	private boolean receiveFileData(InputStream inputStream)
+	private boolean receiveFileData(PeerConnectionPool.Connection connection)
 	{
 		String receiveFileName = downloadStatus.getFileName();
 		FileOutputStream fileOutStream = null;
 		File downloadedFile = null;
+		Path filePath = Paths.get(receiveDir, receiveFileName).toAbsolutePath();
 		String errMsg = null;
-		ByteBuffer buf;
-		byte[] bufBackingArr;
-						
+		byte[] bufBackingArr = new byte[READ_BUFFER_SIZE];
+
 		try
 		{
-			/*Create a new file in the receive directory */
-			downloadedFile = Paths.get(receiveDir, receiveFileName).toAbsolutePath().toFile();
+			/*Create a new temporary file in the receive directory */
+			downloadedFile = DownloadCheckpoint.getReceivePath(filePath.getParent(), receiveFileName).toFile();
 			downloadedFile.createNewFile();
 			fileOutStream = new FileOutputStream(downloadedFile);    //FileOutputStream to write to the new file.
 		}
@@ -138,65 +193,41 @@ public class FileReceiveHelper implements Runnable
 			errMsg = "Error. Could not create the new file " + receiveFileName;
 			return false;
 		}
-			
-		try
-		{
-			buf = ByteBuffer.allocate(fileReceiveSock.getReceiveBufferSize());
-			bufBackingArr = buf.array();
-		}
-		catch (SocketException sockEx)
-		{
-			errMsg = "Error getting receive buffer size for socket"; 
-			return false;
-		}
-		
-		/*Send request with file name to peer */
-		try 
-		{
-			fileReceiveSock.getOutputStream().write((receiveFileName + "\n").getBytes());
-		} catch (IOException e) 
-		{
-			errMsg = "Error sending file request to peer";
-			return false;
-		}
-		
+
 		/*Get response with file data, and store data to disk */
 		try
 		{
-			BufferedReader headerReader = new BufferedReader(new InputStreamReader(inputStream));
-			
-			/*Read the simple header from the peer. If it begins with the code "ERR", an error occurred. In this case,
-			 * output the header contents and return false. Otherwise, discard the header and begin reading file data.
-			 */
-			String header = headerReader.readLine().trim();
-			if (header.startsWith("ERR"))
-			{
-				errMsg = header.substring(3, header.length());              //Get error message in header.
-				return false;
-			}
-			
-			downloadStatus.setStatusMessage("Download status for " + downloadStatus.getFileName() + "downloading...");
-			int bytesRead = 0;
-			while ((bytesRead = inputStream.read(bufBackingArr)) > 0)
+			ContentHashes.Hasher hasher = (contentHash == null) ? null : new ContentHashes.Hasher();
+			if (connection.isKeepAlive())
+				receiveRanges(connection, fileOutStream, hasher, bufBackingArr);
+			else
+				receiveWholeFile(connection, fileOutStream, hasher, bufBackingArr);
+
+			fileOutStream.close();
+			if (hasher != null)
 			{
-				try
+				ContentHashes received = hasher.finish();
+				if (!contentHash.equalsIgnoreCase(received.getContentHash()))
 				{
-					fileOutStream.write(bufBackingArr, 0, bytesRead);        //Write bytesRead bytes from buffer to fileOutStream, starting at index 0.
-					
-				} catch (IOException writeEx)
-				  {
-					errMsg = "Error writing to file " +receiveFileName;
+					errMsg = "Error. The " + received.getFileSize() + " bytes received do not match the content hash of the file. "
+							+ "The transfer was cut short or the data was damaged.";
 					return false;
-				  }
+				}
 			}
-			
+			Files.move(downloadedFile.toPath(), filePath, StandardCopyOption.REPLACE_EXISTING);     //The whole file was received, so give it its name.
 			return true;	                                                 //Return true if transmission completes without exception thrown.
-		} catch (IOException peerReadException)
-		  {
-			errMsg = "Error reading file data from peer " + fileReceiveSock.getRemoteSocketAddress();
+		}
+		catch (PeerProtocol.ErrorReplyException errorReply)
+		{
+			errMsg = errorReply.getMessage();                                //Error message sent by the peer.
+			return false;
+		}
+		catch (IOException peerReadException)
+		{
+			errMsg = "Error reading file data from peer " + connection.getPeer() + ": " + peerReadException.getMessage();
 			return false;
-		  }
-		
+		}
+
 		finally
 		{
 			try
@@ -207,7 +238,9 @@ public class FileReceiveHelper implements Runnable
 			{
 				System.err.println("Error closing file output stream.");
 			}
-			
+
+			limiter.release(flow);
+
 			/*If an exception occurred during transmission, output error message and delete file. */
 			if (errMsg != null)
 			{
@@ -215,8 +248,136 @@ public class FileReceiveHelper implements Runnable
 				downloadedFile.delete();                                      //Delete the temporary file, if it exists.
 			}
 		}
-					
+
+	}
+
+
+	/**
+	 * Requests the file in ranges from a peer which keeps the connection alive, always requesting the
+	 * next range before reading the current one.
+	 * @throws IOException if a range is missing, cut short or does not match its checksum
+	 */
+	private void receiveRanges(PeerConnectionPool.Connection connection, OutputStream fileOutStream, ContentHashes.Hasher hasher,
+			byte[] bufBackingArr) throws IOException
+	{
+		String receiveFileName = downloadStatus.getFileName();
+		CRC32 crc = new CRC32();
+		long offset = 0;
+
+		connection.setQueueListener(downloadStatus::setQueued);
+		connection.sendRangeRequest(receiveFileName, 0, RECEIVE_RANGE_BYTES, true);
+		connection.flush();
+		downloadStatus.setStatusMessage("Download status for " + receiveFileName + ": downloading...");
+		while (true)
+		{
+			/*Copy the header, as the frame is reused by the next reply. */
+			PeerProtocol.Frame header = connection.readRangeHeader();
+			InputStream inputStream = connection.getRangeStream();             //Inflates the range if the peer compressed it.
+			if (downloadStatus.isQueued())
+			{
+				downloadStatus.clearQueued();                                   //The peer has started sending.
+				downloadStatus.setStatusMessage("Download status for " + receiveFileName + ": downloading...");
+			}
+			long fileSize = header.getFileSize();
+			long remaining = header.getLength();
+			boolean checksummed = header.hasChecksum();
+			int checksum = header.getChecksum();
+			if (header.getOffset() != offset || remaining < 0 || remaining > fileSize - offset)
+				throw new IOException("The peer returned a different range than requested.");
+
+			long next = offset + remaining;
+			if (next < fileSize)
+			{
+				if (remaining == 0)
+					throw new IOException("The peer returned an empty range before the end of the file.");
+				connection.sendRangeRequest(receiveFileName, next, RECEIVE_RANGE_BYTES, true);      //Requested now, so it is sent while this range is read.
+				connection.flush();
+			}
+
+			crc.reset();
+			while (remaining > 0)
+			{
+				int bytesRead = inputStream.read(bufBackingArr, 0, allowedRead(bufBackingArr.length, remaining));
+				if (bytesRead < 0)
+					throw new IOException("The peer closed the connection after " + (next - remaining) + " of " + fileSize + " bytes.");
+				allowance -= bytesRead;
+
+				if (hasher != null)
+					hasher.update(bufBackingArr, 0, bytesRead);                 //Hash while receiving, so no second pass is needed.
+				if (checksummed)
+					crc.update(bufBackingArr, 0, bytesRead);
+				fileOutStream.write(bufBackingArr, 0, bytesRead);
+				remaining -= bytesRead;
+			}
+
+			if (checksummed && (int) crc.getValue() != checksum)
+				throw new IOException("The range at " + offset + " does not match its checksum. The data was damaged.");
+
+			offset = next;
+			if (offset >= fileSize)
+				return;
+		}
+	}
+
+
+	/**
+	 * Requests the whole file from a peer which does not keep connections alive, and reads it until
+	 * the peer closes the connection.
+	 */
+	private void receiveWholeFile(PeerConnectionPool.Connection connection, OutputStream fileOutStream, ContentHashes.Hasher hasher,
+			byte[] bufBackingArr) throws IOException
+	{
+		InputStream inputStream = connection.getInputStream();
+
+		/*Send request with file name to peer */
+		connection.send(downloadStatus.getFileName() + "\n");
+		connection.flush();
+
+		/*Read the simple header from the peer. If it begins with the code "ERR", an error occurred. Otherwise,
+		 * discard the header and begin reading file data.
+		 */
+		String header = PeerProtocol.readLine(inputStream);
+		if (header == null)
+			throw new IOException("The peer closed the connection without a reply.");
+		if (header.startsWith(PeerProtocol.ERR))
+			throw new PeerProtocol.ErrorReplyException(PeerProtocol.STATUS_FAILED, header.substring(PeerProtocol.ERR.length()).trim());
+
+		downloadStatus.setStatusMessage("Download status for " + downloadStatus.getFileName() + ": downloading...");
+		int bytesRead = 0;
+		while ((bytesRead = inputStream.read(bufBackingArr, 0, allowedRead(bufBackingArr.length, Long.MAX_VALUE))) > 0)
+		{
+			allowance -= bytesRead;
+			if (hasher != null)
+				hasher.update(bufBackingArr, 0, bytesRead);                 //Hash while receiving, so no second pass is needed.
+
+			fileOutStream.write(bufBackingArr, 0, bytesRead);           //Write bytesRead bytes from buffer to fileOutStream, starting at index 0.
+		}
 	}
-	
-	
+
+
+	/**
+	 * Get the number of bytes to read next, waiting until the download limiter has granted some if
+	 * none are left from before.
+	 * @param bufSize int size of the read buffer
+	 * @param remaining long bytes still to be read, or Long.MAX_VALUE if not known
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	private int allowedRead(int bufSize, long remaining) throws InterruptedIOException
+	{
+		if (allowance == 0)
+		{
+			try
+			{
+				allowance = limiter.acquire(flow, remaining);
+			}
+			catch (InterruptedException interrupted)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("The download was interrupted while waiting for the download limit.");
+			}
+		}
+		return (int) Math.min(bufSize, allowance);
+	}
+
+
 }
@@ -7,48 +7,120 @@
  * 
  * Considers the specified sharing directory which is used as the source to locate
  * the file to transfer. Also considers the specified port when listening for connections.
+ * Connections are accepted on a ServerSocketChannel, so each worker is given a SocketChannel
+ * which it can use to send file data with FileChannel.transferTo().
+ * 
+ * Workers run on the executor given to the constructor, which may be the executor shared by the
+ * whole peer (see PeerExecutors). The number of files sent at once is limited by UploadSlots;
+ * workers beyond the limit wait in the queue of the slots after reading the request, and tell their
+ * peer its position in the queue. Short requests are served first (see UploadSlots).
+ * 
+ * A peer may keep its connection open for further requests (see PeerProtocol). The worker of such a
+ * connection serves its requests in turn, and closes it once it has been idle for keepAliveMillis.
+ * Ranges are compressed for peers which accept it with the level set by setCompressionLevel().
  
  * 
  * @author Oloff Biermann
  */
 package org.biermann.tme3.p2pclient;
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class FileSendHelper implements Runnable
 {
-	private ServerSocket fileSendSock;
+	private ServerSocketChannel fileSendChannel;
 	private String shareDir;
 	private ExecutorService threadPool;
+	private UploadSlots uploadSlots;
+	private long keepAliveMillis;
+	private int compressionLevel = PeerConfig.DEFAULT_COMPRESSION_LEVEL;
 	
 	/**
 	 * Creates a FileSendHelper which uses the specified location to locate
 	 * files to send. Uses the server port indicated to listen for client connections on
-	 * a ServerSocket.
+	 * a ServerSocketChannel. Sends at most PeerConfig.DEFAULT_MAX_UPLOADS files at the same time.
 	 * @param sharedFiles String containing path to directory in which shared files are located
 	 * @param serverPort int TCP port number to use to listen for client connections
-	 * @throws IOException If creation of the ServerSocket fails.
+	 * @throws IOException If creation of the ServerSocketChannel fails.
 	 */
 	public FileSendHelper(String sharedFiles, int serverPort) throws IOException
+	{
+		this(sharedFiles, serverPort, Executors.newCachedThreadPool(), PeerConfig.DEFAULT_MAX_UPLOADS);
+	}
+	
+	
+	/**
+	 * Creates a FileSendHelper which runs its workers on the specified executor and sends at most
+	 * maxUploads files at the same time.
+	 * @param sharedFiles String containing path to directory in which shared files are located
+	 * @param serverPort int TCP port number to use to listen for client connections
+	 * @param executor ExecutorService used to run a FileSendWorker for each connection
+	 * @param maxUploads int maximum number of files sent at the same time
+	 * @throws IOException If creation of the ServerSocketChannel fails.
+	 */
+	public FileSendHelper(String sharedFiles, int serverPort, ExecutorService executor, int maxUploads) throws IOException
+	{
+		this(sharedFiles, serverPort, executor, maxUploads, PeerConfig.DEFAULT_KEEP_ALIVE_MILLIS);
+	}
+	
+	
+	/**
+	 * Creates a FileSendHelper which runs its workers on the specified executor, sends at most
+	 * maxUploads files at the same time, and closes connections kept alive once they are idle.
+	 * @param sharedFiles String containing path to directory in which shared files are located
+	 * @param serverPort int TCP port number to use to listen for client connections
+	 * @param executor ExecutorService used to run a FileSendWorker for each connection
+	 * @param maxUploads int maximum number of files sent at the same time
+	 * @param keepAliveMillis long time for which a connection kept alive may be idle
+	 * @throws IOException If creation of the ServerSocketChannel fails.
+	 */
+	public FileSendHelper(String sharedFiles, int serverPort, ExecutorService executor, int maxUploads, long keepAliveMillis) throws IOException
 	{
 		shareDir = sharedFiles;
-		fileSendSock = new ServerSocket(serverPort);
-		threadPool = Executors.newCachedThreadPool();
+		this.keepAliveMillis = keepAliveMillis;
+		fileSendChannel = ServerSocketChannel.open();
+		fileSendChannel.bind(new InetSocketAddress(serverPort), NioFileSendServer.ACCEPT_BACKLOG);    //Blocking mode, so accept() waits for a peer.
+		threadPool = executor;
+		uploadSlots = new UploadSlots(maxUploads);
+	}
+	
+	/**
+	 * Set the Deflate level with which the workers compress ranges for peers which accept it.
+	 * @param compressionLevel int level from 1 to 9, or 0 to never compress
+	 */
+	public void setCompressionLevel(int compressionLevel)
+	{
+		this.compressionLevel = compressionLevel;
+	}
+	
+	/**
+	 * Get the upload slots shared by the workers.
+	 * @return UploadSlots with the number of uploads in progress and waiting
+	 */
+	public UploadSlots getUploadSlots()
+	{
+		return uploadSlots;
 	}
 	
 	public void run()
 	{
 		boolean done = false;
-		Socket clientSock = null;
+		SocketChannel clientSock = null;
 		while (!done)
 		{
 			/*Wait for client and attempt to establish connection */
 			try
 			{
-				clientSock = fileSendSock.accept();
+				clientSock = fileSendChannel.accept();
+			} catch (ClosedChannelException closedEx)
+			{
+				done = true;                                           //Closed, or the thread was interrupted, so stop listening.
+				clientSock = null;
 			} catch (Exception acceptEx)
 			{
 				System.err.println("Error establishing peer connection: " + acceptEx.getMessage());
@@ -60,7 +132,11 @@ public class FileSendHelper implements Runnable
 			 * an error has occurred, so in that case do not submit a worker.
 			 */
 			if (clientSock != null)
-				threadPool.submit(new FileSendWorker(clientSock, shareDir));
+			{
+				FileSendWorker worker = new FileSendWorker(clientSock, shareDir, uploadSlots, keepAliveMillis);
+				worker.setCompressionLevel(compressionLevel);
+				threadPool.submit(worker);
+			}
 			
 		}
 	}
@@ -1,133 +1,563 @@
 /**
  * FileSendWorker.java
- * 
- * FileSendWorker is a Runnable which implements a file transfer operation between this host and 
- * a peer. 
- * 
+ *
+ * FileSendWorker is a Runnable which implements a file transfer operation between this host and
+ * a peer.
+ *
+ * Two ways of sending the file data are supported. By default the file is transferred from a FileChannel
+ * directly to the SocketChannel of the peer using FileChannel.transferTo(). Where the operating system
+ * supports it, this copies the data in the kernel (e.g. using sendfile) without passing it through a buffer
+ * in the JVM. Alternatively, the file may be copied through a heap buffer to the OutputStream of the socket.
+ * Both ways use the same "OK"/"ERR" header, so the peer cannot tell them apart. Requests for the whole
+ * file and for a range of it are supported, as described in PeerProtocol.
+ *
+ * If UploadSlots are given, a slot is held while the file is sent, which bounds the number of
+ * concurrent uploads of all workers sharing the slots. Requests for hashes are answered without a
+ * slot, so they never wait behind uploads. A request which arrives while every slot is
+ * in use waits in their queue, and if the peer accepts it, is sent a queue frame with its position
+ * whenever the position changes, at most every UploadSlots.POSITION_UPDATE_MILLIS, and at least every
+ * PeerProtocol.QUEUE_STATUS_INTERVAL_MILLIS. Uploads and the bytes sent are counted in UploadStats.
+ *
+ * If the peer asks to keep the connection alive (see PeerProtocol), the worker serves its requests
+ * in turn until the peer closes the connection, or sends no request for keepAliveMillis. The slot
+ * is only held while a file is sent, not while the connection is idle.
+ *
+ * If the peer offers version 3 of the protocol when asking to keep the connection alive, requests and
+ * replies are sent as binary frames. The header of each request frame is read into a buffer held by
+ * the worker and parsed into a Frame held by the worker, and the header of each reply is built in a
+ * buffer held by the worker, so no objects are created for a request other than the file name. The
+ * checksum of a range is computed through a direct buffer before the range is sent, if the peer asks
+ * for it.
+ *
+ * A range requested with FLAG_DEFLATE is sent as compressed blocks if RangeCompressor finds it worth
+ * compressing, whichever way file data is sent. The worker holds its own RangeCompressor and block
+ * buffer, which are created for the first compressed range of a connection.
+ *
+ * File data is only sent once the upload BandwidthLimiter has granted it to the flow of the
+ * connection, so uploads share the configured rate fairly. Headers are not limited.
+ *
  * @author Oloff Biermann
  */
 package org.biermann.tme3.p2pclient;
 import java.io.*;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
 
 public class FileSendWorker implements Runnable
 {
-	private Socket peerSocket;
+	public static final String ZERO_COPY_PROPERTY = "p2pclient.zeroCopy";
+	public static final int MAX_FILE_NAME_BYTES = PeerProtocol.MAX_LINE_BYTES;     //Longest request line accepted from a peer.
+	private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+	private SocketChannel peerChannel;
 	private String shareFilePath;
-	
+	private boolean zeroCopy;
+	private UploadSlots uploadSlots;
+	private long keepAliveMillis = PeerConfig.DEFAULT_KEEP_ALIVE_MILLIS;
+	private int version = 1;                                                       //Version of the protocol agreed with the peer.
+	private int compressionLevel = PeerConfig.DEFAULT_COMPRESSION_LEVEL;           //0 if ranges are never compressed.
+
+	/*Buffers reused for the frames of every request and reply */
+	private PeerProtocol.Frame frame;
+	private ByteBuffer frameHeader;
+	private byte[] frameContent;
+	private CRC32 crc;
+	private ByteBuffer checksumBuf;
+	private RangeCompressor compressor;
+	private ByteBuffer blockBuf;
+	private final BandwidthLimiter limiter = BandwidthLimiter.getUploadInstance();
+	private final BandwidthLimiter.Flow flow = new BandwidthLimiter.Flow();
+
 	/**
-	 * Sets the Socket to use to transfer file data, and the path
-	 * from which data is to be transferred.
-	 * @param peerSocket Socket which will be used to transfer data to the peer.
+	 * Sets the SocketChannel to use to transfer file data, and the path
+	 * from which data is to be transferred. Uses zero-copy transfer unless the
+	 * system property ZERO_COPY_PROPERTY is set to "false".
+	 * @param peerChannel SocketChannel in blocking mode which will be used to transfer data to the peer.
 	 * @param shareFilePath String with path to the file to transfer
 	 */
-	public FileSendWorker(Socket peerSocket, String shareFilePath)
+	public FileSendWorker(SocketChannel peerChannel, String shareFilePath)
 	{
-		this.peerSocket = peerSocket;
+		this(peerChannel, shareFilePath, Boolean.parseBoolean(System.getProperty(ZERO_COPY_PROPERTY, "true")));
+	}
+
+	/**
+	 * Sets the SocketChannel to use to transfer file data, the path
+	 * from which data is to be transferred, and the way the data is sent.
+	 * @param peerChannel SocketChannel in blocking mode which will be used to transfer data to the peer.
+	 * @param shareFilePath String with path to the file to transfer
+	 * @param zeroCopy boolean true to send with FileChannel.transferTo(), false to copy through a heap buffer
+	 */
+	public FileSendWorker(SocketChannel peerChannel, String shareFilePath, boolean zeroCopy)
+	{
+		this.peerChannel = peerChannel;
 		this.shareFilePath = shareFilePath;
+		this.zeroCopy = zeroCopy;
+	}
+
+	/**
+	 * Sets the SocketChannel to use to transfer file data and the path from which data is to be
+	 * transferred. A slot is taken from uploadSlots before the file is sent.
+	 * @param peerChannel SocketChannel in blocking mode which will be used to transfer data to the peer.
+	 * @param shareFilePath String with path to the file to transfer
+	 * @param uploadSlots UploadSlots shared by all workers which limit the number of concurrent uploads
+	 */
+	public FileSendWorker(SocketChannel peerChannel, String shareFilePath, UploadSlots uploadSlots)
+	{
+		this(peerChannel, shareFilePath);
+		this.uploadSlots = uploadSlots;
+	}
+
+	/**
+	 * Sets the SocketChannel to use to transfer file data and the path from which data is to be
+	 * transferred. A slot is taken from uploadSlots before each file is sent, and a connection
+	 * kept alive is closed once it has been idle for keepAliveMillis.
+	 * @param peerChannel SocketChannel in blocking mode which will be used to transfer data to the peer.
+	 * @param shareFilePath String with path to the file to transfer
+	 * @param uploadSlots UploadSlots shared by all workers which limit the number of concurrent uploads
+	 * @param keepAliveMillis long time for which a connection kept alive may be idle
+	 */
+	public FileSendWorker(SocketChannel peerChannel, String shareFilePath, UploadSlots uploadSlots, long keepAliveMillis)
+	{
+		this(peerChannel, shareFilePath, uploadSlots);
+		this.keepAliveMillis = keepAliveMillis;
 	}
-	
+
+	/**
+	 * Set the Deflate level of ranges sent compressed to a peer which accepts it.
+	 * @param compressionLevel int level from 1 to 9, or 0 to never compress
+	 */
+	public void setCompressionLevel(int compressionLevel)
+	{
+		this.compressionLevel = compressionLevel;
+	}
+
 	public void run()
 	{
-		String fileName = null;
-		OutputStream outStream = null;
-		
-		try
-		{
-			fileName = readFileName(peerSocket.getInputStream());                         //Read the file name from peer.
-		}catch (Exception fnReadEx)
-		 {
-			System.err.println("Error reading the file name from peer " + peerSocket.getRemoteSocketAddress());
-			System.err.println("Receive data is " + fileName);
-			System.err.println(fnReadEx.getMessage());
-			fnReadEx.printStackTrace();
-			return;
-		 }
-		
-		/*Ensure that fileName has been set to file name received from peer */
-		if (fileName != null)
+		boolean keepAlive = false;
+		InputStream requestStream = null;                                       //Buffered requests of a connection kept alive.
+
+		while (true)
 		{
-			String errMsg = null;
-			Path filePath = Paths.get(shareFilePath, fileName.trim());               //Create a path consisting of receive directory and the file name.
-			String filePathStr = filePath.normalize().toAbsolutePath().toString();   //Normalize file path and ensure it is absolute before stringifying it.
+			String requestLine = null;
+			PeerProtocol.Request request = null;
 			try
 			{
-				outStream = peerSocket.getOutputStream();
-				sendFile(outStream, filePathStr, peerSocket.getSendBufferSize());
-			}
-			catch(FileNotFoundException notFoundEx)
-			{
-				errMsg = "File " + fileName + " could not be found.";
+				if (version >= PeerProtocol.FRAMED_VERSION)
+				{
+					request = readRequestFrame(requestStream);
+				}
+				else
+				{
+					requestLine = keepAlive ? PeerProtocol.readLine(requestStream) : PeerProtocol.readLine(peerChannel);   //Read the request from peer.
+					if (requestLine != null)
+						request = PeerProtocol.parseRequest(requestLine);
+				}
 			}
-			catch (Exception fileTransferEx)
+			catch (SocketTimeoutException idleEx)
 			{
-				errMsg = "Error transferring file to peer " + peerSocket.getRemoteSocketAddress() + " " + 
-						fileTransferEx.getMessage();
+				break;                                                              //No further request, so close the connection.
 			}
-			
-			if (errMsg != null)
+			catch (Exception fnReadEx)
+			 {
+				System.err.println("Error reading the file name from peer " + peerChannel.socket().getRemoteSocketAddress());
+				System.err.println("Receive data is " + requestLine);
+				System.err.println(fnReadEx.getMessage());
+				fnReadEx.printStackTrace();
+				break;
+			 }
+
+			/*Ensure that a request has been received from peer */
+			if (request == null)
+				break;
+
+			if (request.isKeepAlive() && version < PeerProtocol.FRAMED_VERSION)
 			{
-				System.err.println(errMsg);                                                       //Output error message.
 				try
 				{
-					peerSocket.getOutputStream().write(("ERR " + errMsg + "\n").getBytes() );    //Write error message to peer in basic header "ERR".
+					writeFully(peerChannel, ByteBuffer.wrap(PeerProtocol.formatKeepAliveReply(request.getVersion(), keepAliveMillis).getBytes()));
+					version = request.getVersion();
+					if (version >= PeerProtocol.FRAMED_VERSION)
+					{
+						frame = new PeerProtocol.Frame();
+						frameHeader = ByteBuffer.allocate(PeerProtocol.FRAME_HEADER_BYTES);
+						frameContent = new byte[MAX_FILE_NAME_BYTES];
+						crc = new CRC32();
+					}
+					if (!keepAlive)
+					{
+						/*Further requests are read through a stream, which times out once the connection is idle. */
+						peerChannel.socket().setSoTimeout((int) Math.min(keepAliveMillis, Integer.MAX_VALUE));
+						peerChannel.socket().setTcpNoDelay(true);               //Otherwise the last segment of each reply waits for the delayed ACK of the peer.
+						requestStream = new BufferedInputStream(peerChannel.socket().getInputStream(), PeerProtocol.MAX_LINE_BYTES);
+						keepAlive = true;
+					}
+					continue;
 				}
-				catch(Exception ex)
+				catch (IOException keepAliveEx)
 				{
-					System.err.println("Could not write error message to peer: " +
-							peerSocket.getRemoteSocketAddress() + ex.getMessage());
+					System.err.println("Could not keep the connection to peer " + peerChannel.socket().getRemoteSocketAddress() 
+							+ " alive: " + keepAliveEx.getMessage());
+					break;
 				}
-			}//End-if
+			}
+
+			/*Each reply must state its length on a connection kept alive, so a whole file is sent as a range. */
+			if (!serve(keepAlive ? request.asRange() : request) || !keepAlive)
+				break;
+		}
+
+		closeChannel();                                                              //Close the channel to signal end of transmission
+	}
+
+
+	/**
+	 * Reads the next request frame.
+	 * @return Request received, or null if the peer closed the connection
+	 * @throws IOException if reading fails or the frame is not a valid request, after which the connection
+	 * cannot be used further
+	 */
+	private PeerProtocol.Request readRequestFrame(InputStream inStream) throws IOException
+	{
+		if (!PeerProtocol.readFrame(inStream, frameHeader, frame))
+			return null;
+
+		if (frame.getContentLength() > frameContent.length)
+			throw new IOException("The requested file name is too long.");
+
+		int nameLength = (int) frame.getContentLength();
+		PeerProtocol.readFully(inStream, frameContent, 0, nameLength);
+		ByteBuffer content = ByteBuffer.wrap(frameContent, 0, nameLength);
+		return PeerProtocol.parseRequestFrame(frame, content, crc);
+	}
+
+
+	/**
+	 * Sends the reply to a request for a file or for its hashes.
+	 * @return boolean true if the whole reply was sent, or an "ERR" reply was sent in its place, so
+	 * the connection may be used for a further request
+	 */
+	private boolean serve(PeerProtocol.Request request)
+	{
+		String errMsg = null;
+		int errStatus = PeerProtocol.STATUS_FAILED;
+		boolean clean = true;                                                        //False once the reply may have been sent in part.
+		String fileName = request.getFileName();
+		Path filePath = Paths.get(shareFilePath, fileName).normalize().toAbsolutePath();          //Normalize file path and ensure it is absolute.
+		UploadSlots.Ticket ticket = null;
+		boolean uploading = false;
+		try
+		{
+			if (uploadSlots != null && !request.isHashes())                   //Hashes are answered without a slot, as by NioFileSendServer.
+			{
+				long bytes = uploadSlots.isFree() ? 0 : request.getEnd(Files.size(filePath)) - request.getOffset();
+				ticket = uploadSlots.enqueue(bytes, null);
+				waitForSlot(ticket, request);                                 //Wait for a free upload slot.
+			}
+			
+			if (!request.isHashes())
+			{
+				UploadStats.getInstance().uploadStarted();
+				uploading = true;
+			}
+			
+			if (request.isHashes())
+			{
+				ContentHashes hashes = ContentHashCache.getInstance().get(filePath);
+				writeFully(peerChannel, ByteBuffer.wrap((version >= PeerProtocol.FRAMED_VERSION) ? PeerProtocol.formatHashesFrame(hashes)
+						: PeerProtocol.formatHashesReply(hashes)));
+			}
+			else if (zeroCopy)
+				sendFile(peerChannel, filePath, request);
+			else
+				sendFile(peerChannel.socket().getOutputStream(), filePath, request, peerChannel.socket().getSendBufferSize());
+		}
+		catch (InterruptedException interrupted)
+		{
+			Thread.currentThread().interrupt();
+			errMsg = "The upload of " + fileName + " was cancelled.";
+			clean = false;
+		}
+		catch(FileNotFoundException | NoSuchFileException notFoundEx)
+		{
+			errMsg = "File " + fileName + " could not be found.";
+			errStatus = PeerProtocol.STATUS_NOT_FOUND;
+		}
+		catch (Exception fileTransferEx)
+		{
+			errMsg = "Error transferring file to peer " + peerChannel.socket().getRemoteSocketAddress() + " " +
+					fileTransferEx.getMessage();
+			clean = false;
+		}
+		finally
+		{
+			limiter.release(flow);
+			if (uploading)
+				UploadStats.getInstance().uploadFinished();
+			if (ticket != null)
+				uploadSlots.release(ticket);
+		}
+
+		if (errMsg != null)
+		{
+			System.err.println(errMsg);                                                       //Output error message.
+			try
+			{
+				if (version >= PeerProtocol.FRAMED_VERSION)
+					writeFully(peerChannel, ByteBuffer.wrap(PeerProtocol.formatErrorFrame(errStatus, errMsg)));
+				else
+					writeFully(peerChannel, ByteBuffer.wrap(("ERR " + errMsg + "\n").getBytes()));     //Write error message to peer in basic header "ERR".
+			}
+			catch(Exception ex)
+			{
+				System.err.println("Could not write error message to peer: " +
+						peerChannel.socket().getRemoteSocketAddress() + ex.getMessage());
+				clean = false;
+			}
 		}//End-if
-		
+
+		return clean;
+	}
+
+
+	/**
+	 * Waits until the ticket is granted an upload slot. If the peer accepts queue frames, it is sent
+	 * its position in the queue while it waits.
+	 * @throws IOException if a queue frame cannot be sent
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private void waitForSlot(UploadSlots.Ticket ticket, PeerProtocol.Request request) throws IOException, InterruptedException
+	{
+		boolean reportQueue = version >= PeerProtocol.FRAMED_VERSION && request.isQueueStatusAccepted();
+		long checkMillis = 1;                                                   //The peer is told at once if it has to wait.
+		int sentPosition = 0;
+		long sentMillis = 0;
+		while (!uploadSlots.await(ticket, checkMillis))
+		{
+			checkMillis = UploadSlots.POSITION_UPDATE_MILLIS;
+			if (!reportQueue)
+				continue;
+
+			int position = uploadSlots.getPosition(ticket);
+			long now = System.currentTimeMillis();
+			if ((position != sentPosition && now - sentMillis >= UploadSlots.POSITION_UPDATE_MILLIS)
+					|| now - sentMillis >= PeerProtocol.QUEUE_STATUS_INTERVAL_MILLIS)
+			{
+				PeerProtocol.putQueuedFrame(position, uploadSlots.estimateWaitMillis(position), frame, frameHeader);
+				writeFully(peerChannel, frameHeader);
+				sentPosition = position;
+				sentMillis = now;
+			}
+		}
+	}
+
+
+	private void closeChannel()
+	{
+		if (compressor != null)
+			compressor.close();
 		try
 		{
-			outStream.close();                                                       //Close the OutputStream to signal end of transmission
+			peerChannel.close();
 		} catch (IOException closeEx)
 		 {
 			System.err.println("Unable to close connection to peer: " + closeEx.getMessage());
 		 }
-		
-		
 	}
-	
-	
-	private static String readFileName(InputStream inStream) throws IOException
+
+
+	/**
+	 * Sends the success header followed by the requested part of the file, using FileChannel.transferTo()
+	 * so the data does not need to be copied through a buffer in the JVM.
+	 * @param channel SocketChannel in blocking mode which will be used to output file data.
+	 * @param filePath Path holding local absolute file path
+	 * @param request PeerProtocol.Request for the whole file or a range of it
+	 * @throws IOException if the file cannot be opened or the transfer fails
+	 * @throws InterruptedException if the thread is interrupted while waiting for the upload limit
+	 */
+	private void sendFile(SocketChannel channel, Path filePath, PeerProtocol.Request request) throws IOException, InterruptedException
 	{
-		BufferedReader bufReader = new BufferedReader(new InputStreamReader(inStream));
-		return bufReader.readLine().trim();      //Return the received filename from peer, with whitespace at ends trimmed.                        
+		try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ);)
+		{
+			long fileSize = fileChannel.size();
+			long size = request.getEnd(fileSize);                            //Position after the last byte to send.
+			long position = request.getOffset();
+			if (isDeflated(fileChannel, fileSize, request))
+			{
+				sendBlocks(channel, fileChannel, fileSize, request);
+				return;
+			}
+
+			writeFully(channel, replyHeader(fileChannel, fileSize, request));             //Write success header before writing data to peer.
+
+			/*transferTo() may send fewer bytes than requested, so continue from the new position until done. */
+			ByteBuffer fallbackBuf = null;
+			long allowance = 0;                                              //Bytes granted by the upload limiter but not yet sent.
+			while (position < size)
+			{
+				if (allowance == 0)
+					allowance = limiter.acquire(flow, size - position);
+				long sent = fileChannel.transferTo(position, allowance, channel);
+				if (sent <= 0)
+				{
+					if (fileChannel.size() <= position)
+						throw new IOException("The file " + filePath.getFileName() + " ended after " + position + " of " + size + " bytes.");   //Truncated while being sent.
+
+					/*Nothing was sent because the socket buffer is full. This happens on a virtual thread, where the
+					 * socket is non-blocking underneath, so write a chunk through a buffer, which waits until writable. */
+					if (fallbackBuf == null)
+						fallbackBuf = ByteBuffer.allocate(channel.socket().getSendBufferSize());
+					fallbackBuf.clear();
+					fallbackBuf.limit((int) Math.min(fallbackBuf.capacity(), allowance));
+					sent = fileChannel.read(fallbackBuf, position);
+					if (sent <= 0)
+						throw new IOException("The file " + filePath.getFileName() + " ended after " + position + " of " + size + " bytes.");
+					fallbackBuf.flip();
+					writeFully(channel, fallbackBuf);
+				}
+
+				position += sent;
+				allowance -= sent;
+				UploadStats.getInstance().addBytesSent(sent);
+			}
+		}
 	}
-	
-	
+
+
 	/**
-	 * 
+	 * Sends the success header followed by the requested part of the file, copying the data through a
+	 * heap buffer to the OutputStream.
 	 * @param outStream OutputStream which will be used to output file data.
-	 * @param filePath String holding local absolute file path
+	 * @param filePath Path holding local absolute file path
+	 * @param request PeerProtocol.Request for the whole file or a range of it
 	 * @param bufSize int Size of the buffer used for file data
 	 * @throws IOException
 	 * @throws FileNotFoundException
+	 * @throws InterruptedException if the thread is interrupted while waiting for the upload limit
 	 */
-	private static void sendFile(OutputStream outStream, String filePath, int bufSize) throws IOException, FileNotFoundException
+	private void sendFile(OutputStream outStream, Path filePath, PeerProtocol.Request request, int bufSize)
+			throws IOException, FileNotFoundException, InterruptedException
 	{
-		try(FileInputStream fileInStream = new FileInputStream(filePath);)
-		{		
+		try(FileInputStream fileInStream = new FileInputStream(filePath.toFile());)
+		{
+			if (isDeflated(fileInStream.getChannel(), fileInStream.getChannel().size(), request))
+			{
+				sendBlocks(Channels.newChannel(outStream), fileInStream.getChannel(), fileInStream.getChannel().size(), request);
+				outStream.flush();
+				return;
+			}
+
 			/*Create a buffer and get the reference to the backing array
 			 * to allow direct write from the FileInputStream.
 			 */
 			ByteBuffer buf = ByteBuffer.allocate(bufSize);
 			byte[] bufBackingArr = buf.array();                      //Reference to byte[] backing buf
 			int bytesRead = 0;
-			
-			outStream.write("OK \n".getBytes());                     //Write success header before writing data to peer.
-			while ((bytesRead = fileInStream.read(bufBackingArr)) > 0)
+			long allowance = 0;                                      //Bytes granted by the upload limiter but not yet sent.
+			long fileSize = fileInStream.getChannel().size();
+			long remaining = request.getEnd(fileSize) - request.getOffset();
+
+			fileInStream.getChannel().position(request.getOffset());
+			ByteBuffer header = replyHeader(fileInStream.getChannel(), fileSize, request);
+			outStream.write(header.array(), header.arrayOffset() + header.position(), header.remaining());     //Write success header before writing data to peer.
+			while (remaining > 0)
 			{
+				if (allowance == 0)
+					allowance = limiter.acquire(flow, remaining);
+				if ((bytesRead = fileInStream.read(bufBackingArr, 0, (int) Math.min(bufBackingArr.length, allowance))) <= 0)
+					break;
 				outStream.write(bufBackingArr, 0, bytesRead);       //Write bytesRead bytes from the buffer to peer, starting at index 0.
+				remaining -= bytesRead;
+				allowance -= bytesRead;
+				UploadStats.getInstance().addBytesSent(bytesRead);
+			}
+			outStream.flush();
+		}
+
+	}
+
+
+	/**
+	 * Determines if the requested range is sent as compressed blocks, which is only if the peer accepts
+	 * them and the range is worth compressing.
+	 */
+	private boolean isDeflated(FileChannel file, long fileSize, PeerProtocol.Request request) throws IOException
+	{
+		if (version < PeerProtocol.FRAMED_VERSION || compressionLevel <= 0 || !request.isDeflateAccepted())
+			return false;
+
+		if (compressor == null)
+		{
+			compressor = new RangeCompressor(compressionLevel);
+			blockBuf = RangeCompressor.allocateBlockBuffer();
+		}
+		return compressor.shouldCompress(file, request.getOffset(), request.getEnd(fileSize) - request.getOffset());
+	}
+
+
+	/**
+	 * Sends the data frame of a compressed range followed by its blocks, each compressed into the block
+	 * buffer before it is written.
+	 */
+	private void sendBlocks(WritableByteChannel channel, FileChannel file, long fileSize, PeerProtocol.Request request)
+			throws IOException, InterruptedException
+	{
+		request.putDeflatedFrame(frame, fileSize, frameHeader);
+		writeFully(channel, frameHeader);
+
+		long position = request.getOffset();
+		long end = request.getEnd(fileSize);
+		while (position < end)
+		{
+			position += compressor.putBlock(file, position, end, blockBuf);
+			UploadStats.getInstance().addBytesSent(blockBuf.remaining());
+			int blockEnd = blockBuf.limit();
+			while (blockBuf.hasRemaining())
+			{
+				blockBuf.limit(blockBuf.position() + (int) limiter.acquire(flow, blockEnd - blockBuf.position()));
+				writeFully(channel, blockBuf);
+				blockBuf.limit(blockEnd);
 			}
 		}
-		
 	}
-	
-}
\ No newline at end of file
+
+
+	/**
+	 * Get the header sent before the requested part of the file: a header line, or a data frame if the
+	 * peer sends frames. The checksum of the range is computed if the peer asked for it.
+	 */
+	private ByteBuffer replyHeader(FileChannel file, long fileSize, PeerProtocol.Request request) throws IOException
+	{
+		if (version < PeerProtocol.FRAMED_VERSION)
+			return ByteBuffer.wrap(request.getOkHeader(fileSize).getBytes());
+
+		int checksum = 0;
+		if (request.isChecksummed(fileSize))
+		{
+			if (checksumBuf == null)
+				checksumBuf = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+			checksum = PeerProtocol.checksum(file, request.getOffset(), request.getEnd(fileSize) - request.getOffset(), checksumBuf, crc);
+		}
+		request.putDataFrame(frame, fileSize, checksum, frameHeader);
+		return frameHeader;
+	}
+
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining())
+		{
+			channel.write(buf);
+		}
+	}
+
+}
@@ -0,0 +1,1167 @@
+/**
+ * NioFileSendServer.java
+ *
+ * NioFileSendServer is a Runnable which serves shared files to peers using non-blocking I/O. It
+ * replaces the thread per connection of FileSendHelper with a small, fixed number of event loops,
+ * each of which owns a Selector and handles many connections. The same "OK"/"ERR" protocol is used,
+ * so peers cannot tell the two engines apart.
+ *
+ * Each connection passes through three states:
+ * 1) READING: the request line is read as data arrives, without blocking. Requests for a whole file,
+ *    a range of a file, and the chunk hashes of a file are supported, as described in PeerProtocol.
+ *    Hashes are answered at once from the ContentHashCache, without using an upload slot.
+ * 2) WAITING: the request is complete but the server is already sending its maximum number of files.
+ *    The connection waits in the queue of the UploadSlots shared by all event loops, where short
+ *    requests are served first, and is not polled until it is granted a slot. If the peer accepts queue frames,
+ *    it is sent its position in the queue at once, then whenever the position changes, at most every
+ *    UploadSlots.POSITION_UPDATE_MILLIS, and at least every PeerProtocol.QUEUE_STATUS_INTERVAL_MILLIS.
+ * 3) SENDING: the header and then the file are written with FileChannel.transferTo() whenever the
+ *    socket can accept more data, so a slow peer never holds up the event loop.
+ *
+ * A connection is closed once its reply is sent, unless the peer asked to keep it alive (see
+ * PeerProtocol). It then returns to READING, and the upload slot is given to the next waiting
+ * connection. Requests the peer sent without waiting for the reply are kept in the request buffer,
+ * and the next of them is served at once.
+ *
+ * A connection kept alive with version 3 of the protocol sends binary frames. A request frame is parsed
+ * in place from the request buffer once its header and file name have arrived, and the header of each
+ * reply is written to a buffer held by the connection. If the peer asks for the checksum of a range,
+ * it is computed before the header of the range is sent, MAX_CHECKSUM_PER_WRITE bytes per write event,
+ * so a peer which asks for many checksums does not hold up the other connections of the loop.
+ *
+ * A range requested with FLAG_DEFLATE is sent as compressed blocks if the RangeCompressor of the event
+ * loop finds it worth compressing. Rather than transferTo(), each write event then compresses blocks
+ * into a buffer held by the connection and writes them, again up to MAX_TRANSFER_PER_WRITE bytes of the
+ * file, so one compressed upload does not hold up the other connections of the loop.
+ *
+ * File data is only written once the upload BandwidthLimiter has granted it to the flow of the
+ * connection. A connection granted nothing is throttled: it is not polled for writing until the
+ * limiter expects to have granted it its turn, after which it asks again.
+ *
+ * A slot freed by any event loop is granted to the connection at the head of the queue. If that
+ * connection belongs to another loop, it is handed to that loop, which is woken to start sending, as
+ * only the loop which owns a connection touches its state.
+ *
+ * Resource use is bounded. At most PeerConfig.getMaxUploads() files are sent at once, and once
+ * PeerConfig.getMaxConnections() connections are open no more are accepted, so further peers wait
+ * in the listen backlog of the operating system. Connections which do not send a request line
+ * within PeerConfig.getRequestTimeoutMillis() are closed, as are connections kept alive which send
+ * no further request within PeerConfig.getKeepAliveMillis().
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+public class NioFileSendServer implements Runnable, Closeable
+{
+	public static final int ACCEPT_BACKLOG = 1024;
+	public static final long MAX_TRANSFER_PER_WRITE = 1024 * 1024;        //Bytes sent per write event, so uploads share the loop fairly.
+	private static final int INITIAL_REQUEST_BUFFER = 256;
+	private static final long SELECT_TIMEOUT_MILLIS = 1000;               //Maximum time between checks for timed out requests.
+	private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+	private static final long MAX_CHECKSUM_PER_WRITE = 256 * 1024;        //Bytes of a range checksummed per write event.
+
+	private String shareDir;
+	private PeerConfig config;
+	private ServerSocketChannel serverChannel;
+	private EventLoop[] eventLoops;
+	private AtomicInteger openConnections = new AtomicInteger();
+	private AtomicInteger activeUploads = new AtomicInteger();
+	private UploadSlots slots;                                            //Shared by the event loops.
+	private volatile boolean closed = false;
+	private volatile boolean acceptPaused = false;                        //Set when the connection limit is reached.
+	private final BandwidthLimiter limiter = BandwidthLimiter.getUploadInstance();
+
+	/**
+	 * Creates a NioFileSendServer which uses the specified location to locate files to send
+	 * and listens for connections from peers on the specified port.
+	 * @param sharedFiles String containing path to directory in which shared files are located
+	 * @param serverPort int TCP port number to use to listen for peer connections, or 0 for any free port
+	 * @param config PeerConfig with the number of event loops and the limits to apply
+	 * @throws IOException If creation of the ServerSocketChannel or a Selector fails.
+	 */
+	public NioFileSendServer(String sharedFiles, int serverPort, PeerConfig config) throws IOException
+	{
+		shareDir = sharedFiles;
+		this.config = config;
+
+		serverChannel = ServerSocketChannel.open();
+		try
+		{
+			serverChannel.configureBlocking(false);
+			serverChannel.bind(new InetSocketAddress(serverPort), ACCEPT_BACKLOG);
+
+			slots = new UploadSlots(config.getMaxUploads());
+			eventLoops = new EventLoop[config.getEventLoops()];
+			for (int i = 0; i < eventLoops.length; i++)
+			{
+				eventLoops[i] = new EventLoop();
+			}
+
+			/*The first event loop also accepts new connections. */
+			serverChannel.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+		}
+		catch (IOException setupEx)
+		{
+			close();
+			throw setupEx;
+		}
+	}
+
+
+	/**
+	 * Runs the first event loop on the calling thread and starts the others on new threads.
+	 * Returns when the server is closed.
+	 */
+	public void run()
+	{
+		for (int i = 1; i < eventLoops.length; i++)
+		{
+			Thread loopThread = new Thread(eventLoops[i], "p2p-send-loop-" + i);
+			loopThread.setDaemon(true);
+			loopThread.start();
+		}
+		eventLoops[0].run();
+	}
+
+
+	/**
+	 * Stops accepting connections, closes all open connections, and stops the event loops.
+	 */
+	public void close()
+	{
+		closed = true;
+		if (eventLoops != null)
+		{
+			for (EventLoop loop : eventLoops)
+			{
+				if (loop != null)
+					loop.selector.wakeup();
+			}
+		}
+
+		try
+		{
+			serverChannel.close();
+		}
+		catch (IOException closeEx)
+		{
+			System.err.println("Error closing the peer listening socket: " + closeEx.getMessage());
+		}
+	}
+
+
+	/**
+	 * Get the port on which the server accepts connections.
+	 * @return int local port number
+	 * @throws IOException if the server has been closed
+	 */
+	public int getLocalPort() throws IOException
+	{
+		return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+	}
+
+	public int getOpenConnections()
+	{
+		return openConnections.get();
+	}
+
+	public int getActiveUploads()
+	{
+		return activeUploads.get();
+	}
+
+
+	/**
+	 * Holds the state of a single peer connection. Only accessed by the event loop which owns it.
+	 */
+	private static class PeerConnection
+	{
+		static final int READING = 0;
+		static final int WAITING = 1;
+		static final int SENDING = 2;
+
+		final SocketChannel channel;
+		final EventLoop loop;                                             //Owner of the connection.
+		long requestDeadline;
+		SelectionKey key;
+		int state = READING;
+		ByteBuffer request = ByteBuffer.allocate(INITIAL_REQUEST_BUFFER);    //Bytes read but not yet parsed.
+		PeerProtocol.Request fileRequest;
+		ByteBuffer header;
+		FileChannel file;
+		long fileSize;
+		long position;
+		long size;
+		CRC32 checksum;                                                   //Set while the checksum of the range is computed.
+		long checksumPosition;
+		UploadSlots.Ticket ticket;                                        //Set while waiting for or holding an upload slot.
+		boolean holdsUploadSlot = false;
+		ByteBuffer queued;                                                //Queue frame being written while waiting.
+		int queuePosition;                                                //Position last sent to the peer, or 0.
+		long queueReportMillis;
+		boolean keepAlive = false;
+		boolean closeAfterReply = false;
+		boolean closed = false;
+		int version = 1;                                                  //Version of the protocol agreed with the peer.
+		PeerProtocol.Frame frame;                                         //Set once frames are used.
+		ByteBuffer frameHeader;
+		ByteBuffer block;                                                 //Set while a range is sent as compressed blocks.
+		final BandwidthLimiter.Flow flow = new BandwidthLimiter.Flow();
+		long allowance;                                                   //Bytes granted by the upload limiter but not yet sent.
+
+		PeerConnection(SocketChannel channel, EventLoop loop, long requestDeadline)
+		{
+			this.channel = channel;
+			this.loop = loop;
+			this.requestDeadline = requestDeadline;
+		}
+	}
+
+
+	/**
+	 * A Selector and the connections registered with it, serviced by a single thread.
+	 */
+	private class EventLoop implements Runnable
+	{
+		final Selector selector;
+		final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();    //Accepted by the first loop for this loop.
+		final Queue<PeerConnection> granted = new ConcurrentLinkedQueue<>();      //Granted a slot freed by another loop.
+		final Queue<PeerConnection> throttled = new ArrayDeque<>();              //Sending, but waiting for the upload limiter.
+		long resumeMillis;                                                        //Time at which throttled connections ask again.
+		final CRC32 crc = new CRC32();
+		ByteBuffer checksumBuf;                                                   //Allocated when a checksum is first requested.
+		RangeCompressor compressor;                                               //Created when a range is first compressed.
+		long nextQueueReportMillis;
+		int nextLoop = 0;                                                         //Only used by the first loop.
+
+		EventLoop() throws IOException
+		{
+			selector = Selector.open();
+		}
+
+		public void run()
+		{
+			while (!closed)
+			{
+				try
+				{
+					registerNewChannels();
+					startGranted();
+					resumeAccepting();
+					selector.select(throttled.isEmpty() ? SELECT_TIMEOUT_MILLIS : Math.max(1, resumeMillis - System.currentTimeMillis()));
+
+					Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+					while (selected.hasNext())
+					{
+						SelectionKey key = selected.next();
+						selected.remove();
+						handle(key);
+					}
+
+					resumeThrottled();
+					closeTimedOutRequests();
+					reportQueuePositions();
+				}
+				catch (IOException selectEx)
+				{
+					System.err.println("Error in peer connection event loop: " + selectEx.getMessage());
+				}
+			}
+
+			/*The server was closed, so release every connection owned by this loop. */
+			for (SelectionKey key : selector.keys())
+			{
+				if (key.attachment() instanceof PeerConnection)
+					closeConnection((PeerConnection) key.attachment());
+			}
+			registerNewChannels();                                            //Also closes channels accepted but not yet registered.
+			if (compressor != null)
+				compressor.close();
+			try
+			{
+				selector.close();
+			}
+			catch (IOException closeEx)
+			{
+				System.err.println("Error closing selector: " + closeEx.getMessage());
+			}
+		}
+
+
+		private void handle(SelectionKey key)
+		{
+			if (!key.isValid())
+				return;
+
+			if (key.attachment() == null)
+			{
+				if (key.isAcceptable())
+					acceptConnections(key);
+				return;
+			}
+
+			PeerConnection connection = (PeerConnection) key.attachment();
+			try
+			{
+				if (connection.state == PeerConnection.READING && key.isReadable())
+					readRequest(connection);
+				else if (connection.state == PeerConnection.SENDING && key.isWritable())
+					writeResponse(connection);
+				else if (connection.state == PeerConnection.WAITING && key.isWritable())
+					writeQueued(connection);
+			}
+			catch (IOException | CancelledKeyException transferEx)
+			{
+				System.err.println("Error transferring file to peer " + connection.channel.socket().getRemoteSocketAddress() + " " +
+						transferEx.getMessage());
+				closeConnection(connection);
+			}
+		}
+
+
+		/**
+		 * Accepts pending connections until none remain or the connection limit is reached, and
+		 * distributes them between the event loops.
+		 */
+		private void acceptConnections(SelectionKey acceptKey)
+		{
+			while (openConnections.get() < config.getMaxConnections())
+			{
+				SocketChannel accepted;
+				try
+				{
+					accepted = serverChannel.accept();
+				}
+				catch (IOException acceptEx)
+				{
+					System.err.println("Error establishing peer connection: " + acceptEx.getMessage());
+					return;
+				}
+
+				if (accepted == null)
+					return;                                                       //No more pending connections.
+
+				openConnections.incrementAndGet();
+				EventLoop target = eventLoops[nextLoop];
+				nextLoop = (nextLoop + 1) % eventLoops.length;
+
+				target.newChannels.add(accepted);
+				if (target != this)
+					target.selector.wakeup();
+			}
+
+			/*Stop accepting until a connection closes. Further peers wait in the listen backlog. */
+			acceptKey.interestOps(0);
+			acceptPaused = true;
+		}
+
+
+		/**
+		 * Resumes accepting connections if accepting was stopped and a connection has since closed.
+		 * Only has an effect in the first event loop.
+		 */
+		private void resumeAccepting()
+		{
+			SelectionKey acceptKey = serverChannel.keyFor(selector);
+			if (acceptPaused && acceptKey != null && acceptKey.isValid() 
+					&& openConnections.get() < config.getMaxConnections())
+			{
+				acceptPaused = false;
+				acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+			}
+		}
+
+
+		private void registerNewChannels()
+		{
+			SocketChannel channel;
+			long deadline = System.currentTimeMillis() + config.getRequestTimeoutMillis();
+			while ((channel = newChannels.poll()) != null)
+			{
+				PeerConnection connection = new PeerConnection(channel, this, deadline);
+				if (closed)
+				{
+					closeConnection(connection);
+					continue;
+				}
+				
+				try
+				{
+					channel.configureBlocking(false);
+					connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				}
+				catch (IOException registerEx)
+				{
+					System.err.println("Error registering peer connection: " + registerEx.getMessage());
+					closeConnection(connection);
+				}
+			}
+		}
+
+
+		/**
+		 * Reads the available bytes of the request line. Once the line is complete, the connection
+		 * is queued to be sent the file.
+		 */
+		private void readRequest(PeerConnection connection) throws IOException
+		{
+			if (connection.channel.read(connection.request) < 0)
+			{
+				closeConnection(connection);                                      //Peer closed the connection without a request.
+				return;
+			}
+
+			parseRequest(connection);
+		}
+
+
+		/**
+		 * Serves the first complete request line in the request buffer, if there is one. The bytes
+		 * after the line, which hold any further requests of a connection kept alive, are kept.
+		 */
+		private void parseRequest(PeerConnection connection)
+		{
+			if (connection.version >= PeerProtocol.FRAMED_VERSION)
+			{
+				parseRequestFrame(connection);
+				return;
+			}
+
+			ByteBuffer request = connection.request;
+			for (int i = 0; i < request.position(); i++)
+			{
+				if (request.get(i) == '\n')
+				{
+					PeerProtocol.Request fileRequest = PeerProtocol.parseRequest(new String(request.array(), 0, i, StandardCharsets.UTF_8));
+					request.flip();
+					request.position(i + 1);
+					request.compact();                                            //Keep the requests which follow.
+
+					if (fileRequest.isKeepAlive())
+					{
+						try
+						{
+							connection.channel.socket().setTcpNoDelay(true);              //Otherwise the last segment of each reply waits for the delayed ACK of the peer.
+						}
+						catch (IOException noDelayEx)
+						{
+							System.err.println("Could not disable Nagle's algorithm for peer connection: " + noDelayEx.getMessage());
+						}
+						connection.keepAlive = true;
+						connection.version = fileRequest.getVersion();
+						if (connection.version >= PeerProtocol.FRAMED_VERSION)
+						{
+							connection.frame = new PeerProtocol.Frame();
+							connection.frameHeader = ByteBuffer.allocate(PeerProtocol.FRAME_HEADER_BYTES);
+						}
+						respond(connection, PeerProtocol.formatKeepAliveReply(connection.version, config.getKeepAliveMillis()));
+						return;
+					}
+
+					serve(connection, fileRequest);
+					return;
+				}
+			}
+
+			growRequestBuffer(connection, PeerProtocol.MAX_LINE_BYTES);
+		}
+
+
+		/**
+		 * Serves the first complete request frame in the request buffer, if there is one. The frame is
+		 * parsed in place, and the bytes after it are kept.
+		 */
+		private void parseRequestFrame(PeerConnection connection)
+		{
+			ByteBuffer request = connection.request;
+			if (request.position() >= PeerProtocol.FRAME_HEADER_BYTES)
+			{
+				request.flip();
+				try
+				{
+					connection.frame.read(request);
+					long contentLength = connection.frame.getContentLength();
+					if (contentLength > PeerProtocol.MAX_LINE_BYTES)
+					{
+						connection.closeAfterReply = true;                        //The rest of the frame is not read.
+						respondWithError(connection, PeerProtocol.STATUS_BAD_REQUEST, "The requested file name is too long.");
+						return;
+					}
+
+					if (request.remaining() >= contentLength)
+					{
+						PeerProtocol.Request fileRequest = PeerProtocol.parseRequestFrame(connection.frame, request, crc);
+						request.compact();                                        //Keep the requests which follow.
+						serve(connection, fileRequest);
+						return;
+					}
+				}
+				catch (IOException invalidEx)
+				{
+					connection.closeAfterReply = true;                            //The next frame cannot be found.
+					respondWithError(connection, PeerProtocol.STATUS_BAD_REQUEST, "Invalid request frame: " + invalidEx.getMessage());
+					return;
+				}
+
+				/*Only part of the frame has arrived, so return the buffer to reading. */
+				request.position(request.limit());
+				request.limit(request.capacity());
+			}
+
+			growRequestBuffer(connection, PeerProtocol.FRAME_HEADER_BYTES + PeerProtocol.MAX_LINE_BYTES);
+		}
+
+
+		/**
+		 * Grows a full request buffer, up to the longest request accepted.
+		 */
+		private void growRequestBuffer(PeerConnection connection, int maxBytes)
+		{
+			ByteBuffer request = connection.request;
+			if (!request.hasRemaining())
+			{
+				if (request.capacity() >= maxBytes)
+				{
+					connection.closeAfterReply = true;                            //The rest of the line cannot be told from the next request.
+					respondWithError(connection, PeerProtocol.STATUS_BAD_REQUEST, "The requested file name is too long.");
+					return;
+				}
+
+				ByteBuffer larger = ByteBuffer.allocate(Math.min(request.capacity() * 2, maxBytes));
+				request.flip();
+				larger.put(request);
+				connection.request = larger;
+			}
+		}
+
+
+		/**
+		 * Answers a request for hashes at once, or queues a request for data until an upload slot is free.
+		 * The length of the request, which decides its place in the queue, is found from the size of
+		 * the file, which is not opened until the request is granted a slot. If a slot is free, the
+		 * request is granted it at once, so its length is not needed.
+		 */
+		private void serve(PeerConnection connection, PeerProtocol.Request fileRequest)
+		{
+			/*Each reply must state its length on a connection kept alive, so a whole file is sent as a range. */
+			connection.fileRequest = connection.keepAlive ? fileRequest.asRange() : fileRequest;
+			if (connection.fileRequest.isHashes())
+			{
+				respondWithHashes(connection);
+				return;
+			}
+
+			String fileName = connection.fileRequest.getFileName();
+			long bytes = 0;
+			try
+			{
+				if (!slots.isFree())
+					bytes = connection.fileRequest.getEnd(Files.size(Paths.get(shareDir, fileName).normalize().toAbsolutePath()))
+							- connection.fileRequest.getOffset();
+			}
+			catch (NoSuchFileException notFoundEx)
+			{
+				respondWithError(connection, PeerProtocol.STATUS_NOT_FOUND, "File " + fileName + " could not be found.");
+				return;
+			}
+			catch (IOException sizeEx)
+			{
+				respondWithError(connection, "Error transferring file to peer " +
+						connection.channel.socket().getRemoteSocketAddress() + " " + sizeEx.getMessage());
+				return;
+			}
+
+			connection.state = PeerConnection.WAITING;
+			connection.key.interestOps(0);
+			connection.ticket = slots.enqueue(bytes, connection);
+			startUploads();
+			if (connection.state == PeerConnection.WAITING)
+				reportPosition(connection, slots.getPosition(connection.ticket), System.currentTimeMillis());   //The peer is told at once that it waits.
+		}
+
+
+		/**
+		 * Grants free upload slots to waiting connections. A connection of this loop starts sending at
+		 * once, and a connection of another loop is handed to that loop.
+		 */
+		private void startUploads()
+		{
+			UploadSlots.Ticket ticket;
+			while ((ticket = slots.grantNext()) != null)
+			{
+				PeerConnection connection = (PeerConnection) ticket.getAttachment();
+				if (connection.loop == this)
+					startUpload(connection);
+				else
+				{
+					connection.loop.granted.add(connection);
+					connection.loop.selector.wakeup();
+				}
+			}
+		}
+
+
+		/**
+		 * Starts sending files to the connections of this loop which another loop granted a slot. A
+		 * connection closed since then has already released its slot.
+		 */
+		private void startGranted()
+		{
+			PeerConnection connection;
+			boolean started = false;
+			while ((connection = granted.poll()) != null)
+			{
+				if (!connection.closed && connection.state == PeerConnection.WAITING)
+				{
+					startUpload(connection);
+					started = true;
+				}
+			}
+			if (started)
+				startUploads();                                                   //A slot is free again if the file could not be opened.
+		}
+
+
+		/**
+		 * Opens the file of a connection which has been granted an upload slot, and starts sending it.
+		 */
+		private void startUpload(PeerConnection connection)
+		{
+			String fileName = connection.fileRequest.getFileName();
+			Path filePath = Paths.get(shareDir, fileName).normalize().toAbsolutePath();
+			long fileSize;
+			try
+			{
+				connection.file = FileChannel.open(filePath, StandardOpenOption.READ);
+				fileSize = connection.file.size();
+			}
+			catch (NoSuchFileException notFoundEx)
+			{
+				releaseTicket(connection);                                        //Deleted while the request waited.
+				respondWithError(connection, PeerProtocol.STATUS_NOT_FOUND, "File " + fileName + " could not be found.");
+				return;
+			}
+			catch (IOException openEx)
+			{
+				releaseTicket(connection);
+				respondWithError(connection, "Error transferring file to peer " +
+						connection.channel.socket().getRemoteSocketAddress() + " " + openEx.getMessage());
+				return;
+			}
+
+			ByteBuffer header;
+			try
+			{
+				header = replyHeader(connection, fileSize);
+			}
+			catch (IOException headerEx)
+			{
+				closeFile(connection);
+				releaseTicket(connection);
+				respondWithError(connection, "Error reading " + fileName + ": " + headerEx.getMessage());
+				return;
+			}
+
+			activeUploads.incrementAndGet();
+			UploadStats.getInstance().uploadStarted();
+			connection.holdsUploadSlot = true;
+			connection.fileSize = fileSize;
+			connection.position = connection.fileRequest.getOffset();
+			connection.size = connection.fileRequest.getEnd(fileSize);            //Send up to the end of the requested range.
+			connection.header = header;                                           //Write success header before writing data to peer.
+			connection.state = PeerConnection.SENDING;
+			connection.key.interestOps(SelectionKey.OP_WRITE);
+		}
+
+
+		/**
+		 * Sends the chunk hashes of the requested file if they are cached. Otherwise they are computed
+		 * in the background, so the event loop is not held up, and an "ERR" header is sent.
+		 */
+		private void respondWithHashes(PeerConnection connection)
+		{
+			String fileName = connection.fileRequest.getFileName();
+			Path filePath = Paths.get(shareDir, fileName).normalize().toAbsolutePath();
+			try
+			{
+				ContentHashes hashes = ContentHashCache.getInstance().getIfCached(filePath);
+				if (hashes == null)
+				{
+					ContentHashCache.getInstance().computeLater(filePath);
+					respondWithError(connection, "The hashes of " + fileName + " are not available yet.");
+					return;
+				}
+
+				connection.header = ByteBuffer.wrap((connection.version >= PeerProtocol.FRAMED_VERSION) ? PeerProtocol.formatHashesFrame(hashes)
+						: PeerProtocol.formatHashesReply(hashes));
+				connection.state = PeerConnection.SENDING;
+				connection.key.interestOps(SelectionKey.OP_WRITE);
+			}
+			catch (NoSuchFileException notFoundEx)
+			{
+				respondWithError(connection, PeerProtocol.STATUS_NOT_FOUND, "File " + fileName + " could not be found.");
+			}
+			catch (IOException hashEx)
+			{
+				respondWithError(connection, "Error reading the hashes of " + fileName + ": " + hashEx.getMessage());
+			}
+		}
+
+
+		private void respondWithError(PeerConnection connection, String errMsg)
+		{
+			respondWithError(connection, PeerProtocol.STATUS_FAILED, errMsg);
+		}
+
+
+		/**
+		 * Sends an "ERR" header, or an error frame with the status, to the peer, after which the connection
+		 * is closed unless it is kept alive. Does not use an upload slot.
+		 */
+		private void respondWithError(PeerConnection connection, int status, String errMsg)
+		{
+			System.err.println(errMsg);
+			if (connection.version >= PeerProtocol.FRAMED_VERSION)
+			{
+				connection.header = ByteBuffer.wrap(PeerProtocol.formatErrorFrame(status, errMsg));
+				connection.state = PeerConnection.SENDING;
+				connection.key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			respond(connection, "ERR " + errMsg + "\n");
+		}
+
+
+		/**
+		 * Get the header sent before the requested part of the file: a header line, or a data frame if
+		 * the peer sends frames. If the peer asked for the checksum of the range, the header is left empty
+		 * until the checksum has been computed by the write events which follow (see computeChecksum()).
+		 */
+		private ByteBuffer replyHeader(PeerConnection connection, long fileSize) throws IOException
+		{
+			PeerProtocol.Request fileRequest = connection.fileRequest;
+			if (connection.version < PeerProtocol.FRAMED_VERSION)
+				return ByteBuffer.wrap(fileRequest.getOkHeader(fileSize).getBytes());
+
+			int compressionLevel = config.isCompression() ? config.getCompressionLevel() : 0;
+			if (compressionLevel > 0 && fileRequest.isDeflateAccepted())
+			{
+				if (compressor == null)
+					compressor = new RangeCompressor(compressionLevel);
+				if (compressor.shouldCompress(connection.file, fileRequest.getOffset(), fileRequest.getEnd(fileSize) - fileRequest.getOffset()))
+				{
+					connection.block = RangeCompressor.allocateBlockBuffer();
+					connection.block.limit(0);                                    //No block compressed yet.
+					fileRequest.putDeflatedFrame(connection.frame, fileSize, connection.frameHeader);
+					return connection.frameHeader;
+				}
+			}
+
+			if (fileRequest.isChecksummed(fileSize))
+			{
+				connection.checksum = new CRC32();
+				connection.checksumPosition = fileRequest.getOffset();
+				connection.frameHeader.clear();
+				connection.frameHeader.limit(0);                                  //Nothing to send until the checksum is known.
+				return connection.frameHeader;
+			}
+			fileRequest.putDataFrame(connection.frame, fileSize, 0, connection.frameHeader);
+			return connection.frameHeader;
+		}
+
+
+		/**
+		 * Adds up to MAX_CHECKSUM_PER_WRITE bytes of the requested range to its checksum. Once the whole
+		 * range has been read, the data frame with the checksum is put in the header buffer. If the file
+		 * cannot be read, its upload slot is released and an error is sent instead.
+		 * @return boolean true once the header is ready to be sent
+		 */
+		private boolean computeChecksum(PeerConnection connection)
+		{
+			if (checksumBuf == null)
+				checksumBuf = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+			long length = Math.min(connection.size - connection.checksumPosition, MAX_CHECKSUM_PER_WRITE);
+			try
+			{
+				PeerProtocol.updateChecksum(connection.file, connection.checksumPosition, length, checksumBuf, connection.checksum);
+			}
+			catch (IOException checksumEx)
+			{
+				closeFile(connection);
+				releaseUploadSlot(connection);
+				respondWithError(connection, "Error reading " + connection.fileRequest.getFileName() + ": " + checksumEx.getMessage());
+				return false;
+			}
+
+			connection.checksumPosition += length;
+			if (connection.checksumPosition < connection.size)
+				return false;                                                     //Continued on the next write event.
+
+			connection.fileRequest.putDataFrame(connection.frame, connection.fileSize, (int) connection.checksum.getValue(), connection.frameHeader);
+			connection.checksum = null;
+			return true;
+		}
+
+
+		/**
+		 * Sends a reply which consists of a header line only.
+		 */
+		private void respond(PeerConnection connection, String headerLine)
+		{
+			connection.header = ByteBuffer.wrap(headerLine.getBytes());
+			connection.state = PeerConnection.SENDING;
+			connection.key.interestOps(SelectionKey.OP_WRITE);
+		}
+
+
+		/**
+		 * Writes as much of the header and the file as the socket accepts without blocking, up to
+		 * MAX_TRANSFER_PER_WRITE bytes. Finishes the reply when everything has been sent.
+		 */
+		private void writeResponse(PeerConnection connection) throws IOException
+		{
+			if (connection.queued != null && connection.queued.hasRemaining())
+			{
+				connection.channel.write(connection.queued);                      //The reply follows the last queue frame.
+				if (connection.queued.hasRemaining())
+					return;
+			}
+
+			if (connection.checksum != null && !computeChecksum(connection))
+				return;                                                           //The header waits for the checksum.
+
+			if (connection.header.hasRemaining())
+			{
+				connection.channel.write(connection.header);
+				if (connection.header.hasRemaining())
+					return;                                                       //Socket buffer is full, wait until writable again.
+			}
+
+			if (connection.file == null)
+			{
+				finishReply(connection);                                          //A reply without data has been sent.
+				return;
+			}
+
+			if (connection.block != null)
+			{
+				writeBlocks(connection);
+				return;
+			}
+
+			long remaining = connection.size - connection.position;
+			if (remaining > 0)
+			{
+				long allowed = allowance(connection, Math.min(remaining, MAX_TRANSFER_PER_WRITE));
+				if (allowed == 0)
+					return;                                                       //Throttled until the limiter grants its turn.
+
+				long sent = connection.file.transferTo(connection.position, allowed, connection.channel);
+				if (sent == 0 && connection.file.size() <= connection.position)
+					throw new IOException("The file " + connection.fileRequest.getFileName() + " ended after " + connection.position + " of " + connection.size + " bytes.");
+
+				connection.position += sent;
+				connection.allowance -= sent;
+				UploadStats.getInstance().addBytesSent(sent);
+			}
+
+			if (connection.position >= connection.size)
+				finishReply(connection);
+		}
+
+
+		/**
+		 * Writes the block compressed last, and compresses and writes further blocks while the socket
+		 * accepts them, up to MAX_TRANSFER_PER_WRITE bytes of the file. Finishes the reply when the last
+		 * block has been sent.
+		 */
+		private void writeBlocks(PeerConnection connection) throws IOException
+		{
+			long compressed = 0;
+			while (true)
+			{
+				if (connection.block.hasRemaining())
+				{
+					long allowed = allowance(connection, connection.block.remaining());
+					if (allowed == 0)
+						return;                                                   //Throttled until the limiter grants its turn.
+
+					int blockEnd = connection.block.limit();
+					connection.block.limit(connection.block.position() + (int) allowed);
+					int sent = connection.channel.write(connection.block);
+					connection.block.limit(blockEnd);
+					connection.allowance -= sent;
+					UploadStats.getInstance().addBytesSent(sent);
+					if (connection.block.hasRemaining())
+						return;                                                   //Socket buffer is full or the allowance is used, so wait.
+				}
+
+				if (connection.position >= connection.size)
+					break;
+				if (compressed >= MAX_TRANSFER_PER_WRITE)
+					return;                                                       //Compress the rest on a later write event.
+
+				int length = compressor.putBlock(connection.file, connection.position, connection.size, connection.block);
+				connection.position += length;
+				compressed += length;
+			}
+
+			finishReply(connection);
+		}
+
+
+		/**
+		 * Get the bytes the connection may write now, taking further bytes from the upload limiter if
+		 * its allowance is less than wanted. A connection granted nothing is throttled.
+		 * @return long bytes which may be written, at most wanted
+		 */
+		private long allowance(PeerConnection connection, long wanted)
+		{
+			if (connection.allowance < wanted)
+				connection.allowance += limiter.tryAcquire(connection.flow, wanted - connection.allowance);
+
+			long allowed = Math.min(connection.allowance, wanted);
+			if (allowed == 0)
+			{
+				if (throttled.isEmpty())
+					resumeMillis = System.currentTimeMillis() + limiter.getRetryMillis();
+				throttled.add(connection);
+				connection.key.interestOps(0);
+			}
+			return allowed;
+		}
+
+
+		/**
+		 * Polls the throttled connections for writing again once it is time for them to ask the
+		 * limiter again.
+		 */
+		private void resumeThrottled()
+		{
+			if (throttled.isEmpty() || System.currentTimeMillis() < resumeMillis)
+				return;
+
+			for (PeerConnection connection : throttled)
+			{
+				if (!connection.closed && connection.state == PeerConnection.SENDING)
+					connection.key.interestOps(SelectionKey.OP_WRITE);
+			}
+			throttled.clear();
+		}
+
+
+		/**
+		 * Sends each waiting connection of this loop whose peer accepts queue frames its position in the
+		 * shared queue, if it has changed or the peer has not been told for a while. Runs at most every
+		 * UploadSlots.POSITION_UPDATE_MILLIS.
+		 */
+		private void reportQueuePositions()
+		{
+			long now = System.currentTimeMillis();
+			if (now < nextQueueReportMillis || slots.getWaiting() == 0)
+				return;
+
+			nextQueueReportMillis = now + UploadSlots.POSITION_UPDATE_MILLIS;
+			List<UploadSlots.Ticket> queue = slots.getQueue();
+			for (int i = 0; i < queue.size(); i++)
+			{
+				PeerConnection connection = (PeerConnection) queue.get(i).getAttachment();
+				if (connection.loop == this)                                      //The other loops report to their own connections.
+					reportPosition(connection, i + 1, now);
+			}
+		}
+
+
+		/**
+		 * Writes a queue frame with the position to a waiting connection whose peer accepts them, unless
+		 * the position is unchanged and was sent recently. The frame is written at once if the socket
+		 * accepts it, and otherwise when the socket is writable.
+		 */
+		private void reportPosition(PeerConnection connection, int position, long now)
+		{
+			if (position == 0 || connection.state != PeerConnection.WAITING || connection.closed     //Granted a slot meanwhile.
+					|| connection.version < PeerProtocol.FRAMED_VERSION || !connection.fileRequest.isQueueStatusAccepted()
+					|| (connection.queued != null && connection.queued.hasRemaining()))
+				return;
+			if (position == connection.queuePosition && now - connection.queueReportMillis < PeerProtocol.QUEUE_STATUS_INTERVAL_MILLIS)
+				return;
+
+			if (connection.queued == null)
+				connection.queued = ByteBuffer.allocate(PeerProtocol.FRAME_HEADER_BYTES);
+			PeerProtocol.putQueuedFrame(position, slots.estimateWaitMillis(position), connection.frame, connection.queued);
+			connection.queuePosition = position;
+			connection.queueReportMillis = now;
+			try
+			{
+				writeQueued(connection);
+			}
+			catch (IOException | CancelledKeyException queueEx)
+			{
+				System.err.println("Error sending the queue position to peer " + connection.channel.socket().getRemoteSocketAddress() + " " +
+						queueEx.getMessage());
+				closeConnection(connection);
+			}
+		}
+
+
+		/**
+		 * Writes as much of the queue frame of a waiting connection as the socket accepts, and polls the
+		 * connection for writing until the rest has been written.
+		 */
+		private void writeQueued(PeerConnection connection) throws IOException
+		{
+			connection.channel.write(connection.queued);
+			connection.key.interestOps(connection.queued.hasRemaining() ? SelectionKey.OP_WRITE : 0);
+		}
+
+
+		/**
+		 * Closes the connection to signal the end of transmission, or, if the connection is kept alive,
+		 * releases its file and upload slot and reads the next request.
+		 */
+		private void finishReply(PeerConnection connection)
+		{
+			if (!connection.keepAlive || connection.closeAfterReply)
+			{
+				closeConnection(connection);
+				return;
+			}
+
+			closeFile(connection);
+			releaseUploadSlot(connection);
+			connection.fileRequest = null;
+			connection.header = null;
+			connection.state = PeerConnection.READING;
+			connection.requestDeadline = System.currentTimeMillis() + config.getKeepAliveMillis();
+			connection.key.interestOps(SelectionKey.OP_READ);
+			parseRequest(connection);                                             //The next request may have been read already.
+		}
+
+
+		private void closeTimedOutRequests()
+		{
+			long now = System.currentTimeMillis();
+			for (SelectionKey key : selector.keys())
+			{
+				Object attachment = key.attachment();
+				if (attachment instanceof PeerConnection)
+				{
+					PeerConnection connection = (PeerConnection) attachment;
+					if (connection.state == PeerConnection.READING && now > connection.requestDeadline)
+					{
+						if (!connection.keepAlive)
+							System.err.println("Closing connection from " + connection.channel.socket().getRemoteSocketAddress() +
+									" which did not send a request.");
+						closeConnection(connection);                              //A connection kept alive is closed once idle.
+					}
+				}
+			}
+		}
+
+
+		private void closeConnection(PeerConnection connection)
+		{
+			if (connection.closed)
+				return;
+			
+			connection.closed = true;
+			if (connection.key != null)
+				connection.key.cancel();
+
+			try
+			{
+				connection.channel.close();
+			}
+			catch (IOException closeEx)
+			{
+				System.err.println("Unable to close connection to peer: " + closeEx.getMessage());
+			}
+
+			closeFile(connection);
+
+			openConnections.decrementAndGet();
+			if (acceptPaused && eventLoops[0] != this)
+				eventLoops[0].selector.wakeup();                                  //Accepting may resume now a connection has closed.
+
+			releaseUploadSlot(connection);
+		}
+
+
+		private void closeFile(PeerConnection connection)
+		{
+			if (connection.file != null)
+			{
+				try
+				{
+					connection.file.close();
+				}
+				catch (IOException closeEx)
+				{
+					System.err.println("Unable to close shared file: " + closeEx.getMessage());
+				}
+				connection.file = null;
+			}
+			connection.block = null;
+			connection.checksum = null;
+			connection.allowance = 0;
+			limiter.release(connection.flow);                                     //Returns the bytes granted to it but not yet taken.
+		}
+
+
+		/**
+		 * Frees the upload slot of the connection, or removes it from the queue if it is still waiting.
+		 */
+		private void releaseUploadSlot(PeerConnection connection)
+		{
+			if (connection.holdsUploadSlot)
+			{
+				connection.holdsUploadSlot = false;
+				activeUploads.decrementAndGet();
+				UploadStats.getInstance().uploadFinished();
+			}
+			if (connection.ticket != null)
+			{
+				releaseTicket(connection);
+				if (!closed)
+					startUploads();                                               //Give the free slot to the next waiting connection.
+			}
+		}
+
+
+		/**
+		 * Returns the ticket of the connection to the upload slots, and forgets the position sent to its peer.
+		 */
+		private void releaseTicket(PeerConnection connection)
+		{
+			slots.release(connection.ticket);
+			connection.ticket = null;
+			connection.queuePosition = 0;
+			connection.queueReportMillis = 0;
+		}
+	}
+}
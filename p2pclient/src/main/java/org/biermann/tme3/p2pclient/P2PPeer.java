@@ -74,6 +74,14 @@ public class P2PPeer
 			System.err.println("Initialization of file sharing failed due to connection error.");
 		}
 		
+		try
+		{
+			peerController.syncShareDir();                   //Share the files in the sharing directory as it changes.
+		} catch (IOException ioEx)
+		{
+			System.err.println("The sharing directory cannot be watched. Files must be shared one at a time: " + ioEx.getMessage());
+		}
+		
 		/*Initialize the GUI, creating a window (frame) to interact with user. Pass the name
 		 * of the application and reference to the P2PPerrController instance. */
 		new P2PPeerGUI(APP_NAME, peerController);
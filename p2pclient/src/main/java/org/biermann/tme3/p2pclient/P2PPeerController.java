@@ -6,12 +6,41 @@
  * Note that listening, sending, and receiving are handled on separate threads to maintain 
  * responsiveness in the main thread. 
  * 
+ * Files are downloaded from every peer sharing them at once, see SwarmDownload. Failed downloads
+ * are resumed after a delay, see RetryPolicy. Connections to other peers are kept alive and shared
+ * by all downloads (see PeerConnectionPool), so many small files are downloaded without a new
+ * connection for each.
+ * 
  * Note that most operations in P2PPeerController rely on an index service. 
  * Specifically, the FileShareIndex REST service options are invoked on the application server 
  * for registering a shared file, unregistering a file, or requesting an address for a peer 
  * which is sharing a given file. Methods are invoked on a remote instance of 
  * p2pindexservice.IndexService which must be availble on the server.
  * 
+ * Single file messages are exchanged in the format chosen by PeerConfig.getIndexFormat(), which
+ * is compact binary by default (see BinaryMessageProvider). An index service which does not accept
+ * that format answers 415 Unsupported Media Type, after which XML is used.
+ * 
+ * Connections to the index service are kept alive and reused by later requests, up to
+ * PeerConfig.getIndexMaxConnections() idle connections per host. A connection is only reused once the 
+ * response on it has been read or closed, so every Response is closed when it is no longer needed.
+ * 
+ * Sharing a file gives this peer a lease with the index service, which is kept by sending a
+ * heartbeat for every host address sharing files, at the interval set by the index service. If the 
+ * lease expired anyway, e.g. while this peer was disconnected, the index service no longer knows 
+ * the host, and its files are shared again. Each heartbeat also reports the load of this peer (see 
+ * UploadStats), which the index service uses to spread downloads over the peers sharing a file.
+ * 
+ * The sharing directory may be kept in sync with the index service (see syncShareDir()), so that
+ * files are shared and unshared as they are added to and removed from it.
+ * 
+ * The peers sharing each file are cached (see PeerLookupCache), so looking a file up and then
+ * downloading it, or resuming a failed download, asks the index service once. The entry of a file is
+ * removed when a connection to one of its peers fails, or when this peer shares or unshares the file.
+ * 
+ * Uploads and downloads are limited to the rates set in PeerConfig, which setRateLimits() changes
+ * while the peer runs (see BandwidthLimiter).
+ * 
  * @author Oloff Biermann
  */
 package org.biermann.tme3.p2pclient;
@@ -19,16 +48,42 @@ package org.biermann.tme3.p2pclient;
 import java.io.IOException;
 import java.net.*;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.biermann.tme3.p2pclient.messages.BatchItemMessage;
+import org.biermann.tme3.p2pclient.messages.BatchResultMessage;
 import org.biermann.tme3.p2pclient.messages.FileMessage;
+import org.biermann.tme3.p2pclient.messages.FileMessageList;
+import org.biermann.tme3.p2pclient.messages.HeartbeatMessage;
+import org.biermann.tme3.p2pclient.messages.LeaseMessage;
+import org.biermann.tme3.p2pclient.messages.PeerListMessage;
+import org.biermann.tme3.p2pclient.providers.BinaryMessageProvider;
+import org.biermann.tme3.p2pclient.providers.JsonMessageProvider;
+import org.glassfish.jersey.client.ClientProperties;
 
 
 public class P2PPeerController 
@@ -39,11 +94,33 @@ public class P2PPeerController
 	private int listenPort;
 	private WebTarget indexServiceTarget;
 	private Client indexServiceClient;
+	private PeerConfig peerConfig;
+	private volatile MediaType indexFormat;                                        //Media type of single file messages.
+	
+	/*The files shared by each host address, which are shared again if the lease of the host expires */
+	private final Map<String, Map<String, Path>> sharedPaths = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService heartbeatScheduler;
+	private volatile long heartbeatIntervalMillis;
+	private boolean heartbeatsStarted;
+	private ShareDirectorySync shareDirSync;
+	private final PeerLookupCache lookupCache;
+	private PeerLookupCache.PeerLoader peerLoader = this::queryFilePeerList;       //Replaced by tests.
+	private final PeerConnectionPool peerConnections;
 	
 	/*"Shortcut" constants for the HTTP status codes that will be used by P2PPeerController */
 	public static final int HTTP_CREATED = Response.Status.CREATED.getStatusCode();
 	public static final int HTTP_NO_CONTENT = Response.Status.NO_CONTENT.getStatusCode();
 	public static final int HTTP_OK = Response.Status.OK.getStatusCode();
+	public static final int HTTP_UNSUPPORTED_MEDIA_TYPE = Response.Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode();
+	public static final int HTTP_NOT_FOUND = Response.Status.NOT_FOUND.getStatusCode();
+	public static final int HTTP_CONFLICT = Response.Status.CONFLICT.getStatusCode();
+	
+	/*Path below the index resource of the operations on the whole index, which cannot be a file name */
+	public static final String INDEX_PATH = "_index";
+	
+	/*Limits for batch sharing. Each batch is one request, and several requests may be outstanding at once. */
+	public static final int BATCH_SIZE = 1000;
+	public static final int MAX_BATCHES_IN_FLIGHT = 4;
 		
 			
 	/**
@@ -63,44 +140,153 @@ public class P2PPeerController
 		this.receiveDir = receiveDir;
 		listenPort = serverPort;
 				
-		indexServiceClient = ClientBuilder.newClient();                             //Create the client for accessing index service.
+		peerConfig = PeerConfig.fromSystemProperties();                             //Settings for serving files to peers.
+		indexServiceClient = createIndexClient(peerConfig);                         //Create the client for accessing index service.
 		this.indexServiceTarget = indexServiceClient.target(indexServiceUri);       //Create the WebTarget representing the sharing index resource
-		threadPool = Executors.newCachedThreadPool();                               //Create thread pool for download and receive threads.
+		indexFormat = toMediaType(peerConfig.getIndexFormat());
+		threadPool = PeerExecutors.newPeerExecutor(peerConfig);                     //Executor shared by listening, send and receive tasks.
+		lookupCache = new PeerLookupCache(peerConfig.getLookupCacheEntries(), 
+				peerConfig.getLookupCacheTtlMillis(), peerConfig.getLookupCacheNegativeTtlMillis());
+		peerConnections = new PeerConnectionPool(peerConfig);                       //Connections to other peers, kept alive for reuse.
+		setRateLimits(peerConfig.getUploadLimitKBps(), peerConfig.getDownloadLimitKBps());
+		
+		heartbeatIntervalMillis = peerConfig.getHeartbeatIntervalMillis();
+		heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "index-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	
+	/**
+	 * Creates the client used to access the index service. Jersey's default connector uses
+	 * HttpURLConnection, which keeps connections alive in a cache shared by the whole JVM. The
+	 * size of that cache is the http.maxConnections system property, which is read when the
+	 * first connection is made, so it is only set here if it has not been set on the command line.
+	 * The body of an error response, such as a 404 for a file which is not shared, is buffered, since
+	 * HttpURLConnection otherwise does not reuse the connection of an error response.
+	 * @param config PeerConfig with the connection settings
+	 * @return Client for the index service
+	 */
+	static Client createIndexClient(PeerConfig config)
+	{
+		System.setProperty("http.keepAlive", System.getProperty("http.keepAlive", "true"));
+		System.setProperty("http.maxConnections", 
+				System.getProperty("http.maxConnections", Integer.toString(config.getIndexMaxConnections())));
+		System.setProperty("sun.net.http.errorstream.enableBuffering", 
+				System.getProperty("sun.net.http.errorstream.enableBuffering", "true"));
+		
+		int timeoutMillis = (int) Math.min(config.getIndexTimeoutMillis(), Integer.MAX_VALUE);
+		return ClientBuilder.newClient()
+				.property(ClientProperties.CONNECT_TIMEOUT, timeoutMillis)
+				.property(ClientProperties.READ_TIMEOUT, timeoutMillis)
+				.register(JsonMessageProvider.class)
+				.register(BinaryMessageProvider.class);
+	}
+	
+	
+	/**
+	 * Closes the client for the index service and any response still open on it, and stops sending 
+	 * heartbeats. The controller cannot access the index service afterwards.
+	 */
+	public synchronized void closeIndexClient()
+	{
+		if (shareDirSync != null)
+			shareDirSync.close();
+		heartbeatScheduler.shutdownNow();
+		indexServiceClient.close();
+	}
+	
+	
+	/**
+	 * Starts keeping the sharing directory in sync with the index service, unless disabled by
+	 * PeerConfig.isSyncShareDir(). Files added, changed or removed while the peer was not running
+	 * are shared or unshared first. See ShareDirectorySync.
+	 * @throws IOException if the sharing directory cannot be watched
+	 */
+	public synchronized void syncShareDir() throws IOException
+	{
+		if (!peerConfig.isSyncShareDir() || shareDirSync != null)
+			return;
+		
+		shareDirSync = new ShareDirectorySync(this, Paths.get(shareDir), peerConfig.getSyncDebounceMillis());
+		shareDirSync.start();
+	}
+	
+	
+	private static MediaType toMediaType(String indexFormat)
+	{
+		if (indexFormat.equals(PeerConfig.FORMAT_BINARY))
+			return BinaryMessageProvider.APPLICATION_P2P_BINARY_TYPE;
+		if (indexFormat.equals(PeerConfig.FORMAT_JSON))
+			return MediaType.APPLICATION_JSON_TYPE;
+		return MediaType.APPLICATION_XML_TYPE;
+	}
+	
+	
+	/**
+	 * Get the media types accepted for a single file message. XML is also accepted, since an index
+	 * service which does not support the configured format answers in XML.
+	 */
+	private MediaType[] acceptedFormats()
+	{
+		return new MediaType[] {indexFormat, MediaType.APPLICATION_XML_TYPE};
 	}
 	
 	
 	/**Utilizes a separate thread to listen for new connections
-	 * from peers wishing to request a shared file.
+	 * from peers wishing to request a shared file. The engine used to serve
+	 * the requests is chosen by PeerConfig.getSendEngine().
 	 * @throws IOException If creation of the helper thread fails.
 	 */
 	public void listenForPeers() throws IOException
 	{
 		 /*Submit a new thread which will listen for peer and handle requests
 		   for shared files */
-		threadPool.submit(new FileSendHelper(shareDir, listenPort));    
+		if (peerConfig.getSendEngine().equals(PeerConfig.ENGINE_LEGACY))
+		{
+			FileSendHelper helper = new FileSendHelper(shareDir, listenPort, threadPool, peerConfig.getMaxUploads(), peerConfig.getKeepAliveMillis());
+			helper.setCompressionLevel(peerConfig.isCompression() ? peerConfig.getCompressionLevel() : 0);
+			threadPool.submit(helper);
+		}
+		else
+			threadPool.submit(new NioFileSendServer(shareDir, listenPort, peerConfig));
 	}
 	
 	
 	/**
-	 * Registers a file for sharing with the IndexService.
+	 * Registers a file for sharing with the IndexService. The content hash and size of the file 
+	 * are included, so that peers can verify what they download (see ContentHashes).
 	 * @param path Path with path of file to share.
 	 * @param hostAddress String with the host address of the host which will share the file.
 	 * @return boolean true if sharing succeeds, false if file is already shared.
 	 */
 	public boolean shareFile(Path path, String hostAddress)
 	{
-		String fileName = path.getFileName().toString().trim();
-		FileMessage postMessage = new FileMessage(fileName, hostAddress);               //Payload for POST message with file name and sharing host IP address.
+		FileMessage postMessage = createFileMessage(path, hostAddress);                 //Payload for POST message with file name and sharing host IP address.
 		
-		/*Send the POST request with the FileMessage as the entity converted to XML*/
-		Response outcome = this.indexServiceTarget.request()
-				.post(Entity.entity(postMessage, MediaType.APPLICATION_XML));    
+		/*Send the POST request with the FileMessage as the entity in the configured format*/
+		MediaType format = indexFormat;
+		Response outcome = this.indexServiceTarget.request(acceptedFormats())
+				.post(Entity.entity(postMessage, format));    
+		
+		/*An older index service only accepts XML, so use XML from now on */
+		if (outcome.getStatus() == HTTP_UNSUPPORTED_MEDIA_TYPE && !format.equals(MediaType.APPLICATION_XML_TYPE))
+		{
+			outcome.close();
+			System.err.println("The index service does not accept " + format + ". Using XML.");
+			indexFormat = MediaType.APPLICATION_XML_TYPE;
+			outcome = this.indexServiceTarget.request(MediaType.APPLICATION_XML)
+					.post(Entity.entity(postMessage, MediaType.APPLICATION_XML));
+		}
+		outcome.close();
 		
 		
 		/*Return true if we get a 201 Created response or a 200 OK response*/
 		if(outcome.getStatus() == HTTP_CREATED || outcome.getStatus() == HTTP_OK)
 		{
-			
+			trackShared(hostAddress, Collections.singletonMap(postMessage.getFileName(), path));
 			return true;
 			
 		}
@@ -132,11 +318,13 @@ public class P2PPeerController
 		WebTarget unshareTarget = this.indexServiceTarget.path("filename="+fileName)
 				.path("peeraddress="+hostAddress);
 		
-		Response response = unshareTarget.request(MediaType.APPLICATION_XML).delete();          //Make DELETE request to resource, get the Response.
+		Response response = unshareTarget.request(acceptedFormats()).delete();                  //Make DELETE request to resource, get the Response.
+		response.close();
 		
 		/*Check for a "204 No Content" response and return true if this is the case*/
 		if (response.getStatus() == HTTP_NO_CONTENT)
 		{
+			trackUnshared(hostAddress, Collections.singleton(fileName));
 			return true;
 		}
 		
@@ -157,35 +345,429 @@ public class P2PPeerController
 	
 	
 	/**
-	 * Attempts to download a file from a peer. Uses the index server to get a peer which is
-	 * sharing the file. If the file is available, establish a connection with the other
-	 * peer and download the file.
+	 * Registers many files for sharing with the IndexService. The files are sent in batches of
+	 * BATCH_SIZE, with up to MAX_BATCHES_IN_FLIGHT requests outstanding at once, so a large sharing
+	 * directory is registered in a few round trips rather than one per file.
+	 * @param paths Collection of Path with the paths of the files to share
+	 * @param hostAddress String with the host address of the host which will share the files
+	 * @return Map from each file name to true if sharing succeeded, or false if the file was already 
+	 * shared or the request failed. Iterates in the order of paths.
+	 */
+	public Map<String, Boolean> shareFiles(Collection<Path> paths, String hostAddress)
+	{
+		return succeeded(shareFileStatuses(paths, hostAddress), HTTP_CREATED);
+	}
+	
+	
+	/**
+	 * Registers many files for sharing in the same way as shareFiles(), reporting the status code
+	 * of each item: HTTP_CREATED if shared, HTTP_CONFLICT if the host already shares the file, or
+	 * 0 if the request failed. Files which the host shares afterwards are tracked for heartbeats.
+	 * @return Map from each file name to its status code, in the order of paths
+	 */
+	Map<String, Integer> shareFileStatuses(Collection<Path> paths, String hostAddress)
+	{
+		List<FileMessage> files = new ArrayList<>();
+		Map<String, Path> pathsByName = new LinkedHashMap<>();
+		for (Path path : paths)
+		{
+			FileMessage file = createFileMessage(path, hostAddress);
+			files.add(file);
+			pathsByName.put(file.getFileName(), path);
+		}
+		
+		Map<String, Integer> statuses = sendBatches(files, HttpMethod.POST);
+		pathsByName.keySet().removeIf(fileName -> statuses.get(fileName) != HTTP_CREATED && statuses.get(fileName) != HTTP_CONFLICT);
+		trackShared(hostAddress, pathsByName);
+		return statuses;
+	}
+	
+	
+	/**
+	 * Records files which the index service already lists as shared by the host, so that they are
+	 * shared again if the lease of the host expires, without registering them now.
+	 * @param files Map from the name of each file to its path
+	 */
+	void adoptShared(String hostAddress, Map<String, Path> files)
+	{
+		trackShared(hostAddress, files);
+	}
+	
+	
+	private static Map<String, Boolean> succeeded(Map<String, Integer> statuses, int successStatus)
+	{
+		Map<String, Boolean> outcomes = new LinkedHashMap<>();
+		statuses.forEach((fileName, status) -> outcomes.put(fileName, status == successStatus));
+		return outcomes;
+	}
+	
+	
+	/**
+	 * Creates the message registering a shared file, with its content hash and size. The hashes
+	 * are cached, so the send engines can answer requests for them without reading the file again.
+	 * If the file cannot be hashed, it is registered without a content hash.
+	 */
+	private FileMessage createFileMessage(Path path, String hostAddress)
+	{
+		String fileName = path.getFileName().toString().trim();
+		try
+		{
+			ContentHashes hashes = ContentHashCache.getInstance().get(path);
+			return new FileMessage(fileName, hostAddress, hashes.getContentHash(), hashes.getFileSize());
+		}
+		catch (IOException hashEx)
+		{
+			System.err.println("Unable to hash the file " + path + ". It is shared without a content hash: " + hashEx.getMessage());
+			return new FileMessage(fileName, hostAddress);
+		}
+	}
+	
+	
+	/**
+	 * Registers many files for sharing with the IndexService, using the address of the local host
+	 * as the sharing peer.
+	 * @param paths Collection of Path with the paths of the files to share
+	 * @return Map from each file name to true if sharing succeeded, false otherwise
+	 */
+	public Map<String, Boolean> shareFiles(Collection<Path> paths) throws UnknownHostException
+	{
+		return shareFiles(paths, InetAddress.getLocalHost().getHostAddress());
+	}
+	
+	
+	/**
+	 * Deregisters many shared files from the IndexService, in the same way as shareFiles().
+	 * @param fileNames Collection of String with the names of the files to stop sharing
+	 * @param hostAddress String containing the host address of the host which will stop sharing the files
+	 * @return Map from each file name to true if deregistration succeeded, false otherwise
+	 */
+	public Map<String, Boolean> unshareFiles(Collection<String> fileNames, String hostAddress)
+	{
+		return succeeded(unshareFileStatuses(fileNames, hostAddress), HTTP_NO_CONTENT);
+	}
+	
+	
+	/**
+	 * Deregisters many shared files in the same way as unshareFiles(), reporting the status code of
+	 * each item: HTTP_NO_CONTENT if unshared, HTTP_NOT_FOUND if the host did not share the file, or
+	 * 0 if the request failed.
+	 * @return Map from each file name to its status code, in the order of fileNames
+	 */
+	Map<String, Integer> unshareFileStatuses(Collection<String> fileNames, String hostAddress)
+	{
+		List<FileMessage> files = new ArrayList<>();
+		for (String fileName : fileNames)
+		{
+			files.add(new FileMessage(fileName, hostAddress));
+		}
+		
+		Map<String, Integer> statuses = sendBatches(files, HttpMethod.DELETE);
+		List<String> unshared = new ArrayList<>();
+		statuses.forEach((fileName, status) -> {
+			if (status == HTTP_NO_CONTENT || status == HTTP_NOT_FOUND)
+				unshared.add(fileName);
+		});
+		trackUnshared(hostAddress, unshared);
+		return statuses;
+	}
+	
+	
+	/**
+	 * Records the files shared by a host, and starts sending heartbeats for it.
+	 * @param files Map from the name of each file to its path
+	 */
+	private void trackShared(String hostAddress, Map<String, Path> files)
+	{
+		if (files.isEmpty())
+			return;
+		
+		sharedPaths.computeIfAbsent(hostAddress, host -> new ConcurrentHashMap<String, Path>()).putAll(files);
+		files.keySet().forEach(lookupCache::invalidate);
+		startHeartbeats();
+	}
+	
+	
+	/**
+	 * Records the files no longer shared by a host. Heartbeats are no longer sent for a host 
+	 * which shares no files.
+	 */
+	private void trackUnshared(String hostAddress, Collection<String> fileNames)
+	{
+		sharedPaths.computeIfPresent(hostAddress, (host, files) -> {
+			files.keySet().removeAll(fileNames);
+			return files.isEmpty() ? null : files;
+		});
+		fileNames.forEach(lookupCache::invalidate);
+	}
+	
+	
+	private synchronized void startHeartbeats()
+	{
+		if (heartbeatsStarted)
+			return;
+		
+		heartbeatsStarted = true;
+		heartbeatScheduler.schedule(this::sendHeartbeat, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	/**
+	 * Renews the leases of all hosts sharing files with one request, and shares the files of any host
+	 * the index service does not know again. Schedules the next heartbeat, unless the index service
+	 * does not support heartbeats.
+	 */
+	private void sendHeartbeat()
+	{
+		List<String> hostAddresses = new ArrayList<>(sharedPaths.keySet());
+		if (!hostAddresses.isEmpty())
+		{
+			Response response = null;
+			try
+			{
+				UploadStats uploadStats = UploadStats.getInstance();
+				int activeUploads = uploadStats.getActiveUploads();
+				HeartbeatMessage heartbeat = new HeartbeatMessage(hostAddresses, activeUploads, 
+						Math.max(0, peerConfig.getMaxUploads() - activeUploads), uploadStats.sampleThroughput());
+				
+				response = indexServiceTarget.path(INDEX_PATH).path("heartbeat").request(MediaType.APPLICATION_XML)
+						.post(Entity.entity(heartbeat, MediaType.APPLICATION_XML));
+				
+				/*An older index service has no leases, so its peers do not expire. */
+				if (response.getStatus() == HTTP_NOT_FOUND)
+				{
+					System.err.println("The index service does not accept heartbeats. No more heartbeats will be sent.");
+					return;
+				}
+				
+				if (response.getStatus() != HTTP_OK)
+				{
+					System.err.println("Heartbeat to the index service failed with status " + response.getStatus());
+				}
+				else
+				{
+					LeaseMessage lease = response.readEntity(LeaseMessage.class);
+					if (lease.getHeartbeatIntervalMillis() > 0)
+						heartbeatIntervalMillis = lease.getHeartbeatIntervalMillis();
+					
+					for (String hostAddress : lease.getUnknownHostAddresses())
+					{
+						reshare(hostAddress);
+					}
+				}
+			}
+			catch (ProcessingException requestEx)
+			{
+				System.err.println("Heartbeat to the index service failed: " + requestEx.getMessage());
+			}
+			finally
+			{
+				if (response != null)
+					response.close();
+			}
+		}
+		
+		if (!heartbeatScheduler.isShutdown())
+			heartbeatScheduler.schedule(this::sendHeartbeat, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	/**
+	 * Shares the files of a host whose lease expired again. Files which can no longer be shared,
+	 * e.g. because they were deleted, are no longer tracked.
+	 */
+	private void reshare(String hostAddress)
+	{
+		Map<String, Path> files = sharedPaths.remove(hostAddress);
+		if (files == null)
+			return;
+		
+		List<Path> paths = new ArrayList<>();
+		for (Path path : files.values())
+		{
+			if (Files.isRegularFile(path))
+				paths.add(path);
+		}
+		
+		System.err.println("The lease of " + hostAddress + " expired. Sharing its " + paths.size() + " files again.");
+		shareFiles(paths, hostAddress);
+	}
+	
+	
+	/**
+	 * Deregisters many shared files from the IndexService, using the address of the local host
+	 * as the sharing peer.
+	 * @param fileNames Collection of String with the names of the files to stop sharing
+	 * @return Map from each file name to true if deregistration succeeded, false otherwise
+	 */
+	public Map<String, Boolean> unshareFiles(Collection<String> fileNames) throws UnknownHostException
+	{
+		return unshareFiles(fileNames, InetAddress.getLocalHost().getHostAddress());
+	}
+	
+	
+	/**
+	 * Sends the files to the batch resource of the index service in chunks of BATCH_SIZE. Requests
+	 * are made asynchronously, and once MAX_BATCHES_IN_FLIGHT are outstanding the oldest is awaited
+	 * before the next is sent.
+	 * @param files List of FileMessage to send
+	 * @param method String with the HTTP method, POST to share or DELETE to unshare
+	 * @return Map from each file name to the status code of its item, or 0 if the request failed
+	 */
+	private Map<String, Integer> sendBatches(List<FileMessage> files, String method)
+	{
+		Map<String, Integer> outcomes = new LinkedHashMap<>();
+		for (FileMessage file : files)
+		{
+			outcomes.put(file.getFileName(), 0);                            //Replaced by the result of each item.
+		}
+		
+		/*The request body of a DELETE is not validated by the client, as the HTTP specification does not define it. */
+		AsyncInvoker batchInvoker = indexServiceTarget.path(INDEX_PATH).path("batch")
+				.property(ClientProperties.SUPPRESS_HTTP_COMPLIANCE_VALIDATION, true)
+				.request(MediaType.APPLICATION_XML)
+				.async();
+		
+		Deque<Future<Response>> inFlight = new ArrayDeque<>();
+		for (int start = 0; start < files.size(); start += BATCH_SIZE)
+		{
+			if (inFlight.size() >= MAX_BATCHES_IN_FLIGHT)
+			{
+				collectBatch(inFlight.removeFirst(), outcomes);
+			}
+			
+			FileMessageList batch = new FileMessageList(files.subList(start, Math.min(files.size(), start + BATCH_SIZE)));
+			inFlight.addLast(batchInvoker.method(method, Entity.entity(batch, MediaType.APPLICATION_XML)));
+		}
+		
+		while (!inFlight.isEmpty())
+		{
+			collectBatch(inFlight.removeFirst(), outcomes);
+		}
+		
+		return outcomes;
+	}
+	
+	
+	/**
+	 * Waits for the response to a batch request and records the status code of each item. If the
+	 * request failed, the items of the batch keep their status code of 0.
+	 */
+	private void collectBatch(Future<Response> pending, Map<String, Integer> outcomes)
+	{
+		Response response = null;
+		try
+		{
+			response = pending.get();
+			if (response.getStatus() != HTTP_OK)
+			{
+				System.err.println("Batch request to the index service failed with status " + response.getStatus());
+				return;
+			}
+			
+			for (BatchItemMessage item : response.readEntity(BatchResultMessage.class).getResults())
+			{
+				outcomes.put(item.getFileName(), item.getStatusCode());
+			}
+		}
+		catch (InterruptedException interrupted)
+		{
+			pending.cancel(true);
+			Thread.currentThread().interrupt();                              //Preserve the interrupt for the caller.
+		}
+		catch (ExecutionException | ProcessingException requestEx)
+		{
+			System.err.println("Batch request to the index service failed: " + requestEx.getMessage());
+		}
+		finally
+		{
+			if (response != null)
+				response.close();
+		}
+	}
+	
+	
+	/**
+	 * Attempts to download a file from the peers sharing it. Uses the index server to get the
+	 * peers which are sharing the file. If the file is available, the file is downloaded from
+	 * all of these peers at once.
 	 * 
-	 * Note that this method will not block while the data is transfered as a FileReceiveHelper
+	 * Note that this method will not block while the data is transfered as a SwarmDownload
 	 * is used on a separate thread to handle this operation.
 	 * @param downloadStatus DownloadStatus object containing the file name of the file to download.
 	 * @return true if download begins successfully, or false if file could not be found.
 	 */
 	public boolean downloadFile(DownloadStatus downloadStatus) throws IOException
 	{
-		String availablePeer = getFilePeer(downloadStatus.getFileName()).trim();
+		PeerListMessage availablePeers = getFilePeerList(downloadStatus.getFileName());
 		
-		/*getFilePeer() returns null if no host is sharing the file */
-		if (availablePeer == null)
+		/*getFilePeerList() returns null if no host is sharing the file */
+		if (availablePeers == null)
 			return false;
 		
-		/*Pass the address of the peer holding file, the remote port, the
-		 * receive directory on this peer to the FileReceiveHelper object and submit it
+		/*Pass the addresses of the peers holding the file, the remote port, the
+		 * receive directory on this peer to the SwarmDownload object and submit it
 		 * to run in a separate thread to download the file and save it to disk
 		 * in the receive directory. Also pass the DownloadStatus object containing the fileName
 		 * which will allow threads to await and be signaled when the download completes.
 		 */
-		threadPool.submit(new FileReceiveHelper(availablePeer, listenPort, receiveDir, downloadStatus));
+		threadPool.submit(() -> downloadWithRetries(downloadStatus, availablePeers));
 		
 		return true;
 	}
 	
 	
+	/**
+	 * Downloads a file, attempting it again after a failure as allowed by the RetryPolicy. Each
+	 * attempt resumes from the checkpoint of the previous one, and uses the peers currently sharing
+	 * the file, so it may continue with the same peers or with others. A peer which cannot be 
+	 * connected to removes the cached peers of the file, so the next attempt asks the index service.
+	 * @param downloadStatus DownloadStatus object containing the file name of the file to download.
+	 * @param peers PeerListMessage with the content hash and the addresses of the peers for the first attempt
+	 */
+	private void downloadWithRetries(DownloadStatus downloadStatus, PeerListMessage peers)
+	{
+		RetryPolicy retryPolicy = RetryPolicy.fromConfig(peerConfig);
+		String fileName = downloadStatus.getFileName();
+		try
+		{
+			for (int attempt = 1; ; attempt++)
+			{
+				SwarmDownload download = new SwarmDownload(peers.getHostAddresses(), peers.getContentHash(), listenPort, receiveDir, downloadStatus, threadPool);
+				download.setPeerFailureListener(hostAddress -> lookupCache.peerFailed(fileName, hostAddress));
+				download.setConnectionPool(peerConnections);
+				download.setExpectedFileSize((peers.getFileSize() == null) ? -1 : peers.getFileSize());
+				if (download.download() || !retryPolicy.shouldRetry(attempt))
+					return;
+				
+				long delay = retryPolicy.getDelayMillis(attempt);
+				downloadStatus.setStatusMessage("Download status for " + fileName + ": Attempt " + attempt + " of " 
+						+ retryPolicy.getMaxAttempts() + " failed. Resuming in " + (delay / 1000.0) + " s...");
+				Thread.sleep(delay);
+				
+				/*Look up the peers again, as other peers may now share the file */
+				try
+				{
+					PeerListMessage currentPeers = getFilePeerList(fileName);
+					if (currentPeers != null)
+						peers = currentPeers;
+				}
+				catch (ProcessingException lookupEx)
+				{
+					System.err.println("Could not look up the peers sharing " + fileName + ": " + lookupEx.getMessage());
+				}
+			}
+		}
+		catch (InterruptedException interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			downloadStatus.setTerminated();                                //ALWAYS notify waiting threads that download is terminated.
+		}
+	}
+	
+	
 	/**
 	 * Checks the specified path to determine if the file exists 
 	 * in the sharing directory.
@@ -204,29 +786,126 @@ public class P2PPeerController
 	
 	/**Uses the IndexService instance to obtain the host address
 	 * of any peer which is sharing a file with the given name.
-	 * Returns null if no peer was found.
+	 * Returns null if no peer was found. The peers are looked up with getFilePeerList(), so
+	 * they are cached, and a download of the file which follows does not ask the index service again.
 	 * @param fileName String holding the filename to check.
 	 * @return String with host address of sharing peer, or null if no peer found.
 	 */
 	public String getFilePeer(String fileName)
 	{
-		WebTarget filePeerTarget = indexServiceTarget.path(fileName);                                //Create specific target based on the index service target.
-		Invocation.Builder invocationBuilder = filePeerTarget.request(MediaType.APPLICATION_XML);     //Create Invocation Builder to request XML from the target.
-		
-		Response response = invocationBuilder.get();                                                  //Make GET request to resource.
-				
-		/*Not a success response, so return null */
-		if (response.getStatus() != HTTP_OK)    
+		PeerListMessage peerList = getFilePeerList(fileName);
+		return (peerList == null) ? null : peerList.getHostAddresses().get(0);                    //The least loaded peer comes first.
+	}
+	
+	
+	/**Uses the IndexService instance to obtain the host addresses
+	 * of all peers which are sharing a file with the given name.
+	 * @param fileName String holding the filename to check.
+	 * @return List of String with the host address of each sharing peer, which is empty if no peer was found.
+	 */
+	public List<String> getFilePeers(String fileName)
+	{
+		PeerListMessage peerList = getFilePeerList(fileName);
+		return (peerList == null) ? new ArrayList<String>() : new ArrayList<String>(peerList.getHostAddresses());
+	}
+	
+	
+	/**Uses the IndexService instance to obtain the content hash of a file with the given name
+	 * and the host addresses of the peers sharing that content. The result is cached, including
+	 * the absence of any peer, so the index service is only asked once the cached result expires.
+	 * The returned message is shared with the cache and must not be modified.
+	 * @param fileName String holding the filename to check.
+	 * @return PeerListMessage with the content hash, if known, and the sharing peers, or null if no peer was found.
+	 */
+	public PeerListMessage getFilePeerList(String fileName)
+	{
+		try
 		{
-			return null;
+			return lookupCache.get(fileName, peerLoader);
 		}
-		
-		/*Otherwise get the FileMessage object created from XML response message
-		 * and return the host address contained in that FileMessage instance.
-		 */
-		FileMessage responseMessage = response.readEntity(FileMessage.class);
-		
-		return responseMessage.getHostAddress();
+		catch (WebApplicationException errorStatus)
+		{
+			return null;                                                                             //The index service failed, which is not cached.
+		}
+	}
+	
+	
+	/**
+	 * Asks the index service for the peers sharing a file.
+	 * @return PeerListMessage with the sharing peers, or null if no peer shares the file
+	 * @throws WebApplicationException if the index service answers with an error other than 404 Not Found
+	 */
+	private PeerListMessage queryFilePeerList(String fileName)
+	{
+		Response response = indexServiceTarget.path(fileName).path("peers")
+				.request(MediaType.APPLICATION_XML)
+				.get();                                                                              //Make GET request to resource.
+		try
+		{
+			/*Not found, so no peer is sharing the file */
+			if (response.getStatus() == HTTP_NOT_FOUND)
+			{
+				return null;
+			}
+			
+			if (response.getStatus() != HTTP_OK)
+			{
+				throw new WebApplicationException(response.getStatus());
+			}
+			
+			PeerListMessage peerList = response.readEntity(PeerListMessage.class);
+			return peerList.getHostAddresses().isEmpty() ? null : peerList;
+		}
+		finally
+		{
+			response.close();
+		}
+	}
+	
+	
+	/**
+	 * Limits the rates at which file data is sent to and received from other peers, including by the
+	 * uploads and downloads already running.
+	 * @param uploadKBps long KB per second sent to all peers together, or 0 for no limit
+	 * @param downloadKBps long KB per second received from all peers together, or 0 for no limit
+	 */
+	public void setRateLimits(long uploadKBps, long downloadKBps)
+	{
+		peerConfig.setUploadLimitKBps(uploadKBps);
+		peerConfig.setDownloadLimitKBps(downloadKBps);
+		BandwidthLimiter.getUploadInstance().setRate(uploadKBps * 1024);
+		BandwidthLimiter.getDownloadInstance().setRate(downloadKBps * 1024);
+	}
+	
+	
+	/**
+	 * Get the pool of connections to other peers, e.g. to report how often connections are reused.
+	 * @return PeerConnectionPool used by the downloads of this controller
+	 */
+	public PeerConnectionPool getPeerConnections()
+	{
+		return peerConnections;
+	}
+	
+	
+	/**
+	 * Replaces the lookup of the peers sharing a file with the index service, so that tests can count
+	 * the lookups which reach it.
+	 * @param loader PeerLookupCache.PeerLoader called for each lookup which is not cached
+	 */
+	void setPeerLoader(PeerLookupCache.PeerLoader loader)
+	{
+		peerLoader = loader;
+	}
+	
+	
+	/**
+	 * Get the cache of the peers sharing each file, e.g. to report its hit and miss counts.
+	 * @return PeerLookupCache used by this controller
+	 */
+	public PeerLookupCache getLookupCache()
+	{
+		return lookupCache;
 	}
 	
 	
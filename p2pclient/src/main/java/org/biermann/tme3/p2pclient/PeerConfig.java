@@ -0,0 +1,557 @@
+/**
+ * PeerConfig.java
+ *
+ * Holds the tunable settings of a peer which control how it serves files to other peers. The values
+ * are read from system properties (e.g. -Dp2pclient.sendEngine=legacy) when the peer starts, and
+ * every value has a default, so no properties need to be set.
+ *
+ * The send engine determines how connections from peers are handled:
+ * - "nio" (default): a small number of selector event loops read requests without blocking and
+ *   serve a bounded number of uploads at once. See NioFileSendServer.
+ * - "legacy": a thread is started for every connection. See FileSendHelper.
+ *
+ * The execution mode determines the threads which run blocking peer tasks, such as the legacy engine's
+ * workers and downloads: "platform" (default) or "virtual" for virtual threads. See PeerExecutors.
+ *
+ * Failed downloads are attempted again, resuming from their checkpoint, after a delay which doubles
+ * with every attempt. See RetryPolicy.
+ *
+ * The index format determines the media type of the messages exchanged with the index service:
+ * "binary" (default), "json" or "xml". Connections to the index service are kept alive, and up to
+ * indexMaxConnections idle connections to each index host are kept for reuse. See P2PPeerController.
+ *
+ * A peer which shares files sends a heartbeat to the index service every heartbeatIntervalMillis to
+ * keep its lease, until the index service replies with its own interval.
+ *
+ * Unless syncShareDir is false, the sharing directory is watched, and files added to, changed in or
+ * removed from it are shared or unshared once no further changes have been seen for
+ * syncDebounceMillis. See ShareDirectorySync.
+ *
+ * The peers sharing up to lookupCacheEntries files are cached for lookupCacheTtlMillis, and a file
+ * which no peer shares for lookupCacheNegativeTtlMillis. See PeerLookupCache.
+ *
+ * Connections between peers are kept open for further requests (see PeerProtocol) unless keepAlive
+ * is false. A connection on which no request arrives within keepAliveMillis is closed by the sending
+ * peer, and the requesting peer keeps idle connections open for no longer. See PeerConnectionPool.
+ * Connections kept alive use the highest version of the protocol both peers support, up to
+ * protocolVersion: 3 (default) sends binary frames, and 2 sends lines.
+ *
+ * Unless compression is false, peers sending frames may send ranges compressed, and ranges which
+ * are worth it are sent compressed to peers which accept it, with the Deflate level compressionLevel,
+ * from 1 (default, fastest) to 9. See RangeCompressor.
+ *
+ * File data is sent to all peers together at no more than uploadLimitKBps KB per second, and received
+ * from all peers together at no more than downloadLimitKBps, with each connection given a fair share.
+ * Both are unlimited by default, and may be changed while the peer runs. See BandwidthLimiter.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+public class PeerConfig
+{
+	public static final String ENGINE_NIO = "nio";
+	public static final String ENGINE_LEGACY = "legacy";
+	public static final String MODE_PLATFORM = "platform";
+	public static final String MODE_VIRTUAL = "virtual";
+	public static final String FORMAT_XML = "xml";
+	public static final String FORMAT_JSON = "json";
+	public static final String FORMAT_BINARY = "binary";
+
+	/*Names of the system properties holding each setting */
+	public static final String SEND_ENGINE_PROPERTY = "p2pclient.sendEngine";
+	public static final String EXECUTION_MODE_PROPERTY = "p2pclient.executionMode";
+	public static final String EVENT_LOOPS_PROPERTY = "p2pclient.eventLoops";
+	public static final String MAX_UPLOADS_PROPERTY = "p2pclient.maxUploads";
+	public static final String MAX_CONNECTIONS_PROPERTY = "p2pclient.maxConnections";
+	public static final String REQUEST_TIMEOUT_PROPERTY = "p2pclient.requestTimeoutMillis";
+	public static final String DOWNLOAD_ATTEMPTS_PROPERTY = "p2pclient.downloadAttempts";
+	public static final String RETRY_DELAY_PROPERTY = "p2pclient.retryDelayMillis";
+	public static final String INDEX_FORMAT_PROPERTY = "p2pclient.indexFormat";
+	public static final String INDEX_MAX_CONNECTIONS_PROPERTY = "p2pclient.indexMaxConnections";
+	public static final String INDEX_TIMEOUT_PROPERTY = "p2pclient.indexTimeoutMillis";
+	public static final String HEARTBEAT_INTERVAL_PROPERTY = "p2pclient.heartbeatIntervalMillis";
+	public static final String SYNC_SHARE_DIR_PROPERTY = "p2pclient.syncShareDir";
+	public static final String SYNC_DEBOUNCE_PROPERTY = "p2pclient.syncDebounceMillis";
+	public static final String LOOKUP_CACHE_ENTRIES_PROPERTY = "p2pclient.lookupCacheEntries";
+	public static final String LOOKUP_CACHE_TTL_PROPERTY = "p2pclient.lookupCacheTtlMillis";
+	public static final String LOOKUP_CACHE_NEGATIVE_TTL_PROPERTY = "p2pclient.lookupCacheNegativeTtlMillis";
+	public static final String KEEP_ALIVE_PROPERTY = "p2pclient.keepAlive";
+	public static final String KEEP_ALIVE_MILLIS_PROPERTY = "p2pclient.keepAliveMillis";
+	public static final String PROTOCOL_VERSION_PROPERTY = "p2pclient.protocolVersion";
+	public static final String COMPRESSION_PROPERTY = "p2pclient.compression";
+	public static final String COMPRESSION_LEVEL_PROPERTY = "p2pclient.compressionLevel";
+	public static final String UPLOAD_LIMIT_PROPERTY = "p2pclient.uploadLimitKBps";
+	public static final String DOWNLOAD_LIMIT_PROPERTY = "p2pclient.downloadLimitKBps";
+
+	public static final String DEFAULT_SEND_ENGINE = ENGINE_NIO;
+	public static final String DEFAULT_EXECUTION_MODE = MODE_PLATFORM;
+	public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	public static final int DEFAULT_MAX_UPLOADS = 32;
+	public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+	public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 10000;
+	public static final int DEFAULT_DOWNLOAD_ATTEMPTS = 5;
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+	public static final String DEFAULT_INDEX_FORMAT = FORMAT_BINARY;
+	public static final int DEFAULT_INDEX_MAX_CONNECTIONS = 8;
+	public static final long DEFAULT_INDEX_TIMEOUT_MILLIS = 30000;
+	public static final long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 30000;
+	public static final boolean DEFAULT_SYNC_SHARE_DIR = true;
+	public static final long DEFAULT_SYNC_DEBOUNCE_MILLIS = 1000;
+	public static final int DEFAULT_LOOKUP_CACHE_ENTRIES = 1024;
+	public static final long DEFAULT_LOOKUP_CACHE_TTL_MILLIS = 10000;
+	public static final long DEFAULT_LOOKUP_CACHE_NEGATIVE_TTL_MILLIS = 2000;
+	public static final boolean DEFAULT_KEEP_ALIVE = true;
+	public static final long DEFAULT_KEEP_ALIVE_MILLIS = 15000;
+	public static final int DEFAULT_PROTOCOL_VERSION = PeerProtocol.MAX_VERSION;
+	public static final boolean DEFAULT_COMPRESSION = true;
+	public static final int DEFAULT_COMPRESSION_LEVEL = 1;
+	public static final long DEFAULT_UPLOAD_LIMIT_KBPS = 0;                           //0 for no limit.
+	public static final long DEFAULT_DOWNLOAD_LIMIT_KBPS = 0;
+
+	private String sendEngine = DEFAULT_SEND_ENGINE;
+	private String executionMode = DEFAULT_EXECUTION_MODE;
+	private int eventLoops = DEFAULT_EVENT_LOOPS;
+	private int maxUploads = DEFAULT_MAX_UPLOADS;
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+	private int downloadAttempts = DEFAULT_DOWNLOAD_ATTEMPTS;
+	private long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+	private String indexFormat = DEFAULT_INDEX_FORMAT;
+	private int indexMaxConnections = DEFAULT_INDEX_MAX_CONNECTIONS;
+	private long indexTimeoutMillis = DEFAULT_INDEX_TIMEOUT_MILLIS;
+	private long heartbeatIntervalMillis = DEFAULT_HEARTBEAT_INTERVAL_MILLIS;
+	private boolean syncShareDir = DEFAULT_SYNC_SHARE_DIR;
+	private long syncDebounceMillis = DEFAULT_SYNC_DEBOUNCE_MILLIS;
+	private int lookupCacheEntries = DEFAULT_LOOKUP_CACHE_ENTRIES;
+	private long lookupCacheTtlMillis = DEFAULT_LOOKUP_CACHE_TTL_MILLIS;
+	private long lookupCacheNegativeTtlMillis = DEFAULT_LOOKUP_CACHE_NEGATIVE_TTL_MILLIS;
+	private boolean keepAlive = DEFAULT_KEEP_ALIVE;
+	private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+	private int protocolVersion = DEFAULT_PROTOCOL_VERSION;
+	private boolean compression = DEFAULT_COMPRESSION;
+	private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+	private long uploadLimitKBps = DEFAULT_UPLOAD_LIMIT_KBPS;
+	private long downloadLimitKBps = DEFAULT_DOWNLOAD_LIMIT_KBPS;
+
+
+	/**
+	 * Creates a configuration with the default value for every setting.
+	 */
+	public PeerConfig()
+	{}
+
+
+	/**
+	 * Creates a configuration from the system properties. Settings whose property is not set, or
+	 * is not a valid value, keep their default.
+	 * @return PeerConfig holding the configured settings
+	 */
+	public static PeerConfig fromSystemProperties()
+	{
+		PeerConfig config = new PeerConfig();
+
+		String engine = System.getProperty(SEND_ENGINE_PROPERTY, DEFAULT_SEND_ENGINE).trim().toLowerCase();
+		if (engine.equals(ENGINE_NIO) || engine.equals(ENGINE_LEGACY))
+			config.setSendEngine(engine);
+		else
+			System.err.println("Unknown send engine " + engine + ". Using " + DEFAULT_SEND_ENGINE + ".");
+
+		String mode = System.getProperty(EXECUTION_MODE_PROPERTY, DEFAULT_EXECUTION_MODE).trim().toLowerCase();
+		if (mode.equals(MODE_PLATFORM) || mode.equals(MODE_VIRTUAL))
+			config.setExecutionMode(mode);
+		else
+			System.err.println("Unknown execution mode " + mode + ". Using " + DEFAULT_EXECUTION_MODE + ".");
+
+		String format = System.getProperty(INDEX_FORMAT_PROPERTY, DEFAULT_INDEX_FORMAT).trim().toLowerCase();
+		if (format.equals(FORMAT_XML) || format.equals(FORMAT_JSON) || format.equals(FORMAT_BINARY))
+			config.setIndexFormat(format);
+		else
+			System.err.println("Unknown index format " + format + ". Using " + DEFAULT_INDEX_FORMAT + ".");
+
+		config.setEventLoops((int) readPositive(EVENT_LOOPS_PROPERTY, DEFAULT_EVENT_LOOPS));
+		config.setMaxUploads((int) readPositive(MAX_UPLOADS_PROPERTY, DEFAULT_MAX_UPLOADS));
+		config.setMaxConnections((int) readPositive(MAX_CONNECTIONS_PROPERTY, DEFAULT_MAX_CONNECTIONS));
+		config.setRequestTimeoutMillis(readPositive(REQUEST_TIMEOUT_PROPERTY, DEFAULT_REQUEST_TIMEOUT_MILLIS));
+		config.setDownloadAttempts((int) readPositive(DOWNLOAD_ATTEMPTS_PROPERTY, DEFAULT_DOWNLOAD_ATTEMPTS));
+		config.setRetryDelayMillis(readPositive(RETRY_DELAY_PROPERTY, DEFAULT_RETRY_DELAY_MILLIS));
+		config.setIndexMaxConnections((int) readPositive(INDEX_MAX_CONNECTIONS_PROPERTY, DEFAULT_INDEX_MAX_CONNECTIONS));
+		config.setIndexTimeoutMillis(readPositive(INDEX_TIMEOUT_PROPERTY, DEFAULT_INDEX_TIMEOUT_MILLIS));
+		config.setHeartbeatIntervalMillis(readPositive(HEARTBEAT_INTERVAL_PROPERTY, DEFAULT_HEARTBEAT_INTERVAL_MILLIS));
+		config.setSyncShareDir(Boolean.parseBoolean(System.getProperty(SYNC_SHARE_DIR_PROPERTY, 
+				Boolean.toString(DEFAULT_SYNC_SHARE_DIR)).trim()));
+		config.setSyncDebounceMillis(readPositive(SYNC_DEBOUNCE_PROPERTY, DEFAULT_SYNC_DEBOUNCE_MILLIS));
+		config.setLookupCacheEntries((int) readPositive(LOOKUP_CACHE_ENTRIES_PROPERTY, DEFAULT_LOOKUP_CACHE_ENTRIES));
+		config.setLookupCacheTtlMillis(readPositive(LOOKUP_CACHE_TTL_PROPERTY, DEFAULT_LOOKUP_CACHE_TTL_MILLIS));
+		config.setLookupCacheNegativeTtlMillis(readPositive(LOOKUP_CACHE_NEGATIVE_TTL_PROPERTY, DEFAULT_LOOKUP_CACHE_NEGATIVE_TTL_MILLIS));
+		config.setKeepAlive(Boolean.parseBoolean(System.getProperty(KEEP_ALIVE_PROPERTY, Boolean.toString(DEFAULT_KEEP_ALIVE)).trim()));
+		config.setKeepAliveMillis(readPositive(KEEP_ALIVE_MILLIS_PROPERTY, DEFAULT_KEEP_ALIVE_MILLIS));
+		config.setProtocolVersion((int) readPositive(PROTOCOL_VERSION_PROPERTY, DEFAULT_PROTOCOL_VERSION));
+		config.setCompression(Boolean.parseBoolean(System.getProperty(COMPRESSION_PROPERTY, Boolean.toString(DEFAULT_COMPRESSION)).trim()));
+		config.setCompressionLevel((int) Math.min(9, readPositive(COMPRESSION_LEVEL_PROPERTY, DEFAULT_COMPRESSION_LEVEL)));
+		config.setUploadLimitKBps(readPositive(UPLOAD_LIMIT_PROPERTY, DEFAULT_UPLOAD_LIMIT_KBPS));
+		config.setDownloadLimitKBps(readPositive(DOWNLOAD_LIMIT_PROPERTY, DEFAULT_DOWNLOAD_LIMIT_KBPS));
+
+		return config;
+	}
+
+
+	private static long readPositive(String property, long defaultValue)
+	{
+		String value = System.getProperty(property);
+		if (value == null)
+			return defaultValue;
+
+		try
+		{
+			long parsed = Long.parseLong(value.trim());
+			if (parsed > 0)
+				return parsed;
+		}
+		catch (NumberFormatException invalidNumber)
+		{}
+
+		System.err.println("Invalid value " + value + " for " + property + ". Using " + defaultValue + ".");
+		return defaultValue;
+	}
+
+
+	/**
+	 * Get the engine used to serve files to peers.
+	 * @return String ENGINE_NIO or ENGINE_LEGACY
+	 */
+	public String getSendEngine()
+	{
+		return sendEngine;
+	}
+
+	public void setSendEngine(String sendEngine)
+	{
+		this.sendEngine = sendEngine;
+	}
+
+	/**
+	 * Get the kind of threads used to run blocking peer tasks.
+	 * @return String MODE_PLATFORM or MODE_VIRTUAL
+	 */
+	public String getExecutionMode()
+	{
+		return executionMode;
+	}
+
+	public void setExecutionMode(String executionMode)
+	{
+		this.executionMode = executionMode;
+	}
+
+	/**
+	 * Get the number of selector threads used by the NIO engine.
+	 * @return int number of event loops
+	 */
+	public int getEventLoops()
+	{
+		return eventLoops;
+	}
+
+	public void setEventLoops(int eventLoops)
+	{
+		this.eventLoops = eventLoops;
+	}
+
+	/**
+	 * Get the number of files which are sent at the same time, by either engine. Further requests
+	 * wait until an upload finishes.
+	 * @return int maximum number of concurrent uploads
+	 */
+	public int getMaxUploads()
+	{
+		return maxUploads;
+	}
+
+	public void setMaxUploads(int maxUploads)
+	{
+		this.maxUploads = maxUploads;
+	}
+
+	/**
+	 * Get the number of connections the NIO engine holds open at once. Once reached, no further
+	 * connections are accepted until one closes, so new peers wait in the listen backlog.
+	 * @return int maximum number of open connections
+	 */
+	public int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections)
+	{
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Get the time a peer has to send its request line before the NIO engine closes the connection.
+	 * @return long request timeout in milliseconds
+	 */
+	public long getRequestTimeoutMillis()
+	{
+		return requestTimeoutMillis;
+	}
+
+	public void setRequestTimeoutMillis(long requestTimeoutMillis)
+	{
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	/**
+	 * Get the number of times a download is attempted before it is reported as failed.
+	 * @return int number of attempts, including the first
+	 */
+	public int getDownloadAttempts()
+	{
+		return downloadAttempts;
+	}
+
+	public void setDownloadAttempts(int downloadAttempts)
+	{
+		this.downloadAttempts = downloadAttempts;
+	}
+
+	/**
+	 * Get the delay before the first retry of a failed download. Later retries wait longer.
+	 * @return long retry delay in milliseconds
+	 */
+	public long getRetryDelayMillis()
+	{
+		return retryDelayMillis;
+	}
+
+	public void setRetryDelayMillis(long retryDelayMillis)
+	{
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	/**
+	 * Get the format of the messages exchanged with the index service.
+	 * @return String FORMAT_BINARY, FORMAT_JSON or FORMAT_XML
+	 */
+	public String getIndexFormat()
+	{
+		return indexFormat;
+	}
+
+	public void setIndexFormat(String indexFormat)
+	{
+		this.indexFormat = indexFormat;
+	}
+
+	/**
+	 * Get the number of idle connections to each index service host which are kept alive for reuse.
+	 * @return int maximum number of idle connections to the index service
+	 */
+	public int getIndexMaxConnections()
+	{
+		return indexMaxConnections;
+	}
+
+	public void setIndexMaxConnections(int indexMaxConnections)
+	{
+		this.indexMaxConnections = indexMaxConnections;
+	}
+
+	/**
+	 * Get the time allowed for connecting to the index service, and for each read of its response.
+	 * @return long index service timeout in milliseconds
+	 */
+	public long getIndexTimeoutMillis()
+	{
+		return indexTimeoutMillis;
+	}
+
+	public void setIndexTimeoutMillis(long indexTimeoutMillis)
+	{
+		this.indexTimeoutMillis = indexTimeoutMillis;
+	}
+
+	/**
+	 * Get the interval at which heartbeats are sent to the index service before it has replied
+	 * with its own interval.
+	 * @return long heartbeat interval in milliseconds
+	 */
+	public long getHeartbeatIntervalMillis()
+	{
+		return heartbeatIntervalMillis;
+	}
+
+	public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis)
+	{
+		this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+	}
+
+	/**
+	 * Determine if the sharing directory is kept in sync with the index service.
+	 * @return boolean true if files are shared and unshared as the directory changes
+	 */
+	public boolean isSyncShareDir()
+	{
+		return syncShareDir;
+	}
+
+	public void setSyncShareDir(boolean syncShareDir)
+	{
+		this.syncShareDir = syncShareDir;
+	}
+
+	/**
+	 * Get the time without changes to the sharing directory after which the changes are sent to the index service.
+	 * @return long quiet period in milliseconds
+	 */
+	public long getSyncDebounceMillis()
+	{
+		return syncDebounceMillis;
+	}
+
+	public void setSyncDebounceMillis(long syncDebounceMillis)
+	{
+		this.syncDebounceMillis = syncDebounceMillis;
+	}
+
+	/**
+	 * Get the maximum number of files whose sharing peers are cached.
+	 * @return int maximum number of cached files
+	 */
+	public int getLookupCacheEntries()
+	{
+		return lookupCacheEntries;
+	}
+
+	public void setLookupCacheEntries(int lookupCacheEntries)
+	{
+		this.lookupCacheEntries = lookupCacheEntries;
+	}
+
+	/**
+	 * Get the time for which the peers sharing a file are cached.
+	 * @return long time to live in milliseconds
+	 */
+	public long getLookupCacheTtlMillis()
+	{
+		return lookupCacheTtlMillis;
+	}
+
+	public void setLookupCacheTtlMillis(long lookupCacheTtlMillis)
+	{
+		this.lookupCacheTtlMillis = lookupCacheTtlMillis;
+	}
+
+	/**
+	 * Get the time for which a file which no peer shares is cached.
+	 * @return long time to live in milliseconds
+	 */
+	public long getLookupCacheNegativeTtlMillis()
+	{
+		return lookupCacheNegativeTtlMillis;
+	}
+
+	public void setLookupCacheNegativeTtlMillis(long lookupCacheNegativeTtlMillis)
+	{
+		this.lookupCacheNegativeTtlMillis = lookupCacheNegativeTtlMillis;
+	}
+
+	/**
+	 * Determine if connections to other peers are kept open and reused for further requests.
+	 * @return boolean true if connections are kept alive
+	 */
+	public boolean isKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	public void setKeepAlive(boolean keepAlive)
+	{
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Get the time for which a connection between peers is kept open without a request.
+	 * @return long idle time in milliseconds
+	 */
+	public long getKeepAliveMillis()
+	{
+		return keepAliveMillis;
+	}
+
+	public void setKeepAliveMillis(long keepAliveMillis)
+	{
+		this.keepAliveMillis = keepAliveMillis;
+	}
+
+	/**
+	 * Get the highest version of the protocol offered to peers on connections kept alive.
+	 * @return int PeerProtocol.KEEP_ALIVE_VERSION or PeerProtocol.FRAMED_VERSION
+	 */
+	public int getProtocolVersion()
+	{
+		return protocolVersion;
+	}
+
+	public void setProtocolVersion(int protocolVersion)
+	{
+		this.protocolVersion = protocolVersion;
+	}
+
+	/**
+	 * Determine if ranges are sent compressed to peers which accept it, and accepted compressed from peers.
+	 * @return boolean true if compression is used
+	 */
+	public boolean isCompression()
+	{
+		return compression;
+	}
+
+	public void setCompression(boolean compression)
+	{
+		this.compression = compression;
+	}
+
+	/**
+	 * Get the Deflate level used to compress ranges sent to other peers.
+	 * @return int level from 1 (fastest) to 9 (smallest)
+	 */
+	public int getCompressionLevel()
+	{
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel)
+	{
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Get the rate at which file data is sent to other peers.
+	 * @return long KB per second, or 0 if unlimited
+	 */
+	public long getUploadLimitKBps()
+	{
+		return uploadLimitKBps;
+	}
+
+	public void setUploadLimitKBps(long uploadLimitKBps)
+	{
+		this.uploadLimitKBps = uploadLimitKBps;
+	}
+
+	/**
+	 * Get the rate at which file data is received from other peers.
+	 * @return long KB per second, or 0 if unlimited
+	 */
+	public long getDownloadLimitKBps()
+	{
+		return downloadLimitKBps;
+	}
+
+	public void setDownloadLimitKBps(long downloadLimitKBps)
+	{
+		this.downloadLimitKBps = downloadLimitKBps;
+	}
+}
@@ -0,0 +1,650 @@
+/**
+ * PeerConnectionPool.java
+ *
+ * Keeps connections to other peers open after a request, so further requests to the same peer do
+ * not each pay for a new TCP connection. A connection is opened with a KEEPALIVE request (see
+ * PeerProtocol), and once a reply has been read entirely it is returned to the pool with release().
+ * A connection whose reply was not read entirely, e.g. because the download stopped part way, must
+ * be closed with discard() instead, as the rest of the reply would be taken for the next one.
+ *
+ * Connections are kept per peer address, at most MAX_IDLE_PER_PEER for each, and the most recently
+ * used one is handed out first, so the others expire. A connection expires once it has been idle
+ * for the idle time of the pool, or a little less than the idle time of the peer, so it is never
+ * used just as the peer closes it. A connection is also checked without blocking before it is handed
+ * out, in case the peer closed it meanwhile, e.g. because it was restarted.
+ *
+ * A peer which does not support keep-alive is remembered for LEGACY_PEER_MILLIS, during which its
+ * connections are opened without the KEEPALIVE request and closed after a single reply.
+ *
+ * The KEEPALIVE request offers the highest version of the protocol the pool is configured for, and
+ * the peer answers with the version it will use. The requests and replies of a Connection are sent as
+ * lines or as binary frames accordingly, so its users do not depend on the version. The frame header
+ * and file name of a request are built in buffers held by the connection, and the header of each
+ * reply is parsed into a Frame held by the connection, so no objects are created for a range.
+ *
+ * Unless compression is turned off, range requests sent as frames accept compressed blocks, and the
+ * bytes of a range are then read from getRangeStream(), which inflates and checks the blocks.
+ *
+ * Range requests sent as frames also accept queue frames, which a busy peer sends while the request
+ * waits for an upload slot. They are read by readRangeHeader() and passed to the QueueListener of the
+ * connection, if one is set, e.g. to show the position in the queue in a DownloadStatus.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+public class PeerConnectionPool implements Closeable
+{
+	public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+	public static final int READ_TIMEOUT_MILLIS = 30000;
+	public static final int MAX_IDLE_PER_PEER = 4;
+	public static final long LEGACY_PEER_MILLIS = 10 * 60 * 1000;       //Time for which a peer without keep-alive is remembered.
+	public static final long IDLE_MARGIN_MILLIS = 1000;                   //Connections expire this long before the peer closes them.
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final boolean keepAlive;
+	private final int version;                                           //Highest version of the protocol offered to peers.
+	private final long idleMillis;
+	private boolean compression = true;                                 //Ranges may be sent compressed.
+
+	/*Idle connections of each peer, most recently used first. Guarded by this. */
+	private final Map<InetSocketAddress, Deque<Connection>> idle = new HashMap<>();
+	private long nextSweepMillis;
+	private boolean closed;
+
+	private final Map<InetSocketAddress, Long> legacyPeers = new ConcurrentHashMap<>();   //Time until which each peer is taken as legacy.
+	private final LongAdder opened = new LongAdder();
+	private final LongAdder reused = new LongAdder();
+
+
+	/**
+	 * Told of the position of a request in the queue of a busy peer.
+	 */
+	public interface QueueListener
+	{
+		/**
+		 * Called for each queue frame the peer sends while the request waits for an upload slot.
+		 * @param position int position of the request in the queue, starting at 1
+		 * @param estimatedWaitMillis long time the peer expects the request to wait, or -1 if not known
+		 */
+		void queued(int position, long estimatedWaitMillis);
+	}
+
+
+	/**
+	 * An open connection to a peer. Requests are written to a buffer, so several may be sent with a
+	 * single write by calling flush() once. Only used by one thread at a time.
+	 */
+	public static final class Connection implements Closeable
+	{
+		private final InetSocketAddress peer;
+		private final SocketChannel channel;
+		private final InputStream inStream;
+		private final OutputStream outStream;
+		private long expiryMillis = Long.MAX_VALUE;                          //Longest time the connection may be idle.
+		private long idleSinceMillis;
+		private boolean keepAlive;
+		private int version = 1;                                              //Version of the protocol agreed with the peer.
+		private final boolean compression;
+		private RangeDecompressor decompressor;                               //Created for the first compressed range.
+		private InputStream rangeStream;
+		private QueueListener queueListener;                                  //Cleared when the connection is released.
+
+		/*Buffers reused for the frames of every reply, and, separately, of every request, so a request may
+		 * be sent before the reply read last has been used. */
+		private final PeerProtocol.Frame frame = new PeerProtocol.Frame();
+		private final ByteBuffer frameHeader = ByteBuffer.allocate(PeerProtocol.FRAME_HEADER_BYTES);
+		private final CRC32 crc = new CRC32();
+		private final PeerProtocol.Frame requestFrame = new PeerProtocol.Frame();
+		private final ByteBuffer requestHeader = ByteBuffer.allocate(PeerProtocol.FRAME_HEADER_BYTES);
+		private final CRC32 requestCrc = new CRC32();
+		private String lastFileName;
+		private byte[] lastFileNameBytes;
+
+		private Connection(InetSocketAddress peer, SocketChannel channel, boolean compression) throws IOException
+		{
+			this.peer = peer;
+			this.channel = channel;
+			this.compression = compression;
+			inStream = new BufferedInputStream(channel.socket().getInputStream(), BUFFER_SIZE);
+			outStream = new BufferedOutputStream(channel.socket().getOutputStream(), PeerProtocol.MAX_LINE_BYTES);
+			rangeStream = inStream;
+		}
+
+		public InetSocketAddress getPeer()
+		{
+			return peer;
+		}
+
+		/**
+		 * Get the stream holding the replies of the peer, in the order of the requests.
+		 * @return InputStream of the connection
+		 */
+		public InputStream getInputStream()
+		{
+			return inStream;
+		}
+
+		/**
+		 * Get the stream holding the bytes of the range whose header was read last by readRangeHeader().
+		 * If the range is sent compressed, the stream inflates it and ends with the range, and otherwise
+		 * it is the input stream of the connection, from which exactly the length of the range must be read.
+		 * @return InputStream of the range
+		 */
+		public InputStream getRangeStream()
+		{
+			return rangeStream;
+		}
+
+		/**
+		 * Set the listener told of queue frames read by readRangeHeader() until the connection is released.
+		 * @param queueListener QueueListener, or null to ignore queue frames
+		 */
+		public void setQueueListener(QueueListener queueListener)
+		{
+			this.queueListener = queueListener;
+		}
+
+		/**
+		 * Adds a request to those to be sent by the next flush().
+		 * @param requestLine String with the request line, including the line terminator
+		 */
+		public void send(String requestLine) throws IOException
+		{
+			outStream.write(requestLine.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * Sends the requests added since the last flush.
+		 */
+		public void flush() throws IOException
+		{
+			outStream.flush();
+		}
+
+		/**
+		 * Determine if the connection is kept open after a reply, so that further requests can be sent on it.
+		 * @return boolean true if the peer agreed to keep the connection alive
+		 */
+		public boolean isKeepAlive()
+		{
+			return keepAlive;
+		}
+
+		/**
+		 * Get the version of the protocol agreed with the peer (see PeerProtocol).
+		 * @return int 1 if the connection is not kept alive, 2 if requests are sent as lines, or 3 if they are sent as frames
+		 */
+		public int getVersion()
+		{
+			return version;
+		}
+
+		/**
+		 * Adds a range request to those to be sent by the next flush().
+		 * @param fileName String with the name of the file
+		 * @param offset long position of the first byte requested
+		 * @param length long number of bytes requested
+		 * @param checksum boolean true to ask for the checksum of the range, which only a peer sending frames provides
+		 */
+		public void sendRangeRequest(String fileName, long offset, long length, boolean checksum) throws IOException
+		{
+			if (version >= PeerProtocol.FRAMED_VERSION)
+				sendFrame(PeerProtocol.TYPE_RANGE_REQUEST, fileName, offset, length,
+						(checksum ? PeerProtocol.FLAG_RANGE_CHECKSUM : 0) | (compression ? PeerProtocol.FLAG_DEFLATE : 0) | PeerProtocol.FLAG_QUEUE_STATUS);
+			else
+				send(PeerProtocol.formatRangeRequest(fileName, offset, length));
+		}
+
+		/**
+		 * Adds a request for the chunk hashes of a file to those to be sent by the next flush().
+		 * @param fileName String with the name of the file
+		 */
+		public void sendHashesRequest(String fileName) throws IOException
+		{
+			if (version >= PeerProtocol.FRAMED_VERSION)
+				sendFrame(PeerProtocol.TYPE_HASHES_REQUEST, fileName, 0, 0, 0);
+			else
+				send(PeerProtocol.formatHashesRequest(fileName));
+		}
+
+		/**
+		 * Reads the reply to a hashes request.
+		 * @return ContentHashes sent by the peer, which have not yet been checked against a content hash
+		 * @throws IOException if the reply is not valid, or PeerProtocol.ErrorReplyException if the peer sent an error
+		 */
+		public ContentHashes readHashesReply() throws IOException
+		{
+			if (version < PeerProtocol.FRAMED_VERSION)
+				return PeerProtocol.readHashesReply(inStream);
+
+			readFrame();
+			return PeerProtocol.readHashesFrame(frame, inStream, crc);
+		}
+
+		/**
+		 * Reads the header of the reply to a range request, after which getRangeStream() holds the
+		 * bytes of the range. Queue frames sent before the reply are passed to the QueueListener.
+		 * @return Frame with the offset, length and file size of the range and, if the peer sent one, its
+		 * checksum, which is reused by the next call
+		 * @throws IOException if the reply is not valid, or PeerProtocol.ErrorReplyException if the peer sent an error
+		 */
+		public PeerProtocol.Frame readRangeHeader() throws IOException
+		{
+			rangeStream = inStream;
+			if (version < PeerProtocol.FRAMED_VERSION)
+			{
+				PeerProtocol.parseRangeHeader(PeerProtocol.readLine(inStream), frame);
+				return frame;
+			}
+
+			readFrame();
+			while (frame.getType() == PeerProtocol.TYPE_QUEUED)
+			{
+				if (frame.getContentLength() != 0 || frame.getOffset() <= 0 || frame.getOffset() > Integer.MAX_VALUE)
+					throw new IOException("The peer sent a queue frame which is not valid.");
+				if (queueListener != null)
+					queueListener.queued((int) frame.getOffset(), frame.getLength());
+				readFrame();                                                     //The reply, or a further queue frame.
+			}
+			if (frame.getType() != PeerProtocol.TYPE_DATA)
+				PeerProtocol.readContent(frame, inStream, crc);                  //Throws the error the peer sent.
+			boolean deflated = (frame.getFlags() & PeerProtocol.FLAG_DEFLATE) != 0;
+			if (frame.getType() != PeerProtocol.TYPE_DATA || frame.getContentLength() != (deflated ? 0 : frame.getLength())
+					|| (deflated && !compression))
+				throw new IOException("The peer sent a frame of type " + frame.getType() + " in reply to a range request.");
+
+			if (deflated)
+			{
+				if (decompressor == null)
+					decompressor = new RangeDecompressor(inStream);
+				decompressor.reset(frame.getOffset(), frame.getLength());
+				rangeStream = decompressor;
+			}
+			return frame;
+		}
+
+		public void close()
+		{
+			if (decompressor != null)
+				decompressor.close();
+			try
+			{
+				channel.close();
+			}
+			catch (IOException closeEx)
+			{
+				System.err.println("Unable to close connection to peer " + peer + ": " + closeEx.getMessage());
+			}
+		}
+
+		private void readFrame() throws IOException
+		{
+			if (!PeerProtocol.readFrame(inStream, frameHeader, frame))
+				throw new IOException("The peer closed the connection without a reply.");
+		}
+
+		/**
+		 * Adds a request frame. The name of the file is encoded once for all requests for the same file.
+		 */
+		private void sendFrame(int type, String fileName, long offset, long length, int flags) throws IOException
+		{
+			if (!fileName.equals(lastFileName))
+			{
+				lastFileNameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+				lastFileName = fileName;
+			}
+
+			PeerProtocol.putRequestFrame(type, lastFileNameBytes, offset, length, flags, requestFrame, requestCrc, requestHeader);
+			outStream.write(requestHeader.array(), 0, requestHeader.limit());
+			outStream.write(lastFileNameBytes);
+		}
+
+		/**
+		 * Checks without blocking that the peer has not closed the connection, and sent nothing unexpected.
+		 */
+		private boolean isUsable()
+		{
+			try
+			{
+				if (inStream.available() > 0)
+					return false;
+
+				channel.configureBlocking(false);
+				try
+				{
+					return channel.read(ByteBuffer.allocate(1)) == 0;
+				}
+				finally
+				{
+					channel.configureBlocking(true);
+				}
+			}
+			catch (IOException closedEx)
+			{
+				return false;
+			}
+		}
+	}
+
+
+	/**
+	 * Creates a pool with the settings of the peer.
+	 * @param config PeerConfig with the keep-alive settings
+	 */
+	public PeerConnectionPool(PeerConfig config)
+	{
+		this(config.isKeepAlive(), config.getProtocolVersion(), config.getKeepAliveMillis());
+		compression = config.isCompression();
+	}
+
+
+	/**
+	 * Creates a pool.
+	 * @param keepAlive boolean false to open a new connection for every request
+	 * @param idleMillis long longest time a connection is kept idle, in milliseconds
+	 */
+	public PeerConnectionPool(boolean keepAlive, long idleMillis)
+	{
+		this(keepAlive, PeerProtocol.MAX_VERSION, idleMillis);
+	}
+
+
+	/**
+	 * Creates a pool which offers peers at most the specified version of the protocol.
+	 * @param keepAlive boolean false to open a new connection for every request
+	 * @param version int highest version of the protocol offered to peers, at least PeerProtocol.KEEP_ALIVE_VERSION
+	 * @param idleMillis long longest time a connection is kept idle, in milliseconds
+	 */
+	public PeerConnectionPool(boolean keepAlive, int version, long idleMillis)
+	{
+		this.keepAlive = keepAlive;
+		this.version = Math.max(PeerProtocol.KEEP_ALIVE_VERSION, Math.min(version, PeerProtocol.MAX_VERSION));
+		this.idleMillis = idleMillis;
+	}
+
+
+	/**
+	 * Set whether peers may send ranges compressed to connections opened from now on.
+	 * @param compression boolean false to have every range sent as it is
+	 */
+	public void setCompression(boolean compression)
+	{
+		this.compression = compression;
+	}
+
+
+	/**
+	 * Get a connection to a peer, which is an idle connection if there is one, or a new connection otherwise.
+	 * @param peer InetSocketAddress of the peer, which may be unresolved
+	 * @return Connection to the peer, which must be passed to release() or discard() when no longer used
+	 * @throws IOException if the connection cannot be made
+	 */
+	public Connection acquire(InetSocketAddress peer) throws IOException
+	{
+		Connection connection;
+		while ((connection = takeIdle(peer)) != null)
+		{
+			if (connection.isUsable())
+			{
+				reused.increment();
+				return connection;
+			}
+			connection.close();
+		}
+
+		return open(peer);
+	}
+
+
+	/**
+	 * Returns a connection whose replies have all been read, so it may be reused. A connection which
+	 * the peer does not keep alive is closed.
+	 * @param connection Connection from acquire()
+	 */
+	public void release(Connection connection)
+	{
+		connection.queueListener = null;
+		if (!connection.keepAlive)
+		{
+			connection.close();
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		connection.idleSinceMillis = now;
+		List<Connection> expired = new ArrayList<>();
+		synchronized (this)
+		{
+			if (closed)
+			{
+				expired.add(connection);
+			}
+			else
+			{
+				Deque<Connection> peerIdle = idle.computeIfAbsent(connection.peer, peer -> new ArrayDeque<Connection>());
+				peerIdle.addFirst(connection);
+				if (peerIdle.size() > MAX_IDLE_PER_PEER)
+					expired.add(peerIdle.removeLast());
+				sweep(now, expired);
+			}
+		}
+
+		for (Connection stale : expired)
+		{
+			stale.close();
+		}
+	}
+
+
+	/**
+	 * Closes a connection which cannot be reused, e.g. because its reply was not read entirely.
+	 * @param connection Connection from acquire()
+	 */
+	public void discard(Connection connection)
+	{
+		connection.close();
+	}
+
+
+	/**
+	 * Closes every idle connection. Connections in use are closed when they are released.
+	 */
+	public void close()
+	{
+		List<Connection> all = new ArrayList<>();
+		synchronized (this)
+		{
+			closed = true;
+			for (Deque<Connection> peerIdle : idle.values())
+			{
+				all.addAll(peerIdle);
+			}
+			idle.clear();
+		}
+
+		for (Connection connection : all)
+		{
+			connection.close();
+		}
+	}
+
+
+	/**
+	 * Get the number of connections opened, including those opened to peers which do not support keep-alive.
+	 * @return long number of connections
+	 */
+	public long getOpenedCount()
+	{
+		return opened.sum();
+	}
+
+	/**
+	 * Get the number of requests which used a connection from the pool rather than a new connection.
+	 * @return long number of reused connections
+	 */
+	public long getReusedCount()
+	{
+		return reused.sum();
+	}
+
+	/**
+	 * Get the number of connections currently idle in the pool.
+	 * @return int number of idle connections
+	 */
+	public synchronized int getIdleCount()
+	{
+		int count = 0;
+		for (Deque<Connection> peerIdle : idle.values())
+		{
+			count += peerIdle.size();
+		}
+		return count;
+	}
+
+
+	/**
+	 * Takes the most recently used idle connection to the peer which has not expired.
+	 */
+	private Connection takeIdle(InetSocketAddress peer)
+	{
+		List<Connection> expired = new ArrayList<>();
+		Connection connection = null;
+		long now = System.currentTimeMillis();
+		synchronized (this)
+		{
+			Deque<Connection> peerIdle = idle.get(peer);
+			while (connection == null && peerIdle != null && !peerIdle.isEmpty())
+			{
+				Connection candidate = peerIdle.pollFirst();
+				if (now - candidate.idleSinceMillis < candidate.expiryMillis)
+					connection = candidate;
+				else
+					expired.add(candidate);
+			}
+			if (peerIdle != null && peerIdle.isEmpty())
+				idle.remove(peer);
+		}
+
+		for (Connection stale : expired)
+		{
+			stale.close();
+		}
+		return connection;
+	}
+
+
+	/**
+	 * Removes the connections which have expired, at most once per half of the idle time.
+	 * Must be called holding the lock. The connections removed are added to expired, to be closed
+	 * without holding the lock.
+	 */
+	private void sweep(long now, List<Connection> expired)
+	{
+		if (now < nextSweepMillis)
+			return;
+
+		nextSweepMillis = now + Math.max(1, idleMillis / 2);
+		Iterator<Deque<Connection>> peers = idle.values().iterator();
+		while (peers.hasNext())
+		{
+			Deque<Connection> peerIdle = peers.next();
+			Iterator<Connection> connections = peerIdle.iterator();
+			while (connections.hasNext())
+			{
+				Connection connection = connections.next();
+				if (now - connection.idleSinceMillis >= connection.expiryMillis)
+				{
+					connections.remove();
+					expired.add(connection);
+				}
+			}
+			if (peerIdle.isEmpty())
+				peers.remove();
+		}
+	}
+
+
+	/**
+	 * Opens a new connection to the peer, and asks the peer to keep it alive unless the peer is
+	 * known not to support keep-alive.
+	 */
+	private Connection open(InetSocketAddress peer) throws IOException
+	{
+		Long legacyUntil = legacyPeers.get(peer);
+		if (legacyUntil != null && legacyUntil < System.currentTimeMillis())
+		{
+			legacyPeers.remove(peer);
+			legacyUntil = null;
+		}
+
+		Connection connection = connect(peer);
+		if (!keepAlive || legacyUntil != null)
+			return connection;
+
+		try
+		{
+			connection.send(PeerProtocol.formatKeepAliveRequest(version));
+			connection.flush();
+			String reply = PeerProtocol.readLine(connection.inStream);
+			long peerIdleMillis = PeerProtocol.parseKeepAliveReply(reply);
+			if (peerIdleMillis > 0)
+			{
+				connection.keepAlive = true;
+				connection.version = Math.min(version, PeerProtocol.parseKeepAliveVersion(reply));
+				connection.expiryMillis = Math.min(idleMillis, Math.max(0, peerIdleMillis - IDLE_MARGIN_MILLIS));
+				return connection;
+			}
+		}
+		catch (IOException handshakeEx)
+		{
+			connection.close();
+			throw handshakeEx;
+		}
+
+		/*The peer took the request for a file and closed the connection, so connect again without it. */
+		connection.close();
+		legacyPeers.put(peer, System.currentTimeMillis() + LEGACY_PEER_MILLIS);
+		return connect(peer);
+	}
+
+
+	private Connection connect(InetSocketAddress peer) throws IOException
+	{
+		SocketChannel channel = SocketChannel.open();
+		try
+		{
+			channel.socket().connect(new InetSocketAddress(peer.getHostString(), peer.getPort()), CONNECT_TIMEOUT_MILLIS);
+			channel.socket().setSoTimeout(READ_TIMEOUT_MILLIS);
+			channel.socket().setTcpNoDelay(true);                        //Pipelined requests are flushed together, so do not delay them.
+			opened.increment();
+			return new Connection(peer, channel, compression);
+		}
+		catch (IOException connectEx)
+		{
+			channel.close();
+			throw connectEx;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * PeerExecutors.java
+ * 
+ * Creates the executor which runs the blocking tasks of a peer: listening for connections, sending
+ * files with FileSendWorker and receiving files with FileReceiveHelper. A single executor is shared
+ * by the whole peer, and the kind of threads it uses is chosen by PeerConfig.getExecutionMode().
+ * 
+ * Virtual threads (Java 21 and later) are created through reflection, so the peer still compiles and
+ * runs on Java 8. If virtual threads are requested but the running JVM does not support them, the
+ * peer falls back to platform threads.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public final class PeerExecutors
+{
+	private PeerExecutors()
+	{}
+	
+	
+	/**
+	 * Creates the executor for the execution mode in the configuration.
+	 * @param config PeerConfig with the execution mode
+	 * @return ExecutorService which starts a new virtual thread for each task, or a cached pool of platform threads
+	 */
+	public static ExecutorService newPeerExecutor(PeerConfig config)
+	{
+		if (config.getExecutionMode().equals(PeerConfig.MODE_VIRTUAL))
+		{
+			ExecutorService virtualExecutor = newVirtualThreadExecutor();
+			if (virtualExecutor != null)
+				return virtualExecutor;
+			
+			System.err.println("Virtual threads are not supported by this JVM. Using platform threads.");
+		}
+		
+		return Executors.newCachedThreadPool();
+	}
+	
+	
+	/**
+	 * Creates an executor which starts a new virtual thread for each task.
+	 * @return ExecutorService using virtual threads, or null if the JVM does not support them
+	 */
+	public static ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch (ReflectiveOperationException notSupported)
+		{
+			return null;                                                      //Java 20 or earlier.
+		}
+	}
+	
+	
+	/**
+	 * Determine if the running JVM supports virtual threads.
+	 * @return boolean true if newVirtualThreadExecutor() can create an executor
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		try
+		{
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}
+		catch (NoSuchMethodException notSupported)
+		{
+			return false;
+		}
+	}
+}
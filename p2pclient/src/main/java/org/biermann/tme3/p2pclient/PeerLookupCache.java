@@ -0,0 +1,227 @@
+/**
+ * PeerLookupCache.java
+ *
+ * A bounded, time-limited cache of the peers sharing each file, as returned by the index service.
+ * A file looked up to be found in the GUI and then downloaded, or downloaded again after a failed
+ * attempt, is then looked up once rather than for every step.
+ *
+ * The entries are held in access order, and the least recently used entry is evicted once the cache
+ * is full. An entry expires after the time to live. A file which no peer shares is cached as a
+ * negative entry, which expires after a much shorter time, so a file shared soon after is found.
+ *
+ * As the peers in an entry may have gone away since it was cached, peerFailed() removes the entry of
+ * a file once a connection to one of its peers fails, and the next lookup asks the index service.
+ * Invalidations are counted, and a value loaded concurrently with an invalidation is not stored, so
+ * a lookup which started before a peer failed cannot reinstate that peer.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.biermann.tme3.p2pclient.messages.PeerListMessage;
+
+public class PeerLookupCache
+{
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+
+	/*Access-ordered map, so the eldest entry is the least recently used one. Guarded by this. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long generation;                                             //Incremented by every invalidation.
+
+	/*Counters used to size the cache */
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder negativeHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Looks up the peers sharing a file which is not cached.
+	 */
+	public interface PeerLoader
+	{
+		/**
+		 * @param fileName String with the name of the file
+		 * @return PeerListMessage with the peers sharing the file, or null if no peer shares it
+		 */
+		PeerListMessage load(String fileName);
+	}
+
+
+	/**
+	 * Creates a cache with the specified bounds.
+	 * @param maxEntries int maximum number of files cached
+	 * @param ttlMillis long time after which the peers of a file expire, in milliseconds
+	 * @param negativeTtlMillis long time after which a file which no peer shared expires, in milliseconds
+	 */
+	public PeerLookupCache(int maxEntries, long ttlMillis, long negativeTtlMillis)
+	{
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+	}
+
+
+	/**
+	 * Get the peers sharing a file, loading and caching them if they are not cached or have expired.
+	 * Exceptions thrown by the loader are passed to the caller and nothing is cached.
+	 * @param fileName String with the name of the file
+	 * @param loader PeerLoader used to look up the peers on a miss
+	 * @return PeerListMessage with the peers sharing the file, or null if no peer shares it
+	 */
+	public PeerListMessage get(String fileName, PeerLoader loader)
+	{
+		long loadGeneration;
+		synchronized (this)
+		{
+			Entry entry = lookup(fileName);
+			if (entry != null)
+				return entry.peers;
+			loadGeneration = generation;
+		}
+
+		PeerListMessage peers = loader.load(fileName);                     //Load without holding the lock.
+
+		synchronized (this)
+		{
+			/*Only store the peers if no peer has failed since the load started. */
+			if (generation == loadGeneration)
+			{
+				long ttl = (peers == null) ? negativeTtlMillis : ttlMillis;
+				entries.put(fileName, new Entry(peers, System.currentTimeMillis() + ttl));
+				if (entries.size() > maxEntries)
+				{
+					Iterator<String> eldest = entries.keySet().iterator();
+					eldest.next();
+					eldest.remove();
+					evictions.increment();
+				}
+			}
+		}
+
+		return peers;
+	}
+
+
+	/**
+	 * Removes the entry of a file if it holds the specified peer, as a connection to that peer failed.
+	 * An entry which no longer holds the peer, as it was looked up again meanwhile, is kept.
+	 * @param fileName String with the name of the file
+	 * @param hostAddress String with the address of the peer, as returned by the index service
+	 */
+	public synchronized void peerFailed(String fileName, String hostAddress)
+	{
+		generation++;
+		Entry entry = entries.get(fileName);
+		if (entry != null && entry.peers != null && entry.peers.getHostAddresses().contains(hostAddress))
+		{
+			entries.remove(fileName);
+			invalidations.increment();
+		}
+	}
+
+
+	/**
+	 * Removes the entry of a file, e.g. once this peer has shared or unshared it.
+	 * @param fileName String with the name of the file
+	 */
+	public synchronized void invalidate(String fileName)
+	{
+		generation++;
+		if (entries.remove(fileName) != null)
+			invalidations.increment();
+	}
+
+
+	/**
+	 * Get the number of entries currently cached, including any which have expired but not yet been removed.
+	 * @return int number of entries
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of lookups answered from the cache, including those answered by a negative entry.
+	 * @return long number of hits
+	 */
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+
+	public long getNegativeHitCount()
+	{
+		return negativeHits.sum();
+	}
+
+	public long getMissCount()
+	{
+		return misses.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.sum();
+	}
+
+	public long getInvalidationCount()
+	{
+		return invalidations.sum();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Peer lookups: " + getHitCount() + " hits (" + getNegativeHitCount() + " negative), " + getMissCount()
+				+ " misses, " + getEvictionCount() + " evictions, " + getInvalidationCount() + " invalidations";
+	}
+
+
+	/**
+	 * Finds the unexpired entry of a file and counts the lookup. Must be called holding the lock.
+	 */
+	private Entry lookup(String fileName)
+	{
+		Entry entry = entries.get(fileName);
+		if (entry != null && entry.expiresMillis <= System.currentTimeMillis())
+		{
+			entries.remove(fileName);
+			entry = null;
+		}
+
+		if (entry == null)
+		{
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+		if (entry.peers == null)
+			negativeHits.increment();
+		return entry;
+	}
+
+
+	/**
+	 * The peers sharing a file, or null if no peer shares it, and the time at which they expire.
+	 */
+	private static class Entry
+	{
+		final PeerListMessage peers;
+		final long expiresMillis;
+
+		Entry(PeerListMessage peers, long expiresMillis)
+		{
+			this.peers = peers;
+			this.expiresMillis = expiresMillis;
+		}
+	}
+}
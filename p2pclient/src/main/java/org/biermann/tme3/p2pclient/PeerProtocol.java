@@ -0,0 +1,985 @@
+/**
+ * PeerProtocol.java
+ *
+ * Defines the protocol used to request files from a peer. The requesting peer opens a connection
+ * and sends a single request line. The sending peer replies with a header line, followed by the
+ * file data, and then closes the connection, unless keep-alive was requested.
+ *
+ * Three requests are supported:
+ * 1) "<fileName>\n" requests the whole file. The reply is "OK \n" followed by the file.
+ * 2) "RANGE <offset> <length> <fileName>\n" requests length bytes starting at offset. The reply is
+ *    "OK <fileSize> <offset> <length>\n" followed by the bytes of the range. The length in the reply
+ *    is reduced if the range extends past the end of the file, and fileSize is the size of the
+ *    whole file, so "RANGE 0 0 <fileName>" may be used to find the size of a file.
+ * 3) "HASHES <fileName>\n" requests the chunk hashes of the file (see ContentHashes). The reply is
+ *    "OK <fileSize> <chunkSize> <chunkCount>\n" followed by chunkCount hashes of HASH_LENGTH bytes.
+ * Any request may instead be answered by "ERR <message>\n", after which no data is sent.
+ *
+ * Peers which only support the first request treat the other requests as a request for a file named
+ * "RANGE ..." or "HASHES ...", and so reply with "ERR". The requesting peer can then fall back to the
+ * first request.
+ *
+ * Version 2 of the protocol keeps the connection open for further requests. The requesting peer sends
+ * "KEEPALIVE <version>\n" as its first line, which is answered by "OK <version> <idleMillis>\n", where
+ * the version is the highest both peers support. Any number of requests may then be sent, without
+ * waiting for the replies, and they are answered in order. As the end of a reply can no longer be found
+ * by the connection closing, every reply states its length: a request for a whole file is answered as a
+ * range covering the whole file. An "ERR" reply leaves the connection open. The sending peer closes a
+ * connection on which no request arrives within idleMillis, so the requesting peer stops reusing it
+ * before then. A peer which does not support version 2 answers the first line with anything other
+ * than "OK 2 ...", and closes the connection.
+ *
+ * Version 3 replaces the lines which follow the KEEPALIVE reply with binary frames (see Frame). Each
+ * request and reply is a header of FRAME_HEADER_BYTES followed by contentLength bytes of content. The
+ * header holds the type of the message, its status, and the offset, length and file size of a range,
+ * so it is read with a single fixed size read and parsed without allocating. It starts with FRAME_MAGIC
+ * and the version. The content of a frame carries a CRC-32 checksum, so damaged data is detected
+ * without the hashes of the file, and a reply cut short is detected by its length. A header with the
+ * wrong magic or version, or a content length which is not allowed for its type, means the peers are
+ * out of step, and the connection is closed.
+ *
+ * The three requests are sent as frames as follows. A whole file is requested as a range covering the
+ * whole file, as on any connection kept alive. A TYPE_RANGE_REQUEST frame holds the offset and length
+ * of the range, and the file name as its content, and is answered by a TYPE_DATA frame with the bytes
+ * of the range. A TYPE_HASHES_REQUEST frame holds the file name, and is answered by a TYPE_HASHES frame
+ * whose content is the chunk hashes. Any request may instead be answered by a TYPE_ERROR frame, whose
+ * status tells why and whose content is the message.
+ *
+ * A range request frame with FLAG_DEFLATE allows the range to be sent compressed. The sending peer
+ * decides for each range (see RangeCompressor). A compressed range is answered by a data frame with
+ * FLAG_DEFLATE and no content, followed by block frames which each hold up to COMPRESSION_BLOCK_BYTES
+ * of the range, in order. The content of a block frame with FLAG_DEFLATE is raw Deflate data, and the
+ * content of one without it is the bytes of the block as they are, which is used for a block that
+ * does not get smaller. The offset and length of a block frame are those of its bytes in the file,
+ * and its checksum is the CRC-32 of those bytes, so every block is checked once inflated.
+ *
+ * The sending peer sends at most a fixed number of files at once (see UploadSlots). A range request
+ * frame with FLAG_QUEUE_STATUS allows the sending peer to answer with queue frames while the request
+ * waits for an upload slot, before the reply itself. The offset of a queue frame is the position of
+ * the request in the queue, starting at 1, and its length is the estimated wait in milliseconds, or
+ * -1 if the sending peer cannot tell yet. A queue frame has no content, and is sent whenever the
+ * position changes, and at least every QUEUE_STATUS_INTERVAL_MILLIS, so the requesting peer knows
+ * the request is still waiting rather than lost.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+public final class PeerProtocol
+{
+	public static final String RANGE_COMMAND = "RANGE";
+	public static final String HASHES_COMMAND = "HASHES";
+	public static final String KEEP_ALIVE_COMMAND = "KEEPALIVE";
+	public static final int KEEP_ALIVE_VERSION = 2;                          //Version of the protocol which keeps connections open.
+	public static final int FRAMED_VERSION = 3;                              //Version of the protocol which sends binary frames.
+	public static final int MAX_VERSION = FRAMED_VERSION;                    //Highest version supported by this peer.
+	public static final String OK = "OK";
+	public static final String ERR = "ERR";
+	public static final int MAX_LINE_BYTES = 4096;                           //Longest request or header line accepted.
+
+	/*Layout of a frame header. All values are big-endian. */
+	public static final int FRAME_HEADER_BYTES = 44;
+	public static final int FRAME_MAGIC = 0x5032;                            //"P2", so a peer out of step is detected.
+
+	/*Types of frames. */
+	public static final int TYPE_RANGE_REQUEST = 1;
+	public static final int TYPE_HASHES_REQUEST = 2;
+	public static final int TYPE_DATA = 3;
+	public static final int TYPE_HASHES = 4;
+	public static final int TYPE_ERROR = 5;
+	public static final int TYPE_BLOCK = 6;
+	public static final int TYPE_QUEUED = 7;
+
+	/*Status of a reply frame. */
+	public static final int STATUS_OK = 0;
+	public static final int STATUS_NOT_FOUND = 1;
+	public static final int STATUS_BAD_REQUEST = 2;
+	public static final int STATUS_FAILED = 3;
+
+	public static final int FLAG_CHECKSUM = 1;                               //The checksum of the content is set.
+	public static final int FLAG_RANGE_CHECKSUM = 2;                         //A request asks for the checksum of the range.
+	public static final int FLAG_DEFLATE = 4;                                //A request accepts, or a frame holds, Deflate data.
+	public static final int FLAG_QUEUE_STATUS = 8;                           //A request accepts queue frames while it waits.
+	public static final long QUEUE_STATUS_INTERVAL_MILLIS = 10 * 1000;       //Longest time between queue frames, well within the read timeout.
+	public static final int COMPRESSION_BLOCK_BYTES = 64 * 1024;             //Most bytes of a range held by a block frame.
+	public static final int MAX_CHECKSUM_LENGTH = 4 * 1024 * 1024;           //Longest range of which a checksum is sent.
+	public static final int MAX_FRAME_CONTENT = 64 * 1024 * 1024;            //Longest content of a frame other than data.
+
+	private PeerProtocol()
+	{}
+
+
+	/**
+	 * A request received from a peer.
+	 */
+	public static final class Request
+	{
+		private final String fileName;
+		private final long offset;
+		private final long length;
+		private final boolean range;
+		private final boolean hashes;
+		private final int keepAliveVersion;                                   //0 unless keep-alive is requested.
+		private final int flags;                                              //Flags of a request frame.
+
+		Request(String fileName, long offset, long length, boolean range, boolean hashes)
+		{
+			this(fileName, offset, length, range, hashes, 0, 0);
+		}
+
+		Request(String fileName, long offset, long length, boolean range, boolean hashes, int keepAliveVersion, int flags)
+		{
+			this.fileName = fileName;
+			this.offset = offset;
+			this.length = length;
+			this.range = range;
+			this.hashes = hashes;
+			this.keepAliveVersion = keepAliveVersion;
+			this.flags = flags;
+		}
+
+		public String getFileName()
+		{
+			return fileName;
+		}
+
+		/**
+		 * Get the position of the first byte requested.
+		 * @return long offset, which is 0 for a whole file request
+		 */
+		public long getOffset()
+		{
+			return offset;
+		}
+
+		public boolean isRange()
+		{
+			return range;
+		}
+
+		/**
+		 * Determines if the chunk hashes of the file, rather than its data, are requested.
+		 * @return boolean true for a HASHES request
+		 */
+		public boolean isHashes()
+		{
+			return hashes;
+		}
+
+		/**
+		 * Determines if the connection is to be kept open for further requests, rather than a file requested.
+		 * @return boolean true for a KEEPALIVE request
+		 */
+		public boolean isKeepAlive()
+		{
+			return keepAliveVersion > 0;
+		}
+
+		/**
+		 * Get the version of the protocol to be used once the connection is kept alive.
+		 * @return int version of the protocol, which is the highest both peers support
+		 */
+		public int getVersion()
+		{
+			return Math.min(keepAliveVersion, MAX_VERSION);
+		}
+
+		/**
+		 * Determines if a checksum of the range should be sent with the data. It is only sent for
+		 * ranges of at most MAX_CHECKSUM_LENGTH bytes, so a whole file is not read twice.
+		 * @param fileSize long size of the requested file
+		 * @return boolean true if the checksum was requested and the range is short enough
+		 */
+		public boolean isChecksummed(long fileSize)
+		{
+			return (flags & FLAG_RANGE_CHECKSUM) != 0 && getEnd(fileSize) - offset <= MAX_CHECKSUM_LENGTH;
+		}
+
+		/**
+		 * Determines if the range may be sent as compressed blocks.
+		 * @return boolean true if the request was sent with FLAG_DEFLATE
+		 */
+		public boolean isDeflateAccepted()
+		{
+			return (flags & FLAG_DEFLATE) != 0;
+		}
+
+		/**
+		 * Determines if queue frames may be sent while the request waits for an upload slot.
+		 * @return boolean true if the request was sent with FLAG_QUEUE_STATUS
+		 */
+		public boolean isQueueStatusAccepted()
+		{
+			return (flags & FLAG_QUEUE_STATUS) != 0;
+		}
+
+		/**
+		 * Get the request as it is answered on a connection which is kept open, where a request for the
+		 * whole file is answered as a range covering the whole file, so that the reply states its length.
+		 * @return Request for a range or for hashes
+		 */
+		public Request asRange()
+		{
+			if (range || hashes || isKeepAlive())
+				return this;
+
+			return new Request(fileName, 0, Long.MAX_VALUE, true, false);
+		}
+
+		/**
+		 * Get the position after the last byte to send for a file of the specified size.
+		 * @param fileSize long size of the requested file
+		 * @return long end of the range, limited to the end of the file
+		 */
+		public long getEnd(long fileSize)
+		{
+			if (!range)
+				return fileSize;
+
+			long end = (length >= fileSize - offset) ? fileSize : offset + length;     //offset + length may overflow.
+			return Math.max(offset, end);
+		}
+
+		/**
+		 * Get the header line sent before the data, including the line terminator.
+		 * @param fileSize long size of the requested file
+		 * @return String with the header
+		 */
+		public String getOkHeader(long fileSize)
+		{
+			if (!range)
+				return OK + " \n";
+
+			return OK + " " + fileSize + " " + offset + " " + (getEnd(fileSize) - offset) + "\n";
+		}
+
+		/**
+		 * Writes the header of the data frame sent before the data.
+		 * @param frame Frame which is set to the header
+		 * @param fileSize long size of the requested file
+		 * @param checksum int CRC-32 of the range, used if isChecksummed() is true
+		 * @param header ByteBuffer to which the header is written, which is then flipped for writing to the peer
+		 */
+		public void putDataFrame(Frame frame, long fileSize, int checksum, ByteBuffer header)
+		{
+			long rangeLength = getEnd(fileSize) - offset;
+			boolean checksummed = isChecksummed(fileSize);
+			frame.set(TYPE_DATA, STATUS_OK, checksummed ? FLAG_CHECKSUM : 0, rangeLength, offset, rangeLength, fileSize, checksummed ? checksum : 0);
+			header.clear();
+			frame.write(header);
+			header.flip();
+		}
+
+		/**
+		 * Writes the header of the data frame sent before the range is sent as compressed blocks.
+		 * @param frame Frame which is set to the header
+		 * @param fileSize long size of the requested file
+		 * @param header ByteBuffer to which the header is written, which is then flipped for writing to the peer
+		 */
+		public void putDeflatedFrame(Frame frame, long fileSize, ByteBuffer header)
+		{
+			frame.set(TYPE_DATA, STATUS_OK, FLAG_DEFLATE, 0, offset, getEnd(fileSize) - offset, fileSize, 0);
+			header.clear();
+			frame.write(header);
+			header.flip();
+		}
+	}
+
+
+	/**
+	 * The header of a frame of version 3 of the protocol. A frame header is parsed into an existing
+	 * Frame, so a connection reads all of its frames without allocating.
+	 *
+	 * The header holds, in order: the magic number (2 bytes), version (1), type (1), status (1), flags (1),
+	 * two reserved bytes, the content length (8), offset (8), length (8) and file size (8) of the frame,
+	 * and the CRC-32 of the content (4), which is only set if the flags include FLAG_CHECKSUM.
+	 */
+	public static final class Frame
+	{
+		private int type;
+		private int status;
+		private int flags;
+		private long contentLength;
+		private long offset;
+		private long length;
+		private long fileSize;
+		private int checksum;
+
+		/**
+		 * Sets every field of the frame.
+		 * @return Frame this frame
+		 */
+		public Frame set(int type, int status, int flags, long contentLength, long offset, long length, long fileSize, int checksum)
+		{
+			this.type = type;
+			this.status = status;
+			this.flags = flags;
+			this.contentLength = contentLength;
+			this.offset = offset;
+			this.length = length;
+			this.fileSize = fileSize;
+			this.checksum = checksum;
+			return this;
+		}
+
+		/**
+		 * Writes the header to a buffer, which must have FRAME_HEADER_BYTES remaining.
+		 * @param buf ByteBuffer to write to
+		 */
+		public void write(ByteBuffer buf)
+		{
+			buf.putShort((short) FRAME_MAGIC);
+			buf.put((byte) FRAMED_VERSION);
+			buf.put((byte) type);
+			buf.put((byte) status);
+			buf.put((byte) flags);
+			buf.putShort((short) 0);
+			buf.putLong(contentLength);
+			buf.putLong(offset);
+			buf.putLong(length);
+			buf.putLong(fileSize);
+			buf.putInt(checksum);
+		}
+
+		/**
+		 * Reads a header from a buffer, which must have FRAME_HEADER_BYTES remaining.
+		 * @param buf ByteBuffer to read from
+		 * @throws IOException if the bytes are not a valid frame header
+		 */
+		public void read(ByteBuffer buf) throws IOException
+		{
+			int magic = buf.getShort() & 0xFFFF;
+			int version = buf.get() & 0xFF;
+			type = buf.get() & 0xFF;
+			status = buf.get() & 0xFF;
+			flags = buf.get() & 0xFF;
+			buf.getShort();
+			contentLength = buf.getLong();
+			offset = buf.getLong();
+			length = buf.getLong();
+			fileSize = buf.getLong();
+			checksum = buf.getInt();
+
+			if (magic != FRAME_MAGIC)
+				throw new IOException("The peer sent data which is not a frame.");
+			if (version != FRAMED_VERSION)
+				throw new IOException("The peer sent a frame of version " + version + ".");
+			if (contentLength < 0 || (type != TYPE_DATA && contentLength > MAX_FRAME_CONTENT))
+				throw new IOException("The peer sent a frame of " + contentLength + " bytes.");
+		}
+
+		public int getType()
+		{
+			return type;
+		}
+
+		public int getStatus()
+		{
+			return status;
+		}
+
+		public int getFlags()
+		{
+			return flags;
+		}
+
+		/**
+		 * Get the number of bytes of content following the header.
+		 * @return long length of the content
+		 */
+		public long getContentLength()
+		{
+			return contentLength;
+		}
+
+		public long getOffset()
+		{
+			return offset;
+		}
+
+		public long getLength()
+		{
+			return length;
+		}
+
+		public long getFileSize()
+		{
+			return fileSize;
+		}
+
+		/**
+		 * Determines if the checksum is set. It is always set for frames other than data frames, and is
+		 * that of the inflated bytes for a block frame.
+		 * @return boolean true if getChecksum() holds the CRC-32 of the content
+		 */
+		public boolean hasChecksum()
+		{
+			return (flags & FLAG_CHECKSUM) != 0;
+		}
+
+		public int getChecksum()
+		{
+			return checksum;
+		}
+	}
+
+
+	/**
+	 * Thrown when a peer answers a request with an error. The whole reply has been read, so the
+	 * connection may be used for a further request if it is kept alive.
+	 */
+	public static final class ErrorReplyException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		public ErrorReplyException(int status, String message)
+		{
+			super(message);
+			this.status = status;
+		}
+
+		/**
+		 * Get the status of the reply, which is STATUS_FAILED for a peer which does not send frames.
+		 * @return int status of the reply
+		 */
+		public int getStatus()
+		{
+			return status;
+		}
+	}
+
+
+	/**
+	 * Parses a request line received from a peer.
+	 * @param line String with the request line, without the line terminator
+	 * @return Request for a range if the line is a valid range request, otherwise for the whole file named by the line
+	 */
+	public static Request parseRequest(String line)
+	{
+		String trimmed = line.trim();
+		if (trimmed.startsWith(RANGE_COMMAND + " "))
+		{
+			String[] parts = trimmed.split(" ", 4);
+			if (parts.length == 4)
+			{
+				try
+				{
+					long offset = Long.parseLong(parts[1]);
+					long length = Long.parseLong(parts[2]);
+					if (offset >= 0 && length >= 0)
+						return new Request(parts[3].trim(), offset, length, true, false);
+				}
+				catch (NumberFormatException notRange)
+				{}
+			}
+		}
+
+		if (trimmed.startsWith(HASHES_COMMAND + " "))
+			return new Request(trimmed.substring(HASHES_COMMAND.length() + 1).trim(), 0, -1, false, true);
+
+		if (trimmed.startsWith(KEEP_ALIVE_COMMAND + " "))
+		{
+			try
+			{
+				int version = Integer.parseInt(trimmed.substring(KEEP_ALIVE_COMMAND.length() + 1).trim());
+				if (version >= KEEP_ALIVE_VERSION)
+					return new Request("", 0, -1, false, false, version, 0);
+			}
+			catch (NumberFormatException notKeepAlive)
+			{}
+		}
+
+		return new Request(trimmed, 0, -1, false, false);                      //Not a range request, so the whole line is the name.
+	}
+
+
+	/**
+	 * Parses a request frame received from a peer.
+	 * @param frame Frame with the header of the request
+	 * @param content ByteBuffer holding the contentLength bytes of the frame at its position, which is advanced past them
+	 * @param crc CRC32 used to check the content
+	 * @return Request for a range or for the hashes of the file named by the content
+	 * @throws IOException if the frame is not a valid request
+	 */
+	public static Request parseRequestFrame(Frame frame, ByteBuffer content, CRC32 crc) throws IOException
+	{
+		int nameLength = (int) frame.getContentLength();
+		crc.reset();
+		crc.update(content.array(), content.arrayOffset() + content.position(), nameLength);
+		String fileName = new String(content.array(), content.arrayOffset() + content.position(), nameLength, StandardCharsets.UTF_8);
+		content.position(content.position() + nameLength);
+
+		if (!frame.hasChecksum() || (int) crc.getValue() != frame.getChecksum())
+			throw new IOException("The request of the peer does not match its checksum.");
+
+		if (frame.getType() == TYPE_RANGE_REQUEST && frame.getOffset() >= 0 && frame.getLength() >= 0)
+			return new Request(fileName, frame.getOffset(), frame.getLength(), true, false, 0, frame.getFlags());
+		if (frame.getType() == TYPE_HASHES_REQUEST)
+			return new Request(fileName, 0, -1, false, true);
+
+		throw new IOException("The peer sent a frame of type " + frame.getType() + " as a request.");
+	}
+
+
+	/**
+	 * Creates the request line for a range of a file.
+	 * @return String with the request line, including the line terminator
+	 */
+	public static String formatRangeRequest(String fileName, long offset, long length)
+	{
+		return RANGE_COMMAND + " " + offset + " " + length + " " + fileName + "\n";
+	}
+
+
+	/**
+	 * Writes a request frame for a range of a file or for its hashes.
+	 * @param type int TYPE_RANGE_REQUEST or TYPE_HASHES_REQUEST
+	 * @param name byte[] with the UTF-8 name of the file
+	 * @param offset long position of the first byte requested
+	 * @param length long number of bytes requested
+	 * @param flags int FLAG_RANGE_CHECKSUM to ask for the checksum of the range, FLAG_DEFLATE to accept compressed blocks,
+	 * and FLAG_QUEUE_STATUS to accept queue frames
+	 * @param frame Frame used to build the header
+	 * @param crc CRC32 used to compute the checksum of the name
+	 * @param header ByteBuffer to which the header is written, which is then flipped
+	 */
+	public static void putRequestFrame(int type, byte[] name, long offset, long length, int flags, Frame frame, CRC32 crc, ByteBuffer header)
+	{
+		crc.reset();
+		crc.update(name, 0, name.length);
+		frame.set(type, STATUS_OK, FLAG_CHECKSUM | flags, name.length, offset, length, 0, (int) crc.getValue());
+		header.clear();
+		frame.write(header);
+		header.flip();
+	}
+
+
+	/**
+	 * Writes a queue frame, telling the requesting peer that its request waits for an upload slot.
+	 * @param position int position of the request in the queue, starting at 1
+	 * @param waitMillis long estimated wait, or -1 if not known
+	 * @param frame Frame used to build the header
+	 * @param header ByteBuffer to which the frame is written, which is then flipped for writing to the peer
+	 */
+	public static void putQueuedFrame(int position, long waitMillis, Frame frame, ByteBuffer header)
+	{
+		frame.set(TYPE_QUEUED, STATUS_OK, FLAG_CHECKSUM, 0, position, waitMillis, 0, 0);    //The CRC-32 of no content is 0.
+		header.clear();
+		frame.write(header);
+		header.flip();
+	}
+
+
+	/**
+	 * Creates the first line sent on a connection which is to be kept open for further requests.
+	 * @param version int highest version of the protocol the requesting peer supports
+	 * @return String with the request line, including the line terminator
+	 */
+	public static String formatKeepAliveRequest(int version)
+	{
+		return KEEP_ALIVE_COMMAND + " " + version + "\n";
+	}
+
+
+	/**
+	 * Creates the reply to a KEEPALIVE request.
+	 * @param version int version of the protocol used on the connection
+	 * @param idleMillis long time for which the connection is kept open without a request
+	 * @return String with the header line, including the line terminator
+	 */
+	public static String formatKeepAliveReply(int version, long idleMillis)
+	{
+		return OK + " " + version + " " + idleMillis + "\n";
+	}
+
+
+	/**
+	 * Parses the reply to a KEEPALIVE request.
+	 * @param header String with the header line, or null if the peer closed the connection
+	 * @return long time for which the peer keeps the connection open without a request, or -1 if the
+	 * peer does not keep connections open
+	 */
+	public static long parseKeepAliveReply(String header)
+	{
+		return (parseKeepAliveVersion(header) > 0) ? Long.parseLong(header.trim().split(" ")[2]) : -1;
+	}
+
+
+	/**
+	 * Parses the version in the reply to a KEEPALIVE request.
+	 * @param header String with the header line, or null if the peer closed the connection
+	 * @return int version of the protocol to use on the connection, or -1 if the peer does not keep connections open
+	 */
+	public static int parseKeepAliveVersion(String header)
+	{
+		if (header == null)
+			return -1;
+
+		String[] parts = header.trim().split(" ");
+		if (parts.length == 3 && parts[0].equals(OK))
+		{
+			try
+			{
+				long idleMillis = Long.parseLong(parts[2]);
+				int version = Integer.parseInt(parts[1]);
+				if (version >= KEEP_ALIVE_VERSION && idleMillis > 0)
+					return Math.min(version, MAX_VERSION);
+			}
+			catch (NumberFormatException invalid)
+			{}
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Creates the request line for the chunk hashes of a file.
+	 * @return String with the request line, including the line terminator
+	 */
+	public static String formatHashesRequest(String fileName)
+	{
+		return HASHES_COMMAND + " " + fileName + "\n";
+	}
+
+
+	/**
+	 * Creates the reply to a HASHES request.
+	 * @param hashes ContentHashes of the requested file
+	 * @return byte[] with the header line followed by the chunk hashes
+	 */
+	public static byte[] formatHashesReply(ContentHashes hashes)
+	{
+		byte[] header = (OK + " " + hashes.getFileSize() + " " + ContentHashes.CHUNK_SIZE + " "
+				+ ContentHashes.getChunkCount(hashes.getFileSize()) + "\n").getBytes(StandardCharsets.UTF_8);
+		return concat(header, hashes.getChunkHashes());
+	}
+
+
+	/**
+	 * Creates the frame answering a hashes request frame. The length of the frame is the chunk size.
+	 * @param hashes ContentHashes of the requested file
+	 * @return byte[] with the frame header followed by the chunk hashes
+	 */
+	public static byte[] formatHashesFrame(ContentHashes hashes)
+	{
+		byte[] chunkHashes = hashes.getChunkHashes();
+		CRC32 crc = new CRC32();
+		crc.update(chunkHashes, 0, chunkHashes.length);
+		return formatFrame(TYPE_HASHES, STATUS_OK, ContentHashes.CHUNK_SIZE, hashes.getFileSize(), chunkHashes, (int) crc.getValue());
+	}
+
+
+	/**
+	 * Creates the frame sent instead of a reply when a request fails.
+	 * @param status int STATUS_NOT_FOUND, STATUS_BAD_REQUEST or STATUS_FAILED
+	 * @param message String describing the error
+	 * @return byte[] with the frame header followed by the message
+	 */
+	public static byte[] formatErrorFrame(int status, String message)
+	{
+		byte[] content = message.getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(content, 0, content.length);
+		return formatFrame(TYPE_ERROR, status, 0, 0, content, (int) crc.getValue());
+	}
+
+
+	/**
+	 * Reads the reply to a HASHES request.
+	 * @param inStream InputStream holding the reply
+	 * @return ContentHashes sent by the peer, which have not yet been checked against a content hash
+	 * @throws IOException if the reply is an "ERR" reply or is not valid
+	 */
+	public static ContentHashes readHashesReply(InputStream inStream) throws IOException
+	{
+		String header = readLine(inStream);
+		if (header == null)
+			throw new IOException("The peer closed the connection without a reply.");
+
+		String[] parts = header.split(" ");
+		if (parts.length == 4 && parts[0].equals(OK))
+		{
+			try
+			{
+				long fileSize = Long.parseLong(parts[1]);
+				int chunkSize = Integer.parseInt(parts[2]);
+				int chunkCount = Integer.parseInt(parts[3]);
+				if (chunkSize != ContentHashes.CHUNK_SIZE || fileSize < 0 || chunkCount != ContentHashes.getChunkCount(fileSize))
+					throw new IOException("The peer uses a different chunk size or chunk count.");
+
+				byte[] chunkHashes = new byte[chunkCount * ContentHashes.HASH_LENGTH];
+				new DataInputStream(inStream).readFully(chunkHashes);
+				return new ContentHashes(fileSize, chunkHashes);
+			}
+			catch (NumberFormatException invalid)
+			{}
+		}
+
+		if (header.startsWith(ERR))
+			throw new ErrorReplyException(STATUS_FAILED, header.substring(ERR.length()).trim());
+
+		throw new IOException("Unexpected reply from peer: " + header);
+	}
+
+
+	/**
+	 * Reads the content of a hashes reply frame whose header has been read.
+	 * @param frame Frame with the header of the reply
+	 * @param inStream InputStream holding the content of the frame
+	 * @param crc CRC32 used to check the content
+	 * @return ContentHashes sent by the peer, which have not yet been checked against a content hash
+	 * @throws IOException if the reply is an error frame or is not valid
+	 */
+	public static ContentHashes readHashesFrame(Frame frame, InputStream inStream, CRC32 crc) throws IOException
+	{
+		byte[] content = readContent(frame, inStream, crc);
+		if (frame.getType() != TYPE_HASHES)
+			throw new IOException("The peer sent a frame of type " + frame.getType() + " in reply to a hashes request.");
+
+		long fileSize = frame.getFileSize();
+		if (frame.getLength() != ContentHashes.CHUNK_SIZE || fileSize < 0
+				|| content.length != (long) ContentHashes.getChunkCount(fileSize) * ContentHashes.HASH_LENGTH)
+			throw new IOException("The peer uses a different chunk size or chunk count.");
+
+		return new ContentHashes(fileSize, content);
+	}
+
+
+	/**
+	 * Parses the header of a reply to a range request into a frame, so replies of every version of
+	 * the protocol are handled alike.
+	 * @param header String with the header line
+	 * @param frame Frame which is set to a data frame without a checksum
+	 * @throws IOException if the header is an "ERR" reply or is not a valid range header
+	 */
+	public static void parseRangeHeader(String header, Frame frame) throws IOException
+	{
+		if (header == null)
+			throw new IOException("The peer closed the connection without a reply.");
+
+		String[] parts = header.trim().split(" ");
+		if (parts.length == 4 && parts[0].equals(OK))
+		{
+			try
+			{
+				long length = Long.parseLong(parts[3]);
+				frame.set(TYPE_DATA, STATUS_OK, 0, length, Long.parseLong(parts[2]), length, Long.parseLong(parts[1]), 0);
+				return;
+			}
+			catch (NumberFormatException invalid)
+			{}
+		}
+
+		if (header.startsWith(ERR))
+			throw new ErrorReplyException(STATUS_FAILED, header.substring(ERR.length()).trim());
+
+		throw new IOException("Unexpected reply from peer: " + header);
+	}
+
+
+	/**
+	 * Reads a frame header from a stream, which must be buffered.
+	 * @param inStream InputStream holding the frame
+	 * @param header ByteBuffer of at least FRAME_HEADER_BYTES with an accessible array, used to read the header
+	 * @param frame Frame which is set to the header read
+	 * @return boolean false if the stream ended before the header, true once the header has been read
+	 * @throws IOException if the stream ends within the header, or the header is not valid
+	 */
+	public static boolean readFrame(InputStream inStream, ByteBuffer header, Frame frame) throws IOException
+	{
+		int first = inStream.read();
+		if (first < 0)
+			return false;
+
+		header.clear();
+		header.put((byte) first);
+		readFully(inStream, header.array(), header.arrayOffset() + 1, FRAME_HEADER_BYTES - 1);
+		header.clear();
+		header.limit(FRAME_HEADER_BYTES);
+		frame.read(header);
+		return true;
+	}
+
+
+	/**
+	 * Reads the specified number of bytes from a stream into an array, without creating a DataInputStream.
+	 * @throws IOException if the stream ends first
+	 */
+	public static void readFully(InputStream inStream, byte[] buf, int offset, int length) throws IOException
+	{
+		int read = 0;
+		while (read < length)
+		{
+			int n = inStream.read(buf, offset + read, length - read);
+			if (n < 0)
+				throw new IOException("The peer closed the connection after " + read + " of " + length + " bytes.");
+			read += n;
+		}
+	}
+
+
+	/**
+	 * Reads the content of a frame other than a data frame, and checks it against its checksum. An
+	 * error frame is read entirely and thrown as an ErrorReplyException.
+	 * @param frame Frame with the header of the frame
+	 * @param inStream InputStream holding the content
+	 * @param crc CRC32 used to check the content
+	 * @return byte[] with the content
+	 * @throws IOException if the frame is an error frame, or the content does not match its checksum
+	 */
+	public static byte[] readContent(Frame frame, InputStream inStream, CRC32 crc) throws IOException
+	{
+		byte[] content = new byte[(int) frame.getContentLength()];
+		readFully(inStream, content, 0, content.length);
+		crc.reset();
+		crc.update(content, 0, content.length);
+		if (!frame.hasChecksum() || (int) crc.getValue() != frame.getChecksum())
+			throw new IOException("The frame received from the peer does not match its checksum.");
+
+		if (frame.getType() == TYPE_ERROR)
+			throw new ErrorReplyException(frame.getStatus(), new String(content, StandardCharsets.UTF_8));
+		return content;
+	}
+
+
+	/**
+	 * Computes the CRC-32 of a range of a file, reading it through a buffer which is reused.
+	 * @param file FileChannel to read from
+	 * @param offset long position of the first byte
+	 * @param length long number of bytes
+	 * @param buf ByteBuffer used to read the file
+	 * @param crc CRC32 used to compute the checksum
+	 * @return int CRC-32 of the range
+	 * @throws IOException if the file cannot be read, or ends before the range
+	 */
+	public static int checksum(FileChannel file, long offset, long length, ByteBuffer buf, CRC32 crc) throws IOException
+	{
+		crc.reset();
+		updateChecksum(file, offset, length, buf, crc);
+		return (int) crc.getValue();
+	}
+
+
+	/**
+	 * Adds a range of a file to a CRC-32 being computed, so that the checksum of a long range may be
+	 * computed a part at a time.
+	 * @param file FileChannel to read from
+	 * @param offset long position of the first byte
+	 * @param length long number of bytes
+	 * @param buf ByteBuffer used to read the file
+	 * @param crc CRC32 to which the bytes are added
+	 * @throws IOException if the file cannot be read, or ends before the range
+	 */
+	public static void updateChecksum(FileChannel file, long offset, long length, ByteBuffer buf, CRC32 crc) throws IOException
+	{
+		long position = offset;
+		long end = offset + length;
+		while (position < end)
+		{
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), end - position));
+			int read = file.read(buf, position);
+			if (read <= 0)
+				throw new IOException("The file ended after " + position + " bytes, within a range of " + length + " bytes at " + offset + ".");
+			buf.flip();
+			crc.update(buf);
+			position += read;
+		}
+	}
+
+
+	/**
+	 * Reads a line from a channel in blocking mode. Bytes are read one at a time so that nothing
+	 * after the end of the line is consumed.
+	 * @param channel SocketChannel from which to read the line
+	 * @return String with the line, with whitespace at ends trimmed, or null if the channel was
+	 * closed before any byte was read
+	 * @throws IOException if reading fails or the line exceeds MAX_LINE_BYTES
+	 */
+	public static String readLine(SocketChannel channel) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		ByteBuffer oneByte = ByteBuffer.allocate(1);
+
+		while (true)
+		{
+			oneByte.clear();
+			if (channel.read(oneByte) < 0)
+				return (line.size() == 0) ? null : line.toString(StandardCharsets.UTF_8.name()).trim();
+
+			if (!appendByte(line, oneByte.get(0)))
+				return line.toString(StandardCharsets.UTF_8.name()).trim();
+		}
+	}
+
+
+	/**
+	 * Reads a line from a stream, in the same way as readLine(SocketChannel).
+	 * @param inStream InputStream from which to read the line
+	 * @return String with the line, or null if the stream ended before any byte was read
+	 * @throws IOException if reading fails or the line exceeds MAX_LINE_BYTES
+	 */
+	public static String readLine(InputStream inStream) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+
+		while ((b = inStream.read()) >= 0)
+		{
+			if (!appendByte(line, (byte) b))
+				return line.toString(StandardCharsets.UTF_8.name()).trim();
+		}
+
+		return (line.size() == 0) ? null : line.toString(StandardCharsets.UTF_8.name()).trim();
+	}
+
+
+	/**
+	 * Adds a byte to the line being read.
+	 * @return boolean false if the byte ends the line
+	 */
+	private static boolean appendByte(ByteArrayOutputStream line, byte b) throws IOException
+	{
+		if (b == '\n')
+			return false;
+
+		if (line.size() >= MAX_LINE_BYTES)
+			throw new IOException("The line received from the peer is too long.");
+
+		line.write(b);
+		return true;
+	}
+
+
+	/**
+	 * Creates a frame other than a data frame, with its content.
+	 */
+	private static byte[] formatFrame(int type, int status, long length, long fileSize, byte[] content, int checksum)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + content.length);
+		new Frame().set(type, status, FLAG_CHECKSUM, content.length, 0, length, fileSize, checksum).write(frame);
+		frame.put(content);
+		return frame.array();
+	}
+
+
+	private static byte[] concat(byte[] first, byte[] second)
+	{
+		byte[] joined = new byte[first.length + second.length];
+		System.arraycopy(first, 0, joined, 0, first.length);
+		System.arraycopy(second, 0, joined, first.length, second.length);
+		return joined;
+	}
+}
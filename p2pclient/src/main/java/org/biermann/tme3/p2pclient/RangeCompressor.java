@@ -0,0 +1,158 @@
+/**
+ * RangeCompressor.java
+ *
+ * Compresses a range of a shared file into the block frames of PeerProtocol, for a peer which
+ * accepts compressed ranges. Both send engines hold one compressor per thread, whose Deflater and
+ * buffers are reused for every block, so no objects are created while a range is sent.
+ *
+ * Compressing costs far more CPU time than sending, and gains nothing for content which is already
+ * compressed, such as archives, images and video, which make up most shared files. Before a range is
+ * compressed, shouldCompress() therefore deflates PROBE_SAMPLES samples of PROBE_SAMPLE_BYTES spread
+ * over it, and the range is only compressed if the samples shrink to less than PROBE_RATIO of their
+ * size. Otherwise it is sent as it is, so its bytes are still sent without being copied. Each block
+ * which does not get smaller is also sent as it is.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class RangeCompressor
+{
+	public static final int BLOCK_BYTES = PeerProtocol.COMPRESSION_BLOCK_BYTES;
+	public static final int MIN_RANGE_BYTES = 4096;                        //Shorter ranges are not worth compressing.
+	public static final int PROBE_SAMPLES = 4;
+	public static final int PROBE_SAMPLE_BYTES = 8 * 1024;
+	public static final double PROBE_RATIO = 0.9;
+
+	private final Deflater deflater;
+	private final byte[] input = new byte[BLOCK_BYTES];
+	private final ByteBuffer inputBuf = ByteBuffer.wrap(input);
+	private final byte[] probeOutput = new byte[PROBE_SAMPLE_BYTES];
+	private final PeerProtocol.Frame frame = new PeerProtocol.Frame();
+	private final CRC32 crc = new CRC32();
+
+
+	/**
+	 * Creates a compressor.
+	 * @param level int Deflate level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+	 */
+	public RangeCompressor(int level)
+	{
+		deflater = new Deflater(level, true);                                 //Raw Deflate data, as read by RangeDecompressor.
+	}
+
+
+	/**
+	 * Allocates a buffer large enough for any block frame, to be passed to putBlock().
+	 * @return ByteBuffer of FRAME_HEADER_BYTES plus BLOCK_BYTES
+	 */
+	public static ByteBuffer allocateBlockBuffer()
+	{
+		return ByteBuffer.allocate(PeerProtocol.FRAME_HEADER_BYTES + BLOCK_BYTES);
+	}
+
+
+	/**
+	 * Determines if a range is worth compressing, by deflating samples of it.
+	 * @param file FileChannel of the shared file
+	 * @param offset long position of the range
+	 * @param length long number of bytes of the range
+	 * @return boolean true if the samples shrink to less than PROBE_RATIO of their size
+	 * @throws IOException if the file cannot be read
+	 */
+	public boolean shouldCompress(FileChannel file, long offset, long length) throws IOException
+	{
+		if (length < MIN_RANGE_BYTES)
+			return false;
+
+		long sampled = 0;
+		long compressed = 0;
+		long step = Math.max(PROBE_SAMPLE_BYTES, length / PROBE_SAMPLES);
+		for (long position = offset; position < offset + length && sampled < PROBE_SAMPLES * PROBE_SAMPLE_BYTES; position += step)
+		{
+			int read = read(file, position, (int) Math.min(PROBE_SAMPLE_BYTES, offset + length - position));
+			deflater.reset();
+			deflater.setInput(input, 0, read);
+			deflater.finish();
+			int sampleCompressed = 0;
+			while (!deflater.finished() && sampleCompressed < read)
+			{
+				sampleCompressed += deflater.deflate(probeOutput, 0, probeOutput.length);
+			}
+			sampled += read;
+			compressed += Math.min(sampleCompressed, read);
+		}
+		return compressed < sampled * PROBE_RATIO;
+	}
+
+
+	/**
+	 * Writes the next block frame of a range to a buffer, which is then flipped for writing to the peer.
+	 * @param file FileChannel of the shared file
+	 * @param position long position of the block, where the previous block ended
+	 * @param end long position after the last byte of the range
+	 * @param out ByteBuffer from allocateBlockBuffer() to which the frame is written
+	 * @return int number of bytes of the file in the block
+	 * @throws IOException if the file cannot be read, or ends before the range
+	 */
+	public int putBlock(FileChannel file, long position, long end, ByteBuffer out) throws IOException
+	{
+		int length = read(file, position, (int) Math.min(BLOCK_BYTES, end - position));
+		crc.reset();
+		crc.update(input, 0, length);
+
+		deflater.reset();
+		deflater.setInput(input, 0, length);
+		deflater.finish();
+		byte[] content = out.array();
+		int contentOffset = out.arrayOffset() + PeerProtocol.FRAME_HEADER_BYTES;
+		int compressed = 0;
+		while (!deflater.finished() && compressed < length - 1)
+		{
+			compressed += deflater.deflate(content, contentOffset + compressed, length - 1 - compressed);
+		}
+
+		boolean deflated = deflater.finished();                               //Only if the block got smaller.
+		if (!deflated)
+			System.arraycopy(input, 0, content, contentOffset, length);
+		int contentLength = deflated ? compressed : length;
+		frame.set(PeerProtocol.TYPE_BLOCK, PeerProtocol.STATUS_OK, PeerProtocol.FLAG_CHECKSUM | (deflated ? PeerProtocol.FLAG_DEFLATE : 0),
+				contentLength, position, length, 0, (int) crc.getValue());
+		out.clear();
+		frame.write(out);
+		out.position(0);
+		out.limit(PeerProtocol.FRAME_HEADER_BYTES + contentLength);
+		return length;
+	}
+
+
+	/**
+	 * Releases the Deflater.
+	 */
+	public void close()
+	{
+		deflater.end();
+	}
+
+
+	/**
+	 * Reads bytes of the file into the input array.
+	 */
+	private int read(FileChannel file, long position, int length) throws IOException
+	{
+		inputBuf.clear();
+		inputBuf.limit(length);
+		while (inputBuf.hasRemaining())
+		{
+			if (file.read(inputBuf, position + inputBuf.position()) <= 0)
+				throw new IOException("The file ended " + (position + inputBuf.position()) + " bytes in.");
+		}
+		return length;
+	}
+}
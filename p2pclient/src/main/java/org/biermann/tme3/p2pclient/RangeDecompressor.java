@@ -0,0 +1,158 @@
+/**
+ * RangeDecompressor.java
+ *
+ * Reads a range which a peer sends as compressed blocks (see PeerProtocol). Each block frame is read
+ * from the stream of the connection, inflated if it holds Deflate data, and checked against its
+ * checksum, after which its bytes are read from this stream. The stream ends with the range, and is
+ * reused for every compressed range of a connection, so the blocks are read without allocating.
+ *
+ * A block which is out of order, longer than the rest of the range, or does not match its checksum
+ * fails the read, after which the connection must be discarded.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class RangeDecompressor extends InputStream
+{
+	private final InputStream inStream;
+	private final Inflater inflater = new Inflater(true);                 //Raw Deflate data, without a zlib header.
+	private final PeerProtocol.Frame frame = new PeerProtocol.Frame();
+	private final ByteBuffer frameHeader = ByteBuffer.allocate(PeerProtocol.FRAME_HEADER_BYTES);
+	private final CRC32 crc = new CRC32();
+	private final byte[] content = new byte[PeerProtocol.COMPRESSION_BLOCK_BYTES];
+	private final byte[] block = new byte[PeerProtocol.COMPRESSION_BLOCK_BYTES + 1];   //Room to see the end of the Deflate data.
+	private int blockPosition;
+	private int blockLimit;
+	private long nextOffset;                                                  //Offset of the next block in the file.
+	private long remaining;                                                   //Bytes of the range in blocks not yet read.
+
+
+	/**
+	 * Creates a stream reading blocks from the stream of a connection.
+	 * @param inStream InputStream of the connection, which must be buffered
+	 */
+	public RangeDecompressor(InputStream inStream)
+	{
+		this.inStream = inStream;
+	}
+
+
+	/**
+	 * Starts reading a range, once the data frame sent before its blocks has been read.
+	 * @param offset long position of the range in the file
+	 * @param length long number of bytes of the range
+	 */
+	public void reset(long offset, long length)
+	{
+		nextOffset = offset;
+		remaining = length;
+		blockPosition = 0;
+		blockLimit = 0;
+	}
+
+
+	@Override
+	public int read() throws IOException
+	{
+		if (blockPosition == blockLimit && !readBlock())
+			return -1;
+		return block[blockPosition++] & 0xFF;
+	}
+
+
+	@Override
+	public int read(byte[] buf, int offset, int length) throws IOException
+	{
+		if (length == 0)
+			return 0;
+		if (blockPosition == blockLimit && !readBlock())
+			return -1;
+
+		int n = Math.min(length, blockLimit - blockPosition);
+		System.arraycopy(block, blockPosition, buf, offset, n);
+		blockPosition += n;
+		return n;
+	}
+
+
+	@Override
+	public int available()
+	{
+		return blockLimit - blockPosition;
+	}
+
+
+	/**
+	 * Releases the inflater. The stream of the connection is not closed.
+	 */
+	@Override
+	public void close()
+	{
+		inflater.end();
+	}
+
+
+	/**
+	 * Reads, inflates and checks the next block of the range.
+	 * @return boolean false if the range has been read entirely
+	 */
+	private boolean readBlock() throws IOException
+	{
+		if (remaining == 0)
+			return false;
+
+		if (!PeerProtocol.readFrame(inStream, frameHeader, frame))
+			throw new IOException("The peer closed the connection within a compressed range.");
+		long length = frame.getLength();
+		long contentLength = frame.getContentLength();
+		if (frame.getType() != PeerProtocol.TYPE_BLOCK || frame.getOffset() != nextOffset || length <= 0
+				|| length > Math.min(remaining, PeerProtocol.COMPRESSION_BLOCK_BYTES) || contentLength > length || !frame.hasChecksum())
+			throw new IOException("The peer sent a frame of type " + frame.getType() + " within a compressed range.");
+
+		boolean deflated = (frame.getFlags() & PeerProtocol.FLAG_DEFLATE) != 0;
+		PeerProtocol.readFully(inStream, deflated ? content : block, 0, (int) contentLength);
+		if (deflated)
+		{
+			inflater.reset();
+			inflater.setInput(content, 0, (int) contentLength);
+			try
+			{
+				int inflated = 0;
+				int n;
+				while (!inflater.finished() && (n = inflater.inflate(block, inflated, block.length - inflated)) > 0)
+				{
+					inflated += n;
+				}
+				if (inflated != length || !inflater.finished())
+					throw new IOException("A compressed block sent by the peer does not hold " + length + " bytes.");
+			}
+			catch (DataFormatException formatEx)
+			{
+				throw new IOException("The peer sent a compressed block which is not valid: " + formatEx.getMessage());
+			}
+		}
+		else if (contentLength != length)
+		{
+			throw new IOException("The peer sent a block of " + contentLength + " bytes for " + length + " bytes.");
+		}
+
+		crc.reset();
+		crc.update(block, 0, (int) length);
+		if ((int) crc.getValue() != frame.getChecksum())
+			throw new IOException("A block received from the peer does not match its checksum.");
+
+		nextOffset += length;
+		remaining -= length;
+		blockPosition = 0;
+		blockLimit = (int) length;
+		return true;
+	}
+}
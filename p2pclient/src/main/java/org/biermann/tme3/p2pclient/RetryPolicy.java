@@ -0,0 +1,78 @@
+/**
+ * RetryPolicy.java
+ *
+ * Determines how often, and after what delay, a failed download is attempted again. The delay
+ * doubles after every attempt, up to a maximum, and is randomised by up to half so that peers
+ * whose downloads failed at the same time do not all retry at the same moment.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RetryPolicy
+{
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+	private final int maxAttempts;
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+
+
+	/**
+	 * Creates a RetryPolicy.
+	 * @param maxAttempts int number of attempts, including the first
+	 * @param initialDelayMillis long delay before the second attempt
+	 * @param maxDelayMillis long longest delay between attempts
+	 */
+	public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis)
+	{
+		this.maxAttempts = maxAttempts;
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+
+	/**
+	 * Creates a RetryPolicy with the number of attempts and initial delay in the PeerConfig.
+	 * @param config PeerConfig holding the retry settings
+	 * @return RetryPolicy for downloads
+	 */
+	public static RetryPolicy fromConfig(PeerConfig config)
+	{
+		return new RetryPolicy(config.getDownloadAttempts(), config.getRetryDelayMillis(), DEFAULT_MAX_DELAY_MILLIS);
+	}
+
+
+	/**
+	 * Determines if another attempt should be made after the specified attempt failed.
+	 * @param attempt int number of the failed attempt, starting at 1
+	 * @return boolean true if another attempt should be made
+	 */
+	public boolean shouldRetry(int attempt)
+	{
+		return attempt < maxAttempts;
+	}
+
+
+	/**
+	 * Get the time to wait after the specified attempt failed.
+	 * @param attempt int number of the failed attempt, starting at 1
+	 * @return long delay in milliseconds, between half and all of the exponential delay
+	 */
+	public long getDelayMillis(int attempt)
+	{
+		long delay = initialDelayMillis << Math.min(attempt - 1, 30);
+		if (delay <= 0 || delay > maxDelayMillis)
+			delay = maxDelayMillis;
+
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+}
@@ -0,0 +1,468 @@
+/**
+ * ShareDirectorySync.java
+ *
+ * Keeps the index service in sync with the sharing directory, so files are shared by copying them
+ * into the directory rather than one at a time in the GUI. The directory is watched with a
+ * WatchService, and the files added, changed or removed are shared or unshared with batch requests
+ * (see P2PPeerController.shareFiles()).
+ *
+ * Events are coalesced by file name, and are only acted on once no further events have arrived for
+ * the debounce period, or at most MAX_DELAY_FACTOR debounce periods after the first, so a file
+ * which is still being copied is shared once rather than for every write. The state of each file is
+ * read when the changes are sent, so a file created and deleted within one period is never shared.
+ *
+ * The size and modification time of every file shared is kept in a snapshot next to the sharing
+ * directory ("<shareDir>.snapshot"). When the peer starts, the snapshot is compared with the
+ * directory, and only the files which changed while the peer was not running are shared or unshared.
+ * The other files are not registered again, but are tracked for heartbeats, so they are shared again
+ * if the index service no longer knows this peer.
+ *
+ * Files which could not be shared or unshared, e.g. while the index service is unavailable, are
+ * attempted again after RETRY_DELAY_MILLIS.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class ShareDirectorySync
+{
+	public static final String SNAPSHOT_SUFFIX = ".snapshot";
+	public static final int MAX_DELAY_FACTOR = 10;                         //Changes wait at most this many debounce periods.
+	public static final long RETRY_DELAY_MILLIS = 30000;
+	private static final int MAGIC = 0x50325053;                           //"P2PS"
+	private static final int VERSION = 1;
+
+	private final P2PPeerController controller;
+	private final Path shareDir;
+	private final Path snapshotPath;
+	private final long debounceMillis;
+
+	/*The state of each file as last shared with the index service. Only used by the sync thread. */
+	private final Map<String, FileState> snapshot = new HashMap<>();
+	private String hostAddress;
+	private WatchService watchService;
+	private volatile boolean closed;
+
+
+	/**
+	 * The size and modification time of a file, used to detect that it has changed.
+	 */
+	private static final class FileState
+	{
+		final long size;
+		final long modifiedMillis;
+
+		FileState(long size, long modifiedMillis)
+		{
+			this.size = size;
+			this.modifiedMillis = modifiedMillis;
+		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof FileState))
+				return false;
+			FileState state = (FileState) other;
+			return size == state.size && modifiedMillis == state.modifiedMillis;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode(size) * 31 + Long.hashCode(modifiedMillis);
+		}
+	}
+
+
+	/**
+	 * Creates the synchronizer for a sharing directory. Nothing is shared until start() is called.
+	 * @param controller P2PPeerController used to share and unshare the files
+	 * @param shareDir Path of the sharing directory
+	 * @param debounceMillis long time without changes after which the changes are sent
+	 */
+	public ShareDirectorySync(P2PPeerController controller, Path shareDir, long debounceMillis)
+	{
+		this.controller = controller;
+		this.shareDir = shareDir.toAbsolutePath().normalize();
+		this.snapshotPath = this.shareDir.resolveSibling(this.shareDir.getFileName() + SNAPSHOT_SUFFIX);
+		this.debounceMillis = debounceMillis;
+	}
+
+
+	/**
+	 * Starts watching the sharing directory, and brings the index service up to date with the
+	 * changes made since the snapshot was saved, on a background thread.
+	 * @throws IOException if the directory cannot be watched or the local host address is not known
+	 */
+	public synchronized void start() throws IOException
+	{
+		hostAddress = InetAddress.getLocalHost().getHostAddress();
+
+		/*Watching starts before the directory is read, so no change is missed in between. */
+		watchService = shareDir.getFileSystem().newWatchService();
+		shareDir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+
+		Thread syncThread = new Thread(this::run, "share-dir-sync");
+		syncThread.setDaemon(true);
+		syncThread.start();
+	}
+
+
+	/**
+	 * Stops watching the sharing directory. Files already shared stay shared.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		try
+		{
+			if (watchService != null)
+				watchService.close();                                        //Wakes the sync thread, which then stops.
+		}
+		catch (IOException closeEx)
+		{
+			System.err.println("Unable to stop watching the sharing directory: " + closeEx.getMessage());
+		}
+	}
+
+
+	private void run()
+	{
+		Set<String> pending = new HashSet<>();
+		Set<String> retry = new HashSet<>();
+		boolean rescan = false;
+		long firstEventAt = 0;
+		long lastEventAt = 0;
+		long retryAt = 0;
+
+		try
+		{
+			retry.addAll(reconcile());
+			retryAt = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+
+			while (!closed)
+			{
+				boolean changed = rescan || !pending.isEmpty();
+				long sendAt = changed ? Math.min(lastEventAt + debounceMillis, firstEventAt + debounceMillis * MAX_DELAY_FACTOR) : Long.MAX_VALUE;
+				long wakeAt = retry.isEmpty() ? sendAt : Math.min(sendAt, retryAt);
+
+				WatchKey key = (wakeAt == Long.MAX_VALUE) ? watchService.take()
+						: watchService.poll(Math.max(0, wakeAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				long now = System.currentTimeMillis();
+
+				if (key != null)
+				{
+					for (WatchEvent<?> event : key.pollEvents())
+					{
+						if (event.kind() == OVERFLOW)
+							rescan = true;                                   //Events were lost, so every file is checked.
+						else
+							pending.add(((Path) event.context()).toString());
+					}
+
+					if (!key.reset())
+					{
+						System.err.println("The sharing directory " + shareDir + " can no longer be watched.");
+						return;
+					}
+
+					if (!changed)
+						firstEventAt = now;
+					lastEventAt = now;
+					
+					/*Changes which keep arriving are still sent once the longest delay has passed. */
+					changed = true;
+					sendAt = firstEventAt + debounceMillis * MAX_DELAY_FACTOR;
+				}
+
+				if (changed && now >= sendAt)
+				{
+					if (rescan)
+					{
+						pending.addAll(scan().keySet());
+						pending.addAll(snapshot.keySet());
+						rescan = false;
+					}
+					if (retry.isEmpty())
+						retryAt = now + RETRY_DELAY_MILLIS;
+					retry.addAll(apply(pending));
+					pending.clear();
+				}
+
+				if (!retry.isEmpty() && now >= retryAt)
+				{
+					Set<String> failed = apply(retry);
+					retry = failed;
+					retryAt = now + RETRY_DELAY_MILLIS;
+				}
+			}
+		}
+		catch (ClosedWatchServiceException | InterruptedException stopped)
+		{
+			//The synchronizer was closed.
+		}
+		catch (IOException scanEx)
+		{
+			System.err.println("Unable to read the sharing directory " + shareDir + ". It is no longer synchronized: " + scanEx.getMessage());
+		}
+	}
+
+
+	/**
+	 * Compares the saved snapshot with the directory. Files which did not change are tracked without
+	 * being registered, and the others are shared or unshared.
+	 * @return Set of the names of the files which could not be shared or unshared
+	 */
+	private Set<String> reconcile() throws IOException
+	{
+		Map<String, FileState> current = scan();
+		snapshot.putAll(loadSnapshot());
+
+		Map<String, Path> unchanged = new LinkedHashMap<>();
+		Set<String> changed = new HashSet<>();
+		for (Map.Entry<String, FileState> file : current.entrySet())
+		{
+			if (file.getValue().equals(snapshot.get(file.getKey())))
+				unchanged.put(file.getKey(), shareDir.resolve(file.getKey()));
+			else
+				changed.add(file.getKey());
+		}
+		for (String fileName : snapshot.keySet())
+		{
+			if (!current.containsKey(fileName))
+				changed.add(fileName);
+		}
+
+		controller.adoptShared(hostAddress, unchanged);
+		System.err.println("Sharing directory " + shareDir + ": " + unchanged.size() + " files unchanged, "
+				+ changed.size() + " changed since the last run.");
+		return apply(changed);
+	}
+
+
+	/**
+	 * Sends the changes to the specified files to the index service. A file which changed is
+	 * unshared and shared again, so that the index service has its new content hash.
+	 * @param fileNames Collection of the names of the files which may have changed
+	 * @return Set of the names of the files which could not be shared or unshared
+	 */
+	private Set<String> apply(Set<String> fileNames)
+	{
+		Set<String> failed = new HashSet<>();
+		List<String> toUnshare = new ArrayList<>();
+		Map<String, FileState> toShare = new LinkedHashMap<>();
+		for (String fileName : fileNames)
+		{
+			FileState state = stat(shareDir.resolve(fileName));
+			FileState shared = snapshot.get(fileName);
+			if (state == null ? shared == null : state.equals(shared))
+				continue;
+
+			if (shared != null)
+				toUnshare.add(fileName);
+			if (state != null)
+				toShare.put(fileName, state);
+		}
+
+		if (toUnshare.isEmpty() && toShare.isEmpty())
+			return failed;
+
+		try
+		{
+			if (!toUnshare.isEmpty())
+			{
+				Map<String, Integer> statuses = controller.unshareFileStatuses(toUnshare, hostAddress);
+				for (String fileName : toUnshare)
+				{
+					int status = statusOf(statuses, fileName);
+					if (status == P2PPeerController.HTTP_NO_CONTENT || status == P2PPeerController.HTTP_NOT_FOUND)
+					{
+						snapshot.remove(fileName);
+					}
+					else
+					{
+						failed.add(fileName);
+						toShare.remove(fileName);                            //The old content is still shared.
+					}
+				}
+			}
+
+			if (!toShare.isEmpty())
+			{
+				List<Path> paths = new ArrayList<>();
+				for (String fileName : toShare.keySet())
+				{
+					paths.add(shareDir.resolve(fileName));
+				}
+
+				Map<String, Integer> statuses = controller.shareFileStatuses(paths, hostAddress);
+				for (Map.Entry<String, FileState> file : toShare.entrySet())
+				{
+					int status = statusOf(statuses, file.getKey());
+					if (status == P2PPeerController.HTTP_CREATED || status == P2PPeerController.HTTP_CONFLICT)
+						snapshot.put(file.getKey(), file.getValue());
+					else
+						failed.add(file.getKey());
+				}
+			}
+		}
+		catch (RuntimeException requestEx)
+		{
+			System.err.println("Unable to update the index service with the sharing directory: " + requestEx.getMessage());
+			failed.addAll(toUnshare);
+			failed.addAll(toShare.keySet());
+		}
+
+		System.err.println("Sharing directory synchronized: " + toShare.size() + " files shared, " + toUnshare.size()
+				+ " unshared, " + failed.size() + " to retry.");
+		saveSnapshot();
+		return failed;
+	}
+
+
+	/*The index service knows each file by its trimmed name, see P2PPeerController.createFileMessage() */
+	private static int statusOf(Map<String, Integer> statuses, String fileName)
+	{
+		Integer status = statuses.get(fileName.trim());
+		return (status == null) ? 0 : status;
+	}
+
+
+	/**
+	 * Reads the state of every regular file in the sharing directory. Subdirectories are not shared.
+	 * @return Map from each file name to its state
+	 */
+	private Map<String, FileState> scan() throws IOException
+	{
+		Map<String, FileState> files = new HashMap<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(shareDir))
+		{
+			for (Path entry : entries)
+			{
+				FileState state = stat(entry);
+				if (state != null)
+					files.put(entry.getFileName().toString(), state);
+			}
+		}
+		return files;
+	}
+
+
+	/**
+	 * @return FileState of the file, or null if it is not a regular file or does not exist
+	 */
+	private static FileState stat(Path path)
+	{
+		try
+		{
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			return attributes.isRegularFile() ? new FileState(attributes.size(), attributes.lastModifiedTime().toMillis()) : null;
+		}
+		catch (IOException missing)
+		{
+			return null;
+		}
+	}
+
+
+	/**
+	 * Reads the snapshot saved by the last run. A snapshot saved for another host address is not used,
+	 * as the files it lists are not shared by this host.
+	 * @return Map from the name of each file shared to its state, which is empty if there is no valid snapshot
+	 */
+	private Map<String, FileState> loadSnapshot()
+	{
+		Map<String, FileState> files = new HashMap<>();
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(snapshotPath))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(hostAddress))
+				return files;
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				files.put(in.readUTF(), new FileState(in.readLong(), in.readLong()));
+			}
+			return files;
+		}
+		catch (NoSuchFileException noSnapshot)
+		{
+			return files;
+		}
+		catch (IOException | RuntimeException invalidSnapshot)
+		{
+			System.err.println("Ignoring the invalid sharing snapshot " + snapshotPath);
+			return new HashMap<>();
+		}
+	}
+
+
+	/**
+	 * Writes the snapshot to a temporary file and moves it over the previous snapshot, so a valid
+	 * snapshot exists at all times.
+	 */
+	private void saveSnapshot()
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(hostAddress);
+			out.writeInt(snapshot.size());
+			for (Map.Entry<String, FileState> file : snapshot.entrySet())
+			{
+				out.writeUTF(file.getKey());
+				out.writeLong(file.getValue().size);
+				out.writeLong(file.getValue().modifiedMillis);
+			}
+
+			Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+			Files.write(tempPath, bytes.toByteArray());
+			try
+			{
+				Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException notAtomic)
+			{
+				Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException saveEx)
+		{
+			System.err.println("Unable to save the sharing snapshot " + snapshotPath + ": " + saveEx.getMessage());
+		}
+	}
+}
@@ -0,0 +1,1074 @@
+/**
+ * SwarmDownload.java
+ *
+ * SwarmDownload is a Runnable which downloads a file from every peer sharing it at once. The file
+ * is split into chunks, and one worker per peer repeatedly takes the next chunk and fetches it with
+ * a range request (see PeerProtocol). Each chunk is written to its place in the file with a
+ * positional FileChannel write, so chunks may arrive in any order and no worker waits for another.
+ *
+ * Faster peers take more chunks simply because they return for the next one sooner. In addition:
+ * - The throughput of each peer is measured per chunk. A peer which is much slower than the fastest
+ *   peer is retired once it finishes its chunk, so it does not hold up the end of the download.
+ * - When no chunks are left to hand out, idle workers also fetch chunks still being fetched by
+ *   another peer. Whichever peer finishes first wins, and the other abandons the chunk.
+ * - A chunk which fails is handed out again, and a peer which fails repeatedly is retired.
+ *
+ * Every chunk is verified as it arrives. The chunk hashes of the file (see ContentHashes) are requested
+ * from a peer and checked against the content hash advertised by the index service, and each piece
+ * of CHUNK_SIZE bytes is received into a buffer and hashed before any of it is written, so a worker
+ * never writes unverified data over a chunk which another worker has completed. A chunk which does
+ * not match is fetched again, and counts as a failure of the peer which sent it. As every chunk is checked against hashes which
+ * are themselves checked against the content hash, the whole file is verified without a second pass.
+ *
+ * The data is written to a part file, and a DownloadCheckpoint next to it records the chunks which
+ * have been written. If the download fails, both are kept, and the next download of the file resumes
+ * with the chunks which are missing. Once every chunk is written, the part file is renamed.
+ *
+ * If no peer answers a range request, the file is downloaded from the first peer by a FileReceiveHelper.
+ * It writes to a file of its own, so a part file kept from an earlier attempt can still be resumed if
+ * it fails, and the part file is only deleted once it succeeds.
+ *
+ * A peer failure listener may be set to learn of each peer which could not be connected to, e.g. so
+ * that the peers cached for the file are looked up again (see PeerLookupCache).
+ *
+ * Connections are taken from a PeerConnectionPool, so the requests of a download, and of later
+ * downloads from the same peers, reuse connections which are kept alive. A file which the index
+ * service reports as no larger than a single chunk is requested together with its hashes, as two
+ * pipelined requests, so a small file is downloaded in a single round trip.
+ *
+ * A peer which sends frames (see PeerProtocol) is asked for the CRC-32 of each chunk if no chunk
+ * hashes are available, so damaged chunks are still fetched again. As the CRC-32 is only known to
+ * match once the whole chunk is written, a chunk with a bad checksum is fetched again even if another
+ * worker completed it in the meantime, and no other worker fetching it at the time may complete it.
+ *
+ * A busy peer may queue a range request until it has a free upload slot. Its queue frames are shown
+ * in the DownloadStatus until the chunk arrives, while the workers of other peers carry on.
+ *
+ * Each worker is a flow of the download BandwidthLimiter, so the workers of all downloads share the
+ * configured download rate fairly, and only read data the limiter has granted.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+public class SwarmDownload implements Runnable
+{
+	public static final int MIN_CHUNK_SIZE = ContentHashes.CHUNK_SIZE;    //Chunks are a multiple of this, so each covers whole hash pieces.
+	public static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+	public static final int CHUNKS_PER_PEER = 8;                          //Chunks per peer, so there is work to rebalance.
+	public static final int SLOW_PEER_RATIO = 4;                          //A peer this many times slower than the fastest is retired.
+	public static final int MIN_RATE_SAMPLES = 2;                         //Chunks a peer must complete before it is judged.
+	public static final int MAX_PEER_FAILURES = 2;                        //Consecutive failures after which a peer is retired.
+	public static final int MAX_CHUNK_OWNERS = 2;                         //Peers fetching the same chunk at the end of the download.
+	public static final int CONNECT_TIMEOUT_MILLIS = PeerConnectionPool.CONNECT_TIMEOUT_MILLIS;
+	public static final int READ_TIMEOUT_MILLIS = PeerConnectionPool.READ_TIMEOUT_MILLIS;
+	public static final long CHECKPOINT_INTERVAL_MILLIS = 1000;           //Longest time between saves of the checkpoint.
+	private static final int PIECE_BUFFER_SIZE = ContentHashes.CHUNK_SIZE;  //Data is verified a piece at a time before it is written.
+
+	private final List<InetSocketAddress> peers;
+	private final Map<InetSocketAddress, String> peerAddresses = new HashMap<>();   //Address of each peer as given.
+	private volatile Consumer<String> peerFailureListener;
+	private PeerConnectionPool connections;                               //Null until download() if none was set.
+	private long expectedFileSize = -1;                                   //Size reported by the index service, or -1.
+	private byte[] prefetched;                                            //Whole file received with its hashes, if small.
+	private final String contentHash;
+	private final String receiveDir;
+	private final DownloadStatus downloadStatus;
+	private final ExecutorService executor;
+
+	/*Scheduling state, guarded by the monitor of this SwarmDownload */
+	private final Deque<Chunk> pending = new ArrayDeque<>();
+	private final List<Chunk> inFlight = new ArrayList<>();
+	private int chunkCount;
+	private int completedChunks;
+	private int activeWorkers;
+	private double bestRate;
+	private final List<Integer> unsavedChunks = new ArrayList<>();       //Completed chunks not yet in the checkpoint.
+	private long lastCheckpointNanos;
+	private int corruptChunks;
+
+	private final Object checkpointLock = new Object();                   //Held while the checkpoint is saved.
+	private DownloadCheckpoint checkpoint;
+	private FileChannel file;
+	private long fileSize;
+	private ContentHashes hashes;                                         //Null if the chunks cannot be verified.
+
+
+	/**
+	 * A range of the file which is fetched from a single peer.
+	 */
+	private static final class Chunk
+	{
+		final int index;
+		final long offset;
+		final int length;
+		final Set<PeerWorker> owners = new HashSet<>();                   //Workers currently fetching this chunk.
+		volatile boolean complete;
+		boolean overwritten;                                              //Set if damaged data was written while others fetched it.
+
+		Chunk(int index, long offset, int length)
+		{
+			this.index = index;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+
+	/**
+	 * Creates a SwarmDownload of the file named by the DownloadStatus from the specified peers.
+	 * @param peerAddresses List of String with the address of each peer sharing the file, either
+	 * "host" or "host:port"
+	 * @param defaultPort int port used for peers whose address has no port
+	 * @param receiveDir String holding path to directory for receiving file.
+	 * @param downloadStatus DownloadStatus instance which holds name of file to be received
+	 * @param executor ExecutorService used to run one worker per peer
+	 */
+	public SwarmDownload(List<String> peerAddresses, int defaultPort, String receiveDir, DownloadStatus downloadStatus, ExecutorService executor)
+	{
+		this(peerAddresses, null, defaultPort, receiveDir, downloadStatus, executor);
+	}
+
+
+	/**
+	 * Creates a SwarmDownload of the file named by the DownloadStatus from the specified peers,
+	 * which verifies the file against the specified content hash.
+	 * @param peerAddresses List of String with the address of each peer sharing the file, either
+	 * "host" or "host:port"
+	 * @param contentHash String with the content hash advertised for the file, or null if not known
+	 * @param defaultPort int port used for peers whose address has no port
+	 * @param receiveDir String holding path to directory for receiving file.
+	 * @param downloadStatus DownloadStatus instance which holds name of file to be received
+	 * @param executor ExecutorService used to run one worker per peer
+	 */
+	public SwarmDownload(List<String> peerAddresses, String contentHash, int defaultPort, String receiveDir, 
+			DownloadStatus downloadStatus, ExecutorService executor)
+	{
+		this.contentHash = contentHash;
+		this.peers = new ArrayList<>();
+		for (String address : peerAddresses)
+		{
+			InetSocketAddress peer = parsePeerAddress(address, defaultPort);
+			peers.add(peer);
+			this.peerAddresses.put(peer, address);
+		}
+
+		this.receiveDir = receiveDir;
+		this.downloadStatus = downloadStatus;
+		this.executor = executor;
+	}
+
+
+	/**
+	 * Parses the address of a peer. An address with a single ':' is taken as "host:port", so IPv6
+	 * addresses are only supported without a port.
+	 * @param address String with the host address, with an optional port
+	 * @param defaultPort int port used if address has no port
+	 * @return InetSocketAddress of the peer, which is not resolved until used
+	 */
+	static InetSocketAddress parsePeerAddress(String address, int defaultPort)
+	{
+		String trimmed = address.trim();
+		int colon = trimmed.indexOf(':');
+		if (colon > 0 && colon == trimmed.lastIndexOf(':'))
+		{
+			try
+			{
+				return InetSocketAddress.createUnresolved(trimmed.substring(0, colon), Integer.parseInt(trimmed.substring(colon + 1)));
+			}
+			catch (IllegalArgumentException invalidPort)
+			{
+				System.err.println("Invalid port in peer address " + trimmed + ". Using port " + defaultPort + ".");
+				return InetSocketAddress.createUnresolved(trimmed.substring(0, colon), defaultPort);
+			}
+		}
+
+		return InetSocketAddress.createUnresolved(trimmed, defaultPort);
+	}
+
+
+	/**
+	 * Sets the listener told the address of each peer which could not be connected to, as given to
+	 * the constructor. It is called on the threads of the download, once for every failed connection.
+	 * @param peerFailureListener Consumer of String with the peer address, or null for none
+	 */
+	public void setPeerFailureListener(Consumer<String> peerFailureListener)
+	{
+		this.peerFailureListener = peerFailureListener;
+	}
+
+
+	/**
+	 * Sets the pool from which connections to the peers are taken. Without one, a pool is created for
+	 * the download and closed when it ends.
+	 * @param connections PeerConnectionPool shared with other downloads
+	 */
+	public void setConnectionPool(PeerConnectionPool connections)
+	{
+		this.connections = connections;
+	}
+
+
+	/**
+	 * Sets the size of the file reported by the index service. A file no larger than MIN_CHUNK_SIZE
+	 * is requested together with its hashes.
+	 * @param expectedFileSize long size of the file, or -1 if not known
+	 */
+	public void setExpectedFileSize(long expectedFileSize)
+	{
+		this.expectedFileSize = expectedFileSize;
+	}
+
+
+	/**Downloads the file, and reports the outcome in the DownloadStatus.
+	 */
+	public void run()
+	{
+		try
+		{
+			download();
+		}
+		catch (InterruptedException interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			downloadStatus.setTerminated();                                //ALWAYS notify waiting threads that download is terminated.
+		}
+	}
+
+
+	/**
+	 * Finds the size of the file and downloads every chunk which is not already in the part file.
+	 * The outcome is set as the status message, but the download is not marked as terminated, so
+	 * that the caller may try again.
+	 * @return boolean true if the whole file was downloaded
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public boolean download() throws InterruptedException
+	{
+		boolean ownConnections = (connections == null);
+		if (ownConnections)
+			connections = new PeerConnectionPool(PeerConfig.DEFAULT_KEEP_ALIVE, PeerConfig.DEFAULT_KEEP_ALIVE_MILLIS);
+
+		try
+		{
+			return fetchFile();
+		}
+		finally
+		{
+			if (ownConnections)
+			{
+				connections.close();
+				connections = null;
+			}
+		}
+	}
+
+
+	private boolean fetchFile() throws InterruptedException
+	{
+		String receiveFileName = downloadStatus.getFileName();
+		Path filePath = Paths.get(receiveDir, receiveFileName).toAbsolutePath();
+		Path partPath = DownloadCheckpoint.getPartPath(filePath.getParent(), receiveFileName);
+		String outcome;
+		boolean success = false;
+
+		hashes = fetchHashes();
+		fileSize = (hashes != null) ? hashes.getFileSize() : probeFileSize();
+		if (fileSize < 0)
+		{
+			/*No peer supports range requests, so download the whole file from the first peer. It is
+			 * received into a file of its own, so a part file kept for resuming is left as it is. */
+			InetSocketAddress peer = peers.get(0);
+			boolean received = new FileReceiveHelper(peer.getHostString(), peer.getPort(), receiveDir, downloadStatus, contentHash).receive();
+			if (received)
+				deletePartFile(partPath);                                      //No longer needed, as the file is complete.
+			return received;
+		}
+
+		if (hashes == null && contentHash != null)
+		{
+			/*Peers compute hashes in the background if needed, so they may be available on the next attempt. */
+			outcome = "Error. No peer provided the chunk hashes of the file, so it cannot be verified.";
+			System.err.println(outcome);
+			downloadStatus.setStatusMessage("Download status for " + receiveFileName + ": " + outcome);
+			return false;
+		}
+		else if (hashes == null)
+		{
+			System.err.println("No peer provided the chunk hashes of " + receiveFileName + ". The chunks will not be verified.");
+		}
+
+		try
+		{
+			try (FileChannel fileChannel = openPartFile(partPath))
+			{
+				file = fileChannel;
+				createChunks();
+				success = usePrefetched() || fetchAllChunks();
+				if (success)
+					file.force(false);
+				else
+					saveCheckpoint(true);                                       //Keep the progress for the next attempt.
+			}
+
+			if (success)
+			{
+				Files.move(partPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+				checkpoint.delete();
+			}
+			outcome = success ? "Finished downloading." + (corruptChunks > 0 ? " " + corruptChunks + " corrupt chunks were fetched again." : "")
+					: "Error. The shared file could not be transmitted. It may no longer be available from these peers.";
+		}
+		catch (IOException fileEx)
+		{
+			success = false;
+			outcome = "Error writing to file " + receiveFileName + ": " + fileEx.getMessage();
+		}
+
+		if (success)
+			System.out.println(outcome);
+		else
+			System.err.println(outcome);
+
+		downloadStatus.setStatusMessage("Download status for " + receiveFileName + ": " + outcome);
+		return success;
+	}
+
+
+	/**
+	 * Deletes a part file and its checkpoint which are no longer needed.
+	 */
+	private static void deletePartFile(Path partPath)
+	{
+		try
+		{
+			Files.deleteIfExists(DownloadCheckpoint.getCheckpointPath(partPath));
+			Files.deleteIfExists(partPath);
+		}
+		catch (IOException deleteEx)
+		{
+			System.err.println("Could not delete the part file " + partPath + ": " + deleteEx.getMessage());
+		}
+	}
+
+
+	/**
+	 * Opens the part file, keeping the data already downloaded if the checkpoint next to it is for
+	 * a file of the same size and content hash. Otherwise the part file is started again.
+	 */
+	private FileChannel openPartFile(Path partPath) throws IOException
+	{
+		Path checkpointPath = DownloadCheckpoint.getCheckpointPath(partPath);
+		String verifiedHash = (hashes == null) ? null : hashes.getContentHash();
+		checkpoint = DownloadCheckpoint.load(checkpointPath);
+		if (checkpoint != null && checkpoint.getFileSize() == fileSize && checkpoint.matchesContent(verifiedHash)
+				&& checkpoint.getChunkSize() % ContentHashes.CHUNK_SIZE == 0 && Files.exists(partPath))
+		{
+			downloadStatus.setStatusMessage("Download status for " + downloadStatus.getFileName() + ": Resuming with "
+					+ (checkpoint.getCompletedBytes() / 1024) + " KB of " + (fileSize / 1024) + " KB from " + peers.size() + " peers...");
+			return FileChannel.open(partPath, StandardOpenOption.WRITE);
+		}
+
+		downloadStatus.setStatusMessage("Download status for " + downloadStatus.getFileName() + ": Download starting from "
+				+ peers.size() + " peers...");
+
+		long target = fileSize / ((long) peers.size() * CHUNKS_PER_PEER);
+		int chunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, target));
+		chunkSize -= chunkSize % ContentHashes.CHUNK_SIZE;
+		checkpoint = new DownloadCheckpoint(checkpointPath, fileSize, chunkSize, verifiedHash);
+		checkpoint.save();
+
+		FileChannel partFile = FileChannel.open(partPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		if (fileSize > 0)
+			partFile.write(ByteBuffer.allocate(1), fileSize - 1);              //Allocate the whole file, so chunks can be written in any order.
+		return partFile;
+	}
+
+
+	/**
+	 * Asks each peer in turn for the chunk hashes of the file, until one provides hashes which match
+	 * the content hash. If the content hash is not known, the hashes of the first peer which
+	 * provides them are used, which still detects data damaged in transit.
+	 * @return ContentHashes of the file, or null if no peer provided matching hashes
+	 */
+	private ContentHashes fetchHashes()
+	{
+		String fileName = downloadStatus.getFileName();
+		for (InetSocketAddress peer : peers)
+		{
+			PeerConnectionPool.Connection connection;
+			try
+			{
+				connection = acquire(peer);
+			}
+			catch (IOException connectEx)
+			{
+				System.err.println("Peer " + peer + " did not provide the chunk hashes: " + connectEx.getMessage());
+				continue;
+			}
+
+			boolean reusable = false;
+			try
+			{
+				/*A small file is requested at once, so it arrives in the same round trip as its hashes. */
+				boolean prefetch = connection.isKeepAlive() && expectedFileSize > 0 && expectedFileSize <= MIN_CHUNK_SIZE;
+				connection.sendHashesRequest(fileName);
+				if (prefetch)
+					connection.sendRangeRequest(fileName, 0, expectedFileSize, false);
+				connection.flush();
+
+				ContentHashes peerHashes = connection.readHashesReply();
+				byte[] data = null;
+				reusable = !prefetch;
+				if (prefetch)
+				{
+					try
+					{
+						data = readPrefetched(connection);
+						reusable = true;
+					}
+					catch (IOException prefetchEx)
+					{
+						System.err.println("Peer " + peer + " did not send the file with its hashes: " + prefetchEx.getMessage());
+					}
+				}
+
+				if (contentHash == null || contentHash.equalsIgnoreCase(peerHashes.getContentHash()))
+				{
+					prefetched = data;
+					return peerHashes;
+				}
+
+				System.err.println("Peer " + peer + " shares different content under the same name.");
+			}
+			catch (IOException | IllegalArgumentException hashesEx)
+			{
+				System.err.println("Peer " + peer + " did not provide the chunk hashes: " + hashesEx.getMessage());
+			}
+			finally
+			{
+				release(connection, reusable);
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Reads the reply to the range request sent with the hashes request.
+	 * @return byte[] with the whole file, or null if the peer answered with an error or the file is larger than requested
+	 * @throws IOException if the reply is not valid, after which the connection cannot be reused
+	 */
+	private static byte[] readPrefetched(PeerConnectionPool.Connection connection) throws IOException
+	{
+		PeerProtocol.Frame range;
+		try
+		{
+			range = connection.readRangeHeader();
+		}
+		catch (PeerProtocol.ErrorReplyException notSent)
+		{
+			return null;
+		}
+
+		if (range.getOffset() != 0 || range.getLength() < 0 || range.getLength() > MIN_CHUNK_SIZE)
+			throw new IOException("The peer returned a different range than requested.");
+
+		byte[] data = new byte[(int) range.getLength()];
+		new DataInputStream(connection.getRangeStream()).readFully(data);
+		return (range.getLength() == range.getFileSize()) ? data : null;
+	}
+
+
+	/**
+	 * Writes the file received together with its hashes (see fetchHashes()) if it is the single chunk
+	 * still to be fetched, and matches its hash.
+	 * @return boolean true if this completed the download
+	 * @throws IOException if writing the file fails
+	 */
+	private boolean usePrefetched() throws IOException
+	{
+		byte[] data = prefetched;
+		prefetched = null;
+
+		Chunk chunk;
+		synchronized (this)
+		{
+			chunk = pending.peekFirst();
+			if (data == null || hashes == null || chunkCount != 1 || chunk == null || chunk.length != data.length)
+				return false;
+		}
+
+		if (!hashes.matchesChunk(0, ContentHashes.newDigest().digest(data)))
+		{
+			synchronized (this)
+			{
+				corruptChunks++;
+			}
+			return false;                                                   //Fetched again by the workers.
+		}
+
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining())
+		{
+			file.write(buf, buf.position());
+		}
+
+		synchronized (this)
+		{
+			pending.clear();
+			unsavedChunks.add(chunk.index);
+			completedChunks++;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Asks each peer in turn for the size of the file, using an empty range request.
+	 * @return long size of the file, or -1 if no peer answered the range request
+	 */
+	private long probeFileSize()
+	{
+		for (InetSocketAddress peer : peers)
+		{
+			PeerConnectionPool.Connection connection = null;
+			boolean reusable = false;
+			try
+			{
+				connection = acquire(peer);
+				long size = sendRangeRequest(connection, 0, 0).getFileSize();
+				reusable = true;                                               //The reply to an empty range holds no data.
+				return size;
+			}
+			catch (IOException probeEx)
+			{
+				System.err.println("Peer " + peer + " did not answer a range request: " + probeEx.getMessage());
+			}
+			finally
+			{
+				if (connection != null)
+					release(connection, reusable);
+			}
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Splits the file into chunks of the size in the checkpoint, which aims for CHUNKS_PER_PEER chunks
+	 * for each peer within the bounds of MIN_CHUNK_SIZE and MAX_CHUNK_SIZE. Only the chunks which
+	 * the checkpoint does not hold are fetched.
+	 */
+	private synchronized void createChunks()
+	{
+		int chunkSize = checkpoint.getChunkSize();
+		int index = 0;
+		for (long offset = 0; offset < fileSize; offset += chunkSize, index++)
+		{
+			if (checkpoint.isComplete(index))
+				completedChunks++;
+			else
+				pending.addLast(new Chunk(index, offset, (int) Math.min(chunkSize, fileSize - offset)));
+		}
+		chunkCount = index;
+		lastCheckpointNanos = System.nanoTime();
+	}
+
+
+	/**
+	 * Runs one worker per peer and waits for all of them to finish.
+	 * @return boolean true if every chunk was downloaded
+	 */
+	private boolean fetchAllChunks() throws InterruptedException
+	{
+		List<Future<?>> workers = new ArrayList<>();
+		synchronized (this)
+		{
+			activeWorkers = peers.size();
+		}
+
+		for (InetSocketAddress peer : peers)
+		{
+			workers.add(executor.submit(new PeerWorker(peer)));
+		}
+
+		for (Future<?> worker : workers)
+		{
+			try
+			{
+				worker.get();
+			}
+			catch (ExecutionException workerEx)
+			{
+				System.err.println("A download worker failed: " + workerEx.getCause());
+			}
+		}
+
+		synchronized (this)
+		{
+			return completedChunks == chunkCount;
+		}
+	}
+
+
+	/**
+	 * Get the next chunk for a worker to fetch. Waits while every remaining chunk is already being
+	 * fetched by MAX_CHUNK_OWNERS workers or by this worker.
+	 * @return Chunk to fetch, or null if the worker should stop
+	 */
+	private synchronized Chunk nextChunk(PeerWorker worker) throws InterruptedException
+	{
+		while (completedChunks < chunkCount && !worker.retired)
+		{
+			Chunk chunk = pending.pollFirst();
+
+			/*Once every chunk has been handed out, help with the chunk that has the fewest workers */
+			if (chunk == null)
+			{
+				for (Chunk candidate : inFlight)
+				{
+					if (!candidate.owners.contains(worker) && candidate.owners.size() < MAX_CHUNK_OWNERS && !candidate.overwritten
+							&& (chunk == null || candidate.owners.size() < chunk.owners.size()))
+						chunk = candidate;
+				}
+			}
+
+			if (chunk != null)
+			{
+				if (chunk.owners.isEmpty())
+					inFlight.add(chunk);
+				chunk.owners.add(worker);
+				return chunk;
+			}
+
+			wait();                                                         //Woken when a chunk completes or fails.
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Records a chunk fetched by a worker and retires the worker if its peer is too slow.
+	 */
+	private synchronized void chunkCompleted(Chunk chunk, PeerWorker worker, double rate)
+	{
+		chunk.owners.remove(worker);
+		worker.failures = 0;
+		if (chunk.overwritten)
+			requeueIfIdle(chunk);                                           //Another worker wrote damaged data over the chunk meanwhile.
+		else if (!chunk.complete)
+		{
+			chunk.complete = true;                                          //Any other worker fetching it now abandons it.
+			inFlight.remove(chunk);
+			unsavedChunks.add(chunk.index);
+			completedChunks++;
+			downloadStatus.setStatusMessage("Download status for " + downloadStatus.getFileName() + ": downloading, "
+					+ completedChunks + " of " + chunkCount + " chunks from " + activeWorkers + " peers...");
+		}
+
+		/*Keep a moving average of the throughput of the peer */
+		worker.rate = (worker.samples == 0) ? rate : (worker.rate + rate) / 2;
+		worker.samples++;
+		if (worker.samples >= MIN_RATE_SAMPLES)
+			bestRate = Math.max(bestRate, worker.rate);
+
+		if (worker.samples >= MIN_RATE_SAMPLES && activeWorkers > 1 && worker.rate * SLOW_PEER_RATIO < bestRate)
+		{
+			System.err.println("Peer " + worker.peer + " is too slow (" + (long) (worker.rate / 1024) + " KB/s). No further chunks will be requested from it.");
+			retire(worker);
+		}
+
+		notifyAll();
+	}
+
+
+	/**
+	 * Adds the completed chunks to the checkpoint and saves it, if CHECKPOINT_INTERVAL_MILLIS has
+	 * passed since it was last saved. The data of the chunks is forced to storage first, so the
+	 * checkpoint never holds a chunk which could be lost in a crash.
+	 * @param always boolean true to save the checkpoint regardless of the interval
+	 * @throws IOException if the file cannot be forced or the checkpoint cannot be saved
+	 */
+	private void saveCheckpoint(boolean always) throws IOException
+	{
+		synchronized (checkpointLock)
+		{
+			List<Integer> saved;
+			synchronized (this)
+			{
+				if (unsavedChunks.isEmpty() || (!always && System.nanoTime() - lastCheckpointNanos < CHECKPOINT_INTERVAL_MILLIS * 1000000L))
+					return;
+
+				saved = new ArrayList<>(unsavedChunks);
+				unsavedChunks.clear();
+				lastCheckpointNanos = System.nanoTime();
+			}
+
+			file.force(false);
+			for (int index : saved)
+			{
+				checkpoint.setComplete(index);
+			}
+			checkpoint.save();
+		}
+	}
+
+
+	/**
+	 * Returns a chunk which a worker failed to fetch, so that another worker may fetch it.
+	 */
+	private synchronized void chunkFailed(Chunk chunk, PeerWorker worker)
+	{
+		chunk.owners.remove(worker);
+		requeueIfIdle(chunk);
+
+		if (++worker.failures >= MAX_PEER_FAILURES)
+			retire(worker);
+
+		notifyAll();
+	}
+
+
+	/**
+	 * Records that a worker stopped fetching a chunk because another worker completed it.
+	 */
+	private synchronized void chunkAbandoned(Chunk chunk, PeerWorker worker)
+	{
+		chunk.owners.remove(worker);
+		requeueIfIdle(chunk);                                               //The chunk may since have been found to be damaged.
+		notifyAll();
+	}
+
+
+	/**
+	 * Records that the data a worker wrote to a chunk does not match its checksum. If another worker
+	 * had completed the chunk, the damaged data may have been written over its data, so the chunk is
+	 * no longer complete, and is removed from the checkpoint if it was saved. If other workers are
+	 * still fetching the chunk, none of them may complete it, as their data may also have been
+	 * written over. The chunk is handed out again once no worker is fetching it.
+	 * @throws IOException if the checkpoint cannot be saved
+	 */
+	private void chunkCorrupted(Chunk chunk) throws IOException
+	{
+		synchronized (checkpointLock)                                       //Taken first, as by saveCheckpoint().
+		{
+			boolean saved;
+			synchronized (this)
+			{
+				corruptChunks++;
+				if (chunk.owners.size() > 1)
+					chunk.overwritten = true;
+				if (!chunk.complete)
+					return;
+
+				chunk.complete = false;
+				completedChunks--;
+				inFlight.add(chunk);
+				saved = !unsavedChunks.remove(Integer.valueOf(chunk.index));
+			}
+
+			if (saved)
+			{
+				checkpoint.clearComplete(chunk.index);
+				checkpoint.save();
+			}
+		}
+	}
+
+
+	/**
+	 * Hands a chunk out again once no worker is fetching it, unless it is complete. The caller must
+	 * hold the monitor of this SwarmDownload.
+	 */
+	private void requeueIfIdle(Chunk chunk)
+	{
+		if (!chunk.complete && chunk.owners.isEmpty())
+		{
+			chunk.overwritten = false;
+			inFlight.remove(chunk);
+			pending.addFirst(chunk);
+		}
+	}
+
+
+	private synchronized void retire(PeerWorker worker)
+	{
+		if (!worker.retired)
+		{
+			worker.retired = true;
+			activeWorkers--;
+		}
+
+		/*Without any workers left, the chunks which remain can never be fetched */
+		if (activeWorkers == 0)
+			notifyAll();
+	}
+
+
+	/**
+	 * Gets a connection to the peer from the pool, and tells the peer failure listener if none can be made.
+	 */
+	private PeerConnectionPool.Connection acquire(InetSocketAddress peer) throws IOException
+	{
+		try
+		{
+			return connections.acquire(peer);
+		}
+		catch (IOException connectEx)
+		{
+			Consumer<String> listener = peerFailureListener;
+			if (listener != null)
+				listener.accept(peerAddresses.get(peer));
+			throw connectEx;
+		}
+	}
+
+
+	/**
+	 * Returns a connection to the pool if its replies were read entirely, or closes it otherwise.
+	 */
+	private void release(PeerConnectionPool.Connection connection, boolean reusable)
+	{
+		if (reusable)
+			connections.release(connection);
+		else
+			connections.discard(connection);
+	}
+
+
+	/**
+	 * Sends a range request for the file and reads the header of the reply, after which the
+	 * stream of the connection holds the bytes of the range. The checksum of the range is requested
+	 * if the chunk hashes are not available.
+	 */
+	private PeerProtocol.Frame sendRangeRequest(PeerConnectionPool.Connection connection, long offset, long length) throws IOException
+	{
+		connection.sendRangeRequest(downloadStatus.getFileName(), offset, length, hashes == null);
+		connection.flush();
+		return connection.readRangeHeader();
+	}
+
+
+	/**
+	 * Fetches chunks from one peer until no chunks remain or the peer is retired.
+	 */
+	private final class PeerWorker implements Runnable
+	{
+		final InetSocketAddress peer;
+
+		/*Guarded by the monitor of the SwarmDownload */
+		boolean retired;
+		int failures;
+		int samples;
+		double rate;                                                        //Bytes per second.
+		final MessageDigest digest = ContentHashes.newDigest();            //Used only by the worker's thread.
+		final CRC32 crc = new CRC32();
+		final BandwidthLimiter.Flow flow = new BandwidthLimiter.Flow();
+		long allowance;                                                     //Bytes granted by the download limiter but not yet read.
+		boolean queued;                                                     //Set while the peer has queued the request of the worker.
+		final PeerConnectionPool.QueueListener queueListener = (position, waitMillis) -> {
+			queued = true;
+			downloadStatus.setQueued(position, waitMillis);
+		};
+
+		PeerWorker(InetSocketAddress peer)
+		{
+			this.peer = peer;
+		}
+
+		public void run()
+		{
+			byte[] buf = new byte[PIECE_BUFFER_SIZE];
+			try
+			{
+				Chunk chunk;
+				while ((chunk = nextChunk(this)) != null)
+				{
+					long start = System.nanoTime();
+					try
+					{
+						if (fetchChunk(chunk, buf))
+						{
+							chunkCompleted(chunk, this, chunk.length / Math.max(1e-9, (System.nanoTime() - start) / 1e9));
+							saveCheckpoint(false);
+						}
+						else
+							chunkAbandoned(chunk, this);                       //Another peer fetched it first.
+					}
+					catch (IOException fetchEx)
+					{
+						System.err.println("Error fetching a chunk from peer " + peer + ": " + fetchEx.getMessage());
+						chunkFailed(chunk, this);
+					}
+				}
+			}
+			catch (InterruptedException interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				BandwidthLimiter.getDownloadInstance().release(flow);
+				retire(this);
+			}
+		}
+
+
+		/**
+		 * Fetches a chunk from the peer and writes it to the file. Each piece is read into the buffer and
+		 * checked against its hash before it is written. Without hashes, the chunk can only be checked
+		 * against its checksum once it is all written, so if another worker completes it first after this
+		 * worker has written to it, the rest is still read to check what was written.
+		 * @param buf byte[] of PIECE_BUFFER_SIZE bytes
+		 * @return boolean true if the chunk was fetched, false if it was abandoned because another
+		 * worker completed it first
+		 * @throws IOException if the peer does not return the chunk, or writing the file fails
+		 * @throws InterruptedException if interrupted while waiting for the download limit
+		 */
+		private boolean fetchChunk(Chunk chunk, byte[] buf) throws IOException, InterruptedException
+		{
+			digest.reset();
+			PeerConnectionPool.Connection connection = acquire(peer);
+			boolean reusable = false;
+			try
+			{
+				connection.setQueueListener(queueListener);
+				PeerProtocol.Frame header = sendRangeRequest(connection, chunk.offset, chunk.length);
+				InputStream inStream = connection.getRangeStream();        //Inflates the range if the peer compressed it.
+				leaveQueue();
+				if (header.getFileSize() != fileSize || header.getOffset() != chunk.offset || header.getLength() != chunk.length)
+				{
+					synchronized (SwarmDownload.this)
+					{
+						failures = MAX_PEER_FAILURES;                          //The peer has a different file, so retire it.
+					}
+					throw new IOException("The peer returned a range of a file of a different size.");
+				}
+
+				boolean checksummed = header.hasChecksum();
+				int checksum = header.getChecksum();                           //The header is reused by the next request.
+				crc.reset();
+				long position = chunk.offset;
+				long end = chunk.offset + chunk.length;
+				boolean unverified = false;                                    //Set once data not checked by a hash is written.
+				boolean abandoned = false;                                     //Set once another worker completes the chunk.
+				while (position < end)
+				{
+					if (chunk.complete && (!unverified || !checksummed))
+						return false;                                          //The rest of the reply is not read, so the connection is closed.
+
+					/*Read the whole of the current hash piece, so it can be checked before any of it is written */
+					int piece = (int) (position / ContentHashes.CHUNK_SIZE);
+					long pieceEnd = Math.min(end, (piece + 1L) * ContentHashes.CHUNK_SIZE);
+					int length = (int) (pieceEnd - position);
+					for (int filled = 0; filled < length; )
+					{
+						if (allowance == 0)
+							allowance = BandwidthLimiter.getDownloadInstance().acquire(flow, end - position - filled);
+						int read = inStream.read(buf, filled, (int) Math.min(allowance, length - filled));
+						if (read < 0)
+							throw new IOException("The peer closed the connection after " + (position + filled - chunk.offset) + " of " + chunk.length + " bytes.");
+						allowance -= read;
+						filled += read;
+					}
+
+					if (hashes != null)
+					{
+						digest.update(buf, 0, length);
+						if (!hashes.matchesChunk(piece, digest.digest()))
+						{
+							synchronized (SwarmDownload.this)
+							{
+								corruptChunks++;
+							}
+							throw new IOException("The data received for the range at " + (long) piece * ContentHashes.CHUNK_SIZE
+									+ " does not match its hash. The chunk will be fetched again.");
+						}
+					}
+					if (checksummed)
+						crc.update(buf, 0, length);
+
+					if (chunk.complete && !abandoned)
+					{
+						if (!unverified || !checksummed)
+							return false;
+						abandoned = true;                                      //Read the rest, to check what this worker has written.
+					}
+					if (!abandoned)
+					{
+						ByteBuffer data = ByteBuffer.wrap(buf, 0, length);
+						while (data.hasRemaining())
+						{
+							file.write(data, position + data.position());     //Positional write, so workers do not share a file position.
+						}
+						unverified = (hashes == null);
+					}
+					position = pieceEnd;
+				}
+
+				if (checksummed && (int) crc.getValue() != checksum)
+				{
+					chunkCorrupted(chunk);
+					throw new IOException("The data received for the range at " + chunk.offset
+							+ " does not match its checksum. The chunk will be fetched again.");
+				}
+
+				reusable = true;
+				return !abandoned;
+			}
+			finally
+			{
+				leaveQueue();
+				release(connection, reusable);
+			}
+		}
+
+
+		/**
+		 * Clears the queue position shown in the DownloadStatus once the peer no longer queues the request.
+		 */
+		private void leaveQueue()
+		{
+			if (queued)
+			{
+				queued = false;
+				downloadStatus.clearQueued();
+				downloadStatus.setStatusMessage("Download status for " + downloadStatus.getFileName() + ": downloading...");
+			}
+		}
+	}
+}
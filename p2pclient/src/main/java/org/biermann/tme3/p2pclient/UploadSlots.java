@@ -0,0 +1,259 @@
+/**
+ * UploadSlots.java
+ *
+ * Limits the number of files sent at once to a fixed number of upload slots, and decides which of
+ * the requests waiting for a slot is served next. Without a limit a popular peer splits its upload
+ * rate between every peer which asks, so each download slows to a crawl and all of them finish late.
+ * With it, a few uploads run at full speed and the others wait their turn.
+ *
+ * Waiting requests are held in a priority queue rather than in order of arrival, so that a request
+ * for a few bytes is not held up behind several long uploads. The priority of a request is the time
+ * at which it arrived plus a penalty for its length, of one second per SIZE_PENALTY_BYTES_PER_SECOND
+ * and at most MAX_SIZE_PENALTY_MILLIS. Small requests therefore overtake large ones, but a request
+ * which has waited MAX_SIZE_PENALTY_MILLIS is served before any request which arrived after it, so
+ * no request waits forever however many small requests keep arriving. Requests with the same
+ * priority are served in order of arrival.
+ *
+ * A request takes a Ticket with enqueue(). A thread which may block then calls await() until its
+ * ticket is granted a slot, and an event loop calls grantNext() whenever a slot may be free, which
+ * grants the ticket at the head of the queue. Every ticket must be passed to release() once its file
+ * has been sent, or once it is no longer waiting, e.g. because its peer closed the connection.
+ *
+ * The position of a waiting ticket and an estimate of its wait are given to its peer (see
+ * PeerProtocol). The estimate is based on the average time for which a slot is held, which is kept
+ * as a moving average of the uploads so far.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public class UploadSlots
+{
+	public static final long SIZE_PENALTY_BYTES_PER_SECOND = 1024 * 1024;   //Bytes of a request which delay it as long as a second of waiting.
+	public static final long MAX_SIZE_PENALTY_MILLIS = 60 * 1000;           //Longest a request can be overtaken by later ones.
+	public static final long POSITION_UPDATE_MILLIS = 1000;                 //Shortest time between reports of a changed position.
+	private static final double SERVICE_TIME_WEIGHT = 0.2;                  //Weight of the latest upload in the average.
+
+	private final int slots;
+
+	/*Waiting tickets and slots in use, guarded by this */
+	private final PriorityQueue<Ticket> queue = new PriorityQueue<>();
+	private int active;
+	private long nextSequence;
+	private double serviceMillis = -1;                                      //Average time a slot is held, or -1 before the first upload.
+
+
+	/**
+	 * A request for an upload slot. A ticket is waiting until it is granted a slot, and then holds the
+	 * slot until it is released.
+	 */
+	public static final class Ticket implements Comparable<Ticket>
+	{
+		private final long priority;                                         //Lower is served first.
+		private final long sequence;
+		private final Object attachment;
+		private boolean waiting = true;
+		private boolean granted;
+		private long grantedNanos;
+
+		private Ticket(long priority, long sequence, Object attachment)
+		{
+			this.priority = priority;
+			this.sequence = sequence;
+			this.attachment = attachment;
+		}
+
+		/**
+		 * Get the object given to enqueue(), e.g. the connection of the request.
+		 * @return Object attached to the ticket, or null
+		 */
+		public Object getAttachment()
+		{
+			return attachment;
+		}
+
+		@Override
+		public int compareTo(Ticket other)
+		{
+			int byPriority = Long.compare(priority, other.priority);
+			return (byPriority != 0) ? byPriority : Long.compare(sequence, other.sequence);
+		}
+	}
+
+
+	/**
+	 * Creates a set of upload slots.
+	 * @param slots int number of files which may be sent at once, at least 1
+	 */
+	public UploadSlots(int slots)
+	{
+		this.slots = Math.max(1, slots);
+	}
+
+
+	/**
+	 * Queues a request for an upload slot. The ticket is not granted a slot until await() or
+	 * grantNext() is called, even if a slot is free.
+	 * @param bytes long number of bytes to be sent, which lowers the priority of long requests
+	 * @param attachment Object returned by the ticket's getAttachment(), or null
+	 * @return Ticket which must be passed to release()
+	 */
+	public synchronized Ticket enqueue(long bytes, Object attachment)
+	{
+		long penalty = Math.min(MAX_SIZE_PENALTY_MILLIS, Math.max(0, bytes) / (SIZE_PENALTY_BYTES_PER_SECOND / 1000));
+		Ticket ticket = new Ticket(System.currentTimeMillis() + penalty, nextSequence++, attachment);
+		queue.add(ticket);
+		return ticket;
+	}
+
+
+	/**
+	 * Grants a slot to the ticket at the head of the queue if a slot is free.
+	 * @return Ticket granted a slot, or null if no slot is free or no ticket is waiting
+	 */
+	public synchronized Ticket grantNext()
+	{
+		if (active >= slots || queue.isEmpty())
+			return null;
+
+		Ticket ticket = queue.poll();
+		ticket.waiting = false;
+		ticket.granted = true;
+		ticket.grantedNanos = System.nanoTime();
+		active++;
+		notifyAll();                                                         //The thread of the ticket may be waiting for it.
+		return ticket;
+	}
+
+
+	/**
+	 * Waits until the ticket is granted a slot, or until the time given has passed, so the caller may
+	 * tell its peer how long it still has to wait.
+	 * @param ticket Ticket from enqueue()
+	 * @param timeoutMillis long longest time to wait, at least 1
+	 * @return boolean true once the ticket holds a slot
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public synchronized boolean await(Ticket ticket, long timeoutMillis) throws InterruptedException
+	{
+		while (grantNext() != null)
+		{}                                                                  //Slots may have been freed without a waiting thread waking.
+		if (!ticket.granted && ticket.waiting)
+		{
+			wait(Math.max(1, timeoutMillis));
+			while (grantNext() != null)
+			{}
+		}
+		return ticket.granted;
+	}
+
+
+	/**
+	 * Frees the slot held by the ticket, or removes it from the queue if it is still waiting. A ticket
+	 * may be released more than once.
+	 * @param ticket Ticket from enqueue()
+	 */
+	public synchronized void release(Ticket ticket)
+	{
+		if (ticket.granted)
+		{
+			ticket.granted = false;
+			active--;
+			double heldMillis = (System.nanoTime() - ticket.grantedNanos) / 1e6;
+			serviceMillis = (serviceMillis < 0) ? heldMillis : serviceMillis + SERVICE_TIME_WEIGHT * (heldMillis - serviceMillis);
+			notifyAll();                                                     //A waiting thread may take the free slot.
+		}
+		else if (ticket.waiting)
+		{
+			ticket.waiting = false;
+			queue.remove(ticket);
+		}
+	}
+
+
+	/**
+	 * Get the position of a ticket in the queue.
+	 * @param ticket Ticket from enqueue()
+	 * @return int 1 if the ticket is granted the next free slot, or more, or 0 if it is not waiting
+	 */
+	public synchronized int getPosition(Ticket ticket)
+	{
+		if (!ticket.waiting)
+			return 0;
+
+		int ahead = 0;
+		for (Ticket other : queue)
+		{
+			if (other.compareTo(ticket) < 0)
+				ahead++;
+		}
+		return ahead + 1;
+	}
+
+
+	/**
+	 * Get the waiting tickets in the order in which they will be granted slots, so the position of
+	 * each is its index plus one.
+	 * @return List of Ticket, which is a copy
+	 */
+	public synchronized List<Ticket> getQueue()
+	{
+		List<Ticket> waiting = new ArrayList<>(queue);
+		Collections.sort(waiting);
+		return waiting;
+	}
+
+
+	/**
+	 * Estimates the time a ticket at a position in the queue waits for a slot, assuming that slots are
+	 * held for the average time so far and freed evenly.
+	 * @param position int position from getPosition()
+	 * @return long milliseconds, or -1 if no upload has finished yet
+	 */
+	public synchronized long estimateWaitMillis(int position)
+	{
+		if (serviceMillis < 0)
+			return -1;
+		return (long) Math.ceil(position * serviceMillis / slots);
+	}
+
+
+	/**
+	 * Determines if a ticket enqueued now would be granted a slot at once, in which case the length of
+	 * its request does not matter and need not be found.
+	 * @return boolean true if a slot is free and no ticket is waiting
+	 */
+	public synchronized boolean isFree()
+	{
+		return active < slots && queue.isEmpty();
+	}
+
+
+	public int getSlots()
+	{
+		return slots;
+	}
+
+	/**
+	 * Get the number of slots in use.
+	 * @return int number of tickets which hold a slot
+	 */
+	public synchronized int getActive()
+	{
+		return active;
+	}
+
+	/**
+	 * Get the number of tickets waiting for a slot.
+	 * @return int length of the queue
+	 */
+	public synchronized int getWaiting()
+	{
+		return queue.size();
+	}
+}
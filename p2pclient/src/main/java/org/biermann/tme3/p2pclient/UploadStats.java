@@ -0,0 +1,77 @@
+/**
+ * UploadStats.java
+ *
+ * Counts the files being uploaded to other peers and the bytes sent, for both send engines. The
+ * counts are reported to the index service with each heartbeat, so that it can direct downloads
+ * to the peers which are least loaded (see P2PPeerController).
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class UploadStats
+{
+	private static final UploadStats instance = new UploadStats();            //Single instance shared by all send engines.
+
+	private final AtomicInteger activeUploads = new AtomicInteger();
+	private final LongAdder bytesSent = new LongAdder();
+	private long sampledBytes;
+	private long sampledNanos = System.nanoTime();
+
+
+	/**
+	 * Get the application-wide UploadStats.
+	 * @return UploadStats shared by all send engines
+	 */
+	public static UploadStats getInstance()
+	{
+		return instance;
+	}
+
+
+	public void uploadStarted()
+	{
+		activeUploads.incrementAndGet();
+	}
+
+	public void uploadFinished()
+	{
+		activeUploads.decrementAndGet();
+	}
+
+	public void addBytesSent(long bytes)
+	{
+		bytesSent.add(bytes);
+	}
+
+
+	public int getActiveUploads()
+	{
+		return activeUploads.get();
+	}
+
+	public long getBytesSent()
+	{
+		return bytesSent.sum();
+	}
+
+
+	/**
+	 * Get the rate at which data was sent since the previous call.
+	 * @return long bytes sent per second
+	 */
+	public synchronized long sampleThroughput()
+	{
+		long now = System.nanoTime();
+		long bytes = bytesSent.sum();
+		long elapsedNanos = Math.max(1, now - sampledNanos);
+		long throughput = (long) ((bytes - sampledBytes) * 1e9 / elapsedNanos);
+
+		sampledBytes = bytes;
+		sampledNanos = now;
+		return throughput;
+	}
+}
@@ -7,6 +7,8 @@ public class FileMessage
 {
 	private String fileName;
 	private String hostAddress;
+	private String contentHash;                                  //Optional, see ContentHashes.
+	private Long fileSize;                                       //Optional, sent with the content hash.
 	
 	
 	public FileMessage()
@@ -20,6 +22,14 @@ public class FileMessage
 		this.hostAddress = hostAddress;
 	}
 	
+	public FileMessage(String fileName, String hostAddress, String contentHash, Long fileSize)
+	{
+		this.fileName = fileName;
+		this.hostAddress = hostAddress;
+		this.contentHash = contentHash;
+		this.fileSize = fileSize;
+	}
+	
 	public String getFileName() 
 	{
 		return fileName;
@@ -37,4 +47,20 @@ public class FileMessage
 	{
 		this.hostAddress = hostAddress;
 	}
+	public String getContentHash() 
+	{
+		return contentHash;
+	}
+	public void setContentHash(String contentHash) 
+	{
+		this.contentHash = contentHash;
+	}
+	public Long getFileSize() 
+	{
+		return fileSize;
+	}
+	public void setFileSize(Long fileSize) 
+	{
+		this.fileSize = fileSize;
+	}
 }
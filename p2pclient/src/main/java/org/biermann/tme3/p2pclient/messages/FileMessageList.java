@@ -0,0 +1,40 @@
+/**
+ * FileMessageList.java
+ * 
+ * Represents a list of FileMessage instances which may be serialized as XML for transmission.
+ * Used to share or unshare many files in a single request.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class FileMessageList 
+{
+	private List<FileMessage> files = new ArrayList<>();
+	
+	public FileMessageList()
+	{}
+	
+	public FileMessageList(List<FileMessage> files)
+	{
+		this.files = files;
+	}
+
+	@XmlElement(name = "fileMessage")
+	public List<FileMessage> getFiles() 
+	{
+		return files;
+	}
+
+	public void setFiles(List<FileMessage> files) 
+	{
+		this.files = files;
+	}
+}
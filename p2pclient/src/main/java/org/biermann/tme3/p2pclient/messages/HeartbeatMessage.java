@@ -0,0 +1,88 @@
+/**
+ * HeartbeatMessage.java
+ * 
+ * Represents a heartbeat sent by a peer to renew its lease with the index service. Holds the
+ * addresses under which the peer shares files, so that all of its leases are renewed by a single
+ * request. May be serialized as XML for transmission.
+ * 
+ * The peer may also report its load, which the index service uses to rank the peers sharing a
+ * file: the number of files it is uploading, the number of further uploads it can start at once,
+ * and the rate at which it sent data since its previous heartbeat. Each is null if not reported.
+ * 
+ * @author Oloff Biermann
+ */
+
+package org.biermann.tme3.p2pclient.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class HeartbeatMessage 
+{
+	private List<String> hostAddresses = new ArrayList<>();
+	private Integer activeUploads;
+	private Integer freeUploadSlots;
+	private Long throughputBytesPerSecond;
+	
+	
+	public HeartbeatMessage()
+	{}
+	
+	public HeartbeatMessage(List<String> hostAddresses)
+	{
+		this.hostAddresses = hostAddresses;
+	}
+	
+	public HeartbeatMessage(List<String> hostAddresses, Integer activeUploads, Integer freeUploadSlots, Long throughputBytesPerSecond)
+	{
+		this.hostAddresses = hostAddresses;
+		this.activeUploads = activeUploads;
+		this.freeUploadSlots = freeUploadSlots;
+		this.throughputBytesPerSecond = throughputBytesPerSecond;
+	}
+
+	@XmlElement(name = "hostAddress")
+	public List<String> getHostAddresses() 
+	{
+		return hostAddresses;
+	}
+
+	public void setHostAddresses(List<String> hostAddresses) 
+	{
+		this.hostAddresses = hostAddresses;
+	}
+
+	public Integer getActiveUploads() 
+	{
+		return activeUploads;
+	}
+
+	public void setActiveUploads(Integer activeUploads) 
+	{
+		this.activeUploads = activeUploads;
+	}
+
+	public Integer getFreeUploadSlots() 
+	{
+		return freeUploadSlots;
+	}
+
+	public void setFreeUploadSlots(Integer freeUploadSlots) 
+	{
+		this.freeUploadSlots = freeUploadSlots;
+	}
+
+	public Long getThroughputBytesPerSecond() 
+	{
+		return throughputBytesPerSecond;
+	}
+
+	public void setThroughputBytesPerSecond(Long throughputBytesPerSecond) 
+	{
+		this.throughputBytesPerSecond = throughputBytesPerSecond;
+	}
+}
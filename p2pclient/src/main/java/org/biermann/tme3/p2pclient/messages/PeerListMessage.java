@@ -0,0 +1,88 @@
+/**
+ * PeerListMessage.java
+ * 
+ * Represents a message containing the name of a file and the addresses of the hosts which 
+ * share that file. May be serialized as XML for transmission. Used by peers which download 
+ * a file from several hosts at once.
+ * 
+ * When known, the content hash and size of the file are included (see ContentHashes). All of the 
+ * hosts then share that content, or did not report a content hash.
+ * 
+ * @author Oloff Biermann
+ */
+
+package org.biermann.tme3.p2pclient.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class PeerListMessage 
+{
+	private String fileName;
+	private String contentHash;
+	private Long fileSize;
+	private List<String> hostAddresses = new ArrayList<>();
+	
+	
+	public PeerListMessage()
+	{}
+	
+	public PeerListMessage(String fileName, List<String> hostAddresses)
+	{
+		this.fileName = fileName;
+		this.hostAddresses = hostAddresses;
+	}
+	
+	public PeerListMessage(String fileName, String contentHash, Long fileSize, List<String> hostAddresses)
+	{
+		this.fileName = fileName;
+		this.contentHash = contentHash;
+		this.fileSize = fileSize;
+		this.hostAddresses = hostAddresses;
+	}
+
+	public String getFileName() 
+	{
+		return fileName;
+	}
+
+	public void setFileName(String fileName) 
+	{
+		this.fileName = fileName;
+	}
+
+	public String getContentHash() 
+	{
+		return contentHash;
+	}
+
+	public void setContentHash(String contentHash) 
+	{
+		this.contentHash = contentHash;
+	}
+
+	public Long getFileSize() 
+	{
+		return fileSize;
+	}
+
+	public void setFileSize(Long fileSize) 
+	{
+		this.fileSize = fileSize;
+	}
+
+	@XmlElement(name = "hostAddress")
+	public List<String> getHostAddresses() 
+	{
+		return hostAddresses;
+	}
+
+	public void setHostAddresses(List<String> hostAddresses) 
+	{
+		this.hostAddresses = hostAddresses;
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * BinaryMessageProvider.java
+ *
+ * Reads and writes FileMessage and ErrorMessage in a compact binary format, with the media type
+ * APPLICATION_P2P_BINARY. A message is:
+ *   type      1 byte: TYPE_FILE_MESSAGE or TYPE_ERROR_MESSAGE
+ *   fields    1 byte: a bit for each field which is present
+ *   values    each present field in the order of its bit
+ * Strings are their length in bytes as a varint (7 bits per byte, least significant first) followed
+ * by their UTF-8 bytes, and numbers are zigzag-encoded varints. A content hash of 64 hexadecimal
+ * digits is sent as its 32 bytes, and any other content hash as a string.
+ *
+ * A FileMessage with a content hash is less than half the size of the same message in XML, and is
+ * encoded and decoded without JAXB.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient.providers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import org.biermann.tme3.p2pclient.messages.ErrorMessage;
+import org.biermann.tme3.p2pclient.messages.FileMessage;
+
+@Provider
+@Consumes(BinaryMessageProvider.APPLICATION_P2P_BINARY)
+@Produces(BinaryMessageProvider.APPLICATION_P2P_BINARY)
+public class BinaryMessageProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object>
+{
+	public static final String APPLICATION_P2P_BINARY = "application/x-p2p-binary";
+	public static final MediaType APPLICATION_P2P_BINARY_TYPE = MediaType.valueOf(APPLICATION_P2P_BINARY);
+
+	static final int TYPE_FILE_MESSAGE = 1;
+	static final int TYPE_ERROR_MESSAGE = 2;
+
+	/*Field bits of a FileMessage */
+	private static final int FIELD_FILE_NAME = 1;
+	private static final int FIELD_HOST_ADDRESS = 1 << 1;
+	private static final int FIELD_HASH_BYTES = 1 << 2;
+	private static final int FIELD_HASH_TEXT = 1 << 3;
+	private static final int FIELD_FILE_SIZE = 1 << 4;
+
+	/*Field bits of an ErrorMessage */
+	private static final int FIELD_MESSAGE = 1;
+	private static final int FIELD_STATUS_CODE = 1 << 1;
+
+	private static final int HASH_BYTES = 32;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+	{
+		return JsonMessageProvider.isSupported(type);
+	}
+
+
+	@Override
+	public long getSize(Object message, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+	{
+		return -1;
+	}
+
+
+	@Override
+	public void writeTo(Object message, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException
+	{
+		WireBuffer buffer = WireBuffer.get();
+		if (message instanceof FileMessage)
+			writeFileMessage(buffer, (FileMessage) message);
+		else
+			writeErrorMessage(buffer, (ErrorMessage) message);
+
+		buffer.writeTo(entityStream);
+	}
+
+
+	private static void writeFileMessage(WireBuffer buffer, FileMessage message)
+	{
+		String contentHash = message.getContentHash();
+		boolean hashBytes = isHexHash(contentHash);
+		int fields = (message.getFileName() != null ? FIELD_FILE_NAME : 0)
+				| (message.getHostAddress() != null ? FIELD_HOST_ADDRESS : 0)
+				| (contentHash != null ? (hashBytes ? FIELD_HASH_BYTES : FIELD_HASH_TEXT) : 0)
+				| (message.getFileSize() != null ? FIELD_FILE_SIZE : 0);
+
+		buffer.writeByte(TYPE_FILE_MESSAGE);
+		buffer.writeByte(fields);
+		if (message.getFileName() != null)
+			buffer.writeString(message.getFileName());
+		if (message.getHostAddress() != null)
+			buffer.writeString(message.getHostAddress());
+		if (hashBytes)
+		{
+			for (int i = 0; i < HASH_BYTES * 2; i += 2)
+			{
+				buffer.writeByte((Character.digit(contentHash.charAt(i), 16) << 4) | Character.digit(contentHash.charAt(i + 1), 16));
+			}
+		}
+		else if (contentHash != null)
+		{
+			buffer.writeString(contentHash);
+		}
+		if (message.getFileSize() != null)
+			writeSigned(buffer, message.getFileSize());
+	}
+
+
+	private static void writeErrorMessage(WireBuffer buffer, ErrorMessage message)
+	{
+		buffer.writeByte(TYPE_ERROR_MESSAGE);
+		buffer.writeByte((message.getMessage() != null ? FIELD_MESSAGE : 0) | FIELD_STATUS_CODE);
+		if (message.getMessage() != null)
+			buffer.writeString(message.getMessage());
+		writeSigned(buffer, message.getStatusCode());
+	}
+
+
+	private static boolean isHexHash(String contentHash)
+	{
+		if (contentHash == null || contentHash.length() != HASH_BYTES * 2)
+			return false;
+
+		for (int i = 0; i < contentHash.length(); i++)
+		{
+			if (Character.digit(contentHash.charAt(i), 16) < 0)
+				return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Writes a number as a zigzag-encoded varint, so small negative numbers are also short.
+	 */
+	private static void writeSigned(WireBuffer buffer, long value)
+	{
+		buffer.writeVarLong((value << 1) ^ (value >> 63));
+	}
+
+
+	private static long readSigned(WireBuffer buffer)
+	{
+		long encoded = buffer.readVarLong();
+		return (encoded >>> 1) ^ -(encoded & 1);
+	}
+
+
+	@Override
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+	{
+		return JsonMessageProvider.isSupported(type);
+	}
+
+
+	@Override
+	public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException
+	{
+		WireBuffer buffer = WireBuffer.get();
+		try
+		{
+			buffer.readFrom(entityStream);
+			int messageType = buffer.readByte();
+			Object message;
+			if (FileMessage.class.equals(type) && messageType == TYPE_FILE_MESSAGE)
+				message = readFileMessage(buffer);
+			else if (ErrorMessage.class.equals(type) && messageType == TYPE_ERROR_MESSAGE)
+				message = readErrorMessage(buffer);
+			else
+				throw new IllegalArgumentException("Unexpected message type " + messageType + ".");
+
+			if (buffer.hasRemaining())
+				throw new IllegalArgumentException("Unexpected data after the message.");
+
+			return message;
+		}
+		catch (IllegalArgumentException invalidMessage)
+		{
+			throw new IOException("Invalid binary message: " + invalidMessage.getMessage());
+		}
+	}
+
+
+	private static FileMessage readFileMessage(WireBuffer buffer)
+	{
+		FileMessage message = new FileMessage();
+		int fields = buffer.readByte();
+		if ((fields & FIELD_FILE_NAME) != 0)
+			message.setFileName(buffer.readString());
+		if ((fields & FIELD_HOST_ADDRESS) != 0)
+			message.setHostAddress(buffer.readString());
+		if ((fields & FIELD_HASH_BYTES) != 0)
+		{
+			char[] hex = new char[HASH_BYTES * 2];
+			for (int i = 0; i < hex.length; i += 2)
+			{
+				int b = buffer.readByte();
+				hex[i] = HEX_DIGITS[b >> 4];
+				hex[i + 1] = HEX_DIGITS[b & 0xF];
+			}
+			message.setContentHash(new String(hex));
+		}
+		else if ((fields & FIELD_HASH_TEXT) != 0)
+		{
+			message.setContentHash(buffer.readString());
+		}
+		if ((fields & FIELD_FILE_SIZE) != 0)
+			message.setFileSize(readSigned(buffer));
+
+		return message;
+	}
+
+
+	private static ErrorMessage readErrorMessage(WireBuffer buffer)
+	{
+		ErrorMessage message = new ErrorMessage();
+		int fields = buffer.readByte();
+		if ((fields & FIELD_MESSAGE) != 0)
+			message.setMessage(buffer.readString());
+		if ((fields & FIELD_STATUS_CODE) != 0)
+			message.setStatusCode((int) readSigned(buffer));
+
+		return message;
+	}
+}
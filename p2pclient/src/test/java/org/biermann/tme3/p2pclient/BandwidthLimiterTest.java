@@ -0,0 +1,176 @@
+/**
+ * BandwidthLimiterTest.java
+ *
+ * Unit tests of BandwidthLimiter: that a flow is not held up without a limit, that the bytes granted
+ * keep to the rate, that flows asking for different amounts at once are granted equal shares, and that
+ * a waiting flow is released when the limit is removed.
+ *
+ * The tests which measure rates run for about half a second each, and allow for a slow machine.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class BandwidthLimiterTest extends TestCase
+{
+	private static final long RATE = 1024 * 1024;                            //Bytes per second.
+
+
+	/**
+	 * Create the test case
+	 * @param testName name of the test case
+	 */
+	public BandwidthLimiterTest(String testName)
+	{
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite()
+	{
+		return new TestSuite(BandwidthLimiterTest.class);
+	}
+
+
+	public void testUnlimited() throws InterruptedException
+	{
+		BandwidthLimiter limiter = new BandwidthLimiter();
+		BandwidthLimiter.Flow flow = new BandwidthLimiter.Flow();
+		assertFalse(limiter.isLimited());
+		assertEquals(Long.MAX_VALUE, limiter.acquire(flow, Long.MAX_VALUE));
+		assertEquals(12345, limiter.tryAcquire(flow, 12345));
+	}
+
+
+	public void testGrantsAtMostWanted() throws InterruptedException
+	{
+		BandwidthLimiter limiter = new BandwidthLimiter();
+		limiter.setRate(100 * RATE);
+		BandwidthLimiter.Flow flow = new BandwidthLimiter.Flow();
+		for (int i = 0; i < 100; i++)
+		{
+			long granted = limiter.acquire(flow, 1000);
+			assertTrue(granted >= 1 && granted <= 1000);
+		}
+		limiter.release(flow);
+	}
+
+
+	public void testRateIsKept() throws InterruptedException
+	{
+		BandwidthLimiter limiter = new BandwidthLimiter();
+		limiter.setRate(RATE);
+		BandwidthLimiter.Flow flow = new BandwidthLimiter.Flow();
+		long total = RATE / 2;
+
+		long start = System.nanoTime();
+		for (long remaining = total; remaining > 0; )
+		{
+			remaining -= limiter.acquire(flow, remaining);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		limiter.release(flow);
+
+		/*The bucket starts empty, so at most its burst may be taken ahead of the rate */
+		double fastest = (total - RATE * BandwidthLimiter.BURST_MILLIS / 1000.0) / RATE;
+		assertTrue("Took " + seconds + " s", seconds >= fastest * 0.9);
+		assertTrue("Took " + seconds + " s", seconds < 2.0);
+	}
+
+
+	public void testTryAcquireWaitsForTurn() throws InterruptedException
+	{
+		BandwidthLimiter limiter = new BandwidthLimiter();
+		limiter.setRate(RATE);
+		BandwidthLimiter.Flow flow = new BandwidthLimiter.Flow();
+		assertEquals(0, limiter.tryAcquire(flow, RATE));                     //The bucket starts empty.
+
+		long granted = 0;
+		long deadline = System.currentTimeMillis() + 2000;
+		while (granted == 0 && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(limiter.getRetryMillis());
+			granted = limiter.tryAcquire(flow, RATE);
+		}
+		assertTrue(granted > 0 && granted <= RATE);
+		limiter.release(flow);
+	}
+
+
+	/**
+	 * A flow asking for a megabyte at a time and one asking for a few quanta at a time are granted about
+	 * the same number of bytes, as each may take at most QUANTUM_BYTES per round.
+	 */
+	public void testFlowsShareRateEqually() throws InterruptedException
+	{
+		BandwidthLimiter limiter = new BandwidthLimiter();
+		limiter.setRate(RATE);
+		AtomicLong greedy = new AtomicLong();
+		AtomicLong modest = new AtomicLong();
+		long end = System.nanoTime() + 500 * 1000000L;
+		Thread greedyThread = startFlow(limiter, RATE, greedy, end);
+		Thread modestThread = startFlow(limiter, 4 * BandwidthLimiter.QUANTUM_BYTES, modest, end);
+		greedyThread.join();
+		modestThread.join();
+
+		double share = (double) greedy.get() / (greedy.get() + modest.get());
+		assertTrue("The greedy flow took " + greedy.get() + " bytes and the modest " + modest.get(), share > 0.3 && share < 0.7);
+		assertTrue((greedy.get() + modest.get()) < RATE);                    //Half a second at the rate, and the burst.
+	}
+
+
+	public void testRemovingLimitReleasesWaiter() throws InterruptedException
+	{
+		final BandwidthLimiter limiter = new BandwidthLimiter();
+		limiter.setRate(1);                                                  //A quantum would take hours.
+		final AtomicLong granted = new AtomicLong();
+		Thread waiter = new Thread(() -> {
+			try
+			{
+				granted.set(limiter.acquire(new BandwidthLimiter.Flow(), 1000));
+			}
+			catch (InterruptedException interrupted)
+			{}
+		});
+		waiter.start();
+		Thread.sleep(50);
+		limiter.setRate(0);
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		assertEquals(1000, granted.get());
+	}
+
+
+	/**
+	 * Starts a thread which acquires bytes for its own flow, wanted at a time, until the end time.
+	 */
+	private static Thread startFlow(final BandwidthLimiter limiter, final long wanted, final AtomicLong total, final long endNanos)
+	{
+		Thread thread = new Thread(() -> {
+			BandwidthLimiter.Flow flow = new BandwidthLimiter.Flow();
+			try
+			{
+				while (System.nanoTime() < endNanos)
+				{
+					total.addAndGet(limiter.acquire(flow, wanted));
+				}
+			}
+			catch (InterruptedException interrupted)
+			{}
+			finally
+			{
+				limiter.release(flow);
+			}
+		});
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ * CompressionBenchmark.java
+ *
+ * Measures what compressing ranges costs and gains for each codec the peers can use: no compression,
+ * and Deflate at levels 1, 6 and 9. Three kinds of file are used: CSV-like log lines, which compress
+ * well, random bytes, which stand for archives and media, and a mix of the two in alternate blocks.
+ *
+ * For each file and codec, the blocks are compressed with RangeCompressor and read back through
+ * RangeDecompressor, and the following are reported:
+ * - the compressed size as a share of the file, and whether the probe would compress the file at all,
+ * - the CPU time per MB to compress and to decompress, as MB/s of one core,
+ * - the resulting throughput over links of 100 Mbit/s and 1 Gbit/s, which is the slowest of the link
+ *   carrying the compressed bytes, the compressing core and the decompressing core, or the link for
+ *   a file the probe would not compress.
+ * Each file is then downloaded on loopback from a NioFileSendServer using the codec, and the elapsed
+ * time, bytes sent and CPU time of the process are reported. Loopback is far faster than any real
+ * link, so this shows the CPU cost rather than the gain.
+ *
+ * This is not run as part of the unit tests. Run it from the p2pclient directory with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.CompressionBenchmark -Dexec.args="32"
+ * The argument is the size of each file in MB (default 32).
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CompressionBenchmark
+{
+	private static final int[] LEVELS = { 0, 1, 6, 9 };                     //0 sends ranges as they are.
+	private static final double[] LINK_MBITS = { 100, 1000 };
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception
+	{
+		int sizeMB = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+		int size = sizeMB * 1024 * 1024;
+
+		Path shareDir = Files.createTempDirectory("p2p-compress-share");
+		Path receiveDir = Files.createTempDirectory("p2p-compress-receive");
+		String[] names = { "log.csv", "random.dat", "mixed.dat" };
+		byte[] log = logLines(size, new Random(1));
+		byte[] random = new byte[size];
+		new Random(2).nextBytes(random);
+		byte[] mixed = new byte[size];
+		for (int i = 0; i < size; i += RangeCompressor.BLOCK_BYTES)
+		{
+			int length = Math.min(RangeCompressor.BLOCK_BYTES, size - i);
+			System.arraycopy(((i / RangeCompressor.BLOCK_BYTES) % 2 == 0) ? log : random, i, mixed, i, length);
+		}
+		Files.write(shareDir.resolve(names[0]), log);
+		Files.write(shareDir.resolve(names[1]), random);
+		Files.write(shareDir.resolve(names[2]), mixed);
+
+		System.out.println("Files of " + sizeMB + " MB, Java " + System.getProperty("java.version"));
+		System.out.printf("%-11s %-9s %6s %6s %12s %12s %12s %12s%n", "file", "codec", "ratio", "probe",
+				"deflate MB/s", "inflate MB/s", "100Mbit MB/s", "1Gbit MB/s");
+		try
+		{
+			for (String name : names)
+			{
+				for (int level : LEVELS)
+				{
+					measureCodec(shareDir.resolve(name), level, false);             //Warm-up.
+					measureCodec(shareDir.resolve(name), level, true);
+				}
+			}
+
+			System.out.println();
+			System.out.printf("%-11s %-9s %12s %12s %12s %12s%n", "file", "codec", "elapsed ms", "MB/s", "sent MB", "CPU ms");
+			for (int level : LEVELS)
+			{
+				int port = startServer(shareDir.toString(), level);
+				for (String name : names)
+				{
+					download(name, port, shareDir, receiveDir, level, false);
+					download(name, port, shareDir, receiveDir, level, true);
+				}
+			}
+		}
+		finally
+		{
+			for (String name : names)
+			{
+				Files.deleteIfExists(shareDir.resolve(name));
+				Files.deleteIfExists(receiveDir.resolve(name));
+			}
+			Files.deleteIfExists(shareDir);
+			Files.deleteIfExists(receiveDir);
+		}
+
+		System.exit(0);                                                             //The send engine cannot be stopped.
+	}
+
+
+	/**
+	 * Compresses the whole file into block frames and reads them back, measuring the CPU time of each.
+	 */
+	private static void measureCodec(Path path, int level, boolean report) throws IOException
+	{
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			long size = file.size();
+			double sizeMB = size / (1024.0 * 1024.0);
+			if (level == 0)
+			{
+				if (report)
+					System.out.printf("%-11s %-9s %6.2f %6s %12s %12s %12.1f %12.1f%n", path.getFileName(), "none", 1.0, "-", "-", "-",
+							LINK_MBITS[0] / 8, LINK_MBITS[1] / 8);
+				return;
+			}
+
+			RangeCompressor compressor = new RangeCompressor(level);
+			ByteBuffer block = RangeCompressor.allocateBlockBuffer();
+			ByteArrayOutputStream frames = new ByteArrayOutputStream((int) size / 2);
+			boolean probed = compressor.shouldCompress(file, 0, size);
+			long start = threads.getCurrentThreadCpuTime();
+			for (long position = 0; position < size; )
+			{
+				position += compressor.putBlock(file, position, size, block);
+				frames.write(block.array(), 0, block.limit());
+			}
+			long deflateNanos = threads.getCurrentThreadCpuTime() - start;
+			compressor.close();
+
+			byte[] sent = frames.toByteArray();
+			RangeDecompressor decompressor = new RangeDecompressor(new BufferedInputStream(new ByteArrayInputStream(sent)));
+			decompressor.reset(0, size);
+			byte[] buf = new byte[64 * 1024];
+			start = threads.getCurrentThreadCpuTime();
+			long read = 0;
+			int n;
+			while ((n = decompressor.read(buf, 0, buf.length)) > 0)
+			{
+				read += n;
+			}
+			long inflateNanos = threads.getCurrentThreadCpuTime() - start;
+			decompressor.close();
+			if (read != size)
+				throw new IOException("Only " + read + " of " + size + " bytes were inflated.");
+
+			if (report)
+			{
+				double ratio = (double) sent.length / size;
+				double deflateRate = sizeMB / (Math.max(1, deflateNanos) / 1e9);
+				double inflateRate = sizeMB / (Math.max(1, inflateNanos) / 1e9);
+				System.out.printf("%-11s %-9s %6.2f %6s %12.1f %12.1f %12.1f %12.1f%n", path.getFileName(), "deflate-" + level, ratio,
+						probed ? "yes" : "no", deflateRate, inflateRate, effectiveRate(probed, ratio, deflateRate, inflateRate, LINK_MBITS[0]),
+						effectiveRate(probed, ratio, deflateRate, inflateRate, LINK_MBITS[1]));
+			}
+		}
+	}
+
+
+	/**
+	 * Get the MB/s of the file delivered over a link, which is limited by the link carrying the
+	 * compressed bytes and by each end's core, as blocks are compressed and inflated while others are sent.
+	 * A file the probe rejects is sent as it is, at the rate of the link.
+	 */
+	private static double effectiveRate(boolean probed, double ratio, double deflateRate, double inflateRate, double linkMbits)
+	{
+		if (!probed)
+			return linkMbits / 8;
+		return Math.min(linkMbits / 8 / ratio, Math.min(deflateRate, inflateRate));
+	}
+
+
+	/**
+	 * Downloads a file from the server, and prints the elapsed time, the bytes sent and the CPU time of
+	 * the process if report is true.
+	 */
+	private static void download(String name, int port, Path shareDir, Path receiveDir, int level, boolean report)
+			throws IOException
+	{
+		long sentBefore = UploadStats.getInstance().getBytesSent();
+		long cpuBefore = processCpuNanos();
+		long start = System.nanoTime();
+		DownloadStatus status = new DownloadStatus(name);
+		if (!new FileReceiveHelper("127.0.0.1", port, receiveDir.toString(), status).receive())
+			throw new IOException("The download of " + name + " failed: " + status.getStatusMessage());
+		long elapsed = System.nanoTime() - start;
+		long cpu = processCpuNanos() - cpuBefore;
+		long sent = UploadStats.getInstance().getBytesSent() - sentBefore;
+
+		if (!Arrays.equals(Files.readAllBytes(shareDir.resolve(name)), Files.readAllBytes(receiveDir.resolve(name))))
+			throw new IOException("The downloaded file " + name + " differs from the shared file.");
+		double sizeMB = Files.size(shareDir.resolve(name)) / (1024.0 * 1024.0);
+		Files.delete(receiveDir.resolve(name));
+
+		if (report)
+			System.out.printf("%-11s %-9s %12d %12.1f %12.1f %12s%n", name, (level == 0) ? "none" : "deflate-" + level, elapsed / 1000000,
+					sizeMB / (elapsed / 1e9), sent / (1024.0 * 1024.0), (cpu < 0) ? "-" : Long.toString(cpu / 1000000));
+	}
+
+
+	/**
+	 * Get the CPU time of the process where the JVM reports it, or -1.
+	 */
+	private static long processCpuNanos()
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return -1;
+	}
+
+
+	private static int startServer(String shareDir, int level) throws IOException
+	{
+		PeerConfig config = PeerConfig.fromSystemProperties();
+		config.setCompression(level > 0);
+		config.setCompressionLevel(level);
+		NioFileSendServer server = new NioFileSendServer(shareDir, 0, config);
+		Thread loop = new Thread(server, "p2p-send-loop-0");
+		loop.setDaemon(true);
+		loop.start();
+		return server.getLocalPort();
+	}
+
+
+	/**
+	 * Builds lines like those of a web server log, with repeated fields and varying numbers.
+	 */
+	private static byte[] logLines(int size, Random random)
+	{
+		String[] paths = { "/index/files", "/index/files/search", "/index/peers", "/index/heartbeat" };
+		String[] agents = { "p2pclient/1.0", "p2pclient/1.1", "curl/7.81.0" };
+		StringBuilder lines = new StringBuilder(size + 256);
+		long time = 1700000000000L;
+		while (lines.length() < size)
+		{
+			time += random.nextInt(50);
+			lines.append(time).append(",10.0.").append(random.nextInt(4)).append('.').append(random.nextInt(256))
+					.append(",GET,").append(paths[random.nextInt(paths.length)]).append(',').append(random.nextInt(10) == 0 ? 404 : 200)
+					.append(',').append(random.nextInt(100000)).append(',').append(agents[random.nextInt(agents.length)]).append('\n');
+		}
+		return Arrays.copyOf(lines.toString().getBytes(StandardCharsets.UTF_8), size);
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * FileSendBenchmark.java
+ *
+ * Measures the throughput of FileSendWorker over loopback for files of increasing size, once using
+ * the stream path (copying through a heap buffer) and once using the zero-copy path (transferTo).
+ * The receiving side reads the header and discards the file data into a direct buffer, so the
+ * measurement is dominated by the sending side.
+ *
+ * This is not run as part of the unit tests. Run it from the p2pclient directory with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.FileSendBenchmark
+ * Optional arguments are the file sizes in MB (default 1 16 256 1024 4096). The files are created
+ * in the temporary directory, which must have enough free space for the largest file.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+public class FileSendBenchmark
+{
+	private static final long MB = 1024L * 1024L;
+	private static final long[] DEFAULT_SIZES_MB = { 1, 16, 256, 1024, 4096 };
+	private static final int WARMUP_RUNS = 2;
+	private static final long BYTES_PER_SIZE = 4096L * MB;                 //Each size is repeated until about this much data is sent.
+	private static final int MAX_RUNS = 50;
+
+	public static void main(String[] args) throws Exception
+	{
+		long[] sizesMB = DEFAULT_SIZES_MB;
+		if (args.length > 0)
+		{
+			sizesMB = new long[args.length];
+			for (int i = 0; i < args.length; i++)
+			{
+				sizesMB[i] = Long.parseLong(args[i]);
+			}
+		}
+
+		Path shareDir = Files.createTempDirectory("p2p-send-bench");
+		try (ServerSocketChannel server = ServerSocketChannel.open())
+		{
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+			System.out.printf("%10s %8s %14s %14s %8s%n", "size (MB)", "runs", "stream MB/s", "transferTo MB/s", "speedup");
+			for (long sizeMB : sizesMB)
+			{
+				Path file = createFile(shareDir, sizeMB * MB);
+				int runs = (int) Math.max(1, Math.min(MAX_RUNS, BYTES_PER_SIZE / (sizeMB * MB)));
+
+				double streamRate = measure(server, shareDir, file, false, runs);
+				double zeroCopyRate = measure(server, shareDir, file, true, runs);
+
+				System.out.printf("%10d %8d %14.1f %14.1f %7.2fx%n", sizeMB, runs, streamRate, zeroCopyRate, zeroCopyRate / streamRate);
+				Files.delete(file);
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(shareDir);
+		}
+	}
+
+
+	/**
+	 * Sends the file the specified number of times after warming up, and returns the mean throughput.
+	 * @return double throughput in MB per second
+	 */
+	private static double measure(ServerSocketChannel server, Path shareDir, Path file, boolean zeroCopy, int runs) throws Exception
+	{
+		for (int i = 0; i < WARMUP_RUNS; i++)
+		{
+			transfer(server, shareDir, file, zeroCopy);
+		}
+
+		long bytes = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < runs; i++)
+		{
+			bytes += transfer(server, shareDir, file, zeroCopy);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		return (bytes / (double) MB) / (elapsed / 1e9);
+	}
+
+
+	/**
+	 * Requests the file over a new loopback connection, which is served by a FileSendWorker on
+	 * another thread, and reads the whole response.
+	 * @return long number of file data bytes received
+	 */
+	private static long transfer(ServerSocketChannel server, Path shareDir, Path file, boolean zeroCopy) throws Exception
+	{
+		try (SocketChannel client = SocketChannel.open(server.getLocalAddress()))
+		{
+			SocketChannel accepted = server.accept();
+			Thread sender = new Thread(new FileSendWorker(accepted, shareDir.toString(), zeroCopy));
+			sender.start();
+
+			client.write(ByteBuffer.wrap((file.getFileName() + "\n").getBytes()));
+
+			String header = PeerProtocol.readLine(client);
+			if (header == null || !header.startsWith("OK"))
+				throw new IOException("Transfer failed: " + header);
+
+			ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+			long received = 0;
+			int read;
+			while ((read = client.read(buf)) >= 0)
+			{
+				received += read;
+				buf.clear();
+			}
+			sender.join();
+
+			if (received != Files.size(file))
+				throw new IOException("Received " + received + " of " + Files.size(file) + " bytes.");
+
+			return received;
+		}
+	}
+
+
+	private static Path createFile(Path dir, long size) throws IOException
+	{
+		Path file = dir.resolve("bench-" + (size / MB) + "MB.dat");
+		byte[] block = new byte[(int) Math.min(size, MB)];
+		new Random(size).nextBytes(block);
+
+		try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw"))
+		{
+			for (long written = 0; written < size; written += block.length)
+			{
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+
+		return file;
+	}
+}
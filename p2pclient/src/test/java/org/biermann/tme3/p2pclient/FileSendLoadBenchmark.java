@@ -0,0 +1,196 @@
+/**
+ * FileSendLoadBenchmark.java
+ *
+ * Simulates a flash crowd of downloaders against one of the send engines in this JVM. All clients
+ * are driven by a single selector thread. The benchmark runs in two phases:
+ * 1) Every client connects and sends its request, but reads nothing. Uploads stall on full socket
+ *    buffers, so this is the point of peak load on the server. The number of open connections,
+ *    live threads and heap in use are reported.
+ * 2) Every client reads its response to the end. The time taken and the number of complete,
+ *    correct downloads are reported.
+ *
+ * This is not run as part of the unit tests. Run it from the p2pclient directory with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.FileSendLoadBenchmark -Dexec.args="nio 5000 256"
+ * The arguments are the engine ("nio" or "legacy"), the number of clients (default 5000) and the
+ * size of the shared file in KB (default 256). The NIO engine uses the PeerConfig system properties.
+ * Each client uses two file descriptors, so the open file limit must allow for that.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+public class FileSendLoadBenchmark
+{
+	private static final String FILE_NAME = "load.dat";
+	private static final long SETTLE_MILLIS = 2000;                        //Time allowed for the server to reach a steady state.
+	private static final long PHASE_TIMEOUT_MILLIS = 300000;
+
+	/**
+	 * The progress of one simulated downloader.
+	 */
+	private static class Downloader
+	{
+		final ByteBuffer request = ByteBuffer.wrap((FILE_NAME + "\n").getBytes());
+		long received = 0;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String engine = (args.length > 0) ? args[0] : PeerConfig.ENGINE_NIO;
+		int clients = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+		int fileKB = (args.length > 2) ? Integer.parseInt(args[2]) : 256;
+
+		Path shareDir = Files.createTempDirectory("p2p-load-bench");
+		Path file = shareDir.resolve(FILE_NAME);
+		Files.write(file, new byte[fileKB * 1024]);
+		long expected = Files.size(file) + "OK \n".length();
+
+		int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+		int port = startServer(engine, shareDir.toString());
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+		System.out.println("Engine " + engine + ", " + clients + " clients, " + fileKB + " KB file");
+
+		try (Selector selector = Selector.open())
+		{
+			/*Phase 1: connect every client and send its request */
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < clients; i++)
+			{
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(address);
+				channel.register(selector, SelectionKey.OP_CONNECT, new Downloader());
+			}
+
+			int requested = 0;
+			while (requested < clients && System.currentTimeMillis() - start < PHASE_TIMEOUT_MILLIS)
+			{
+				selector.select(1000);
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while (selected.hasNext())
+				{
+					SelectionKey key = selected.next();
+					selected.remove();
+					Downloader downloader = (Downloader) key.attachment();
+					SocketChannel channel = (SocketChannel) key.channel();
+
+					if (key.isConnectable() && channel.finishConnect())
+						key.interestOps(SelectionKey.OP_WRITE);
+
+					if (key.isValid() && key.isWritable())
+					{
+						channel.write(downloader.request);
+						if (!downloader.request.hasRemaining())
+						{
+							key.interestOps(0);                                 //Do not read yet, so uploads stall.
+							requested++;
+						}
+					}
+				}
+			}
+			long connectMillis = System.currentTimeMillis() - start;
+
+			Thread.sleep(SETTLE_MILLIS);
+			System.gc();
+			long heapMB = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+			int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+			System.out.println("Phase 1: " + requested + " of " + clients + " requests sent in " + connectMillis + " ms");
+			System.out.println("  Server threads added: " + (threads - baseThreads) + ", heap in use after GC: " + heapMB + " MB");
+
+			/*Phase 2: read every response to the end */
+			start = System.currentTimeMillis();
+			for (SelectionKey key : selector.keys())
+			{
+				key.interestOps(SelectionKey.OP_READ);
+			}
+
+			ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+			int finished = 0;
+			int complete = 0;
+			while (finished < requested && System.currentTimeMillis() - start < PHASE_TIMEOUT_MILLIS)
+			{
+				selector.select(1000);
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while (selected.hasNext())
+				{
+					SelectionKey key = selected.next();
+					selected.remove();
+					Downloader downloader = (Downloader) key.attachment();
+					SocketChannel channel = (SocketChannel) key.channel();
+
+					int read;
+					try
+					{
+						read = channel.read(buf);
+					}
+					catch (IOException resetEx)
+					{
+						read = -1;
+					}
+					buf.clear();
+
+					if (read >= 0)
+					{
+						downloader.received += read;
+						continue;
+					}
+
+					finished++;
+					if (downloader.received == expected)
+						complete++;
+					key.cancel();
+					channel.close();
+				}
+			}
+			long transferMillis = System.currentTimeMillis() - start;
+
+			System.out.println("Phase 2: " + complete + " of " + clients + " downloads complete in " + transferMillis + " ms"
+					+ " (" + (finished - complete) + " failed, " + (clients - finished) + " unfinished)");
+		}
+		finally
+		{
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(shareDir);
+		}
+
+		System.exit(0);                                                             //The legacy engine cannot be stopped.
+	}
+
+
+	private static int startServer(String engine, String shareDir) throws IOException
+	{
+		if (engine.equals(PeerConfig.ENGINE_LEGACY))
+		{
+			int port;
+			try (ServerSocket probe = new ServerSocket(0))
+			{
+				port = probe.getLocalPort();                                        //Find a free port for FileSendHelper.
+			}
+			Thread helper = new Thread(new FileSendHelper(shareDir, port));
+			helper.setDaemon(true);
+			helper.start();
+			return port;
+		}
+
+		NioFileSendServer server = new NioFileSendServer(shareDir, 0, PeerConfig.fromSystemProperties());
+		Thread loop = new Thread(server, "p2p-send-loop-0");
+		loop.setDaemon(true);
+		loop.start();
+		return server.getLocalPort();
+	}
+}
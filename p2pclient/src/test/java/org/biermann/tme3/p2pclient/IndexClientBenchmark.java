@@ -0,0 +1,224 @@
+/**
+ * IndexClientBenchmark.java
+ *
+ * Measures the number of index service lookups per second made by one peer. A small HTTP server on
+ * loopback stands in for the index service: it answers a lookup of a shared file with a FileMessage,
+ * or a PeerListMessage if its peers are requested, and a lookup of any other file with a 404
+ * ErrorMessage, as SharedFiles does. Half of the lookups are for files which are not shared.
+ *
+ * Two clients are compared:
+ * - "unclosed": the earlier behaviour of getFilePeer(), which did not close the Response of a failed
+ *   lookup, so its connection could not be reused and a new connection was opened for the next lookup.
+ * - "pooled": P2PPeerController.getFilePeer(), which closes every Response so that its keep-alive
+ *   connection is reused. Every file name is different, so each lookup misses its cache of the peers.
+ * As the client settings of P2PPeerController apply to the whole JVM once the first connection is
+ * made, each client is measured in a separate run, selected by the third argument.
+ * The lookups per second, the number of connections opened to the server and the number of lookups
+ * which failed are reported.
+ *
+ * This is not run as part of the unit tests. Run it from the p2pclient directory with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.IndexClientBenchmark -Dexec.args="20000 4 unclosed"
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.IndexClientBenchmark -Dexec.args="20000 4 pooled"
+ * The arguments are the number of lookups (default 20000), the number of threads making them (default 4)
+ * and the client (default pooled).
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.JAXB;
+
+import org.biermann.tme3.p2pclient.messages.ErrorMessage;
+import org.biermann.tme3.p2pclient.messages.FileMessage;
+import org.biermann.tme3.p2pclient.messages.PeerListMessage;
+import org.biermann.tme3.p2pclient.providers.BinaryMessageProvider;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class IndexClientBenchmark
+{
+	private static final String SHARED_PREFIX = "shared-";
+	private static final String PEER_ADDRESS = "10.0.0.5";
+	private static final String PEERS_SUFFIX = "/peers";
+
+	/*Addresses of the connections made to the server */
+	private static final Set<SocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+	public static void main(String[] args) throws Exception
+	{
+		int lookups = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+		String client = (args.length > 2) ? args[2] : "pooled";
+
+		/*The server writes the headers and body of a response separately, which delays the body
+		 * until the client acknowledges the headers unless Nagle's algorithm is disabled. */
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		server.createContext("/sharedfiles/", IndexClientBenchmark::answerLookup);
+		server.setExecutor(Executors.newFixedThreadPool(threads));
+		server.start();
+		String indexUri = "http://127.0.0.1:" + server.getAddress().getPort() + "/sharedfiles";
+
+		System.out.println(lookups + " lookups on " + threads + " threads, Java " + System.getProperty("java.version"));
+		System.out.printf("%10s %12s %14s %14s %10s%n", "client", "elapsed ms", "lookups/s", "connections", "failed");
+
+		if (client.equals("unclosed"))
+		{
+			/*The earlier client, which left the Response of a failed lookup open */
+			Client unclosedClient = ClientBuilder.newClient().register(BinaryMessageProvider.class);
+			WebTarget unclosedTarget = unclosedClient.target(indexUri);
+			measure(client, lookups / 10, threads, fileName -> lookupUnclosed(unclosedTarget, fileName), false);
+			measure(client, lookups, threads, fileName -> lookupUnclosed(unclosedTarget, fileName), true);
+		}
+		else
+		{
+			System.setProperty(PeerConfig.INDEX_FORMAT_PROPERTY, PeerConfig.FORMAT_BINARY);
+			P2PPeerController controller = new P2PPeerController(".", ".", 0, indexUri);
+			measure(client, lookups / 10, threads, controller::getFilePeer, false);
+			measure(client, lookups, threads, controller::getFilePeer, true);
+			controller.closeIndexClient();
+		}
+
+		System.exit(0);                                                          //Stopping the server waits for the connections left open.
+	}
+
+
+	private static String lookupUnclosed(WebTarget indexTarget, String fileName)
+	{
+		Response response = indexTarget.path(fileName)
+				.request(BinaryMessageProvider.APPLICATION_P2P_BINARY_TYPE, MediaType.APPLICATION_XML_TYPE)
+				.get();
+		if (response.getStatus() != P2PPeerController.HTTP_OK)
+			return null;
+
+		return response.readEntity(FileMessage.class).getHostAddress();
+	}
+
+
+	/**
+	 * Makes the lookups on the specified number of threads, and prints the result if report is true.
+	 * The result is not printed for a warm-up.
+	 */
+	private static void measure(String client, int lookups, int threads, Function<String, String> lookup, boolean report) throws Exception
+	{
+		connections.clear();
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger found = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		long start = System.nanoTime();
+		Future<?>[] workers = new Future<?>[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			workers[t] = executor.submit(() -> {
+				int i;
+				while ((i = next.getAndIncrement()) < lookups)
+				{
+					String fileName = ((i % 2 == 0) ? SHARED_PREFIX : "missing-") + i;
+					try
+					{
+						if (PEER_ADDRESS.equals(lookup.apply(fileName)))
+							found.incrementAndGet();
+					}
+					catch (ProcessingException lookupFailed)
+					{
+						failed.incrementAndGet();
+					}
+				}
+			});
+		}
+		for (Future<?> worker : workers)
+		{
+			worker.get();
+		}
+		long elapsedNanos = System.nanoTime() - start;
+		executor.shutdown();
+
+		if (found.get() + failed.get() < (lookups + 1) / 2)
+			throw new IllegalStateException(found.get() + " shared files were found by the " + client + " client.");
+
+		if (report)
+			System.out.printf("%10s %12d %14.0f %14d %10d%n", client, elapsedNanos / 1000000, lookups * 1e9 / elapsedNanos,
+					connections.size(), failed.get());
+	}
+
+
+	private static void answerLookup(HttpExchange exchange)
+	{
+		try
+		{
+			connections.add(exchange.getRemoteAddress());
+			String path = exchange.getRequestURI().getPath();
+			boolean peerList = path.endsWith(PEERS_SUFFIX);
+			if (peerList)
+				path = path.substring(0, path.length() - PEERS_SUFFIX.length());
+			String fileName = path.substring(path.lastIndexOf('/') + 1);
+
+			Object message;
+			int status;
+			if (fileName.startsWith(SHARED_PREFIX) && peerList)
+			{
+				/*The peer list is only requested as XML */
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				JAXB.marshal(new PeerListMessage(fileName, Collections.singletonList(PEER_ADDRESS)), body);
+				exchange.getResponseHeaders().set("Content-Type", MediaType.APPLICATION_XML);
+				exchange.sendResponseHeaders(P2PPeerController.HTTP_OK, body.size());
+				try (OutputStream responseBody = exchange.getResponseBody())
+				{
+					body.writeTo(responseBody);
+				}
+				return;
+			}
+			else if (fileName.startsWith(SHARED_PREFIX))
+			{
+				message = new FileMessage(fileName, PEER_ADDRESS);
+				status = P2PPeerController.HTTP_OK;
+			}
+			else
+			{
+				message = new ErrorMessage("The file " + fileName + " is not shared by any host.", 404);
+				status = 404;
+			}
+
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			new BinaryMessageProvider().writeTo(message, message.getClass(), message.getClass(), null,
+					BinaryMessageProvider.APPLICATION_P2P_BINARY_TYPE, null, body);
+			exchange.getResponseHeaders().set("Content-Type", BinaryMessageProvider.APPLICATION_P2P_BINARY);
+			exchange.sendResponseHeaders(status, body.size());
+			try (OutputStream responseBody = exchange.getResponseBody())
+			{
+				body.writeTo(responseBody);
+			}
+		}
+		catch (Exception failed)
+		{
+			System.err.println("The lookup failed: " + failed);
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * MessageFormatBenchmark.java
+ *
+ * Compares the formats in which a FileMessage can be exchanged with the index service: XML through
+ * JAXB, JSON through JsonMessageProvider and binary through BinaryMessageProvider. For each format
+ * the same message is encoded and decoded many times, after a warm-up, and the time per operation,
+ * the bytes allocated per operation and the size of the message on the wire are reported. The
+ * providers are called directly, as Jersey calls them, so no HTTP is involved.
+ *
+ * This is not run as part of the unit tests. Run it from the p2pclient directory with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.MessageFormatBenchmark -Dexec.args="1000000"
+ * The argument is the number of operations measured for each format (default 1000000).
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import org.biermann.tme3.p2pclient.messages.FileMessage;
+import org.biermann.tme3.p2pclient.providers.BinaryMessageProvider;
+import org.biermann.tme3.p2pclient.providers.JsonMessageProvider;
+
+public class MessageFormatBenchmark
+{
+	private static final String CONTENT_HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+	/**
+	 * Encodes a message to the stream, or decodes a message from the bytes.
+	 */
+	private interface Codec
+	{
+		void write(FileMessage message, ByteArrayOutputStream outStream) throws Exception;
+		FileMessage read(byte[] bytes) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		FileMessage message = new FileMessage("ubuntu-24.04-desktop-amd64.iso", "192.168.100.27", CONTENT_HASH, 6114656256L);
+
+		System.out.println(operations + " operations per format, Java " + System.getProperty("java.version"));
+		System.out.printf("%8s %8s %14s %14s %14s %14s%n", "format", "bytes", "write ns/op", "write B/op", "read ns/op", "read B/op");
+
+		measure("xml", jaxbCodec(), message, operations);
+		measure("json", providerCodec(new JsonMessageProvider(), MediaType.APPLICATION_JSON_TYPE), message, operations);
+		measure("binary", providerCodec(new BinaryMessageProvider(), BinaryMessageProvider.APPLICATION_P2P_BINARY_TYPE), message, operations);
+	}
+
+
+	private static Codec jaxbCodec() throws Exception
+	{
+		JAXBContext context = JAXBContext.newInstance(FileMessage.class);
+
+		/*Jersey caches the context, but creates a marshaller for every message */
+		return new Codec()
+		{
+			public void write(FileMessage message, ByteArrayOutputStream outStream) throws Exception
+			{
+				Marshaller marshaller = context.createMarshaller();
+				marshaller.marshal(message, outStream);
+			}
+
+			public FileMessage read(byte[] bytes) throws Exception
+			{
+				Unmarshaller unmarshaller = context.createUnmarshaller();
+				return (FileMessage) unmarshaller.unmarshal(new ByteArrayInputStream(bytes));
+			}
+		};
+	}
+
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <P extends MessageBodyReader<Object> & MessageBodyWriter<Object>> Codec providerCodec(P provider, MediaType mediaType)
+	{
+		return new Codec()
+		{
+			public void write(FileMessage message, ByteArrayOutputStream outStream) throws Exception
+			{
+				provider.writeTo(message, FileMessage.class, FileMessage.class, null, mediaType, null, outStream);
+			}
+
+			public FileMessage read(byte[] bytes) throws Exception
+			{
+				return (FileMessage) provider.readFrom((Class) FileMessage.class, FileMessage.class, null, mediaType, null, new ByteArrayInputStream(bytes));
+			}
+		};
+	}
+
+
+	private static void measure(String format, Codec codec, FileMessage message, int operations) throws Exception
+	{
+		ByteArrayOutputStream outStream = new ByteArrayOutputStream(1024);
+		codec.write(message, outStream);
+		byte[] encoded = outStream.toByteArray();
+
+		FileMessage decoded = codec.read(encoded);
+		if (!decoded.getFileName().equals(message.getFileName()) || !decoded.getContentHash().equals(CONTENT_HASH)
+				|| decoded.getFileSize().longValue() != message.getFileSize().longValue())
+			throw new IllegalStateException("The " + format + " message was not decoded correctly.");
+
+		/*Warm up, so that the measured code is compiled */
+		runWrites(codec, message, outStream, operations / 10);
+		runReads(codec, encoded, operations / 10);
+
+		long writeAllocated = allocatedBytes();
+		long writeStart = System.nanoTime();
+		runWrites(codec, message, outStream, operations);
+		long writeNanos = System.nanoTime() - writeStart;
+		long writeBytes = perOperation(writeAllocated, allocatedBytes(), operations);
+
+		long readAllocated = allocatedBytes();
+		long readStart = System.nanoTime();
+		long checksum = runReads(codec, encoded, operations);
+		long readNanos = System.nanoTime() - readStart;
+		long readBytes = perOperation(readAllocated, allocatedBytes(), operations);
+
+		System.out.printf("%8s %8d %14.0f %14d %14.0f %14d%n", format, encoded.length,
+				(double) writeNanos / operations, writeBytes, (double) readNanos / operations, readBytes);
+
+		if (checksum == 0)
+			System.out.println();                                                //Keeps the decoded messages from being optimized away.
+	}
+
+
+	private static void runWrites(Codec codec, FileMessage message, ByteArrayOutputStream outStream, int operations) throws Exception
+	{
+		for (int i = 0; i < operations; i++)
+		{
+			outStream.reset();
+			codec.write(message, outStream);
+		}
+	}
+
+
+	private static long runReads(Codec codec, byte[] encoded, int operations) throws Exception
+	{
+		long checksum = 0;
+		for (int i = 0; i < operations; i++)
+		{
+			checksum += codec.read(encoded).getFileName().length();
+		}
+		return checksum;
+	}
+
+
+	private static long perOperation(long allocatedBefore, long allocatedAfter, int operations)
+	{
+		return (allocatedBefore < 0) ? -1 : (allocatedAfter - allocatedBefore) / operations;
+	}
+
+
+	/**
+	 * Get the bytes allocated by the current thread so far, or -1 if the JVM does not report them.
+	 */
+	private static long allocatedBytes()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+
+		return -1;
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * P2PPeerControllerTest.java
+ *
+ * Unit tests of the lookups of P2PPeerController: that a file found with getFilePeer(), as the GUI
+ * does before a download, is not looked up again when it is downloaded, and that a file which no
+ * peer shares is only looked up once while its negative entry lasts. The index service is replaced
+ * by a loader which counts its lookups.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.biermann.tme3.p2pclient.messages.PeerListMessage;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class P2PPeerControllerTest extends TestCase
+{
+	private static final String SHARED = "shared.dat";
+
+	private P2PPeerController controller;
+	private final AtomicInteger loads = new AtomicInteger();
+
+
+	/**
+	 * Create the test case
+	 * @param testName name of the test case
+	 */
+	public P2PPeerControllerTest(String testName)
+	{
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite()
+	{
+		return new TestSuite(P2PPeerControllerTest.class);
+	}
+
+
+	@Override
+	protected void setUp()
+	{
+		controller = new P2PPeerController(".", ".", 0, "http://127.0.0.1:1/sharedfiles");         //Never reached.
+		controller.setPeerLoader(fileName -> {
+			loads.incrementAndGet();
+			return fileName.equals(SHARED) ? new PeerListMessage(fileName, Arrays.asList("10.0.0.1", "10.0.0.2")) : null;
+		});
+	}
+
+	@Override
+	protected void tearDown()
+	{
+		controller.closeIndexClient();
+	}
+
+
+	/**
+	 * downloadFile() starts by getting the peers with getFilePeerList(), which is what is called here.
+	 */
+	public void testCheckThenDownloadLooksUpOnce()
+	{
+		PeerLookupCache cache = controller.getLookupCache();
+		assertEquals("10.0.0.1", controller.getFilePeer(SHARED));
+		assertEquals(Arrays.asList("10.0.0.1", "10.0.0.2"), controller.getFilePeerList(SHARED).getHostAddresses());
+
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(0, cache.getNegativeHitCount());
+	}
+
+
+	public void testMissingFileIsCached()
+	{
+		PeerLookupCache cache = controller.getLookupCache();
+		assertNull(controller.getFilePeer("missing.dat"));
+		assertNull(controller.getFilePeer("missing.dat"));
+
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getNegativeHitCount());
+		assertTrue(controller.getFilePeers("missing.dat").isEmpty());
+	}
+}
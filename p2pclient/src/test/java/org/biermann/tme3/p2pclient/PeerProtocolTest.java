@@ -0,0 +1,303 @@
+/**
+ * PeerProtocolTest.java
+ *
+ * Unit tests of the frames of version 3 of the peer protocol: that each kind of frame is read back as
+ * it was written, and that a header which is not a valid frame, or content which does not match its
+ * checksum, is rejected.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PeerProtocolTest extends TestCase
+{
+	private final PeerProtocol.Frame frame = new PeerProtocol.Frame();
+	private final ByteBuffer header = ByteBuffer.allocate(PeerProtocol.FRAME_HEADER_BYTES);
+	private final CRC32 crc = new CRC32();
+
+
+	/**
+	 * Create the test case
+	 * @param testName name of the test case
+	 */
+	public PeerProtocolTest(String testName)
+	{
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite()
+	{
+		return new TestSuite(PeerProtocolTest.class);
+	}
+
+
+	public void testHeaderHasFixedLength()
+	{
+		ByteBuffer buf = ByteBuffer.allocate(PeerProtocol.FRAME_HEADER_BYTES);
+		new PeerProtocol.Frame().set(PeerProtocol.TYPE_DATA, PeerProtocol.STATUS_OK, 0, 1, 2, 3, 4, 5).write(buf);
+		assertEquals(44, PeerProtocol.FRAME_HEADER_BYTES);
+		assertFalse(buf.hasRemaining());
+		assertEquals(PeerProtocol.FRAME_MAGIC, buf.getShort(0) & 0xFFFF);
+		assertEquals(PeerProtocol.FRAMED_VERSION, buf.get(2));
+	}
+
+
+	public void testFrameRoundTrip() throws IOException
+	{
+		frame.set(PeerProtocol.TYPE_BLOCK, PeerProtocol.STATUS_NOT_FOUND, PeerProtocol.FLAG_CHECKSUM | PeerProtocol.FLAG_DEFLATE,
+				1234, 5L << 40, 6L << 33, 7L << 41, 0xCAFEBABE);
+		frame.write(header);
+		header.flip();
+
+		PeerProtocol.Frame read = new PeerProtocol.Frame();
+		read.read(header);
+		assertEquals(PeerProtocol.TYPE_BLOCK, read.getType());
+		assertEquals(PeerProtocol.STATUS_NOT_FOUND, read.getStatus());
+		assertEquals(PeerProtocol.FLAG_CHECKSUM | PeerProtocol.FLAG_DEFLATE, read.getFlags());
+		assertEquals(1234, read.getContentLength());
+		assertEquals(5L << 40, read.getOffset());
+		assertEquals(6L << 33, read.getLength());
+		assertEquals(7L << 41, read.getFileSize());
+		assertTrue(read.hasChecksum());
+		assertEquals(0xCAFEBABE, read.getChecksum());
+	}
+
+
+	public void testRangeRequestRoundTrip() throws IOException
+	{
+		byte[] name = "shared file \u00fc.txt".getBytes(StandardCharsets.UTF_8);
+		int flags = PeerProtocol.FLAG_RANGE_CHECKSUM | PeerProtocol.FLAG_DEFLATE | PeerProtocol.FLAG_QUEUE_STATUS;
+		PeerProtocol.putRequestFrame(PeerProtocol.TYPE_RANGE_REQUEST, name, 1024, 4096, flags, frame, crc, header);
+		PeerProtocol.Request request = readRequest(name);
+
+		assertEquals("shared file \u00fc.txt", request.getFileName());
+		assertTrue(request.isRange());
+		assertFalse(request.isHashes());
+		assertEquals(1024, request.getOffset());
+		assertEquals(1024 + 4096, request.getEnd(1 << 20));
+		assertEquals(2000, request.getEnd(2000));                       //Limited to the end of the file.
+		assertTrue(request.isChecksummed(1 << 20));
+		assertTrue(request.isDeflateAccepted());
+		assertTrue(request.isQueueStatusAccepted());
+	}
+
+
+	/**
+	 * A range to the end of the file is requested with the longest length, which must not overflow
+	 * when added to the offset.
+	 */
+	public void testRangeToEndOfFile()
+	{
+		PeerProtocol.Request rest = PeerProtocol.parseRequest(PeerProtocol.formatRangeRequest("a.dat", 100, Long.MAX_VALUE).trim());
+		assertEquals(1000, rest.getEnd(1000));
+		assertEquals(100, rest.getEnd(50));                             //Past the end of the file, so empty.
+
+		PeerProtocol.Request nearlyRest = PeerProtocol.parseRequest(PeerProtocol.formatRangeRequest("a.dat", 100, Long.MAX_VALUE - 50).trim());
+		assertEquals(1000, nearlyRest.getEnd(1000));
+		assertEquals(Long.MAX_VALUE - 1, nearlyRest.getEnd(Long.MAX_VALUE - 1));
+	}
+
+
+	public void testHashesRequestRoundTrip() throws IOException
+	{
+		byte[] name = "a.dat".getBytes(StandardCharsets.UTF_8);
+		PeerProtocol.putRequestFrame(PeerProtocol.TYPE_HASHES_REQUEST, name, 0, 0, 0, frame, crc, header);
+		PeerProtocol.Request request = readRequest(name);
+
+		assertEquals("a.dat", request.getFileName());
+		assertTrue(request.isHashes());
+		assertFalse(request.isRange());
+		assertFalse(request.isQueueStatusAccepted());
+	}
+
+
+	public void testRequestWithDamagedNameIsRejected() throws IOException
+	{
+		byte[] name = "a.dat".getBytes(StandardCharsets.UTF_8);
+		PeerProtocol.putRequestFrame(PeerProtocol.TYPE_RANGE_REQUEST, name, 0, 10, 0, frame, crc, header);
+		name[0] = 'b';
+		try
+		{
+			readRequest(name);
+			fail("A request whose name does not match its checksum was accepted.");
+		}
+		catch (IOException expected)
+		{}
+	}
+
+
+	public void testDataFrameRoundTrip() throws IOException
+	{
+		PeerProtocol.Request request = PeerProtocol.parseRequest(PeerProtocol.formatRangeRequest("a.dat", 100, 1000).trim());
+		request.putDataFrame(frame, 600, 0x1234, header);
+
+		PeerProtocol.Frame read = new PeerProtocol.Frame();
+		assertTrue(PeerProtocol.readFrame(new ByteArrayInputStream(Arrays.copyOf(header.array(), header.limit())), ByteBuffer.allocate(64), read));
+		assertEquals(PeerProtocol.TYPE_DATA, read.getType());
+		assertEquals(100, read.getOffset());
+		assertEquals(500, read.getLength());                            //Reduced to the end of the file.
+		assertEquals(500, read.getContentLength());
+		assertEquals(600, read.getFileSize());
+		assertFalse(read.hasChecksum());                                 //Not requested.
+	}
+
+
+	public void testHashesFrameRoundTrip() throws IOException
+	{
+		long fileSize = 2L * ContentHashes.CHUNK_SIZE + 1;
+		byte[] chunkHashes = new byte[ContentHashes.getChunkCount(fileSize) * ContentHashes.HASH_LENGTH];
+		for (int i = 0; i < chunkHashes.length; i++)
+		{
+			chunkHashes[i] = (byte) i;
+		}
+
+		ByteArrayInputStream inStream = new ByteArrayInputStream(PeerProtocol.formatHashesFrame(new ContentHashes(fileSize, chunkHashes)));
+		assertTrue(PeerProtocol.readFrame(inStream, header, frame));
+		ContentHashes hashes = PeerProtocol.readHashesFrame(frame, inStream, crc);
+		assertEquals(fileSize, hashes.getFileSize());
+		assertEquals(new ContentHashes(fileSize, chunkHashes).getContentHash(), hashes.getContentHash());
+		assertEquals(0, inStream.available());
+	}
+
+
+	public void testErrorFrameIsThrown() throws IOException
+	{
+		ByteArrayInputStream inStream = new ByteArrayInputStream(PeerProtocol.formatErrorFrame(PeerProtocol.STATUS_NOT_FOUND, "No such file."));
+		assertTrue(PeerProtocol.readFrame(inStream, header, frame));
+		assertEquals(PeerProtocol.TYPE_ERROR, frame.getType());
+		try
+		{
+			PeerProtocol.readContent(frame, inStream, crc);
+			fail("An error frame was read as content.");
+		}
+		catch (PeerProtocol.ErrorReplyException expected)
+		{
+			assertEquals(PeerProtocol.STATUS_NOT_FOUND, expected.getStatus());
+			assertEquals("No such file.", expected.getMessage());
+		}
+	}
+
+
+	public void testDamagedContentIsRejected() throws IOException
+	{
+		byte[] bytes = PeerProtocol.formatErrorFrame(PeerProtocol.STATUS_FAILED, "Failed.");
+		bytes[bytes.length - 1] ^= 1;
+		ByteArrayInputStream inStream = new ByteArrayInputStream(bytes);
+		assertTrue(PeerProtocol.readFrame(inStream, header, frame));
+		try
+		{
+			PeerProtocol.readContent(frame, inStream, crc);
+			fail("Content which does not match its checksum was accepted.");
+		}
+		catch (PeerProtocol.ErrorReplyException notExpected)
+		{
+			fail("A damaged error frame was taken as an error reply.");
+		}
+		catch (IOException expected)
+		{}
+	}
+
+
+	public void testQueuedFrame() throws IOException
+	{
+		PeerProtocol.putQueuedFrame(3, 1500, frame, header);
+
+		PeerProtocol.Frame read = new PeerProtocol.Frame();
+		read.read(header);
+		assertEquals(PeerProtocol.TYPE_QUEUED, read.getType());
+		assertEquals(3, read.getOffset());
+		assertEquals(1500, read.getLength());
+		assertEquals(0, read.getContentLength());
+	}
+
+
+	public void testBadMagicIsRejected()
+	{
+		frame.set(PeerProtocol.TYPE_DATA, PeerProtocol.STATUS_OK, 0, 0, 0, 0, 0, 0).write(header);
+		header.put(0, (byte) 'O');                                       //As if the peer sent an "OK" line.
+		header.put(1, (byte) 'K');
+		assertRejected();
+	}
+
+
+	public void testBadVersionIsRejected()
+	{
+		frame.set(PeerProtocol.TYPE_DATA, PeerProtocol.STATUS_OK, 0, 0, 0, 0, 0, 0).write(header);
+		header.put(2, (byte) (PeerProtocol.FRAMED_VERSION + 1));
+		assertRejected();
+	}
+
+
+	public void testBadContentLengthIsRejected()
+	{
+		frame.set(PeerProtocol.TYPE_HASHES, PeerProtocol.STATUS_OK, PeerProtocol.FLAG_CHECKSUM, PeerProtocol.MAX_FRAME_CONTENT + 1L, 0, 0, 0, 0).write(header);
+		assertRejected();
+
+		header.clear();
+		frame.set(PeerProtocol.TYPE_DATA, PeerProtocol.STATUS_OK, 0, -1, 0, 0, 0, 0).write(header);
+		assertRejected();
+	}
+
+
+	public void testLongDataFrameIsAccepted() throws IOException
+	{
+		frame.set(PeerProtocol.TYPE_DATA, PeerProtocol.STATUS_OK, 0, PeerProtocol.MAX_FRAME_CONTENT + 1L, 0, 0, 0, 0).write(header);
+		header.flip();
+		new PeerProtocol.Frame().read(header);
+	}
+
+
+	public void testStreamEndingWithinHeader() throws IOException
+	{
+		assertFalse(PeerProtocol.readFrame(new ByteArrayInputStream(new byte[0]), header, frame));
+		try
+		{
+			PeerProtocol.readFrame(new ByteArrayInputStream(new byte[PeerProtocol.FRAME_HEADER_BYTES - 1]), header, frame);
+			fail("A header cut short was read.");
+		}
+		catch (IOException expected)
+		{}
+	}
+
+
+	/**
+	 * Parses the request frame in the header buffer, followed by the name as its content.
+	 */
+	private PeerProtocol.Request readRequest(byte[] name) throws IOException
+	{
+		PeerProtocol.Frame read = new PeerProtocol.Frame();
+		read.read(header);
+		assertEquals(name.length, read.getContentLength());
+		return PeerProtocol.parseRequestFrame(read, ByteBuffer.wrap(name), crc);
+	}
+
+
+	/**
+	 * Checks that the header written to the header buffer is not read as a frame.
+	 */
+	private void assertRejected()
+	{
+		header.clear();
+		try
+		{
+			new PeerProtocol.Frame().read(header);
+			fail("An invalid frame header was read.");
+		}
+		catch (IOException expected)
+		{}
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * RateLimitBenchmark.java
+ *
+ * Measures how closely the upload and download limits are kept, and how fairly the limited rate is
+ * shared between connections. One of the send engines serves a file on loopback, which several
+ * FileReceiveHelpers download at once over their own connections, in three rounds:
+ * - with the upload limit set,
+ * - with the upload limit doubled, as it may be changed while the peer runs,
+ * - with no upload limit and the download limit set.
+ * For each round the total rate is reported against the limit, along with the slowest and fastest
+ * download and Jain's fairness index of their rates, which is 1 when every download gets the same share.
+ *
+ * This is not run as part of the unit tests. Run it from the p2pclient directory with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.RateLimitBenchmark -Dexec.args="nio 2048 4"
+ * The arguments are the engine ("nio" or "legacy"), the limit in KB per second (default 2048) and the
+ * number of downloads at once (default 4).
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class RateLimitBenchmark
+{
+	private static final int SECONDS_PER_ROUND = 4;
+
+	public static void main(String[] args) throws Exception
+	{
+		String engine = (args.length > 0) ? args[0] : PeerConfig.ENGINE_NIO;
+		long limitKBps = (args.length > 1) ? Long.parseLong(args[1]) : 2048;
+		int downloads = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+
+		Path shareDir = Files.createTempDirectory("p2p-limit-share");
+		List<Path> receiveDirs = new ArrayList<>();
+		byte[] data = new byte[(int) (limitKBps * 1024 * SECONDS_PER_ROUND * 2 / downloads)];    //Enough for the doubled limit.
+		new Random(3).nextBytes(data);                                       //Not compressible, so not compressed.
+		Files.write(shareDir.resolve("limited.dat"), data);
+		for (int i = 0; i < downloads; i++)
+		{
+			receiveDirs.add(Files.createTempDirectory("p2p-limit-receive"));
+		}
+
+		int port = startServer(engine, shareDir.toString());
+		ExecutorService executor = Executors.newCachedThreadPool();
+		BandwidthLimiter uploads = BandwidthLimiter.getUploadInstance();
+		BandwidthLimiter downloadLimiter = BandwidthLimiter.getDownloadInstance();
+
+		System.out.println("Engine " + engine + ", " + downloads + " downloads of " + data.length / 1024 + " KB, Java " + System.getProperty("java.version"));
+		System.out.printf("%-16s %10s %12s %10s %10s %10s%n", "limit", "KB/s", "total KB/s", "min KB/s", "max KB/s", "fairness");
+		try
+		{
+			uploads.setRate(limitKBps * 1024);
+			measure("upload", limitKBps, port, receiveDirs, executor);
+			uploads.setRate(limitKBps * 2 * 1024);
+			measure("upload doubled", limitKBps * 2, port, receiveDirs, executor);
+			uploads.setRate(0);
+			downloadLimiter.setRate(limitKBps * 1024);
+			measure("download", limitKBps, port, receiveDirs, executor);
+		}
+		finally
+		{
+			Files.deleteIfExists(shareDir.resolve("limited.dat"));
+			Files.deleteIfExists(shareDir);
+			for (Path receiveDir : receiveDirs)
+			{
+				Files.deleteIfExists(receiveDir.resolve("limited.dat"));
+				Files.deleteIfExists(receiveDir);
+			}
+		}
+
+		System.exit(0);                                                             //The send engines cannot be stopped.
+	}
+
+
+	/**
+	 * Downloads the file once per receive directory at the same time, and prints the rates.
+	 */
+	private static void measure(String round, long limitKBps, int port, List<Path> receiveDirs, ExecutorService executor) throws Exception
+	{
+		List<Future<Double>> results = new ArrayList<>();
+		long start = System.nanoTime();
+		for (Path receiveDir : receiveDirs)
+		{
+			results.add(executor.submit(() -> {
+				long downloadStart = System.nanoTime();
+				DownloadStatus status = new DownloadStatus("limited.dat");
+				if (!new FileReceiveHelper("127.0.0.1", port, receiveDir.toString(), status).receive())
+					throw new IOException("The download failed: " + status.getStatusMessage());
+				return Files.size(receiveDir.resolve("limited.dat")) / 1024.0 / ((System.nanoTime() - downloadStart) / 1e9);
+			}));
+		}
+
+		double min = Double.MAX_VALUE;
+		double max = 0;
+		double sum = 0;
+		double sumOfSquares = 0;
+		long totalKB = 0;
+		for (int i = 0; i < results.size(); i++)
+		{
+			double rate = results.get(i).get();
+			min = Math.min(min, rate);
+			max = Math.max(max, rate);
+			sum += rate;
+			sumOfSquares += rate * rate;
+			totalKB += Files.size(receiveDirs.get(i).resolve("limited.dat")) / 1024;
+			Files.delete(receiveDirs.get(i).resolve("limited.dat"));
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("%-16s %10d %12.0f %10.0f %10.0f %10.3f%n", round, limitKBps, totalKB / elapsed, min, max,
+				sum * sum / (results.size() * sumOfSquares));
+	}
+
+
+	private static int startServer(String engine, String shareDir) throws IOException
+	{
+		if (engine.equals(PeerConfig.ENGINE_LEGACY))
+		{
+			int port;
+			try (ServerSocket probe = new ServerSocket(0))
+			{
+				port = probe.getLocalPort();                                        //Find a free port for FileSendHelper.
+			}
+			Thread helper = new Thread(new FileSendHelper(shareDir, port));
+			helper.setDaemon(true);
+			helper.start();
+			return port;
+		}
+
+		NioFileSendServer server = new NioFileSendServer(shareDir, 0, PeerConfig.fromSystemProperties());
+		Thread loop = new Thread(server, "p2p-send-loop-0");
+		loop.setDaemon(true);
+		loop.start();
+		return server.getLocalPort();
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * SmallFileBenchmark.java
+ *
+ * Measures the number of small files per second one peer downloads from another, with and without
+ * keep-alive. One of the send engines serves a directory of small files on loopback, and each file
+ * is downloaded in turn by a SwarmDownload, as P2PPeerController does:
+ * - "close": every request opens a new connection, which the sending peer closes after its reply.
+ * - "keepalive": connections are taken from a PeerConnectionPool and kept alive, and the hashes and
+ *   data of each file are requested together, as the index service reports its size.
+ * The files per second and the number of connections opened are reported, and every file is compared
+ * with the shared file.
+ *
+ * This is not run as part of the unit tests. Run it from the p2pclient directory with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.SmallFileBenchmark -Dexec.args="nio 2000 4"
+ * The arguments are the engine ("nio" or "legacy"), the number of files (default 2000) and the size
+ * of each file in KB (default 4).
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class SmallFileBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		String engine = (args.length > 0) ? args[0] : PeerConfig.ENGINE_NIO;
+		int files = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+		int fileKB = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+
+		Path shareDir = Files.createTempDirectory("p2p-small-share");
+		Path receiveDir = Files.createTempDirectory("p2p-small-receive");
+		List<String> names = new ArrayList<>();
+		List<String> contentHashes = new ArrayList<>();
+		Random random = new Random(files);
+		for (int i = 0; i < files; i++)
+		{
+			byte[] data = new byte[fileKB * 1024];
+			random.nextBytes(data);
+			Path file = shareDir.resolve("small-" + i + ".dat");
+			Files.write(file, data);
+			names.add(file.getFileName().toString());
+			contentHashes.add(ContentHashCache.getInstance().get(file).getContentHash());    //Hashed when shared, as by a real peer.
+		}
+
+		String peer = InetAddress.getLoopbackAddress().getHostAddress() + ":" + startServer(engine, shareDir.toString());
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		System.out.println("Engine " + engine + ", " + files + " files of " + fileKB + " KB, Java " + System.getProperty("java.version"));
+		System.out.printf("%10s %12s %12s %14s%n", "client", "elapsed ms", "files/s", "connections");
+		try
+		{
+			for (boolean keepAlive : new boolean[] { false, true })
+			{
+				measure(keepAlive, names.subList(0, Math.min(files, 200)), contentHashes, peer, shareDir, receiveDir, executor, false);
+				measure(keepAlive, names, contentHashes, peer, shareDir, receiveDir, executor, true);
+			}
+		}
+		finally
+		{
+			for (String name : names)
+			{
+				Files.deleteIfExists(shareDir.resolve(name));
+				Files.deleteIfExists(receiveDir.resolve(name));
+			}
+			Files.deleteIfExists(shareDir);
+			Files.deleteIfExists(receiveDir);
+		}
+
+		System.exit(0);                                                             //The send engines cannot be stopped.
+	}
+
+
+	/**
+	 * Downloads each file in turn and checks it, and prints the result if report is true. The result is
+	 * not printed for a warm-up.
+	 */
+	private static void measure(boolean keepAlive, List<String> names, List<String> contentHashes, String peer, Path shareDir,
+			Path receiveDir, ExecutorService executor, boolean report) throws IOException, InterruptedException
+	{
+		PeerConnectionPool connections = new PeerConnectionPool(keepAlive, PeerConfig.DEFAULT_KEEP_ALIVE_MILLIS);
+		long start = System.nanoTime();
+		for (int i = 0; i < names.size(); i++)
+		{
+			String name = names.get(i);
+			DownloadStatus status = new DownloadStatus(name);
+			SwarmDownload download = new SwarmDownload(Collections.singletonList(peer), contentHashes.get(i), 0,
+					receiveDir.toString(), status, executor);
+			download.setConnectionPool(connections);
+			download.setExpectedFileSize(Files.size(shareDir.resolve(name)));
+			if (!download.download())
+				throw new IOException("The download of " + name + " failed: " + status.getStatusMessage());
+		}
+		long elapsed = System.nanoTime() - start;
+		connections.close();
+
+		for (String name : names)
+		{
+			if (!Arrays.equals(Files.readAllBytes(shareDir.resolve(name)), Files.readAllBytes(receiveDir.resolve(name))))
+				throw new IOException("The downloaded file " + name + " differs from the shared file.");
+			Files.delete(receiveDir.resolve(name));
+		}
+
+		if (report)
+			System.out.printf("%10s %12d %12.0f %14d%n", keepAlive ? "keepalive" : "close", elapsed / 1000000,
+					names.size() / (elapsed / 1e9), connections.getOpenedCount());
+	}
+
+
+	private static int startServer(String engine, String shareDir) throws IOException
+	{
+		if (engine.equals(PeerConfig.ENGINE_LEGACY))
+		{
+			int port;
+			try (ServerSocket probe = new ServerSocket(0))
+			{
+				port = probe.getLocalPort();                                        //Find a free port for FileSendHelper.
+			}
+			Thread helper = new Thread(new FileSendHelper(shareDir, port));
+			helper.setDaemon(true);
+			helper.start();
+			return port;
+		}
+
+		NioFileSendServer server = new NioFileSendServer(shareDir, 0, PeerConfig.fromSystemProperties());
+		Thread loop = new Thread(server, "p2p-send-loop-0");
+		loop.setDaemon(true);
+		loop.start();
+		return server.getLocalPort();
+	}
+}
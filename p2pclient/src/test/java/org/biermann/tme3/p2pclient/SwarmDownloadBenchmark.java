@@ -0,0 +1,236 @@
+/**
+ * SwarmDownloadBenchmark.java
+ *
+ * Measures how the throughput of SwarmDownload scales with the number of peers sharing a file. Each
+ * simulated peer listens on its own loopback port and serves requests as a FileSendWorker would, but
+ * limits its upload rate, as the uplink of a real peer would. The file is downloaded from 1, 2, 4
+ * and 8 such peers, then from 4 peers of which one is much slower than the others, and then from 4 peers
+ * of which one damages every range it sends. The file is verified against its content hash throughout.
+ *
+ * This is not run as part of the unit tests. Run it from the p2pclient directory with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.SwarmDownloadBenchmark
+ * Optional arguments are the file size in MB (default 64) and the upload rate of each peer in MB/s
+ * (default 8).
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class SwarmDownloadBenchmark
+{
+	private static final long MB = 1024L * 1024L;
+	private static final String FILE_NAME = "swarm.dat";
+	private static final int SLOW_PEER_DIVISOR = 20;                      //The slow peer uploads this many times slower.
+	private static final int WRITE_SIZE = 16 * 1024;
+
+	public static void main(String[] args) throws Exception
+	{
+		long fileSize = ((args.length > 0) ? Long.parseLong(args[0]) : 64) * MB;
+		long peerRate = ((args.length > 1) ? Long.parseLong(args[1]) : 8) * MB;
+
+		Path shareDir = Files.createTempDirectory("p2p-swarm-share");
+		Path receiveDir = Files.createTempDirectory("p2p-swarm-receive");
+		Path file = createFile(shareDir, fileSize);
+		byte[] expected = Files.readAllBytes(file);
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		List<ThrottledPeer> fastPeers = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+		{
+			fastPeers.add(new ThrottledPeer(shareDir, peerRate, executor));
+		}
+		ThrottledPeer slowPeer = new ThrottledPeer(shareDir, peerRate / SLOW_PEER_DIVISOR, executor);
+		ThrottledPeer corruptPeer = new ThrottledPeer(shareDir, peerRate, executor);
+		corruptPeer.corrupt = true;
+		String contentHash = ContentHashes.compute(file).getContentHash();
+
+		System.out.println("File of " + (fileSize / MB) + " MB, peers upload at " + (peerRate / MB) + " MB/s");
+		System.out.printf("%-22s %10s %12s %10s%n", "peers", "time (s)", "MB/s", "speedup");
+		try
+		{
+			double single = 0;
+			for (int peers : new int[] { 1, 2, 4, 8 })
+			{
+				double rate = measure(fastPeers.subList(0, peers), contentHash, receiveDir, expected, executor);
+				if (peers == 1)
+					single = rate;
+				System.out.printf("%-22s %10.2f %12.1f %9.2fx%n", peers + " peers", fileSize / (rate * MB), rate, rate / single);
+			}
+
+			List<ThrottledPeer> mixed = new ArrayList<>(fastPeers.subList(0, 3));
+			mixed.add(slowPeer);
+			double rate = measure(mixed, contentHash, receiveDir, expected, executor);
+			System.out.printf("%-22s %10.2f %12.1f %9.2fx%n", "3 peers + 1 slow", fileSize / (rate * MB), rate, rate / single);
+
+			mixed.set(3, corruptPeer);
+			rate = measure(mixed, contentHash, receiveDir, expected, executor);
+			System.out.printf("%-22s %10.2f %12.1f %9.2fx%n", "3 peers + 1 corrupt", fileSize / (rate * MB), rate, rate / single);
+		}
+		finally
+		{
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(receiveDir.resolve(FILE_NAME));
+			Files.deleteIfExists(shareDir);
+			Files.deleteIfExists(receiveDir);
+		}
+
+		System.exit(0);                                                         //The peers cannot be stopped.
+	}
+
+
+	/**
+	 * Downloads the file from the specified peers and checks that it was received intact.
+	 * @return double throughput in MB per second
+	 */
+	private static double measure(List<ThrottledPeer> peers, String contentHash, Path receiveDir, byte[] expected, 
+			ExecutorService executor) throws IOException
+	{
+		List<String> addresses = new ArrayList<>();
+		for (ThrottledPeer peer : peers)
+		{
+			addresses.add(InetAddress.getLoopbackAddress().getHostAddress() + ":" + peer.getPort());
+		}
+
+		DownloadStatus status = new DownloadStatus(FILE_NAME);
+		long start = System.nanoTime();
+		new SwarmDownload(addresses, contentHash, 0, receiveDir.toString(), status, executor).run();
+		long elapsed = System.nanoTime() - start;
+
+		if (!Arrays.equals(expected, Files.readAllBytes(receiveDir.resolve(FILE_NAME))))
+			throw new IOException("The downloaded file differs from the shared file: " + status.getStatusMessage());
+
+		return (expected.length / (double) MB) / (elapsed / 1e9);
+	}
+
+
+	private static Path createFile(Path dir, long size) throws IOException
+	{
+		Path file = dir.resolve(FILE_NAME);
+		byte[] block = new byte[(int) Math.min(size, MB)];
+		Random random = new Random(size);
+
+		try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw"))
+		{
+			for (long written = 0; written < size; written += block.length)
+			{
+				random.nextBytes(block);
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+
+		return file;
+	}
+
+
+	/**
+	 * A peer which serves whole file, range and hashes requests from the share directory, sleeping
+	 * between writes to keep its total upload rate, over all connections, at the specified rate.
+	 * A corrupt peer changes the first byte of every range it sends.
+	 */
+	private static class ThrottledPeer implements Runnable
+	{
+		private final ServerSocket server;
+		private final Path shareDir;
+		private final long bytesPerSecond;
+		private final ExecutorService executor;
+		private long nextWriteNanos = System.nanoTime();                   //Guarded by this.
+		volatile boolean corrupt;
+
+		ThrottledPeer(Path shareDir, long bytesPerSecond, ExecutorService executor) throws IOException
+		{
+			this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this.shareDir = shareDir;
+			this.bytesPerSecond = bytesPerSecond;
+			this.executor = executor;
+			executor.submit(this);
+		}
+
+		int getPort()
+		{
+			return server.getLocalPort();
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				try
+				{
+					Socket socket = server.accept();
+					executor.submit(() -> serve(socket));
+				}
+				catch (IOException acceptEx)
+				{
+					return;
+				}
+			}
+		}
+
+		private void serve(Socket socket)
+		{
+			try (Socket peer = socket;
+					InputStream inStream = peer.getInputStream();
+					OutputStream outStream = peer.getOutputStream();
+					RandomAccessFile in = new RandomAccessFile(shareDir.resolve(FILE_NAME).toFile(), "r"))
+			{
+				PeerProtocol.Request request = PeerProtocol.parseRequest(PeerProtocol.readLine(inStream));
+				if (request.isHashes())
+				{
+					outStream.write(PeerProtocol.formatHashesReply(ContentHashCache.getInstance().get(shareDir.resolve(FILE_NAME))));
+					return;
+				}
+
+				long end = request.getEnd(in.length());
+				byte[] buf = new byte[WRITE_SIZE];
+
+				outStream.write(request.getOkHeader(in.length()).getBytes());
+				in.seek(request.getOffset());
+				for (long position = request.getOffset(); position < end; )
+				{
+					int length = (int) Math.min(buf.length, end - position);
+					in.readFully(buf, 0, length);
+					if (corrupt && position == request.getOffset())
+						buf[0] ^= 1;
+					throttle(length);
+					outStream.write(buf, 0, length);
+					position += length;
+				}
+			}
+			catch (IOException | InterruptedException serveEx)
+			{}                                                                  //The downloader abandoned the chunk.
+		}
+
+		/**
+		 * Waits until the specified number of bytes may be sent within the upload rate.
+		 */
+		private void throttle(int bytes) throws InterruptedException
+		{
+			long sendAt;
+			synchronized (this)
+			{
+				sendAt = Math.max(nextWriteNanos, System.nanoTime() - 50_000_000L);    //Allow a burst of at most 50 ms.
+				nextWriteNanos = sendAt + bytes * 1_000_000_000L / bytesPerSecond;
+			}
+
+			long waitNanos = sendAt - System.nanoTime();
+			if (waitNanos > 0)
+				Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * ThreadModeBenchmark.java
+ * 
+ * Compares platform threads with virtual threads for many concurrent blocking transfers. For each
+ * execution mode, a FileSendHelper serves a file over loopback while the same number of clients
+ * download it, all running on an executor created by PeerExecutors for that mode. Every client
+ * connects and then waits until all clients are connected, so all transfers are in progress at once.
+ * At most MAX_PENDING_CONNECTS clients connect at the same time, since a flood of simultaneous
+ * connects overflows the listen backlog on loopback and some handshakes are then never completed.
+ * The elapsed time, the peak number of live threads and the heap in use are reported.
+ * 
+ * Virtual threads require Java 21 or later. On an earlier JVM only platform threads are measured.
+ * This is not run as part of the unit tests. Run it from the p2pclient directory with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.ThreadModeBenchmark -Dexec.args="10000 64"
+ * The arguments are the number of concurrent transfers (default 10000) and the file size in KB (default 64).
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ThreadModeBenchmark
+{
+	private static final String FILE_NAME = "transfer.dat";
+	private static final long TIMEOUT_MINUTES = 10;
+	private static final int MAX_PENDING_CONNECTS = 256;                    //Keeps the listen backlog of the server from overflowing.
+	
+	public static void main(String[] args) throws Exception
+	{
+		int transfers = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int fileKB = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+		
+		Path shareDir = Files.createTempDirectory("p2p-thread-bench");
+		Path file = shareDir.resolve(FILE_NAME);
+		Files.write(file, new byte[fileKB * 1024]);
+		
+		System.out.println(transfers + " concurrent transfers of a " + fileKB + " KB file, Java " + System.getProperty("java.version"));
+		System.out.printf("%10s %12s %12s %14s %12s%n", "mode", "elapsed ms", "complete", "peak threads", "heap MB");
+		
+		try
+		{
+			measure(PeerConfig.MODE_PLATFORM, shareDir, Files.size(file), transfers);
+			
+			if (PeerExecutors.isVirtualThreadSupported())
+				measure(PeerConfig.MODE_VIRTUAL, shareDir, Files.size(file), transfers);
+			else
+				System.out.println("Virtual threads are not supported by this JVM.");
+		}
+		finally
+		{
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(shareDir);
+		}
+		
+		System.exit(0);                                                          //FileSendHelper cannot be stopped.
+	}
+	
+	
+	private static void measure(String mode, Path shareDir, long fileSize, int transfers) throws Exception
+	{
+		PeerConfig config = new PeerConfig();
+		config.setExecutionMode(mode);
+		ExecutorService executor = PeerExecutors.newPeerExecutor(config);
+		
+		int port;
+		try (ServerSocket probe = new ServerSocket(0))
+		{
+			port = probe.getLocalPort();                                         //Find a free port for FileSendHelper.
+		}
+		executor.submit(new FileSendHelper(shareDir.toString(), port, executor, transfers));
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		System.gc();
+		threadBean.resetPeakThreadCount();
+		
+		Semaphore connectPermits = new Semaphore(MAX_PENDING_CONNECTS);
+		CountDownLatch connected = new CountDownLatch(transfers);
+		CountDownLatch done = new CountDownLatch(transfers);
+		AtomicInteger complete = new AtomicInteger();
+		AtomicReference<String> firstFailure = new AtomicReference<>();
+		long expected = fileSize + "OK \n".length();
+		
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < transfers; i++)
+		{
+			executor.submit(() -> {
+				try
+				{
+					if (download(address, connectPermits, connected) == expected)
+						complete.incrementAndGet();
+				}
+				catch (Exception | OutOfMemoryError transferEx)
+				{
+					firstFailure.compareAndSet(null, transferEx.toString());
+				}
+				finally
+				{
+					done.countDown();
+				}
+			});
+		}
+		done.await(TIMEOUT_MINUTES, TimeUnit.MINUTES);
+		long elapsed = System.currentTimeMillis() - start;
+		
+		long heapMB = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+		System.out.printf("%10s %12d %12d %14d %12d%n", mode, elapsed, complete.get(), threadBean.getPeakThreadCount(), heapMB);
+		if (firstFailure.get() != null)
+			System.out.println("  First failure: " + firstFailure.get());
+		
+		/*Stop the idle platform threads, so they are not counted in the next measurement. */
+		executor.shutdownNow();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+	
+	
+	/**
+	 * Connects to the server, waits until all clients are connected, then requests the file and reads the response.
+	 * @return long number of bytes received, including the header
+	 */
+	private static long download(InetSocketAddress address, Semaphore connectPermits, CountDownLatch connected) throws IOException, InterruptedException
+	{
+		SocketChannel opened;
+		try
+		{
+			connectPermits.acquire();
+			try
+			{
+				opened = SocketChannel.open(address);
+			}
+			finally
+			{
+				connectPermits.release();
+			}
+		}
+		finally
+		{
+			connected.countDown();                                               //Also if the connection failed, so others are not held up.
+		}
+		
+		try (SocketChannel channel = opened)
+		{
+			connected.await();
+			
+			channel.write(ByteBuffer.wrap((FILE_NAME + "\n").getBytes()));
+			
+			ByteBuffer buf = ByteBuffer.allocate(16 * 1024);
+			long received = 0;
+			int read;
+			while ((read = channel.read(buf)) >= 0)
+			{
+				received += read;
+				buf.clear();
+			}
+			return received;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * UploadQueueBenchmark.java
+ *
+ * Measures how a peer with few upload slots serves a crowd of downloaders. One of the send engines
+ * shares a large and a small file, with the upload limit set so each upload takes a measurable time.
+ * One large download is started first, so every slot is in use, and then the other large and small
+ * downloads are started at once, each by a FileReceiveHelper over its own connection.
+ *
+ * For the small and for the large downloads, the mean and longest time to finish are reported, along
+ * with the highest queue position any of them was shown in its DownloadStatus and the longest wait the
+ * peer estimated. As short requests are served first, the small downloads should finish within a few
+ * uploads of the large file's ranges, however many large downloads are waiting.
+ *
+ * This is not run as part of the unit tests. Run it from the p2pclient directory with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.biermann.tme3.p2pclient.UploadQueueBenchmark -Dexec.args="nio 2 8 8"
+ * The arguments are the engine ("nio" or "legacy"), the number of upload slots (default 2), and the
+ * number of large and of small downloads (default 8 each).
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class UploadQueueBenchmark
+{
+	private static final int LARGE_BYTES = 4 * 1024 * 1024;
+	private static final int SMALL_BYTES = 16 * 1024;
+	private static final long UPLOAD_LIMIT_BYTES = 4 * 1024 * 1024;         //Per second, so a range of the large file takes a while.
+	private static final long POLL_MILLIS = 10;
+
+	public static void main(String[] args) throws Exception
+	{
+		String engine = (args.length > 0) ? args[0] : PeerConfig.ENGINE_NIO;
+		int slots = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+		int largeDownloads = (args.length > 2) ? Integer.parseInt(args[2]) : 8;
+		int smallDownloads = (args.length > 3) ? Integer.parseInt(args[3]) : 8;
+
+		Path shareDir = Files.createTempDirectory("p2p-queue-share");
+		Random random = new Random(5);
+		byte[] large = new byte[LARGE_BYTES];
+		byte[] small = new byte[SMALL_BYTES];
+		random.nextBytes(large);                                             //Not compressible, so sent as it is.
+		random.nextBytes(small);
+		Files.write(shareDir.resolve("large.dat"), large);
+		Files.write(shareDir.resolve("small.dat"), small);
+
+		int port = startServer(engine, shareDir.toString(), slots);
+		BandwidthLimiter.getUploadInstance().setRate(UPLOAD_LIMIT_BYTES);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		List<Path> receiveDirs = new ArrayList<>();
+		List<DownloadStatus> statuses = new ArrayList<>();
+		List<Future<Long>> largeResults = new ArrayList<>();
+		List<Future<Long>> smallResults = new ArrayList<>();
+
+		System.out.println("Engine " + engine + ", " + slots + " upload slots, " + largeDownloads + " downloads of " + LARGE_BYTES / 1024
+				+ " KB and " + smallDownloads + " of " + SMALL_BYTES / 1024 + " KB at " + UPLOAD_LIMIT_BYTES / 1024 + " KB/s, Java "
+				+ System.getProperty("java.version"));
+		try
+		{
+			largeResults.add(download("large.dat", port, receiveDirs, statuses, executor));
+			Thread.sleep(200);                                                   //The first large download holds a slot.
+			for (int i = 1; i < largeDownloads; i++)
+			{
+				largeResults.add(download("large.dat", port, receiveDirs, statuses, executor));
+			}
+			for (int i = 0; i < smallDownloads; i++)
+			{
+				smallResults.add(download("small.dat", port, receiveDirs, statuses, executor));
+			}
+
+			int maxPosition = 0;
+			long maxWaitMillis = -1;
+			while (!isDone(largeResults) || !isDone(smallResults))
+			{
+				for (DownloadStatus status : statuses)
+				{
+					maxPosition = Math.max(maxPosition, status.getQueuePosition());
+					maxWaitMillis = Math.max(maxWaitMillis, status.getEstimatedWaitMillis());
+				}
+				Thread.sleep(POLL_MILLIS);
+			}
+
+			System.out.printf("%-8s %10s %14s %14s%n", "files", "downloads", "mean ms", "longest ms");
+			report("small", smallResults);
+			report("large", largeResults);
+			System.out.println("Highest queue position shown " + maxPosition + ", longest estimated wait "
+					+ ((maxWaitMillis < 0) ? "-" : maxWaitMillis + " ms"));
+		}
+		finally
+		{
+			for (Path receiveDir : receiveDirs)
+			{
+				Files.deleteIfExists(receiveDir.resolve("large.dat"));
+				Files.deleteIfExists(receiveDir.resolve("small.dat"));
+				Files.deleteIfExists(receiveDir);
+			}
+			Files.deleteIfExists(shareDir.resolve("large.dat"));
+			Files.deleteIfExists(shareDir.resolve("small.dat"));
+			Files.deleteIfExists(shareDir);
+		}
+
+		System.exit(0);                                                             //The send engines cannot be stopped.
+	}
+
+
+	/**
+	 * Starts downloading a file into a new receive directory.
+	 * @return Future with the time taken in milliseconds
+	 */
+	private static Future<Long> download(String name, int port, List<Path> receiveDirs, List<DownloadStatus> statuses,
+			ExecutorService executor) throws IOException
+	{
+		Path receiveDir = Files.createTempDirectory("p2p-queue-receive");
+		DownloadStatus status = new DownloadStatus(name);
+		receiveDirs.add(receiveDir);
+		statuses.add(status);
+		long start = System.nanoTime();
+		return executor.submit(() -> {
+			if (!new FileReceiveHelper("127.0.0.1", port, receiveDir.toString(), status).receive())
+				throw new IOException("The download failed: " + status.getStatusMessage());
+			return (System.nanoTime() - start) / 1000000;
+		});
+	}
+
+
+	private static boolean isDone(List<Future<Long>> results)
+	{
+		for (Future<Long> result : results)
+		{
+			if (!result.isDone())
+				return false;
+		}
+		return true;
+	}
+
+
+	private static void report(String files, List<Future<Long>> results) throws Exception
+	{
+		long total = 0;
+		long longest = 0;
+		for (Future<Long> result : results)
+		{
+			total += result.get();
+			longest = Math.max(longest, result.get());
+		}
+		System.out.printf("%-8s %10d %14d %14d%n", files, results.size(), results.isEmpty() ? 0 : total / results.size(), longest);
+	}
+
+
+	private static int startServer(String engine, String shareDir, int slots) throws IOException
+	{
+		if (engine.equals(PeerConfig.ENGINE_LEGACY))
+		{
+			int port;
+			try (ServerSocket probe = new ServerSocket(0))
+			{
+				port = probe.getLocalPort();                                        //Find a free port for FileSendHelper.
+			}
+			Thread helper = new Thread(new FileSendHelper(shareDir, port, Executors.newCachedThreadPool(), slots));
+			helper.setDaemon(true);
+			helper.start();
+			return port;
+		}
+
+		PeerConfig config = PeerConfig.fromSystemProperties();
+		config.setMaxUploads(slots);
+		NioFileSendServer server = new NioFileSendServer(shareDir, 0, config);
+		Thread loop = new Thread(server, "p2p-send-loop-0");
+		loop.setDaemon(true);
+		loop.start();
+		return server.getLocalPort();
+	}
+}
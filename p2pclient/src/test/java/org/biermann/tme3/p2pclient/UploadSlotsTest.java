@@ -0,0 +1,222 @@
+/**
+ * UploadSlotsTest.java
+ *
+ * Unit tests of UploadSlots: that no more tickets hold a slot than there are slots, that short requests
+ * are served first but the penalty for a long request is bounded, that positions follow the order in
+ * which tickets are granted, and that a released ticket gives up its slot or its place in the queue.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pclient;
+
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class UploadSlotsTest extends TestCase
+{
+	private static final long SMALL = 1024;
+	private static final long LARGE = 1024L * 1024 * 1024;                  //Its penalty is longer than MAX_SIZE_PENALTY_MILLIS.
+
+
+	/**
+	 * Create the test case
+	 * @param testName name of the test case
+	 */
+	public UploadSlotsTest(String testName)
+	{
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite()
+	{
+		return new TestSuite(UploadSlotsTest.class);
+	}
+
+
+	public void testSlotsAreLimited()
+	{
+		UploadSlots slots = new UploadSlots(2);
+		assertTrue(slots.isFree());
+		UploadSlots.Ticket first = slots.enqueue(SMALL, "first");
+		UploadSlots.Ticket second = slots.enqueue(SMALL, "second");
+		UploadSlots.Ticket third = slots.enqueue(SMALL, "third");
+
+		assertSame(first, slots.grantNext());
+		assertSame(second, slots.grantNext());
+		assertNull(slots.grantNext());                                       //Both slots are in use.
+		assertEquals(2, slots.getActive());
+		assertEquals(1, slots.getWaiting());
+		assertFalse(slots.isFree());
+		assertEquals(1, slots.getPosition(third));
+		assertEquals(0, slots.getPosition(first));                           //Granted, so no longer waiting.
+
+		slots.release(first);
+		assertSame(third, slots.grantNext());
+		assertEquals("third", third.getAttachment());
+		assertEquals(0, slots.getWaiting());
+	}
+
+
+	public void testAtLeastOneSlot()
+	{
+		UploadSlots slots = new UploadSlots(0);
+		assertEquals(1, slots.getSlots());
+		slots.enqueue(SMALL, null);
+		assertNotNull(slots.grantNext());
+	}
+
+
+	public void testShortRequestsAreServedFirst()
+	{
+		UploadSlots slots = new UploadSlots(1);
+		slots.grantNext();
+		UploadSlots.Ticket large = slots.enqueue(LARGE, "large");
+		UploadSlots.Ticket small = slots.enqueue(SMALL, "small");
+		UploadSlots.Ticket empty = slots.enqueue(0, "empty");
+
+		List<UploadSlots.Ticket> queue = slots.getQueue();
+		assertEquals(3, queue.size());
+		assertSame(small, queue.get(0));
+		assertSame(empty, queue.get(1));                                     //No penalty either, but arrived later.
+		assertSame(large, queue.get(2));
+		assertEquals(1, slots.getPosition(small));
+		assertEquals(3, slots.getPosition(large));
+	}
+
+
+	/**
+	 * Requests longer than the bound all have the same penalty, so they are served in order of arrival
+	 * however long they are, and a request waits at most MAX_SIZE_PENALTY_MILLIS longer than a request
+	 * of no length which arrived at the same time.
+	 */
+	public void testPenaltyIsBounded()
+	{
+		UploadSlots slots = new UploadSlots(1);
+		UploadSlots.Ticket longest = slots.enqueue(Long.MAX_VALUE, "longest");
+		UploadSlots.Ticket larger = slots.enqueue(10 * LARGE, "larger");
+		UploadSlots.Ticket large = slots.enqueue(LARGE, "large");
+
+		assertSame(longest, slots.grantNext());
+		slots.release(longest);
+		assertSame(larger, slots.grantNext());
+		slots.release(larger);
+		assertSame(large, slots.grantNext());
+		assertTrue(LARGE / (UploadSlots.SIZE_PENALTY_BYTES_PER_SECOND / 1000) > UploadSlots.MAX_SIZE_PENALTY_MILLIS);
+	}
+
+
+	public void testSameLengthInOrderOfArrival()
+	{
+		UploadSlots slots = new UploadSlots(1);
+		slots.grantNext();
+		UploadSlots.Ticket[] tickets = new UploadSlots.Ticket[10];
+		for (int i = 0; i < tickets.length; i++)
+		{
+			tickets[i] = slots.enqueue(SMALL, i);
+		}
+
+		List<UploadSlots.Ticket> queue = slots.getQueue();
+		for (int i = 0; i < tickets.length; i++)
+		{
+			assertSame(tickets[i], queue.get(i));
+			assertEquals(i + 1, slots.getPosition(tickets[i]));
+		}
+	}
+
+
+	public void testReleaseWaitingTicket()
+	{
+		UploadSlots slots = new UploadSlots(1);
+		UploadSlots.Ticket holder = slots.enqueue(SMALL, null);
+		slots.grantNext();
+		UploadSlots.Ticket first = slots.enqueue(SMALL, null);
+		UploadSlots.Ticket second = slots.enqueue(SMALL, null);
+		assertEquals(2, slots.getPosition(second));
+
+		slots.release(first);                                                //E.g. its peer closed the connection.
+		assertEquals(0, slots.getPosition(first));
+		assertEquals(1, slots.getPosition(second));
+		assertEquals(1, slots.getWaiting());
+		assertEquals(1, slots.getActive());                                  //The slot of the holder is not freed.
+
+		slots.release(first);                                                //Releasing twice has no effect.
+		assertEquals(1, slots.getActive());
+		slots.release(holder);
+		assertSame(second, slots.grantNext());
+		assertNull(slots.grantNext());
+	}
+
+
+	public void testReleaseGrantedTicketTwice()
+	{
+		UploadSlots slots = new UploadSlots(1);
+		UploadSlots.Ticket ticket = slots.enqueue(SMALL, null);
+		slots.grantNext();
+		slots.release(ticket);
+		slots.release(ticket);
+		assertEquals(0, slots.getActive());
+		assertTrue(slots.isFree());
+	}
+
+
+	public void testAwait() throws InterruptedException
+	{
+		UploadSlots slots = new UploadSlots(1);
+		UploadSlots.Ticket holder = slots.enqueue(SMALL, null);
+		assertTrue(slots.await(holder, 1));                                  //Granted at once, as a slot is free.
+
+		UploadSlots.Ticket waiter = slots.enqueue(SMALL, null);
+		assertFalse(slots.await(waiter, 1));                                 //Times out while the holder keeps its slot.
+		assertEquals(1, slots.getPosition(waiter));
+
+		slots.release(holder);
+		assertTrue(slots.await(waiter, 1));
+	}
+
+
+	public void testAwaitIsWokenByRelease() throws InterruptedException
+	{
+		final UploadSlots slots = new UploadSlots(1);
+		final UploadSlots.Ticket holder = slots.enqueue(SMALL, null);
+		slots.grantNext();
+		UploadSlots.Ticket waiter = slots.enqueue(SMALL, null);
+
+		Thread releaser = new Thread(() -> {
+			try
+			{
+				Thread.sleep(50);
+			}
+			catch (InterruptedException interrupted)
+			{}
+			slots.release(holder);
+		});
+		releaser.start();
+		long start = System.nanoTime();
+		assertTrue(slots.await(waiter, 10000));
+		assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+		releaser.join();
+	}
+
+
+	public void testEstimatedWait() throws InterruptedException
+	{
+		UploadSlots slots = new UploadSlots(2);
+		assertEquals(-1, slots.estimateWaitMillis(1));                       //No upload has finished yet.
+
+		UploadSlots.Ticket ticket = slots.enqueue(SMALL, null);
+		slots.grantNext();
+		Thread.sleep(20);
+		slots.release(ticket);
+
+		long oneSlot = slots.estimateWaitMillis(1);
+		assertTrue(oneSlot >= 10);                                           //Half the time the slot was held, as there are two slots.
+		assertTrue(slots.estimateWaitMillis(4) >= 4 * oneSlot - 4);
+		assertTrue(slots.estimateWaitMillis(4) <= 4 * oneSlot);
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * PeerLoad.java
+ *
+ * The load of a peer, as last reported with its heartbeat: the number of files it is uploading,
+ * the number of further uploads it can start at once, and the rate at which it sent data since
+ * its previous report. A peer which does not report one of the values has it set to -1.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.balance;
+
+public final class PeerLoad
+{
+	private final int activeUploads;
+	private final int freeUploadSlots;
+	private final long throughputBytesPerSecond;
+	private final long reportedAt;
+
+	/**
+	 * @param activeUploads int number of files being uploaded, or -1 if not reported
+	 * @param freeUploadSlots int number of uploads which can be started at once, or -1 if not reported
+	 * @param throughputBytesPerSecond long rate of upload, or -1 if not reported
+	 * @param reportedAt long time of the report in milliseconds since the epoch
+	 */
+	public PeerLoad(int activeUploads, int freeUploadSlots, long throughputBytesPerSecond, long reportedAt)
+	{
+		this.activeUploads = activeUploads;
+		this.freeUploadSlots = freeUploadSlots;
+		this.throughputBytesPerSecond = throughputBytesPerSecond;
+		this.reportedAt = reportedAt;
+	}
+
+	public int getActiveUploads()
+	{
+		return activeUploads;
+	}
+
+	public int getFreeUploadSlots()
+	{
+		return freeUploadSlots;
+	}
+
+	public long getThroughputBytesPerSecond()
+	{
+		return throughputBytesPerSecond;
+	}
+
+	public long getReportedAt()
+	{
+		return reportedAt;
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * PeerSelector.java
+ *
+ * Orders the peers sharing a file so that downloads are spread over them according to their load.
+ * Peers report their load with their heartbeats (see PeerLoad). The load of a peer is estimated as
+ * the fraction of its upload slots in use, counting the uploads reported and the downloads directed
+ * to it by this index service since its report, as the report may be up to a heartbeat old. A lookup
+ * which returns every peer sharing a file, to a client which downloads from all of them at once,
+ * counts a download directed to each of them, and a lookup which returns a single peer counts one.
+ *
+ * Candidates are ranked by "power of two choices": two of the remaining candidates are drawn at
+ * random, and the less loaded one is placed next. Always placing the least loaded peer first would
+ * direct every lookup between two heartbeats to the same peer. Drawing two at random keeps the peers
+ * which are clearly busy at the back, while spreading lookups over the others.
+ *
+ * A peer which never reported its load, such as an older client, is assumed to have
+ * DEFAULT_UPLOAD_SLOTS slots and no uploads other than those directed to it. Reports and counts
+ * older than the maximum age are discarded.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.balance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PeerSelector
+{
+	public static final int DEFAULT_UPLOAD_SLOTS = 4;                       //Assumed for a peer which does not report its load.
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final long maxAgeMillis;
+	private volatile long nextPruneMillis;
+
+	/**
+	 * The last load reported by a peer, and the downloads directed to it since.
+	 */
+	private static final class Entry
+	{
+		final PeerLoad load;                                               //Null if the peer did not report its load.
+		final AtomicInteger assigned = new AtomicInteger();
+		final long createdAt;
+
+		Entry(PeerLoad load, long createdAt)
+		{
+			this.load = load;
+			this.createdAt = createdAt;
+		}
+	}
+
+
+	/**
+	 * Creates a selector which discards reports after the specified age. This should be longer
+	 * than the interval between heartbeats.
+	 * @param maxAgeMillis long age in milliseconds after which a report is discarded
+	 */
+	public PeerSelector(long maxAgeMillis)
+	{
+		this.maxAgeMillis = maxAgeMillis;
+		nextPruneMillis = System.currentTimeMillis() + maxAgeMillis;
+	}
+
+
+	/**
+	 * Records the load reported by a peer for each of its host addresses. The downloads directed
+	 * to the addresses before the report are included in it, so they are no longer counted.
+	 * @param hostAddresses Collection of the addresses of the peer
+	 * @param load PeerLoad reported by the peer
+	 */
+	public void report(Collection<String> hostAddresses, PeerLoad load)
+	{
+		for (String hostAddress : hostAddresses)
+		{
+			entries.put(hostAddress, new Entry(load, load.getReportedAt()));
+		}
+		pruneIfDue(load.getReportedAt());
+	}
+
+
+	/**
+	 * Orders the candidates so that the less loaded peers tend to come first, and counts a download
+	 * directed to each of the peers at the front of the list which the client is given.
+	 * @param hostAddresses List of the addresses of the candidates, which is not modified
+	 * @param counted int number of peers from the front of the ranked list to which a download is
+	 * directed, e.g. 1 if only the first is returned, or the number of candidates for a client which
+	 * downloads from all of them
+	 * @return List of the addresses in ranked order
+	 */
+	public List<String> rank(List<String> hostAddresses, int counted)
+	{
+		List<String> ranked = new ArrayList<>(hostAddresses.size());
+		if (hostAddresses.isEmpty())
+			return ranked;
+
+		long now = System.currentTimeMillis();
+		List<String> remaining = new ArrayList<>(hostAddresses);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (remaining.size() > 1)
+		{
+			int first = random.nextInt(remaining.size());
+			int second = random.nextInt(remaining.size() - 1);
+			if (second >= first)
+				second++;                                                      //Two different candidates.
+
+			int chosen = isLessLoaded(remaining.get(second), remaining.get(first), now) ? second : first;
+			ranked.add(remaining.get(chosen));
+
+			/*The order of the remaining candidates does not matter, so the last one fills the gap. */
+			remaining.set(chosen, remaining.get(remaining.size() - 1));
+			remaining.remove(remaining.size() - 1);
+		}
+		ranked.add(remaining.get(0));
+
+		for (int i = 0; i < Math.min(counted, ranked.size()); i++)
+		{
+			entryFor(ranked.get(i), now).assigned.incrementAndGet();
+		}
+		pruneIfDue(now);
+		return ranked;
+	}
+
+
+	/**
+	 * Get the number of host addresses for which a load or downloads are recorded.
+	 * @return int number of host addresses
+	 */
+	public int getTrackedCount()
+	{
+		return entries.size();
+	}
+
+
+	/**
+	 * Determines if the first peer is less loaded than the second. Of two peers with the same load,
+	 * the one with the higher reported throughput is preferred.
+	 */
+	private boolean isLessLoaded(String hostAddress, String otherAddress, long now)
+	{
+		Entry entry = currentEntry(hostAddress, now);
+		Entry other = currentEntry(otherAddress, now);
+		double utilization = utilization(entry);
+		double otherUtilization = utilization(other);
+		if (utilization != otherUtilization)
+			return utilization < otherUtilization;
+
+		return throughput(entry) > throughput(other);
+	}
+
+
+	/**
+	 * Estimates the fraction of the upload slots of a peer which are in use. A peer with no free slot
+	 * has a utilization of at least 1, which grows with the downloads waiting for it.
+	 */
+	private static double utilization(Entry entry)
+	{
+		int assigned = (entry == null) ? 0 : entry.assigned.get();
+		PeerLoad load = (entry == null) ? null : entry.load;
+		int active = (load == null || load.getActiveUploads() < 0) ? 0 : load.getActiveUploads();
+		int free = (load == null || load.getFreeUploadSlots() < 0) ? DEFAULT_UPLOAD_SLOTS : load.getFreeUploadSlots();
+
+		/*One is added so that a peer with no slots in use is still ranked by its number of slots. */
+		return (active + assigned + 1) / (double) (active + free + 1);
+	}
+
+
+	private static long throughput(Entry entry)
+	{
+		return (entry == null || entry.load == null) ? -1 : entry.load.getThroughputBytesPerSecond();
+	}
+
+
+	/**
+	 * Get the entry of a peer, or null if it has none or its entry is too old.
+	 */
+	private Entry currentEntry(String hostAddress, long now)
+	{
+		Entry entry = entries.get(hostAddress);
+		return (entry == null || now - entry.createdAt > maxAgeMillis) ? null : entry;
+	}
+
+
+	/**
+	 * Get the entry of a peer, replacing an entry which is too old with an empty one.
+	 */
+	private Entry entryFor(String hostAddress, long now)
+	{
+		return entries.compute(hostAddress, (host, entry) ->
+				(entry == null || now - entry.createdAt > maxAgeMillis) ? new Entry(null, now) : entry);
+	}
+
+
+	/**
+	 * Removes the entries which are too old, at most once per maximum age, so that peers which are
+	 * gone do not stay in memory.
+	 */
+	private void pruneIfDue(long now)
+	{
+		if (now < nextPruneMillis)
+			return;
+
+		nextPruneMillis = now + maxAgeMillis;
+		entries.values().removeIf(entry -> now - entry.createdAt > maxAgeMillis);
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * FileNameKeys.java
+ * 
+ * Provides the keys used to cache lookups by file name. The sharing_index database compares file
+ * names using a case- and accent-insensitive collation, so names which differ only in case or
+ * accents refer to the same records. normalize() maps all such names to the same group, so that a
+ * write to one spelling invalidates cached results for every equivalent spelling.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.cache;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+public final class FileNameKeys
+{
+	private FileNameKeys()
+	{}
+	
+	/**
+	 * Get the invalidation group for a file name. Removes accents and trailing spaces and
+	 * converts to lower case. This may group names which the database considers different,
+	 * which only causes some unnecessary invalidation.
+	 * @param fileName String with the file name
+	 * @return String with the normalized name
+	 */
+	public static String normalize(String fileName)
+	{
+		String decomposed = Normalizer.normalize(fileName, Normalizer.Form.NFD);
+		String stripped = decomposed.replaceAll("\\p{M}+", "");                     //Remove combining accent marks.
+		
+		int end = stripped.length();
+		while (end > 0 && stripped.charAt(end - 1) == ' ')                          //Trailing spaces are ignored by the collation.
+			end--;
+		
+		return stripped.substring(0, end).toLowerCase(Locale.ROOT);
+	}
+	
+	
+	/**
+	 * A key identifying a file name shared by a particular peer.
+	 */
+	public static final class PeerFileKey
+	{
+		private final String fileName;
+		private final String hostAddress;
+		
+		public PeerFileKey(String fileName, String hostAddress)
+		{
+			this.fileName = fileName;
+			this.hostAddress = hostAddress;
+		}
+		
+		public String getFileName()
+		{
+			return fileName;
+		}
+		
+		public String getHostAddress()
+		{
+			return hostAddress;
+		}
+		
+		@Override
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof PeerFileKey))
+				return false;
+			
+			PeerFileKey key = (PeerFileKey) other;
+			return fileName.equals(key.fileName) && hostAddress.equals(key.hostAddress);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return 31 * fileName.hashCode() + hostAddress.hashCode();
+		}
+	}
+}
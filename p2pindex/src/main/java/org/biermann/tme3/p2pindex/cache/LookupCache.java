@@ -0,0 +1,315 @@
+/**
+ * LookupCache.java
+ *
+ * A bounded, time-limited read-through cache for the results of index lookups. Values are loaded
+ * on a miss using the CacheLoader provided by the caller. Results which indicate that nothing was
+ * found (null) are cached as well, so repeated lookups for missing files do not reach the database.
+ *
+ * The cache is split into stripes, each guarded by its own lock, so concurrent lookups of different
+ * keys rarely contend. Each stripe holds its entries in access order and evicts the least recently
+ * used entry once it is full. Entries expire after the time to live.
+ *
+ * Keys belong to a group, determined by the grouping function given to the constructor. All keys of
+ * a group are kept in the same stripe, so that invalidate() can remove every cached result which may
+ * be affected by a write. Each stripe also counts invalidations, and a value loaded concurrently with
+ * an invalidation of its stripe is not stored. This ensures a lookup which read the database before
+ * a write completed can never reinstate a stale result after that write.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+public class LookupCache<K, V>
+{
+	private final String name;
+	private final Segment[] segments;
+	private final Function<K, ?> grouping;
+	private final long ttlMillis;
+
+	/*Counters used to size the cache */
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Loads the value for a key which is not cached.
+	 */
+	public interface CacheLoader<K, V>
+	{
+		V load(K key);
+	}
+
+
+	/**
+	 * Creates a cache with the specified bounds.
+	 * @param name String identifying the cache in statistics
+	 * @param maxEntries int maximum number of entries, divided evenly between the stripes
+	 * @param ttlMillis long time after which an entry expires, in milliseconds
+	 * @param stripes int number of independently locked stripes
+	 * @param grouping Function mapping each key to the group which is invalidated together
+	 */
+	@SuppressWarnings("unchecked")
+	public LookupCache(String name, int maxEntries, long ttlMillis, int stripes, Function<K, ?> grouping)
+	{
+		this.name = name;
+		this.ttlMillis = ttlMillis;
+		this.grouping = grouping;
+
+		int perSegment = Math.max(1, maxEntries / stripes);
+		/*An array of an inner class of a generic class can only be created with wildcard type arguments.
+		 * The cast of the empty array is safe, and is the unchecked operation suppressed above. */
+		segments = (Segment[]) new LookupCache<?, ?>.Segment[stripes];
+		for (int i = 0; i < stripes; i++)
+		{
+			segments[i] = new Segment(perSegment);
+		}
+	}
+
+
+	/**
+	 * Get the value for the key, loading and caching it if it is not cached or has expired.
+	 * Exceptions thrown by the loader are passed to the caller and nothing is cached.
+	 * @param key K key to look up
+	 * @param loader CacheLoader used to load the value on a miss
+	 * @return V the cached or loaded value, which may be null
+	 */
+	public V get(K key, CacheLoader<K, V> loader)
+	{
+		Object group = grouping.apply(key);
+		Segment segment = segmentFor(group);
+		long generation;
+
+		segment.lock.lock();
+		try
+		{
+			Entry<V> entry = segment.entries.get(key);
+			if (entry != null)
+			{
+				if (entry.expiresMillis > System.currentTimeMillis())
+				{
+					hits.increment();
+					return entry.value;
+				}
+
+				segment.remove(key, group);
+				expirations.increment();
+			}
+			generation = segment.generation;
+		}
+		finally
+		{
+			segment.lock.unlock();
+		}
+
+		misses.increment();
+		V value = loader.load(key);                                  //Load without holding the lock.
+
+		segment.lock.lock();
+		try
+		{
+			/*Only store the value if no write has invalidated this stripe since the load started. */
+			if (segment.generation == generation)
+			{
+				segment.put(key, group, new Entry<V>(value, System.currentTimeMillis() + ttlMillis));
+			}
+		}
+		finally
+		{
+			segment.lock.unlock();
+		}
+
+		return value;
+	}
+
+
+	/**
+	 * Removes all cached entries whose keys belong to the specified group.
+	 * @param group Object identifying the group, as returned by the grouping function
+	 */
+	public void invalidate(Object group)
+	{
+		Segment segment = segmentFor(group);
+		segment.lock.lock();
+		try
+		{
+			segment.generation++;
+			Set<K> keys = segment.groups.remove(group);
+			if (keys != null)
+			{
+				for (K key : keys)
+				{
+					segment.entries.remove(key);
+				}
+			}
+			invalidations.increment();
+		}
+		finally
+		{
+			segment.lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Removes all entries from the cache.
+	 */
+	public void invalidateAll()
+	{
+		for (Segment segment : segments)
+		{
+			segment.lock.lock();
+			try
+			{
+				segment.generation++;
+				segment.entries.clear();
+				segment.groups.clear();
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+		invalidations.increment();
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Get the number of entries currently cached, including any which have expired but not yet been removed.
+	 * @return int number of entries
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : segments)
+		{
+			segment.lock.lock();
+			try
+			{
+				size += segment.entries.size();
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+
+	public long getMissCount()
+	{
+		return misses.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.sum();
+	}
+
+	public long getExpirationCount()
+	{
+		return expirations.sum();
+	}
+
+	public long getInvalidationCount()
+	{
+		return invalidations.sum();
+	}
+
+
+	private Segment segmentFor(Object group)
+	{
+		int hash = group.hashCode();
+		hash ^= (hash >>> 16);                                       //Spread high bits so similar keys use different stripes.
+		return segments[(hash & 0x7fffffff) % segments.length];
+	}
+
+
+	/**
+	 * A cached value and the time at which it expires.
+	 */
+	private static class Entry<V>
+	{
+		final V value;
+		final long expiresMillis;
+
+		Entry(V value, long expiresMillis)
+		{
+			this.value = value;
+			this.expiresMillis = expiresMillis;
+		}
+	}
+
+
+	/**
+	 * One stripe of the cache. All fields are guarded by the lock.
+	 */
+	private class Segment
+	{
+		final ReentrantLock lock = new ReentrantLock();
+		final LinkedHashMap<K, Entry<V>> entries;
+		final Map<Object, Set<K>> groups = new HashMap<>();
+		final int capacity;
+		long generation;                                             //Incremented by every invalidation.
+
+		Segment(int capacity)
+		{
+			/*Access-ordered map, so the eldest entry is the least recently used one. */
+			entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		void put(K key, Object group, Entry<V> entry)
+		{
+			entries.put(key, entry);
+			groups.computeIfAbsent(group, g -> new HashSet<K>()).add(key);
+
+			if (entries.size() > capacity)
+			{
+				Iterator<K> eldest = entries.keySet().iterator();
+				K evicted = eldest.next();
+				eldest.remove();
+				removeFromGroup(evicted, grouping.apply(evicted));
+				evictions.increment();
+			}
+		}
+
+		void remove(K key, Object group)
+		{
+			entries.remove(key);
+			removeFromGroup(key, group);
+		}
+
+		private void removeFromGroup(K key, Object group)
+		{
+			Set<K> keys = groups.get(group);
+			if (keys != null)
+			{
+				keys.remove(key);
+				if (keys.isEmpty())
+					groups.remove(group);
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * DatabaseExecutor.java
+ *
+ * Runs the database work of suspended requests on a bounded set of threads, so that the threads of
+ * the web server are not held while the database is slow. A resource suspends its request with an
+ * AsyncResponse and submits the work, which is run when a database thread is free. The response is
+ * resumed with the result of the work, or with the exception it threw so that the usual exception
+ * mappers apply.
+ *
+ * At most queueCapacity operations wait for a database thread. When the queue is full the request
+ * is answered at once with an IndexBusyException, which is a "503 Service Unavailable" response with
+ * a Retry-After header. A request which is not completed within the timeout is answered in the same
+ * way, and its work is skipped if it has not started yet.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.controllers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+import org.biermann.tme3.p2pindex.exception.IndexBusyException;
+
+public class DatabaseExecutor
+{
+	public static final int DEFAULT_QUEUE_CAPACITY = 500;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+	public static final int DEFAULT_RETRY_AFTER_SECONDS = 2;
+
+	private final ThreadPoolExecutor executor;
+	private final long timeoutMillis;
+	private final int retryAfterSeconds;
+
+
+	/**
+	 * Creates an executor with the specified number of database threads. There is no benefit in
+	 * more threads than pooled connections, since each operation holds a connection.
+	 * @param threads int number of database threads
+	 * @param queueCapacity int most operations waiting for a database thread
+	 * @param timeoutMillis long time a request may take, including the time its operation waits
+	 * @param retryAfterSeconds int delay sent to clients whose request was rejected
+	 */
+	public DatabaseExecutor(int threads, int queueCapacity, long timeoutMillis, int retryAfterSeconds)
+	{
+		this.timeoutMillis = timeoutMillis;
+		this.retryAfterSeconds = retryAfterSeconds;
+
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory threadFactory = task -> {
+			Thread thread = new Thread(task, "index-db-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+
+		/*A full queue rejects new operations instead of blocking the caller */
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+
+	/**
+	 * Runs the work on a database thread and resumes the suspended request with its result.
+	 * @param asyncResponse AsyncResponse of the suspended request
+	 * @param work Supplier of the Response, which may throw an exception to be mapped to a response
+	 */
+	public void submit(AsyncResponse asyncResponse, Supplier<Response> work)
+	{
+		asyncResponse.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+		asyncResponse.setTimeoutHandler(timedOut ->
+				timedOut.resume(new IndexBusyException("The index service did not complete the request in time.", retryAfterSeconds)));
+
+		try
+		{
+			executor.execute(() -> run(asyncResponse, work));
+		}
+		catch (RejectedExecutionException queueFull)
+		{
+			asyncResponse.resume(new IndexBusyException("The index service is busy. Please retry later.", retryAfterSeconds));
+		}
+	}
+
+
+	private static void run(AsyncResponse asyncResponse, Supplier<Response> work)
+	{
+		/*The request timed out while waiting, so its client has already been answered */
+		if (asyncResponse.isDone())
+			return;
+
+		try
+		{
+			asyncResponse.resume(work.get());
+		}
+		catch (RuntimeException failure)
+		{
+			asyncResponse.resume(failure);
+		}
+	}
+
+
+	/**
+	 * Get the number of operations waiting for a database thread.
+	 * @return int number of queued operations
+	 */
+	public int getQueuedCount()
+	{
+		return executor.getQueue().size();
+	}
+
+
+	/**
+	 * Get the number of database threads running an operation.
+	 * @return int number of active threads
+	 */
+	public int getActiveCount()
+	{
+		return executor.getActiveCount();
+	}
+
+
+	/**
+	 * Stops accepting operations. Operations which are running or queued are still completed.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+}
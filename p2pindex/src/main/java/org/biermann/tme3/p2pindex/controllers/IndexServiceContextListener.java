@@ -0,0 +1,25 @@
+/**
+ * IndexServiceContextListener.java
+ * 
+ * Releases the resources held by the application-wide IndexServiceController, such as pooled
+ * database connections, when the index service is undeployed or the server shuts down.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.controllers;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+public class IndexServiceContextListener implements ServletContextListener
+{
+	@Override
+	public void contextInitialized(ServletContextEvent event)
+	{}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event)
+	{
+		IndexServiceController.shutdown();
+	}
+}
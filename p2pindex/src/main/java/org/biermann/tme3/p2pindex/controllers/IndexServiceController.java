@@ -5,7 +5,27 @@
  * for communication with the database. 
  * 
  * Provides functionality for creating new file sharing records, removing existing records,
- * and retrieving existing records.
+ * and retrieving existing records. Each unique content is stored once (see PeerFile), and is
+ * linked to the peers sharing it, and the names they share it under, by FileShared and FileAlias
+ * records. So the catalog grows with the number of unique files rather than the number of shares.
+ * 
+ * Resources may run the operations on the DatabaseExecutor of the controller rather than on the
+ * threads of the web server, see getDatabaseExecutor().
+ * 
+ * Sharing a file grants the peer a lease, which it renews with heartbeats (see renewLeases()).
+ * Lookups only return peers with a live lease, and peers whose lease expired are deleted in the
+ * background by PeerLeases.
+ * 
+ * Peers may report their load with their heartbeats. The peers sharing a file are ranked by
+ * PeerSelector on every lookup, so that downloads are spread over the peers rather than all being
+ * directed to the peer the database returns first.
+ * 
+ * The names of the shared files are also held in a FileNameIndex, loaded from the database in the
+ * background and updated as files are shared and unshared, so peers can search for files by the
+ * words in their names without querying the database (see search()).
+ * 
+ * The catalog may be listed a page at a time (see listFiles(), listPeerFiles() and listFilePeers()).
+ * The rows of a page are passed on as they are read from the database, so a page is never held in memory.
  * 
  * @author Oloff Biermann
  * 
@@ -14,35 +34,131 @@
 package org.biermann.tme3.p2pindex.controllers;
 
 
+import org.biermann.tme3.p2pindex.balance.PeerLoad;
+import org.biermann.tme3.p2pindex.balance.PeerSelector;
+import org.biermann.tme3.p2pindex.cache.FileNameKeys;
+import org.biermann.tme3.p2pindex.cache.FileNameKeys.PeerFileKey;
+import org.biermann.tme3.p2pindex.cache.LookupCache;
 import org.biermann.tme3.p2pindex.data.*;
 import org.biermann.tme3.p2pindex.exception.FileAlreadySharedException;
 import org.biermann.tme3.p2pindex.exception.FileNotSharedException;
+import org.biermann.tme3.p2pindex.lease.PeerLeases;
+import org.biermann.tme3.p2pindex.messages.BatchItemMessage;
+import org.biermann.tme3.p2pindex.messages.FileMessage;
+import org.biermann.tme3.p2pindex.messages.HeartbeatMessage;
+import org.biermann.tme3.p2pindex.messages.LeaseMessage;
+import org.biermann.tme3.p2pindex.messages.PeerListMessage;
+import org.biermann.tme3.p2pindex.messages.SearchHitMessage;
+import org.biermann.tme3.p2pindex.messages.SearchResultMessage;
+import org.biermann.tme3.p2pindex.pool.ConnectionPool;
+import org.biermann.tme3.p2pindex.pool.ConnectionPoolSettings;
+import org.biermann.tme3.p2pindex.search.FileNameIndex;
 
+import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 public class IndexServiceController
 {
+	/*Status codes reported for each item of a batch, matching the single-file operations */
+	public static final int BATCH_STATUS_CREATED = 201;
+	public static final int BATCH_STATUS_DELETED = 204;
+	public static final int BATCH_STATUS_INVALID = 400;
+	public static final int BATCH_STATUS_NOT_SHARED = 404;
+	public static final int BATCH_STATUS_ALREADY_SHARED = 409;
+	
 	public final String MARIADB_CONN_STR = "jdbc:mariadb://localhost:3306/sharing_index";
 	public final String MARIADB_CONN_USER = "index_user";
 	private final String MARIADB_CONN_PW = "d44d614319262e21363be1c86d6f9fc2";
 	private final String JDBC_MARIADB_DRIVER = "org.mariadb.jdbc.Driver";
 	
-	private Connection dbConnection;
-		
-	public IndexServiceController()
+	/*Bounds for the lookup caches */
+	public static final int LOOKUP_CACHE_MAX_ENTRIES = 100000;
+	public static final long LOOKUP_CACHE_TTL_MILLIS = 30000;
+	public static final int LOOKUP_CACHE_STRIPES = 32;
+	
+	public static final int MAX_FILE_PEERS = 50;                          //Most peers returned for a file by getPeerList().
+	public static final int MAX_CANDIDATE_PEERS = 10 * MAX_FILE_PEERS;    //Most peers read for a file, from which those are ranked.
+	
+	/*A content hash is a SHA-256 hash as hexadecimal, see FileMessage */
+	private static final Pattern CONTENT_HASH_PATTERN = Pattern.compile("[0-9a-fA-F]{64}");
+	
+	/**
+	 * Receives the rows of a listing as they are read from the database, e.g. to write them to a response.
+	 */
+	@FunctionalInterface
+	public interface ListingWriter
 	{
-		try
+		void write(FileMessage file) throws IOException;
+	}
+	
+	/*Opens the cursor of a listing on a borrowed connection */
+	@FunctionalInterface
+	private interface ListingQuery
+	{
+		SharedFileCursor open(Connection dbConnection) throws SQLException;
+	}
+	
+	private static IndexServiceController instance;                       //Single controller shared by all requests.
+	
+	private ConnectionPool connectionPool;
+	private DatabaseExecutor databaseExecutor;
+	private PeerLeases peerLeases;
+	private PeerSelector peerSelector;
+	private FileNameIndex fileNameIndex;
+	
+	/*Read-through caches in front of the lookups. Invalidated by registerFile() and deregisterFile(). 
+	 * A window of up to MAX_CANDIDATE_PEERS of the peers sharing a file is cached, starting at a random
+	 * peer, and ranked by each lookup. */
+	private LookupCache<String, PeerListMessage> peerListCache;
+	private LookupCache<PeerFileKey, Boolean> peerSharingCache;
+	private LookupCache<String, Boolean> fileExistsCache;
+	
+	
+	/**
+	 * Get the application-wide IndexServiceController, creating it on first use.
+	 * @return IndexServiceController shared by all resources
+	 * @throws RuntimeException if the MariaDB JDBC driver cannot be registered
+	 */
+	public static synchronized IndexServiceController getInstance()
+	{
+		if (instance == null)
 		{
-			Class.forName(JDBC_MARIADB_DRIVER);                  //Initialize class for MariaDB JDBC driver
-			dbConnection = DriverManager.getConnection(MARIADB_CONN_STR, 
-					MARIADB_CONN_USER, MARIADB_CONN_PW);
+			instance = new IndexServiceController();
 		}
-		catch (SQLException ex)
+		return instance;
+	}
+	
+	
+	/**
+	 * Releases the resources held by the application-wide IndexServiceController, if it was created.
+	 * Called when the application is undeployed.
+	 */
+	public static synchronized void shutdown()
+	{
+		if (instance != null)
 		{
-			System.err.println("Error connecting to database: "+ 
-					MARIADB_CONN_STR + "\n" + ex.getMessage());
-			
-			throw new RuntimeException ("Exception while connecting to the database.");     
+			instance.peerLeases.shutdown();
+			instance.databaseExecutor.shutdown();
+			instance.connectionPool.shutdown();
+			instance = null;
+		}
+	}
+	
+	
+	private IndexServiceController()
+	{
+		try
+		{
+			Class.forName(JDBC_MARIADB_DRIVER);                  //Initialize class for MariaDB JDBC driver
 		}
 		catch (ClassNotFoundException classNotFound)
 		{
@@ -51,7 +167,245 @@ public class IndexServiceController
 			
 			throw new RuntimeException ("Error. Unable to register the MariaDB JDBC driver.");     
 		}
+		
+		/*Connections are opened by the pool and borrowed for the duration of each operation. */
+		ConnectionPoolSettings poolSettings = new ConnectionPoolSettings(MARIADB_CONN_STR, MARIADB_CONN_USER, MARIADB_CONN_PW);
+		connectionPool = new ConnectionPool(poolSettings);
+		
+		/*One database thread per pooled connection, as each operation holds a connection while it runs. */
+		databaseExecutor = new DatabaseExecutor(poolSettings.getMaxSize(), DatabaseExecutor.DEFAULT_QUEUE_CAPACITY, 
+				DatabaseExecutor.DEFAULT_TIMEOUT_MILLIS, DatabaseExecutor.DEFAULT_RETRY_AFTER_SECONDS);
+		
+		/*All cached results for equivalent file names are grouped, so one invalidation covers them all. */
+		peerListCache = new LookupCache<>("peerList", LOOKUP_CACHE_MAX_ENTRIES, LOOKUP_CACHE_TTL_MILLIS, 
+				LOOKUP_CACHE_STRIPES, FileNameKeys::normalize);
+		peerSharingCache = new LookupCache<>("peerSharing", LOOKUP_CACHE_MAX_ENTRIES, LOOKUP_CACHE_TTL_MILLIS, 
+				LOOKUP_CACHE_STRIPES, key -> FileNameKeys.normalize(key.getFileName()));
+		fileExistsCache = new LookupCache<>("fileExists", LOOKUP_CACHE_MAX_ENTRIES, LOOKUP_CACHE_TTL_MILLIS, 
+				LOOKUP_CACHE_STRIPES, FileNameKeys::normalize);
+		
+		/*Names are searched from memory. The index is created before the leases, so that shares 
+		 * deleted by the first tick are removed from it. */
+		fileNameIndex = new FileNameIndex();
+		loadFileNameIndex();
+		
+		/*Lookups of the files shared by expired peers are invalidated once the peers are deleted. */
+		peerLeases = new PeerLeases(connectionPool, PeerLeases.DEFAULT_LEASE_MILLIS, PeerLeases.DEFAULT_HEARTBEAT_INTERVAL_MILLIS, 
+				PeerLeases.DEFAULT_TICK_MILLIS, this::expiredShares);
+		peerLeases.start();
+		
+		/*A load report is kept until the lease it was sent with would have expired. */
+		peerSelector = new PeerSelector(PeerLeases.DEFAULT_LEASE_MILLIS);
+	}
+	
 	
+	/**
+	 * Get the executor which runs the operations of suspended requests, so that the threads of the
+	 * web server are not held while the database is slow.
+	 * @return DatabaseExecutor of this controller
+	 */
+	public DatabaseExecutor getDatabaseExecutor()
+	{
+		return databaseExecutor;
+	}
+	
+	
+	/**
+	 * Get the pool which supplies database connections for this controller. Used to report pool metrics.
+	 * @return ConnectionPool used by this controller
+	 */
+	public ConnectionPool getConnectionPool()
+	{
+		return connectionPool;
+	}
+	
+	
+	/**
+	 * Get the leases of the peers known to this controller. Used to report lease metrics.
+	 * @return PeerLeases used by this controller
+	 */
+	public PeerLeases getPeerLeases()
+	{
+		return peerLeases;
+	}
+	
+	
+	/**
+	 * Renews the leases of the peers in a heartbeat, and records the load reported with it. The 
+	 * database is not accessed, so heartbeats are answered at once; the renewed leases are written 
+	 * in the background.
+	 * @param heartbeat HeartbeatMessage with the addresses of the peers, and optionally their load
+	 * @return LeaseMessage with the duration of the leases, the heartbeat interval, and the addresses
+	 * which are not known, and must share their files again
+	 */
+	public LeaseMessage renewLeases(HeartbeatMessage heartbeat)
+	{
+		List<String> unknownHosts = peerLeases.renew(heartbeat.getHostAddresses());
+		
+		if (heartbeat.getActiveUploads() != null || heartbeat.getFreeUploadSlots() != null 
+				|| heartbeat.getThroughputBytesPerSecond() != null)
+		{
+			List<String> knownHosts = new ArrayList<>(heartbeat.getHostAddresses());
+			knownHosts.removeAll(unknownHosts);
+			peerSelector.report(knownHosts, new PeerLoad(orUnknown(heartbeat.getActiveUploads()), 
+					orUnknown(heartbeat.getFreeUploadSlots()), 
+					(heartbeat.getThroughputBytesPerSecond() == null) ? -1 : heartbeat.getThroughputBytesPerSecond(),
+					System.currentTimeMillis()));
+		}
+		
+		return new LeaseMessage(peerLeases.getLeaseMillis(), peerLeases.getHeartbeatIntervalMillis(), unknownHosts);
+	}
+	
+	
+	/**
+	 * Removes the shares of peers whose lease expired from the lookups and the search index.
+	 * @param fileNames List of the names of the files shared by the deleted peers, once for each share
+	 */
+	private void expiredShares(List<String> fileNames)
+	{
+		for (String fileName : new HashSet<>(fileNames))
+		{
+			invalidateLookups(fileName);
+		}
+		fileNames.forEach(fileNameIndex::remove);
+	}
+	
+	
+	/**
+	 * Loads the names of the shared files into the search index on a background thread, so that
+	 * the index service can answer requests while a large catalog is read. Files shared meanwhile
+	 * are added by the requests, and are not counted again by the load.
+	 */
+	private void loadFileNameIndex()
+	{
+		Thread loader = new Thread(() -> {
+			try (Connection dbConnection = connectionPool.getConnection())
+			{
+				FileAlias.queryShareCounts(dbConnection, fileNameIndex::addIfAbsent);
+				fileNameIndex.setLoaded();
+			}
+			catch (SQLException ex)
+			{
+				System.err.println("The search index could not be loaded: " + ex.getMessage() + " \n " + ex.getSQLState());
+			}
+		}, "file-name-index-loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+	
+	
+	/**
+	 * Finds the names of the shared files which contain a word starting with each word of the query.
+	 * The names are read from memory, so the database is not accessed.
+	 * @param query String with the words to search for
+	 * @param offset int number of ranked names to skip
+	 * @param limit int most names to return
+	 * @return SearchResultMessage with the matching names, best first
+	 */
+	public SearchResultMessage search(String query, int offset, int limit)
+	{
+		FileNameIndex.Result result = fileNameIndex.search(query, offset, limit);
+		List<SearchHitMessage> hits = new ArrayList<>();
+		for (FileNameIndex.Hit hit : result.getHits())
+		{
+			hits.add(new SearchHitMessage(hit.getFileName(), hit.getShareCount()));
+		}
+		return new SearchResultMessage(query, offset, limit, result.getTotalMatches(), result.isComplete(), hits);
+	}
+	
+	
+	/**
+	 * Lists the shared files, one for each name and content, without their host addresses.
+	 * @param after int key returned for the previous page, or 0 for the first page
+	 * @param limit int most files to list
+	 * @param writer ListingWriter receiving each file in turn
+	 * @return int key to pass to list the next page, or -1 if this was the last page
+	 * @throws IOException if the writer fails, in which case the listing stops
+	 * @throws RuntimeException if the database operation fails
+	 */
+	public int listFiles(int after, int limit, ListingWriter writer) throws IOException
+	{
+		return writeListing(dbConnection -> FileAlias.listFiles(dbConnection, after, limit), limit, writer);
+	}
+	
+	
+	/**
+	 * Lists the files shared by the specified peer. See listFiles().
+	 * @param hostAddress String with the host address of the peer
+	 */
+	public int listPeerFiles(String hostAddress, int after, int limit, ListingWriter writer) throws IOException
+	{
+		return writeListing(dbConnection -> FileShared.listPeerFiles(dbConnection, hostAddress, after, limit), limit, writer);
+	}
+	
+	
+	/**
+	 * Lists the peers sharing the specified file, including those whose lease has expired but
+	 * which have not yet been deleted. See listFiles().
+	 * @param fileName String with the name of the file
+	 */
+	public int listFilePeers(String fileName, int after, int limit, ListingWriter writer) throws IOException
+	{
+		return writeListing(dbConnection -> FileShared.listFilePeers(dbConnection, fileName, after, limit), limit, writer);
+	}
+	
+	
+	/**
+	 * Passes each row of a listing to the writer as it is read. The connection is held until the
+	 * last row has been written.
+	 * @return int key of the last row if the page is full, as more rows may follow, or -1 otherwise
+	 */
+	private int writeListing(ListingQuery query, int limit, ListingWriter writer) throws IOException
+	{
+		int rows = 0;
+		int lastKey = -1;
+		try (Connection dbConnection = connectionPool.getConnection();
+				SharedFileCursor cursor = query.open(dbConnection))
+		{
+			while (cursor.next())
+			{
+				writer.write(new FileMessage(cursor.getFileName(), cursor.getHostAddress(), 
+						cursor.getContentHash(), cursor.getFileSize()));
+				lastKey = cursor.getKey();
+				rows++;
+			}
+		}
+		catch (SQLException ex)
+		{
+			throw new RuntimeException("Exception occurred while reading from database: " + ex.getMessage() + " \n " + ex.getSQLState() ); 
+		}
+		
+		return (rows == limit) ? lastKey : -1;
+	}
+	
+	
+	private static int orUnknown(Integer value)
+	{
+		return (value == null || value < 0) ? -1 : value;
+	}
+	
+	
+	/**
+	 * Get the lookup caches used by this controller. Used to report cache statistics.
+	 * @return List of the LookupCache instances
+	 */
+	public List<LookupCache<?, ?>> getLookupCaches()
+	{
+		return Arrays.<LookupCache<?, ?>>asList(peerListCache, peerSharingCache, fileExistsCache);
+	}
+	
+	
+	/**
+	 * Removes all cached lookup results which may be affected by a change to the sharing of the 
+	 * specified file. Must be called after the change has been written to the database.
+	 * @param fileName String with the name of the file which was shared or unshared
+	 */
+	private void invalidateLookups(String fileName)
+	{
+		String group = FileNameKeys.normalize(fileName);
+		peerListCache.invalidate(group);
+		peerSharingCache.invalidate(group);
+		fileExistsCache.invalidate(group);
 	}
 	
 	
@@ -64,7 +418,14 @@ public class IndexServiceController
 	 */
 	public boolean checkFileExists(String fileName)
 	{
-		try {
+		return fileExistsCache.get(fileName, this::queryFileExists);
+	}
+	
+	
+	private Boolean queryFileExists(String fileName)
+	{
+		try (Connection dbConnection = connectionPool.getConnection())
+		{
 			return PeerFile.fileExists(dbConnection, fileName);
 		} catch (SQLException ex)
 		{
@@ -86,29 +447,10 @@ public class IndexServiceController
 	 */
 	public boolean affirmPeerSharing(String fileName, String hostAddress)
 	{
-		int sharingPeerGUID = 0;
-		try {
-			sharingPeerGUID = Peer.queryPeerGUID(dbConnection, hostAddress);
-		} catch (SQLException e) 
-		  {
-			  throw new RuntimeException("Error completing the database operation: " + e.getMessage() + " \n " + e.getSQLState());
-		  }
-		
-		if (sharingPeerGUID < 0)
+		if (!(checkPeerSharing(fileName, hostAddress)))
 		{
-			throw new FileNotSharedException("The peer " + hostAddress + " does not exist.");
+			throw new FileNotSharedException("The peer " + hostAddress + " is not sharing the file " + fileName + ".");
 		}
-			
-		try 
-		{
-			if (!(FileShared.checkFileShared(dbConnection, sharingPeerGUID, fileName)))
-			{
-				throw new FileNotSharedException("The peer " + hostAddress + " is not sharing the file " + fileName + ".");
-			}
-		} catch (SQLException ex) 
-		   {
-			  throw new RuntimeException("Error completing the database operation: "+ ex.getMessage() + " \n " + ex.getSQLState());
-		   }
 		
 		return true;
 	}
@@ -125,24 +467,25 @@ public class IndexServiceController
 	 * @throws RuntimeException if the database operation fails
 	 */	
 	public boolean checkPeerSharing(String fileName, String hostAddress)
+	{
+		return peerSharingCache.get(new PeerFileKey(fileName, hostAddress), this::queryPeerSharing);
+	}
+	
+	
+	private Boolean queryPeerSharing(PeerFileKey key)
 	{
 		int sharingPeerGUID = 0;
 		boolean outcome = false;
-		try {
-			sharingPeerGUID = Peer.queryPeerGUID(dbConnection, hostAddress);
-		} catch (SQLException ex) 
-		 {
-		 	throw new RuntimeException("Error completing the database operation: " + ex.getMessage() + " \n " + ex.getSQLState());
-		 }
-		
-		if (sharingPeerGUID < 0)
+		try (Connection dbConnection = connectionPool.getConnection())
 		{
-			return outcome;
-		}
-					
-		try 
-		{
-			outcome = FileShared.checkFileShared(dbConnection, sharingPeerGUID, fileName);
+			sharingPeerGUID = Peer.queryPeerGUID(dbConnection, key.getHostAddress());
+			
+			if (sharingPeerGUID < 0)
+			{
+				return outcome;
+			}
+			
+			outcome = FileShared.checkFileShared(dbConnection, sharingPeerGUID, key.getFileName());
 		} catch (SQLException e) 
 		 {
 			throw new RuntimeException("Error completing the database operation: " + e.getMessage() + " \n " + e.getSQLState());
@@ -153,30 +496,117 @@ public class IndexServiceController
 	}
 	
 	/**
-	 * Get the host name or IP address of a host which is sharing the specified file.
+	 * Get the host name or IP address of a host which is sharing the specified file. The host is
+	 * the first of those returned by getPeerList(), so it is chosen according to the load of the hosts.
 	 * @param fileName String of the file name to check.
-	 * @return The hostname or IP address of the host sharing the specified file,
-	 * or an empty string if no host is sharing the file.
+	 * @return The hostname or IP address of the host sharing the specified file.
 	 * @throws FileNotSharedException if there is no peer which is sharing the specified
 	 * file.
 	 * @throws RuntimeException if the database operation fails
 	 */
 	public String getPeerHost(String fileName)
 	{
-		try
+		return getPeerList(fileName, 1).getHostAddresses().get(0);         //Only the first host is given a download.
+	}
+	
+	
+	/**
+	 * Get the host names or IP addresses of the hosts which are sharing the specified file, up to
+	 * MAX_FILE_PEERS hosts. Hosts may share different content under the same name. In that case 
+	 * the content shared by the most hosts is chosen, and only the hosts sharing it, or which did
+	 * not report a content hash, are returned. The hosts are ranked by PeerSelector, so the less 
+	 * loaded hosts tend to come first.
+	 * 
+	 * If more than MAX_CANDIDATE_PEERS hosts share the file, the candidates are a window of them which
+	 * starts at a random host each time the cache entry is read from the database (see
+	 * FileShared.getFilePeers()), so every host is returned while its entry is cached in turn, rather
+	 * than only the first hosts in database order. The MAX_FILE_PEERS least loaded candidates are returned.
+	 * @param fileName String of the file name to check.
+	 * @return PeerListMessage with the content hash and size, if known, and the address of each host
+	 * @throws FileNotSharedException if there is no peer which is sharing the specified file.
+	 * @throws RuntimeException if the database operation fails
+	 */
+	public PeerListMessage getPeerList(String fileName)
+	{
+		return getPeerList(fileName, MAX_FILE_PEERS);                      //The client downloads from every host.
+	}
+	
+	
+	/**
+	 * Get the ranked hosts sharing the specified file, counting a download directed to each of the
+	 * first hosts (see PeerSelector). Every candidate is ranked, and up to MAX_FILE_PEERS are returned.
+	 * @param counted int number of hosts from the front of the list from which the client downloads
+	 */
+	private PeerListMessage getPeerList(String fileName, int counted)
+	{
+		PeerListMessage peerList = peerListCache.get(fileName, this::queryPeerList);
+		if (peerList.getHostAddresses().isEmpty())
 		{
-			Peer result = FileShared.getFilePeer(dbConnection, fileName);
-			if (result == null)
-			{
-				throw new FileNotSharedException("The file " + fileName + " is not shared by any host.");
-			}
-			
-			return result.getHostAddress();
-			
+			throw new FileNotSharedException("The file " + fileName + " is not shared by any host.");
+		}
+		
+		/*The cached message is shared, so the ranked hosts are returned in a new message. */
+		List<String> ranked = peerSelector.rank(peerList.getHostAddresses(), counted);
+		return new PeerListMessage(peerList.getFileName(), peerList.getContentHash(), peerList.getFileSize(), 
+				ranked.subList(0, Math.min(ranked.size(), MAX_FILE_PEERS)));
+	}
+	
+	
+	/**
+	 * Queries the database for a window of up to MAX_CANDIDATE_PEERS of the hosts sharing the specified file.
+	 * @param fileName String of the file name to check.
+	 * @return PeerListMessage with the host addresses, which is empty if no host is sharing the file
+	 */
+	private PeerListMessage queryPeerList(String fileName)
+	{
+		List<FileShared.SharedCopy> copies;
+		try (Connection dbConnection = connectionPool.getConnection())
+		{
+			copies = FileShared.getFilePeers(dbConnection, fileName, MAX_CANDIDATE_PEERS);
 		} catch (SQLException ex)
 		{
 			throw new RuntimeException ("Exception occurred while reading from database"); 
 		}
+		
+		/*Count the hosts sharing each content, identified by its hash and size */
+		Map<String, Integer> hostsByContent = new LinkedHashMap<>();
+		FileShared.SharedCopy chosen = null;
+		for (FileShared.SharedCopy copy : copies)
+		{
+			if (copy.getContentHash() == null)
+				continue;
+			
+			int hosts = hostsByContent.merge(copy.getContentHash() + "/" + copy.getFileSize(), 1, Integer::sum);
+			if (chosen == null || hosts > hostsByContent.get(chosen.getContentHash() + "/" + chosen.getFileSize()))
+				chosen = copy;
+		}
+		
+		List<String> hostAddresses = new ArrayList<>();
+		for (FileShared.SharedCopy copy : copies)
+		{
+			if (chosen == null || copy.getContentHash() == null 
+					|| (copy.getContentHash().equals(chosen.getContentHash()) && copy.getFileSize().equals(chosen.getFileSize())))
+				hostAddresses.add(copy.getPeer().getHostAddress());
+		}
+		
+		/*Cached, so shared by all callers */
+		return new PeerListMessage(fileName, (chosen == null) ? null : chosen.getContentHash(), 
+				(chosen == null) ? null : chosen.getFileSize(), Collections.unmodifiableList(hostAddresses));
+	}
+	
+	
+	/**
+	 * Determines if the content hash and size of a file are valid. Both must be given, or neither.
+	 * @param contentHash String with the content hash, or null
+	 * @param fileSize Long with the size of the file, or null
+	 * @return boolean true if valid
+	 */
+	public static boolean isValidContent(String contentHash, Long fileSize)
+	{
+		if (contentHash == null && fileSize == null)
+			return true;
+		
+		return contentHash != null && fileSize != null && fileSize >= 0 && CONTENT_HASH_PATTERN.matcher(contentHash).matches();
 	}
 	
 	
@@ -185,17 +615,37 @@ public class IndexServiceController
 	 * to the DB, if needed.
 	 * 
 	 * Instances of the various SharingData data class instances will share
-	 * the same database connection, this.dbConnection.
+	 * the same pooled database connection, which is borrowed for the duration
+	 * of this operation. The records are written in one transaction, together
+	 * with a new lease for the peer.
 	 * 
 	 * @param fileName String of the name of the file to be shared.
 	 * @param peerAddress String holding IP address of the peer.
 	 * @return boolean true if file is successfully shared, or false if file is already shared.
 	 */
 	public boolean registerFile(String fileName, String peerAddress)
+	{
+		return registerFile(fileName, peerAddress, null, null);
+	}
+	
+	
+	/**Registers a file that is being shared by the specified peer, with the content hash
+	 * and size of the file reported by the peer. See registerFile(String, String).
+	 * 
+	 * @param fileName String of the name of the file to be shared.
+	 * @param peerAddress String holding IP address of the peer.
+	 * @param contentHash String with the content hash of the file, or null if not known.
+	 * @param fileSize Long with the size of the file, or null if not known.
+	 * @return boolean true if file is successfully shared, or false if file is already shared.
+	 */
+	public boolean registerFile(String fileName, String peerAddress, String contentHash, Long fileSize)
 	{
 		Peer currentPeer = null;
-		try
+		long leaseExpiry = peerLeases.newLeaseExpiry();
+		try (Connection dbConnection = connectionPool.getConnection())
 		{
+			dbConnection.setAutoCommit(false);                   //The pool rolls back and restores autocommit on return.
+			
 			/*Create new peer record, if needed. Acquire reference to the corresponding Peer object.
 			Note this is done regardless of the whether or not the peer already exists in the DB,
 			but the DB record will not be updated if the peer already exists.*/
@@ -207,23 +657,33 @@ public class IndexServiceController
 				throw new FileAlreadySharedException("The file " + fileName + " is already shared by the host " + peerAddress);
 			}
 							
-			/*Create new file record and get a reference to the corresponding PeerFile object.*/
-			PeerFile currentFile = new PeerFile(dbConnection, fileName);
+			/*Create new file and alias records, if the content is not yet shared under the name, and get references to them.*/
+			PeerFile currentFile = new PeerFile(dbConnection, fileName, contentHash, fileSize);
+			FileAlias currentAlias = new FileAlias(dbConnection, currentFile, fileName);
 			
 			/*Create a new FileShared record for the relationship between the Peer and the PeerFile, and commit it to database. */
-			new FileShared(dbConnection, currentPeer, currentFile, true);
+			new FileShared(dbConnection, currentPeer, currentAlias, true);
+			Peer.renewLeases(dbConnection, Collections.singletonMap(peerAddress, leaseExpiry));
+			dbConnection.commit();
+			peerLeases.granted(peerAddress, leaseExpiry);
+			fileNameIndex.add(fileName, 1);
 		}
 		catch (SQLException ex)
 		{
 			throw new RuntimeException ("Exception occurred while writing to database \n" + ex.getMessage() + "\n"); 
 		}
+		finally
+		{
+			invalidateLookups(fileName);                             //Also after a failure, as some records may have been written.
+		}
 		return true;
 	}
 	
 	
 	/**Deregister the file so that the file specified is no longer being
 	 * shared by the current peer. Creates a new Peer instance to represent
-	 * the peer requesting the operation, if needed.	 
+	 * the peer requesting the operation, if needed. The file and alias records
+	 * are deleted in the same transaction if no other peer shares them.
 	 * 
 	 * @param fileName String name of the file to stop sharing.
 	 * @return boolean true if success
@@ -234,13 +694,14 @@ public class IndexServiceController
 	public boolean deregisterFile(String fileName, String peerAddress)
 	{
 		Peer currentPeer = null;
-		try
+		try (Connection dbConnection = connectionPool.getConnection())
 		{
 			/* If a peer with the given address exists, instantiate currentPeer. Note  
 			 * that this will not query database again, as the Peer instance is created
 			 * from the address and GUID which are already in memory. 
 			 *
 			 */
+			dbConnection.setAutoCommit(false);
 			int peerGUID = Peer.queryPeerGUID(dbConnection, peerAddress);             //Check if peer exists and get GUID if so.
 			
 			/*Throw a FileNotSharedException if the Peer does not exist, indicated by the return
@@ -259,6 +720,10 @@ public class IndexServiceController
 				throw new FileNotSharedException("The file " + fileName + " could not be deleted because "
 						+ "it is not shared by the peer " + peerAddress + ".");
 			}
+			
+			dbConnection.commit();
+			invalidateLookups(fileName);
+			fileNameIndex.remove(fileName);
 		}
 		catch (SQLException ex)
 		{
@@ -268,7 +733,246 @@ public class IndexServiceController
 		
 		return true;
 	}
+	
+	
+	/**Registers a batch of files, each shared by the host given in its FileMessage. All records
+	 * are written in a single transaction using batched statements, so either every valid item
+	 * is registered or, if the database operation fails, none are.
+	 * 
+	 * Each item is reported with the status code the equivalent call to registerFile() would
+	 * have produced: BATCH_STATUS_CREATED if registered, BATCH_STATUS_ALREADY_SHARED if the host
+	 * already shares the file (or the name occurs earlier in the same batch), or BATCH_STATUS_INVALID
+	 * if the file name or host address is missing. Names are compared using FileNameKeys.normalize().
+	 * 
+	 * @param files List of FileMessage with the file name and host address of each file to share
+	 * @return List of BatchItemMessage with the outcome of each item, in the same order as files
+	 * @throws RuntimeException if the database operation fails, in which case nothing is registered
+	 */
+	public List<BatchItemMessage> registerFiles(List<FileMessage> files)
+	{
+		BatchItemMessage[] results = new BatchItemMessage[files.size()];
+		Map<String, List<Integer>> itemsByHost = groupByHost(files, results);
+		Map<String, Long> leaseExpiries = new LinkedHashMap<>();
+		
+		try (Connection dbConnection = connectionPool.getConnection())
+		{
+			dbConnection.setAutoCommit(false);                   //The pool rolls back and restores autocommit on return.
+			
+			for (Map.Entry<String, List<Integer>> hostItems : itemsByHost.entrySet())
+			{
+				String hostAddress = hostItems.getKey();
+				Peer currentPeer = new Peer(dbConnection, hostAddress);          //Created once per host, if needed.
+				leaseExpiries.put(hostAddress, peerLeases.newLeaseExpiry());
+				Set<String> sharedNames = findSharedNames(dbConnection, currentPeer.getGUID(), files, hostItems.getValue());
+				
+				/*Collect the files which are not yet shared. Adding each name to sharedNames also
+				 * rejects later duplicates within this batch. */
+				List<String> newNames = new ArrayList<>();
+				List<String> newHashes = new ArrayList<>();
+				List<Long> newSizes = new ArrayList<>();
+				List<Integer> newItems = new ArrayList<>();
+				for (int item : hostItems.getValue())
+				{
+					String fileName = files.get(item).getFileName();
+					if (!(sharedNames.add(FileNameKeys.normalize(fileName))))
+					{
+						results[item] = new BatchItemMessage(fileName, hostAddress, BATCH_STATUS_ALREADY_SHARED,
+								"The file " + fileName + " is already shared by the host " + hostAddress);
+						continue;
+					}
+					
+					newNames.add(fileName);
+					newHashes.add(files.get(item).getContentHash());
+					newSizes.add(files.get(item).getFileSize());
+					newItems.add(item);
+				}
+				
+				if (newNames.isEmpty())
+					continue;
+				
+				/*Find or write the file and alias records, then write all new relationships with one batched statement. */
+				int[] fileGUIDs = PeerFile.findOrCommitAll(dbConnection, newNames, newHashes, newSizes);
+				int[] aliasGUIDs = FileAlias.findOrCommitAll(dbConnection, fileGUIDs, newNames);
+				FileShared.commitAll(dbConnection, currentPeer.getGUID(), fileGUIDs, aliasGUIDs);
+				
+				for (int item : newItems)
+				{
+					results[item] = new BatchItemMessage(files.get(item).getFileName(), hostAddress, BATCH_STATUS_CREATED, "Created");
+				}
+			}
+			
+			/*The leases of all hosts in the batch are written with one batched statement. */
+			Peer.renewLeases(dbConnection, leaseExpiries);
+			dbConnection.commit();
+			leaseExpiries.forEach(peerLeases::granted);
+			updateFileNameIndex(results);
+		}
+		catch (SQLException ex)
+		{
+			throw new RuntimeException ("Exception occurred while writing to database \n" + ex.getMessage() + "\n"); 
+		}
+		finally
+		{
+			invalidateLookups(files);                                //Discards any lookups cached while the transaction was open.
+		}
+		
+		return Arrays.asList(results);
+	}
+	
+	
+	/**Deregisters a batch of files, each shared by the host given in its FileMessage. All records
+	 * are deleted in a single transaction using a batched statement.
+	 * 
+	 * Each item is reported with the status code the equivalent call to deregisterFile() would
+	 * have produced: BATCH_STATUS_DELETED if deregistered, BATCH_STATUS_NOT_SHARED if the host does
+	 * not share the file, or BATCH_STATUS_INVALID if the file name or host address is missing.
+	 * 
+	 * @param files List of FileMessage with the file name and host address of each file to unshare
+	 * @return List of BatchItemMessage with the outcome of each item, in the same order as files
+	 * @throws RuntimeException if the database operation fails, in which case nothing is deregistered
+	 */
+	public List<BatchItemMessage> deregisterFiles(List<FileMessage> files)
+	{
+		BatchItemMessage[] results = new BatchItemMessage[files.size()];
+		Map<String, List<Integer>> itemsByHost = groupByHost(files, results);
+		
+		try (Connection dbConnection = connectionPool.getConnection())
+		{
+			dbConnection.setAutoCommit(false);
+			
+			for (Map.Entry<String, List<Integer>> hostItems : itemsByHost.entrySet())
+			{
+				String hostAddress = hostItems.getKey();
+				List<Integer> items = hostItems.getValue();
+				int peerGUID = Peer.queryPeerGUID(dbConnection, hostAddress);
+				
+				/*A peer which does not exist is not sharing any of the files. */
+				boolean[] deleted = new boolean[items.size()];
+				if (peerGUID >= 0)
+				{
+					List<String> fileNames = new ArrayList<>();
+					for (int item : items)
+					{
+						fileNames.add(files.get(item).getFileName());
+					}
+					deleted = FileShared.deleteAssociations(dbConnection, new Peer(dbConnection, hostAddress, peerGUID), fileNames);
+				}
+				
+				for (int i = 0; i < items.size(); i++)
+				{
+					String fileName = files.get(items.get(i)).getFileName();
+					results[items.get(i)] = deleted[i] 
+							? new BatchItemMessage(fileName, hostAddress, BATCH_STATUS_DELETED, "Deleted")
+							: new BatchItemMessage(fileName, hostAddress, BATCH_STATUS_NOT_SHARED, 
+									"The file " + fileName + " is not shared by the peer " + hostAddress + ".");
+				}
+			}
+			
+			dbConnection.commit();
+			updateFileNameIndex(results);
+		}
+		catch (SQLException ex)
+		{
+			throw new RuntimeException ("Exception occurred while writing to database. Exception: " + 
+					"\n" + ex.getMessage() + "\n" + ex.getSQLState()); 
+		}
+		finally
+		{
+			invalidateLookups(files);
+		}
+		
+		return Arrays.asList(results);
+	}
+	
+	
+	/**
+	 * Groups the valid items of a batch by host address, preserving their order. Items without a
+	 * file name or host address are reported as invalid in results and are not included.
+	 * @param files List of FileMessage in the batch
+	 * @param results BatchItemMessage[] with an element for each item, receiving the invalid items
+	 * @return Map from each host address to the indices of its items
+	 */
+	private static Map<String, List<Integer>> groupByHost(List<FileMessage> files, BatchItemMessage[] results)
+	{
+		Map<String, List<Integer>> itemsByHost = new LinkedHashMap<>();
+		for (int item = 0; item < files.size(); item++)
+		{
+			FileMessage file = files.get(item);
+			if (file == null || isBlank(file.getFileName()) || isBlank(file.getHostAddress()))
+			{
+				results[item] = new BatchItemMessage((file == null) ? null : file.getFileName(), 
+						(file == null) ? null : file.getHostAddress(), BATCH_STATUS_INVALID, 
+						"A file name and host address are required.");
+				continue;
+			}
+			
+			if (!isValidContent(file.getContentHash(), file.getFileSize()))
+			{
+				results[item] = new BatchItemMessage(file.getFileName(), file.getHostAddress(), BATCH_STATUS_INVALID, 
+						"The content hash must be 64 hexadecimal digits and be sent with the file size.");
+				continue;
+			}
+			
+			itemsByHost.computeIfAbsent(file.getHostAddress(), host -> new ArrayList<Integer>()).add(item);
+		}
+		return itemsByHost;
+	}
+	
+	
+	/**
+	 * Determine which of the specified items are already shared by the peer, querying at most
+	 * FileShared.MAX_BATCH_QUERY_NAMES names at a time.
+	 * @return Set of the normalized names of the files already shared
+	 */
+	private static Set<String> findSharedNames(Connection dbConnection, int peerGUID, List<FileMessage> files, 
+			List<Integer> items) throws SQLException
+	{
+		Set<String> sharedNames = new HashSet<>();
+		for (int start = 0; start < items.size(); start += FileShared.MAX_BATCH_QUERY_NAMES)
+		{
+			List<String> chunk = new ArrayList<>();
+			for (int item : items.subList(start, Math.min(items.size(), start + FileShared.MAX_BATCH_QUERY_NAMES)))
+			{
+				chunk.add(files.get(item).getFileName());
+			}
+			
+			for (String sharedName : FileShared.findSharedFileNames(dbConnection, peerGUID, chunk))
+			{
+				sharedNames.add(FileNameKeys.normalize(sharedName));
+			}
+		}
+		return sharedNames;
+	}
+	
+	
+	private void invalidateLookups(List<FileMessage> files)
+	{
+		for (FileMessage file : files)
+		{
+			if (file != null && file.getFileName() != null)
+				invalidateLookups(file.getFileName());
+		}
+	}
+	
+	
+	/**
+	 * Adds the names registered by a batch to the search index, and removes those deregistered.
+	 */
+	private void updateFileNameIndex(BatchItemMessage[] results)
+	{
+		for (BatchItemMessage result : results)
+		{
+			if (result.getStatusCode() == BATCH_STATUS_CREATED)
+				fileNameIndex.add(result.getFileName(), 1);
+			else if (result.getStatusCode() == BATCH_STATUS_DELETED)
+				fileNameIndex.remove(result.getFileName());
+		}
+	}
+	
+	
+	private static boolean isBlank(String value)
+	{
+		return value == null || value.trim().isEmpty();
+	}
 
 }
-
- 
\ No newline at end of file
@@ -0,0 +1,52 @@
+/**
+ * ServletAsyncContextProvider.java
+ *
+ * Lets Jersey suspend requests using the asynchronous support of Servlet 3.0. When a resource
+ * suspends a request with an AsyncResponse, the servlet request is put into asynchronous mode, so
+ * the web server thread is returned to its pool until the response is resumed on another thread
+ * (see DatabaseExecutor). Without this provider the servlet thread would wait for the response.
+ *
+ * jersey-container-servlet-core, which is used for Servlet 2.5 compatibility, only defines the
+ * provider interface. This provider is found through
+ * META-INF/services/org.glassfish.jersey.servlet.spi.AsyncContextDelegateProvider, and requires
+ * async-supported to be set for the Jersey servlet in web.xml.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.controllers;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.glassfish.jersey.servlet.spi.AsyncContextDelegate;
+import org.glassfish.jersey.servlet.spi.AsyncContextDelegateProvider;
+
+public class ServletAsyncContextProvider implements AsyncContextDelegateProvider
+{
+	@Override
+	public AsyncContextDelegate createDelegate(HttpServletRequest request, HttpServletResponse response)
+	{
+		return new AsyncContextDelegate()
+		{
+			private volatile AsyncContext asyncContext;
+
+			@Override
+			public void suspend() throws IllegalStateException
+			{
+				if (!request.isAsyncStarted())
+				{
+					asyncContext = request.startAsync(request, response);
+					asyncContext.setTimeout(0);                                  //Timeouts are handled by the AsyncResponse.
+				}
+			}
+
+			@Override
+			public void complete()
+			{
+				if (asyncContext != null)
+					asyncContext.complete();
+			}
+		};
+	}
+}
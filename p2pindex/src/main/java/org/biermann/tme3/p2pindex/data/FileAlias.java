@@ -0,0 +1,231 @@
+/**
+ * FileAlias.java
+ *
+ * Concrete subclass of SharingData which represents a name under which the content of a file
+ * is shared. Contains attributes for the alias GUID (primary key), the GUID of the PeerFile
+ * holding the content, and the file name.
+ *
+ * The same content may be shared under several names, and different content may be shared
+ * under the same name, so each combination of name and content has one filealias record.
+ * Lookups by name start from the filealias table. An alias is only kept while some peer
+ * shares the content under that name.
+ *
+ * @author Oloff Biermann
+ */
+
+package org.biermann.tme3.p2pindex.data;
+
+import java.sql.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+public class FileAlias extends SharingData
+{
+	private static final int STREAM_FETCH_SIZE = 1000;                     //Rows fetched at a time by queryShareCounts().
+
+	/*A duplicate of an existing alias updates nothing, but sets the generated key to the existing GUID. */
+	private static final String INSERT_QUERY = "INSERT INTO filealias (fileID, fileName) "
+											+ "VALUES (?, ?) "
+											+ "ON DUPLICATE KEY UPDATE aliasID = LAST_INSERT_ID(aliasID)";
+
+	private int aliasGUID;
+	private PeerFile file;
+	private String fileName;
+
+	/**Creates a FileAlias instance for the name of the specified file, and commits the
+	 * corresponding record to the database unless it already exists.
+	 * @param dbConnection Connection for the database.
+	 * @param file PeerFile holding the content shared under the name
+	 * @param fileName String with the name under which the content is shared
+	 * @throws SQLException If writing to database fails.
+	 */
+	public FileAlias(Connection dbConnection, PeerFile file, String fileName) throws SQLException
+	{
+		databaseConnection = dbConnection;
+		this.file = file;
+		this.fileName = fileName;
+		aliasGUID = commitData();
+	}
+
+
+	/**
+	 * Get the GUID of this FileAlias.
+	 * @return int value of alias GUID.
+	 */
+	public int getGUID()
+	{
+		return aliasGUID;
+	}
+
+	public PeerFile getFile()
+	{
+		return file;
+	}
+
+	public String getFileName()
+	{
+		return fileName;
+	}
+
+
+	/**Deletes the alias record, unless the content is still shared under this name by some peer.
+	 *
+	 * @return boolean true if the record was deleted, false otherwise
+	 */
+	public boolean delete() throws SQLException
+	{
+		return deleteUnused(databaseConnection, Collections.singleton(aliasGUID)) > 0;
+	}
+
+
+	/**Deletes each of the specified alias records which no peer shares any longer, using a
+	 * single batched statement.
+	 *
+	 * @param dbConnection Connection used to access database
+	 * @param aliasGUIDs Collection of the GUIDs of the aliases to check
+	 * @return int number of alias records deleted
+	 * @throws SQLException if writing to the database fails
+	 */
+	public static int deleteUnused(Connection dbConnection, Collection<Integer> aliasGUIDs) throws SQLException
+	{
+		if (aliasGUIDs.isEmpty())
+			return 0;
+
+		/*The subquery is answered from idx_aliasID_peerID */
+		String query = "DELETE FROM filealias "
+						+ "WHERE aliasID = ? "
+						+ "AND NOT EXISTS (SELECT 1 FROM fileshared WHERE fileshared.aliasID = ?)";
+
+		int deleted = 0;
+		try (PreparedStatement deleteStatement = dbConnection.prepareStatement(query);)
+		{
+			for (int aliasGUID : aliasGUIDs)
+			{
+				deleteStatement.setInt(1, aliasGUID);
+				deleteStatement.setInt(2, aliasGUID);
+				deleteStatement.addBatch();
+			}
+
+			for (int count : deleteStatement.executeBatch())
+			{
+				deleted += Math.max(count, 0);
+			}
+		}
+		return deleted;
+	}
+
+
+	/**Reads the number of shares of every file name. Names which the database compares as equal
+	 * are counted together. The rows are streamed, so the names are not all held in memory at once.
+	 * Used to load the search index when the index service starts.
+	 *
+	 * @param dbConnection Connection used to access database
+	 * @param shareCounts BiConsumer called with each file name and its number of shares
+	 * @throws SQLException if the database query fails
+	 */
+	public static void queryShareCounts(Connection dbConnection, BiConsumer<String, Integer> shareCounts) throws SQLException
+	{
+		String query = "SELECT filealias.fileName, COUNT(*) "
+						+ "FROM filealias "
+						+ "INNER JOIN fileshared ON fileshared.aliasID = filealias.aliasID "
+						+ "GROUP BY filealias.fileName";
+
+		try (Statement countStatement = dbConnection.createStatement();)
+		{
+			countStatement.setFetchSize(STREAM_FETCH_SIZE);
+			ResultSet result = countStatement.executeQuery(query);
+			while (result.next())
+			{
+				shareCounts.accept(result.getString(1), result.getInt(2));
+			}
+		}
+	}
+
+
+	/**Lists the shared files, one row for each name and content, ordered by the GUID of the alias.
+	 * The rows have no host address. Only the rows after the specified key are listed.
+	 *
+	 * @param dbConnection Connection used to access database
+	 * @param afterAliasGUID int key of the last row of the previous page, or 0 for the first page
+	 * @param limit int most rows to list
+	 * @return SharedFileCursor over the rows, which must be closed
+	 * @throws SQLException if the database query fails
+	 */
+	public static SharedFileCursor listFiles(Connection dbConnection, int afterAliasGUID, int limit) throws SQLException
+	{
+		String query = "SELECT filealias.aliasID, filealias.fileName, NULL, peerfile.contentHash, peerfile.fileSize "
+						+ "FROM filealias "
+						+ "INNER JOIN peerfile ON peerfile.fileGUID = filealias.fileID "
+						+ "WHERE filealias.aliasID > ? "
+						+ "ORDER BY filealias.aliasID "
+						+ "LIMIT ?";
+
+		PreparedStatement listStatement = dbConnection.prepareStatement(query);
+		try
+		{
+			listStatement.setInt(1, afterAliasGUID);
+			listStatement.setInt(2, limit);
+		}
+		catch (SQLException ex)
+		{
+			listStatement.close();
+			throw ex;
+		}
+		return new SharedFileCursor(listStatement);
+	}
+
+
+	/**Finds or stores the alias record for each of the specified names and files. Used to
+	 * register many files in one transaction.
+	 *
+	 * @param dbConnection Connection to use to write to the database.
+	 * @param fileGUIDs int[] GUIDs of the files holding the content.
+	 * @param fileNames List of the name under which each file is shared, in the same order as fileGUIDs.
+	 * @return int[] GUIDs of the aliases, in the same order as fileNames.
+	 * @throws SQLException If writing to the database fails or a GUID is not returned.
+	 */
+	public static int[] findOrCommitAll(Connection dbConnection, int[] fileGUIDs, List<String> fileNames) throws SQLException
+	{
+		int[] aliasGUIDs = new int[fileGUIDs.length];
+
+		/*The statement is executed once per alias rather than batched, as the GUID of an existing
+		 * alias is returned through LAST_INSERT_ID(), which is only reported for a single statement. */
+		try (PreparedStatement aliasStatement = dbConnection.prepareStatement(INSERT_QUERY, Statement.RETURN_GENERATED_KEYS);)
+		{
+			for (int i = 0; i < fileGUIDs.length; i++)
+			{
+				aliasGUIDs[i] = executeInsert(aliasStatement, fileGUIDs[i], fileNames.get(i));
+			}
+		}
+
+		return aliasGUIDs;
+	}
+
+
+	/**Commits the alias for this FileAlias to the database, or finds the existing record.
+	 * @return int GUID of the alias.
+	 */
+	protected int commitData() throws SQLException
+	{
+		try (PreparedStatement aliasStatement = databaseConnection.prepareStatement(INSERT_QUERY, Statement.RETURN_GENERATED_KEYS);)
+		{
+			return executeInsert(aliasStatement, file.getGUID(), fileName);
+		}
+	}
+
+
+	private static int executeInsert(PreparedStatement aliasStatement, int fileGUID, String fileName) throws SQLException
+	{
+		aliasStatement.setInt(1, fileGUID);
+		aliasStatement.setString(2, fileName);
+		aliasStatement.executeUpdate();
+
+		ResultSet result = aliasStatement.getGeneratedKeys();
+		if (!(result.next()))
+			throw new SQLException("Missing generated key for the alias " + fileName);
+
+		return result.getInt(1);
+	}
+}
@@ -3,7 +3,15 @@
  * 
  * Concrete subclass of SharingData which supports interaction with the fileshared table in
  * the database. Contains attributes for the GUID (primary key) of a peer which is
- * sharing the file, and the GUID (primary key) of that file.
+ * sharing the file, the GUID (primary key) of the content of that file, and the GUID of
+ * the alias under which the peer shares it. Peers serve files by name, so a peer is only
+ * returned for the names under which it shares the content.
+ * 
+ * As peerfile holds one record per content, deleting a relationship only deletes the
+ * alias and the content once no peer shares them any longer.
+ * 
+ * The peer lookups only return peers whose lease has not expired (see Peer), so a peer 
+ * which stopped sending heartbeats is not returned while it waits to be deleted.
  * 
  * There are two main cases where this class is used:
  * 1) Creating a new FileShared instance in memory and committing its attributes to the 
@@ -18,18 +26,28 @@
 package org.biermann.tme3.p2pindex.data;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class FileShared extends SharingData
 {
+	public static final int MAX_BATCH_QUERY_NAMES = 500;                  //Most names checked by one findSharedFileNames() query.
+	
 	private Peer sharingPeer;
 	private PeerFile sharedFile;
+	private FileAlias sharedAlias;
 	
 	public FileShared(Connection dbConnection, Peer sharingPeer, 
-			PeerFile fileToShare, boolean commit) throws SQLException
+			FileAlias aliasToShare, boolean commit) throws SQLException
 	{
 		databaseConnection = dbConnection;
 		this.sharingPeer = sharingPeer;
-		sharedFile = fileToShare;
+		sharedAlias = aliasToShare;
+		sharedFile = aliasToShare.getFile();
 	
 		/*If record must be committed, and it doesn't already exists, store it in db */
 		if (commit && !(checkExists()))
@@ -37,66 +55,230 @@ public class FileShared extends SharingData
 	}
 	
 		
-	/**Deletes the relationship and the record for the PeerFile being shared. Note that
-	 * the Peer is not deleted, as it may be involved in other relationships.
+	/**Deletes the relationship, and the records for the FileAlias and PeerFile being shared if no
+	 * other peer shares them. Note that the Peer is not deleted, as it may be involved in other relationships.
 	 * 
 	 * @return boolean true if relationship is deleted successfully, false otherwise
 	 */
 	public boolean delete() throws SQLException
 	{
-		if (!(checkExists()))				//Check if the relationship exists.
-			return false;
-		
-		if (!(sharedFile.delete()))        //Attempt to delete the PeerFile record.
-			return false;
-		
 		String query = "DELETE FROM fileshared "
-						+ "WHERE peerID = ? AND fileID = ?";
+						+ "WHERE peerID = ? AND aliasID = ?";
 				
 		try (PreparedStatement deleteStatement = databaseConnection.prepareStatement(query);)
 		{
 			deleteStatement.setInt(1, this.sharingPeer.getGUID());
-			deleteStatement.setInt(2, this.sharedFile.getGUID());
+			deleteStatement.setInt(2, this.sharedAlias.getGUID());
 					
-			deleteStatement.executeUpdate();                            //Execute the delete operation.
-			return true;
+			if (deleteStatement.executeUpdate() == 0)                   //The relationship did not exist.
+				return false;
+		}
+		
+		sharedAlias.delete();
+		sharedFile.delete();
+		return true;
+	}
+	
+	
+	/**
+	 * A copy of a file shared by a peer, with the content hash and size reported by the peer.
+	 */
+	public static final class SharedCopy
+	{
+		private final Peer peer;
+		private final String contentHash;
+		private final Long fileSize;
+		
+		SharedCopy(Peer peer, String contentHash, Long fileSize)
+		{
+			this.peer = peer;
+			this.contentHash = contentHash;
+			this.fileSize = fileSize;
+		}
+		
+		public Peer getPeer()
+		{
+			return peer;
+		}
+		
+		/**
+		 * @return String with the content hash, or null if not reported by the peer
+		 */
+		public String getContentHash()
+		{
+			return contentHash;
 		}
 		
+		public Long getFileSize()
+		{
+			return fileSize;
+		}
 	}
 	
-	/**Search the FileShared table in the database to determine
-	 * if there are any peer sharing the file with the name specified.
-	 * If so, get a Peer sharing the desired file.
+	
+	/**
+	 * Get the copies of the specified file shared by peers, up to the specified limit. Used by peers
+	 * which download a file from several peers at once.
+	 * 
+	 * If more peers than the limit share the file, the copies are read in order of peer GUID from a
+	 * random GUID, wrapping around to the lowest, so each lookup returns a different window of the
+	 * peers and every peer is returned by some lookups. Otherwise the copies of every peer are read
+	 * by a single query.
 	 * 
 	 * @param fileName String with the name of the file requested
-	 * @return Peer representing a Peer which is currently sharing the file,
-	 * or null if no peers are sharing the specified file.
+	 * @param limit int maximum number of copies to return
+	 * @return List of SharedCopy for each peer sharing the file, which is empty if no peers are sharing the file
 	 */
-	public static Peer getFilePeer(Connection dbConnection, String fileName) throws SQLException
+	public static List<SharedCopy> getFilePeers(Connection dbConnection, String fileName, int limit) throws SQLException
 	{
-		Peer availablePeer = null;
+		List<SharedCopy> copies = new ArrayList<>();
+		addFilePeers(dbConnection, fileName, ">", 0, limit + 1, copies);
+		if (copies.size() <= limit)
+			return copies;
 		
-		/*Uses inner joins to the fileshared table and peerfile table to determine
-		 * if any of the records in fileshared associated with this Peer match
-		 * files with names which match fileName.
-		 */
-		String query = "SELECT DISTINCT peerGUID, hostAddress "
-						+ "FROM peer "
-						+ "INNER JOIN fileshared ON peerGUID = fileshared.peerID "
-						+ "INNER JOIN peerfile ON fileID = peerfile.fileGUID "
-						+ "WHERE fileName = ?";
+		int firstGUID = copies.get(0).getPeer().getGUID();
+		int lastGUID = getLastFilePeer(dbConnection, fileName);
+		int startGUID = firstGUID + (int) (ThreadLocalRandom.current().nextDouble() * ((long) lastGUID - firstGUID + 1));
+		
+		copies.clear();
+		addFilePeers(dbConnection, fileName, ">=", startGUID, limit, copies);
+		if (copies.size() < limit)
+			addFilePeers(dbConnection, fileName, "<", startGUID, limit - copies.size(), copies);      //Wrap around.
+		return copies;
+	}
+	
+	
+	/**
+	 * Reads the copies of the specified file shared by peers whose GUID compares to the bound as
+	 * specified, in order of peer GUID, and adds them to the list.
+	 * @param comparison String with the SQL comparison of the peer GUID to the bound
+	 */
+	private static void addFilePeers(Connection dbConnection, String fileName, String comparison, int boundGUID, int limit, 
+			List<SharedCopy> copies) throws SQLException
+	{
+		/*The join starts from the matching filealias rows in uq_fileName_fileID, reaches fileshared 
+		 * through the covering idx_aliasID_peerID key, which is ordered by peer within each alias, and
+		 * the peer through its primary key. The content hash and size are read from the peerfile record
+		 * of each matching alias. */
+		String query = "SELECT peer.peerGUID, peer.hostAddress, peerfile.contentHash, peerfile.fileSize "
+						+ "FROM filealias "
+						+ "INNER JOIN peerfile ON peerfile.fileGUID = filealias.fileID "
+						+ "INNER JOIN fileshared ON fileshared.aliasID = filealias.aliasID "
+						+ "INNER JOIN peer ON peer.peerGUID = fileshared.peerID "
+						+ "WHERE filealias.fileName = ? AND peer.leaseExpiry > ? AND fileshared.peerID " + comparison + " ? "
+						+ "ORDER BY fileshared.peerID "
+						+ "LIMIT ?";
 		
 		try(PreparedStatement peerStatement = dbConnection.prepareStatement(query))
 		{
 			peerStatement.setString(1, fileName);
+			peerStatement.setLong(2, System.currentTimeMillis());
+			peerStatement.setInt(3, boundGUID);
+			peerStatement.setInt(4, limit);
 			ResultSet result = peerStatement.executeQuery();
-			if (result.first())
+			while (result.next())
 			{
-				availablePeer = new Peer(dbConnection, result.getString(2), result.getInt(1));    //Create new Peer with the host address and GUID.
+				Peer peer = new Peer(dbConnection, result.getString(2), result.getInt(1));    //Create new Peer with the host address and GUID.
+				long fileSize = result.getLong(4);
+				copies.add(new SharedCopy(peer, result.getString(3), result.wasNull() ? null : fileSize));
 			}
 		}
+	}
+	
+	
+	/**
+	 * Get the highest GUID of the peers sharing the specified file, read from the end of the
+	 * idx_aliasID_peerID key of each matching alias.
+	 * @return int GUID of the peer, or 0 if no peer shares the file
+	 */
+	private static int getLastFilePeer(Connection dbConnection, String fileName) throws SQLException
+	{
+		String query = "SELECT MAX(fileshared.peerID) "
+						+ "FROM filealias "
+						+ "INNER JOIN fileshared ON fileshared.aliasID = filealias.aliasID "
+						+ "WHERE filealias.fileName = ?";
+		
+		try(PreparedStatement lastStatement = dbConnection.prepareStatement(query))
+		{
+			lastStatement.setString(1, fileName);
+			ResultSet result = lastStatement.executeQuery();
+			return result.next() ? result.getInt(1) : 0;
+		}
+	}
+	
+	
+	/**
+	 * Lists the files shared by the specified peer, ordered by the GUID of the alias under which
+	 * each is shared. Only the rows after the specified key are listed. The rows are read in the
+	 * order of the primary key of fileshared, so no sorting is needed.
+	 * 
+	 * @param dbConnection Connection used to access database
+	 * @param hostAddress String with the host address of the peer
+	 * @param afterAliasGUID int key of the last row of the previous page, or 0 for the first page
+	 * @param limit int most rows to list
+	 * @return SharedFileCursor over the rows, which is empty if the peer does not exist, and must be closed
+	 * @throws SQLException if the database query fails
+	 */
+	public static SharedFileCursor listPeerFiles(Connection dbConnection, String hostAddress, int afterAliasGUID, 
+			int limit) throws SQLException
+	{
+		String query = "SELECT fileshared.aliasID, filealias.fileName, peer.hostAddress, peerfile.contentHash, peerfile.fileSize "
+						+ "FROM peer "
+						+ "INNER JOIN fileshared ON fileshared.peerID = peer.peerGUID "
+						+ "INNER JOIN filealias ON filealias.aliasID = fileshared.aliasID "
+						+ "INNER JOIN peerfile ON peerfile.fileGUID = filealias.fileID "
+						+ "WHERE peer.hostAddress = ? AND fileshared.aliasID > ? "
+						+ "ORDER BY fileshared.aliasID "
+						+ "LIMIT ?";
 		
-		return availablePeer;
+		return listShares(dbConnection, query, hostAddress, afterAliasGUID, limit);
+	}
+	
+	
+	/**
+	 * Lists the peers sharing the specified file, ordered by the GUID of the peer. Unlike 
+	 * getFilePeers(), peers whose lease has expired are listed until they are deleted. Only the 
+	 * rows after the specified key are listed.
+	 * 
+	 * @param dbConnection Connection used to access database
+	 * @param fileName String with the name of the file
+	 * @param afterPeerGUID int key of the last row of the previous page, or 0 for the first page
+	 * @param limit int most rows to list
+	 * @return SharedFileCursor over the rows, which is empty if no peer shares the file, and must be closed
+	 * @throws SQLException if the database query fails
+	 */
+	public static SharedFileCursor listFilePeers(Connection dbConnection, String fileName, int afterPeerGUID, 
+			int limit) throws SQLException
+	{
+		String query = "SELECT peer.peerGUID, filealias.fileName, peer.hostAddress, peerfile.contentHash, peerfile.fileSize "
+						+ "FROM filealias "
+						+ "INNER JOIN peerfile ON peerfile.fileGUID = filealias.fileID "
+						+ "INNER JOIN fileshared ON fileshared.aliasID = filealias.aliasID "
+						+ "INNER JOIN peer ON peer.peerGUID = fileshared.peerID "
+						+ "WHERE filealias.fileName = ? AND peer.peerGUID > ? "
+						+ "ORDER BY peer.peerGUID "
+						+ "LIMIT ?";
+		
+		return listShares(dbConnection, query, fileName, afterPeerGUID, limit);
+	}
+	
+	
+	private static SharedFileCursor listShares(Connection dbConnection, String query, String value, int afterKey, 
+			int limit) throws SQLException
+	{
+		PreparedStatement listStatement = dbConnection.prepareStatement(query);
+		try
+		{
+			listStatement.setString(1, value);
+			listStatement.setInt(2, afterKey);
+			listStatement.setInt(3, limit);
+		}
+		catch (SQLException ex)
+		{
+			listStatement.close();
+			throw ex;
+		}
+		return new SharedFileCursor(listStatement);
 	}
 	
 	
@@ -105,7 +287,7 @@ public class FileShared extends SharingData
 	 * a file being shared. The file is identified by a fileName.
 	 * 
 	 * All matching relationships will be destroyed, as will their
-	 * associated "file" records.
+	 * associated alias and "file" records if no other peer shares them.
 	 * @param dbConnection Connection used to access database
 	 * @param curPeer Peer which is currently sharing the file
 	 * @param fileName String with name of file being shared
@@ -114,39 +296,7 @@ public class FileShared extends SharingData
 	 */
 	public static boolean deleteAssociation(Connection dbConnection, Peer curPeer, String fileName) throws SQLException
 	{
-		boolean success = false;
-		/*Determine if the specified peer is sharing the file by searching for matching
-		 *records in the peerfile table. Specifically, delete a peerfile record where
-		 *the filename matches the specified name and the fileGUID is among the files
-		 *being shared by this peer.
-		 *
-		 * Deleting the peerfile record will trigger cascading delete on the fileshared table 
-		 * to delete the relationship between the peer and the file.
-		 */
-		String deleteQuery = "DELETE FROM peerfile "
-								+ "WHERE fileName = ? AND fileGUID IN "
-								+ "(SELECT DISTINCT fileID "
-								+ " FROM fileshared "
-								+ " WHERE peerID = ?)";
-		
-		try (PreparedStatement deleteStatement = dbConnection.prepareStatement(deleteQuery))
-		{
-			deleteStatement.setString(1, fileName);          //Bind 1st param for the file name.
-			deleteStatement.setInt(2, curPeer.getGUID());    //Bind second param for peer ID.
-			/*Set success to true true if a row is deleted, i.e. the query returned the row number of
-			 * the deleted row so that executeUpdate() does not return 0. Otherwise set success to
-			 * false.
-			 */
-			 success = ( (deleteStatement.executeUpdate() > 0) ? true : false) ;
-		}
-		
-		/*If query failed to delete relationship, return false */
-		 if (!success)
-			 return false;
-		
-		 
-		 
-		return true;
+		return deleteAssociations(dbConnection, curPeer, Collections.singletonList(fileName))[0];
 	}
 	
 	
@@ -163,10 +313,12 @@ public class FileShared extends SharingData
 	 */
 	public static boolean checkFileShared(Connection dbConnection, int peerId, String fileName) throws SQLException
 	{
-		String query = "SELECT fileName "
-						+"FROM peerfile "
-						+ "INNER JOIN fileshared ON peerfile.fileGUID = fileshared.fileID "
-						+ "WHERE peerID = ? AND fileName = ?";
+		/*Each matching filealias row is checked against the (peerID, aliasID) primary key of fileshared. */
+		String query = "SELECT 1 "
+						+"FROM filealias "
+						+ "INNER JOIN fileshared ON fileshared.aliasID = filealias.aliasID AND fileshared.peerID = ? "
+						+ "WHERE filealias.fileName = ? "
+						+ "LIMIT 1";
 		
 		
 		try (PreparedStatement checkStatement = dbConnection.prepareStatement(query);)
@@ -181,23 +333,192 @@ public class FileShared extends SharingData
 					
 	}
 	
+	/**
+	 * Determines which of the specified file names are already shared by the specified peer.
+	 * The names are checked using a single query for up to MAX_BATCH_QUERY_NAMES names. As in 
+	 * checkFileShared(), the collation of the database determines how names are matched.
+	 * 
+	 * @param dbConnection Connection used to access database
+	 * @param peerId int GUID of the peer
+	 * @param fileNames List of file names to check, at most MAX_BATCH_QUERY_NAMES
+	 * @return List of the names of the matching records, as stored in the database
+	 * @throws SQLException if the database query fails
+	 */
+	public static List<String> findSharedFileNames(Connection dbConnection, int peerId, List<String> fileNames) throws SQLException
+	{
+		List<String> sharedNames = new ArrayList<>();
+		if (fileNames.isEmpty())
+			return sharedNames;
+		
+		/*Build an IN list with one placeholder per name */
+		StringBuilder placeholders = new StringBuilder("?");
+		for (int i = 1; i < fileNames.size(); i++)
+		{
+			placeholders.append(", ?");
+		}
+		
+		String query = "SELECT filealias.fileName "
+						+ "FROM filealias "
+						+ "INNER JOIN fileshared ON fileshared.aliasID = filealias.aliasID AND fileshared.peerID = ? "
+						+ "WHERE filealias.fileName IN (" + placeholders + ")";
+		
+		try (PreparedStatement checkStatement = dbConnection.prepareStatement(query);)
+		{
+			checkStatement.setInt(1, peerId);
+			for (int i = 0; i < fileNames.size(); i++)
+			{
+				checkStatement.setString(i + 2, fileNames.get(i));
+			}
+			
+			ResultSet result = checkStatement.executeQuery();
+			while (result.next())
+			{
+				sharedNames.add(result.getString(1));
+			}
+		}
+		
+		return sharedNames;
+	}
+	
+	
+	/**
+	 * Creates the relationship between the specified peer and each of the specified files
+	 * using a single batched statement.
+	 * 
+	 * @param dbConnection Connection used to access database
+	 * @param peerId int GUID of the peer sharing the files
+	 * @param fileIds int[] GUIDs of the files being shared
+	 * @param aliasIds int[] GUIDs of the aliases under which the files are shared, in the same order as fileIds
+	 * @throws SQLException if writing to the database fails
+	 */
+	public static void commitAll(Connection dbConnection, int peerId, int[] fileIds, int[] aliasIds) throws SQLException
+	{
+		String query = "INSERT INTO fileshared (peerID, fileID, aliasID) "
+						+ "VALUES (?, ?, ?)";
+		
+		try (PreparedStatement storeStatement = dbConnection.prepareStatement(query);)
+		{
+			for (int i = 0; i < fileIds.length; i++)
+			{
+				storeStatement.setInt(1, peerId);
+				storeStatement.setInt(2, fileIds[i]);
+				storeStatement.setInt(3, aliasIds[i]);
+				storeStatement.addBatch();
+			}
+			storeStatement.executeBatch();
+		}
+	}
+	
+	
+	/**
+	 * Destroys the relationships between a peer and each of the specified files using a single
+	 * batched statement. Works in the same way as deleteAssociation() for each file name.
+	 * 
+	 * The aliases and content shared under the names are found first, and are deleted afterwards
+	 * if no other peer shares them, with one batched statement each.
+	 * 
+	 * @param dbConnection Connection used to access database
+	 * @param curPeer Peer which is currently sharing the files
+	 * @param fileNames List with the names of the files being shared
+	 * @return boolean[] true for each file name whose relationship was deleted, false if 
+	 * the peer was not sharing it, in the same order as fileNames
+	 * @throws SQLException if database query fails
+	 */
+	public static boolean[] deleteAssociations(Connection dbConnection, Peer curPeer, List<String> fileNames) throws SQLException
+	{
+		boolean[] deleted = new boolean[fileNames.size()];
+		Set<Integer> aliasGUIDs = new LinkedHashSet<>();
+		Set<Integer> fileGUIDs = new LinkedHashSet<>();
+		for (int start = 0; start < fileNames.size(); start += MAX_BATCH_QUERY_NAMES)
+		{
+			findShares(dbConnection, curPeer.getGUID(), 
+					fileNames.subList(start, Math.min(fileNames.size(), start + MAX_BATCH_QUERY_NAMES)), aliasGUIDs, fileGUIDs);
+		}
+		
+		/*A multi-table delete is used rather than a subquery, so the matching rows are found through
+		 * uq_fileName_fileID and the fileshared primary key. */
+		String deleteQuery = "DELETE fileshared "
+								+ "FROM filealias "
+								+ "INNER JOIN fileshared ON fileshared.aliasID = filealias.aliasID "
+								+ "WHERE filealias.fileName = ? AND fileshared.peerID = ?";
+		
+		try (PreparedStatement deleteStatement = dbConnection.prepareStatement(deleteQuery))
+		{
+			for (String fileName : fileNames)
+			{
+				deleteStatement.setString(1, fileName);
+				deleteStatement.setInt(2, curPeer.getGUID());
+				deleteStatement.addBatch();
+			}
+			
+			/*Each update count is the number of rows deleted for the corresponding file name */
+			int[] counts = deleteStatement.executeBatch();
+			for (int i = 0; i < counts.length; i++)
+			{
+				deleted[i] = (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO);
+			}
+		}
+		
+		/*Aliases are deleted first, as content is only deleted once it has no aliases. */
+		FileAlias.deleteUnused(dbConnection, aliasGUIDs);
+		PeerFile.deleteUnused(dbConnection, fileGUIDs);
+		return deleted;
+	}
+	
+	
+	/**
+	 * Adds the GUIDs of the aliases and files through which the peer shares any of the specified names.
+	 * @param fileNames List of file names, at most MAX_BATCH_QUERY_NAMES
+	 */
+	private static void findShares(Connection dbConnection, int peerId, List<String> fileNames, Set<Integer> aliasGUIDs, 
+			Set<Integer> fileGUIDs) throws SQLException
+	{
+		StringBuilder placeholders = new StringBuilder("?");
+		for (int i = 1; i < fileNames.size(); i++)
+		{
+			placeholders.append(", ?");
+		}
+		
+		String query = "SELECT fileshared.aliasID, fileshared.fileID "
+						+ "FROM filealias "
+						+ "INNER JOIN fileshared ON fileshared.aliasID = filealias.aliasID AND fileshared.peerID = ? "
+						+ "WHERE filealias.fileName IN (" + placeholders + ")";
+		
+		try (PreparedStatement findStatement = dbConnection.prepareStatement(query);)
+		{
+			findStatement.setInt(1, peerId);
+			for (int i = 0; i < fileNames.size(); i++)
+			{
+				findStatement.setString(i + 2, fileNames.get(i));
+			}
+			
+			ResultSet result = findStatement.executeQuery();
+			while (result.next())
+			{
+				aliasGUIDs.add(result.getInt(1));
+				fileGUIDs.add(result.getInt(2));
+			}
+		}
+	}
+	
+	
 	/**
 	 * Checks if the relationship between Peer and PeerFile already exists in
 	 * fileshared table. This check is done using the peerID and fileID
-	 * for this FileShared instance.
+	 * for this FileShared instance, i.e. the peer already shares the content under the same name.
 	 * 
 	 * @return boolean true if relationship between Peer and Peerfile exists in database, false otherwise
 	 */
 	private boolean checkExists() throws SQLException
 	{
-		String query = "SELECT * "
+		String query = "SELECT 1 "
 						+ "FROM fileshared "
-						+  "WHERE peerID = ? AND fileID = ? ";
+						+  "WHERE peerID = ? AND aliasID = ? ";
 		
 		try (PreparedStatement checkStatement = databaseConnection.prepareStatement(query);)
 		{
 			checkStatement.setInt(1, this.sharingPeer.getGUID());
-			checkStatement.setInt(2, this.sharedFile.getGUID());
+			checkStatement.setInt(2, this.sharedAlias.getGUID());
 			
 			ResultSet result = checkStatement.executeQuery();
 			if (result.first())
@@ -210,7 +531,7 @@ public class FileShared extends SharingData
 	
 	
 	/** Creates a new entry in the database for this FileShared instance.
-	 *  Both the peer ID and the file ID are stored as foreign keys
+	 *  The peer ID, the file ID and the alias ID are stored as foreign keys
 	 *  to establish a relationship between the corresponding 
 	 *  files and the peers.
 	 *  
@@ -218,12 +539,15 @@ public class FileShared extends SharingData
 	 */
 	protected int commitData() throws SQLException
 	{
-		String query = "INSERT INTO fileshared (peerID, fileID) "
-				 + "VALUES (" + this.sharingPeer.getGUID() +", " + this.sharedFile.getGUID() + "); ";
+		String query = "INSERT INTO fileshared (peerID, fileID, aliasID) "
+				 + "VALUES (?, ?, ?)";
 	
-		try (Statement storeStatement = databaseConnection.createStatement();)
+		try (PreparedStatement storeStatement = databaseConnection.prepareStatement(query);)
 		{
-			storeStatement.executeQuery(query);
+			storeStatement.setInt(1, this.sharingPeer.getGUID());
+			storeStatement.setInt(2, this.sharedFile.getGUID());
+			storeStatement.setInt(3, this.sharedAlias.getGUID());
+			storeStatement.executeUpdate();
 			
 			return 0;
 		}
@@ -14,6 +14,10 @@
  * and lookup of GUID by host address in DB. Also provides access to GUID and host address 
  * attributes held in each instance.
  * 
+ * Each peer holds a lease, stored as the time at which it expires (leaseExpiry). Lookups only 
+ * return peers whose lease has not expired. The static lease methods renew leases and delete 
+ * expired peers in bulk; see PeerLeases in the controllers package.
+ * 
  * The inherited sql.Connection instance is used to query the database.
  * 
  * @author Oloff Biermann
@@ -21,6 +25,13 @@
 package org.biermann.tme3.p2pindex.data;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class Peer extends SharingData
 {
@@ -176,6 +187,134 @@ public class Peer extends SharingData
 	}
 	
 	
+	/**
+	 * Get the lease expiry time of every peer. Used to track the leases when the index service starts.
+	 * @param dbConnection Connection used to access database
+	 * @return Map from the host address of each peer to its lease expiry time in milliseconds since the epoch
+	 * @throws SQLException if the database query fails
+	 */
+	public static Map<String, Long> queryLeases(Connection dbConnection) throws SQLException
+	{
+		String query = "SELECT hostAddress, leaseExpiry "
+						+ "FROM peer";
+		
+		Map<String, Long> leases = new HashMap<>();
+		try (Statement leaseStatement = dbConnection.createStatement();)
+		{
+			ResultSet result = leaseStatement.executeQuery(query);
+			while (result.next())
+			{
+				leases.put(result.getString(1).trim(), result.getLong(2));
+			}
+		}
+		return leases;
+	}
+	
+	
+	/**
+	 * Sets the lease expiry time of each of the specified peers using a single batched statement.
+	 * A lease is only ever extended, so a renewal which arrives late does not shorten it.
+	 * 
+	 * @param dbConnection Connection used to access database
+	 * @param leaseExpiries Map from the host address of each peer to its new lease expiry time
+	 * @throws SQLException if writing to the database fails
+	 */
+	public static void renewLeases(Connection dbConnection, Map<String, Long> leaseExpiries) throws SQLException
+	{
+		if (leaseExpiries.isEmpty())
+			return;
+		
+		/*Each row is found through the unique_addr key */
+		String query = "UPDATE peer "
+						+ "SET leaseExpiry = GREATEST(leaseExpiry, ?) "
+						+ "WHERE hostAddress = ?";
+		
+		try (PreparedStatement renewStatement = dbConnection.prepareStatement(query);)
+		{
+			for (Map.Entry<String, Long> lease : leaseExpiries.entrySet())
+			{
+				renewStatement.setLong(1, lease.getValue());
+				renewStatement.setString(2, lease.getKey());
+				renewStatement.addBatch();
+			}
+			renewStatement.executeBatch();
+		}
+	}
+	
+	
+	/**
+	 * Deletes the specified peers whose lease has expired by the specified time, together with their
+	 * fileshared rows, and the aliases and content no longer shared by any peer. A peer whose lease 
+	 * was renewed in the database meanwhile is not deleted. Should be run in a transaction.
+	 * 
+	 * @param dbConnection Connection used to access database
+	 * @param hostAddresses List of the host addresses of the peers, at most FileShared.MAX_BATCH_QUERY_NAMES
+	 * @param now long current time in milliseconds since the epoch
+	 * @return List of the names of the files which were shared by the deleted peers, once for each share
+	 * @throws SQLException if the database operation fails
+	 */
+	public static List<String> deleteExpired(Connection dbConnection, List<String> hostAddresses, long now) throws SQLException
+	{
+		List<String> fileNames = new ArrayList<>();
+		if (hostAddresses.isEmpty())
+			return fileNames;
+		
+		StringBuilder placeholders = new StringBuilder("?");
+		for (int i = 1; i < hostAddresses.size(); i++)
+		{
+			placeholders.append(", ?");
+		}
+		
+		/*Find what the peers share before deleting them, as the fileshared rows are deleted by the cascade. 
+		 * The rows are locked, so a peer cannot share another file before it is deleted. */
+		String findQuery = "SELECT fileshared.aliasID, fileshared.fileID, filealias.fileName "
+							+ "FROM peer "
+							+ "INNER JOIN fileshared ON fileshared.peerID = peer.peerGUID "
+							+ "INNER JOIN filealias ON filealias.aliasID = fileshared.aliasID "
+							+ "WHERE peer.hostAddress IN (" + placeholders + ") AND peer.leaseExpiry <= ? "
+							+ "FOR UPDATE";
+		
+		Set<Integer> aliasGUIDs = new LinkedHashSet<>();
+		Set<Integer> fileGUIDs = new LinkedHashSet<>();
+		try (PreparedStatement findStatement = dbConnection.prepareStatement(findQuery);)
+		{
+			setHostsAndTime(findStatement, hostAddresses, now);
+			ResultSet result = findStatement.executeQuery();
+			while (result.next())
+			{
+				aliasGUIDs.add(result.getInt(1));
+				fileGUIDs.add(result.getInt(2));
+				fileNames.add(result.getString(3));
+			}
+		}
+		
+		String deleteQuery = "DELETE FROM peer "
+							+ "WHERE hostAddress IN (" + placeholders + ") AND leaseExpiry <= ?";
+		
+		try (PreparedStatement deleteStatement = dbConnection.prepareStatement(deleteQuery);)
+		{
+			setHostsAndTime(deleteStatement, hostAddresses, now);
+			deleteStatement.executeUpdate();
+		}
+		
+		/*Aliases are deleted first, as content is only deleted once it has no aliases. */
+		FileAlias.deleteUnused(dbConnection, aliasGUIDs);
+		PeerFile.deleteUnused(dbConnection, fileGUIDs);
+		return fileNames;
+	}
+	
+	
+	private static void setHostsAndTime(PreparedStatement statement, Collection<String> hostAddresses, long now) throws SQLException
+	{
+		int parameter = 1;
+		for (String hostAddress : hostAddresses)
+		{
+			statement.setString(parameter++, hostAddress);
+		}
+		statement.setLong(parameter, now);
+	}
+	
+	
 	/**Attempts to store a new Peer record in the database. Obtains the GUID for the new record.
 	 * 
 	 * @return int GUID of the new record, or -1 if insertion fails (typically if record already exists)
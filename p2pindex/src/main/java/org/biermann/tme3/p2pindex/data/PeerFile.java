@@ -1,17 +1,23 @@
 /**
  * PeerFile.java
  * 
- * Concrete subclass of SharingData which represents a file. Contains attributes for the file GUID
- * (primary key) and file name.
+ * Concrete subclass of SharingData which represents the content of a file. Contains attributes for
+ * the file GUID (primary key) and file name, and optionally the content hash and size reported by
+ * the sharing peer.
+ * 
+ * There is one peerfile record for each unique content, however many peers share it. Content with
+ * a hash is identified by its content hash and size. Content without a hash can only be identified
+ * by its name, so it has one record per name. The names under which the content is shared are held
+ * by FileAlias records, and the file name of a PeerFile is the name under which it was first shared.
  * 
  * The two main cases where this class is used are:
-  * 1) Creating a new PeerFile instance in memory and committing its attributes to the 
- *    database in a new peerfile record.
+ * 1) Creating a new PeerFile instance in memory and committing its attributes to the 
+ *    database in a new peerfile record, or finding the record which already holds the content.
  * 2) Querying the database to obtain an existing record and then creating a PeerFile instance in 
  *    memory with corresponding attributes.
  *    
- * Provides methods for deleting the corresponding record (implements delete()), querying the database
- * to look up a file name by GUID, and checking if a file with a given name exists. Also provides
+ * Provides methods for deleting the corresponding record once it is no longer shared (implements delete()),
+ * querying the database to look up a file name by GUID, and checking if a file with a given name exists. Also provides
  * accessors methods for the GUID and file name attributes.
  * 
  * @author Oloff Biermann
@@ -20,11 +26,21 @@
 package org.biermann.tme3.p2pindex.data;
 
 import java.sql.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 public class PeerFile extends SharingData
 {
+	/*A duplicate of existing content updates nothing, but sets the generated key to the existing GUID. */
+	private static final String INSERT_HASHED_QUERY = "INSERT INTO peerfile (fileName, contentHash, fileSize) "
+													+ "VALUES (?, ?, ?) "
+													+ "ON DUPLICATE KEY UPDATE fileGUID = LAST_INSERT_ID(fileGUID)";
+	
 	private String fileName;
 	private int fileGUID;
+	private String contentHash;
+	private Long fileSize;
 	
 	/**
 	 * Creates a PeerFile instance for a file record which already exists
@@ -42,16 +58,31 @@ public class PeerFile extends SharingData
 	}
 	
 	/**Creates a PeerFile instance in memory and commits the corresponding
-	 * record to the database.
+	 * record to the database, unless content without a hash is already shared under the name.
 	 * @param dbConnection Connection for the database.
 	 * @param fileName String with name identifying file for sharing
 	 * @throws SQLException If writing to database fails.
 	 */
 	public PeerFile(Connection dbConnection, String fileName) throws SQLException
+	{
+		this(dbConnection, fileName, null, null);
+	}
+	
+	/**Creates a PeerFile instance in memory with the content hash and size of the file,
+	 * and commits the corresponding record to the database unless the content is already known.
+	 * @param dbConnection Connection for the database.
+	 * @param fileName String with name identifying file for sharing
+	 * @param contentHash String with the content hash of the file, or null if not known
+	 * @param fileSize Long with the size of the file, or null if not known
+	 * @throws SQLException If writing to database fails.
+	 */
+	public PeerFile(Connection dbConnection, String fileName, String contentHash, Long fileSize) throws SQLException
 	{
 		databaseConnection = dbConnection;
 		this.fileName = fileName;
-		fileGUID = commitData();     //Store record in DB, set the fileGUID attribute.
+		this.contentHash = contentHash;
+		this.fileSize = fileSize;
+		fileGUID = commitData();     //Store or find record in DB, set the fileGUID attribute.
 	}
 	
 	/**
@@ -63,27 +94,54 @@ public class PeerFile extends SharingData
 		return fileGUID;
 	}
 	
+	/**Deletes the record for this content, unless it is still shared under some name.
+	 * 
+	 * @return boolean true if the record was deleted, false otherwise
+	 */
 	public boolean delete() throws SQLException
 	{
-		/*If the record does not exist, return false */
-		if (!fileExists(this.databaseConnection, this.fileName))
-			return false;
+		return deleteUnused(databaseConnection, Collections.singleton(fileGUID)) > 0;
+	}
+	
+	
+	/**Deletes each of the specified records whose content is no longer shared under any name,
+	 * using a single batched statement. Called after aliases have been deleted.
+	 * 
+	 * @param dbConnection Connection used to access database
+	 * @param fileGUIDs Collection of the GUIDs of the files to check
+	 * @return int number of records deleted
+	 * @throws SQLException if writing to the database fails
+	 */
+	public static int deleteUnused(Connection dbConnection, Collection<Integer> fileGUIDs) throws SQLException
+	{
+		if (fileGUIDs.isEmpty())
+			return 0;
+		
+		/*The subquery is answered from the FK_alias_fileID key */
+		String query = "DELETE FROM peerfile "
+					   + "WHERE fileGUID = ? "
+					   + "AND NOT EXISTS (SELECT 1 FROM filealias WHERE filealias.fileID = ?)";
 		
-		String query = "DELETE FROM peerFile "
-					   + "WHERE fileGUID = ? ";
-				
-		try (PreparedStatement deleteStatement = databaseConnection.prepareStatement(query);)
+		int deleted = 0;
+		try (PreparedStatement deleteStatement = dbConnection.prepareStatement(query);)
 		{
-			deleteStatement.setInt(1, this.fileGUID);                       //Set the value of the first (and only) parameter to GUID for this Peer.
-			 
-			/*Execute the prepared statement to delete the matching record */
-			deleteStatement.executeUpdate();
-			return true;
+			for (int fileGUID : fileGUIDs)
+			{
+				deleteStatement.setInt(1, fileGUID);
+				deleteStatement.setInt(2, fileGUID);
+				deleteStatement.addBatch();
+			}
+			
+			for (int count : deleteStatement.executeBatch())
+			{
+				deleted += Math.max(count, 0);
+			}
 		}
+		return deleted;
 	}
 	
 	
-	/**Checks if a file with the given name exists.
+	/**Checks if a file with the given name exists, i.e. some content is shared under the name.
 	 * 
 	 * @param dbConnection Connection to use to query the database.
 	 * @param name String name of the file to check.
@@ -92,9 +150,12 @@ public class PeerFile extends SharingData
 	 */
 	public static boolean fileExists(Connection dbConnection, String name) throws SQLException
 	{
-		String query = "SELECT fileName "
-						+ "FROM peerfile "
-						+  "WHERE fileName = ?;";
+		/*Only existence matters, so select a constant and stop at the first match found in uq_fileName_fileID.
+		 * Aliases are deleted once no peer shares them, so a matching alias means the file is shared. */
+		String query = "SELECT 1 "
+						+ "FROM filealias "
+						+  "WHERE fileName = ? "
+						+  "LIMIT 1";
 		
 		try (PreparedStatement checkStatement = dbConnection.prepareStatement(query);)
 		{
@@ -110,6 +171,36 @@ public class PeerFile extends SharingData
 	
 	
 	
+	/**Finds or stores the record holding the content of each of the specified files. Used to
+	 * register many files in one transaction. Files in the list with the same content get the
+	 * same GUID.
+	 * 
+	 * @param dbConnection Connection to use to write to the database.
+	 * @param fileNames List of the names of the files to store.
+	 * @param contentHashes List of the content hash of each file, which may hold null for unknown hashes.
+	 * @param fileSizes List of the size of each file, which may hold null for unknown sizes.
+	 * @return int[] GUIDs of the records, in the same order as fileNames.
+	 * @throws SQLException If writing to the database fails or a GUID is not returned.
+	 */
+	public static int[] findOrCommitAll(Connection dbConnection, List<String> fileNames, List<String> contentHashes, 
+			List<Long> fileSizes) throws SQLException
+	{
+		int[] fileGUIDs = new int[fileNames.size()];
+		
+		/*The statement is executed once per file rather than batched, as the GUID of existing content
+		 * is returned through LAST_INSERT_ID(), which is only reported for a single statement. */
+		try (PreparedStatement hashedStatement = dbConnection.prepareStatement(INSERT_HASHED_QUERY, Statement.RETURN_GENERATED_KEYS);)
+		{
+			for (int i = 0; i < fileNames.size(); i++)
+			{
+				fileGUIDs[i] = findOrCommit(dbConnection, hashedStatement, fileNames.get(i), contentHashes.get(i), fileSizes.get(i));
+			}
+		}
+		
+		return fileGUIDs;
+	}
+	
+	
 	/**Retrieves the filename with GUID fileGUID for this Peerfile.
 	 * 
 	 * @return String file name for the file associated with the GUID.
@@ -135,30 +226,108 @@ public class PeerFile extends SharingData
 	}
 	
 	
-	/**Commits the file with the fileName for this PeerFile to
-	 * the database.
+	/**Commits the file with the fileName, content hash and size for this PeerFile to
+	 * the database, or finds the record which already holds the content.
 	 * @return int GUID of the file.
 	 */
 	protected int commitData() throws SQLException
 	{
-		String query = "INSERT INTO peerFile (fileName) "
-						+ "VALUES (\'" + this.fileName + "\') ";
+		try (PreparedStatement hashedStatement = databaseConnection.prepareStatement(INSERT_HASHED_QUERY, Statement.RETURN_GENERATED_KEYS);)
+		{
+			return findOrCommit(databaseConnection, hashedStatement, this.fileName, this.contentHash, this.fileSize);
+		}
+	}
+	
+	
+	/**Finds or stores the record holding the specified content.
+	 * 
+	 * Content with a hash is inserted, and the uq_content key turns the insert of known content
+	 * into a lookup of the existing GUID, so concurrent registrations cannot create duplicates.
+	 * Content without a hash is looked up through the aliases with the same name, and inserted
+	 * if there is none. Concurrent registrations of the same name may then create two records,
+	 * which only costs space, as lookups by name find both.
+	 * 
+	 * @param hashedStatement PreparedStatement for INSERT_HASHED_QUERY
+	 * @return int GUID of the file.
+	 */
+	private static int findOrCommit(Connection dbConnection, PreparedStatement hashedStatement, String fileName, 
+			String contentHash, Long fileSize) throws SQLException
+	{
+		if (contentHash != null && fileSize != null)
+		{
+			hashedStatement.setString(1, fileName);
+			setContent(hashedStatement, 2, contentHash, fileSize);
+			return executeInsert(hashedStatement, fileName);
+		}
 		
-		try(Statement fileStatement = databaseConnection.createStatement();)
+		String findQuery = "SELECT peerfile.fileGUID "
+						+ "FROM filealias "
+						+ "INNER JOIN peerfile ON peerfile.fileGUID = filealias.fileID "
+						+ "WHERE filealias.fileName = ? AND peerfile.contentHash IS NULL "
+						+ "LIMIT 1";
+		
+		try (PreparedStatement findStatement = dbConnection.prepareStatement(findQuery);)
 		{
-			fileStatement.execute(query, Statement.RETURN_GENERATED_KEYS);   //Execute the query and ensure that returned auto generated keys are available.
-			ResultSet result = fileStatement.getGeneratedKeys();
-			
-			/*Cursor is advanced to first row to check if any generated key is available */
-			if (!(result.first()))
-				return -1;
+			findStatement.setString(1, fileName);
+			ResultSet result = findStatement.executeQuery();
+			if (result.first())
+				return result.getInt(1);
+		}
 		
-			
-			return result.getInt(1);
+		String insertQuery = "INSERT INTO peerfile (fileName) "
+						+ "VALUES (?)";
+		
+		try (PreparedStatement insertStatement = dbConnection.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS);)
+		{
+			insertStatement.setString(1, fileName);
+			return executeInsert(insertStatement, fileName);
 		}
 	}
 	
+	
+	private static int executeInsert(PreparedStatement insertStatement, String fileName) throws SQLException
+	{
+		insertStatement.executeUpdate();                                    //Execute the query and ensure that returned auto generated keys are available.
+		ResultSet result = insertStatement.getGeneratedKeys();
+		
+		/*Cursor is advanced to first row to check if any generated key is available */
+		if (!(result.next()))
+			throw new SQLException("Missing generated key for file " + fileName);
 		
+		return result.getInt(1);
+	}
+	
+	
+	/**Sets the content hash and file size parameters of a statement, which are NULL if not known.
+	 * @param statement PreparedStatement with the parameters
+	 * @param index int index of the content hash parameter, which is followed by the file size parameter
+	 */
+	private static void setContent(PreparedStatement statement, int index, String contentHash, Long fileSize) throws SQLException
+	{
+		if (contentHash == null || fileSize == null)
+		{
+			statement.setNull(index, Types.CHAR);
+			statement.setNull(index + 1, Types.BIGINT);
+			return;
+		}
+		
+		statement.setString(index, contentHash.toLowerCase());
+		statement.setLong(index + 1, fileSize);
+	}
 	
 	
+	/**
+	 * Get the content hash of the file, if it was reported by the sharing peer.
+	 * @return String with the content hash as lower case hexadecimal, or null if not known
+	 */
+	public String getContentHash()
+	{
+		return contentHash;
+	}
+	
+	
+	public Long getFileSize()
+	{
+		return fileSize;
+	}
 }
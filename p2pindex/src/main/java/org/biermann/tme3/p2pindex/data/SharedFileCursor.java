@@ -0,0 +1,112 @@
+/**
+ * SharedFileCursor.java
+ * 
+ * A cursor over the rows of a listing of shared files, read from the database one row at a time.
+ * The rows are fetched FETCH_SIZE at a time rather than all at once, so a listing of any length is
+ * written out without the whole result being held in memory.
+ * 
+ * Each row has a key, which increases from row to row. A listing is continued by passing the key of 
+ * its last row to the query which produced it (see FileAlias.listFiles(), FileShared.listPeerFiles() 
+ * and FileShared.listFilePeers()), so later pages are found from the index rather than by skipping rows.
+ * 
+ * The cursor must be closed, and the connection it was opened on must not be used until then.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.data;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class SharedFileCursor implements AutoCloseable
+{
+	public static final int FETCH_SIZE = 500;                              //Rows read from the database at a time.
+	
+	private final PreparedStatement statement;
+	private final ResultSet result;
+	
+	
+	/**
+	 * Executes the query of a listing. The query must select the key, file name, host address, 
+	 * content hash and file size of each row, in that order.
+	 * @param statement PreparedStatement with its parameters set, which is closed with the cursor
+	 * @throws SQLException if the query fails, in which case the statement is closed
+	 */
+	SharedFileCursor(PreparedStatement statement) throws SQLException
+	{
+		this.statement = statement;
+		try
+		{
+			statement.setFetchSize(FETCH_SIZE);
+			result = statement.executeQuery();
+		}
+		catch (SQLException ex)
+		{
+			statement.close();
+			throw ex;
+		}
+	}
+	
+	
+	/**
+	 * Moves to the next row.
+	 * @return boolean true if there is another row, false at the end of the listing
+	 * @throws SQLException if reading from the database fails
+	 */
+	public boolean next() throws SQLException
+	{
+		return result.next();
+	}
+	
+	
+	/**
+	 * @return int key of the current row, used to continue the listing after it
+	 */
+	public int getKey() throws SQLException
+	{
+		return result.getInt(1);
+	}
+	
+	
+	public String getFileName() throws SQLException
+	{
+		return result.getString(2);
+	}
+	
+	
+	/**
+	 * @return String with the host address of the sharing peer, or null if the listing is not of shares
+	 */
+	public String getHostAddress() throws SQLException
+	{
+		String hostAddress = result.getString(3);
+		return (hostAddress == null) ? null : hostAddress.trim();
+	}
+	
+	
+	/**
+	 * @return String with the content hash, or null if not reported by the peer
+	 */
+	public String getContentHash() throws SQLException
+	{
+		return result.getString(4);
+	}
+	
+	
+	/**
+	 * @return Long with the size of the file, or null if not reported by the peer
+	 */
+	public Long getFileSize() throws SQLException
+	{
+		long fileSize = result.getLong(5);
+		return result.wasNull() ? null : fileSize;
+	}
+	
+	
+	@Override
+	public void close() throws SQLException
+	{
+		statement.close();                                                   //Also closes the result.
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * A type of RuntimeException which occurs when the index service cannot accept more database work,
+ * because every database thread is busy and the queue of waiting operations is full, or when an
+ * operation waited too long to be completed. The client may retry after the specified delay.
+ * 
+ * @author Oloff Biermann
+ */
+
+package org.biermann.tme3.p2pindex.exception;
+
+public class IndexBusyException extends RuntimeException
+{
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 2950187406655513384L;
+	
+	private final int retryAfterSeconds;
+
+	public IndexBusyException(String message, int retryAfterSeconds)
+	{
+		super(message);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+	
+	/**
+	 * Get the number of seconds after which the client may retry the request.
+	 * @return int delay in seconds
+	 */
+	public int getRetryAfterSeconds()
+	{
+		return retryAfterSeconds;
+	}
+}
@@ -0,0 +1,32 @@
+/**
+ * Maps IndexBusyException to a "503 Service Unavailable" response containing a custom ErrorMessage.
+ * The Retry-After header tells the client when to retry the request.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.exception;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+import org.biermann.tme3.p2pindex.messages.ErrorMessage;
+
+@Provider
+public class IndexBusyExceptionMapper implements ExceptionMapper<IndexBusyException>
+{
+
+	@Override
+	public Response toResponse(IndexBusyException ex) 
+	{
+		int responseCode = Status.SERVICE_UNAVAILABLE.getStatusCode();
+		ErrorMessage msg = new ErrorMessage(ex.getMessage(), responseCode);
+		return Response.status(responseCode)
+				.header(HttpHeaders.RETRY_AFTER, ex.getRetryAfterSeconds())
+				.entity(msg)
+				.build();
+	}
+	
+}
@@ -0,0 +1,349 @@
+/**
+ * PeerLeases.java
+ *
+ * Tracks the leases of the peers known to the index service, and deletes the peers whose lease
+ * has expired. A peer is given a lease when it shares a file, and keeps it by sending heartbeats
+ * (see renew()). A peer which stops sending heartbeats, for example because it crashed or lost its
+ * network, is deleted once its lease expires, together with the files which only it shared.
+ *
+ * The lease of each peer is held in memory and in the peer table. Heartbeats only update the
+ * memory, so they never wait for the database. Once a tick, a background thread:
+ * 1) Writes the leases renewed since the last tick to the database in one batched statement.
+ * 2) Takes the peers which are due from a TimingWheel, so that the cost of a tick depends on the
+ *    number of peers due rather than the number of peers known. A peer whose lease was renewed
+ *    since it was scheduled is scheduled again at its new expiry.
+ * 3) Deletes the expired peers in bulk, in one transaction per batch, and reports the names of
+ *    the files they shared so that cached lookups can be invalidated.
+ *
+ * Lookups compare the lease in the database with the current time (see FileShared), so a dead peer
+ * is not returned even before it is deleted. The leases in memory are those of a single index
+ * service; if several index services share a database, each only deletes the peers it knows.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.lease;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.biermann.tme3.p2pindex.data.FileShared;
+import org.biermann.tme3.p2pindex.data.Peer;
+import org.biermann.tme3.p2pindex.pool.ConnectionPool;
+
+public class PeerLeases
+{
+	public static final long DEFAULT_LEASE_MILLIS = 90000;
+	public static final long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 30000;      //A peer may miss two heartbeats before its lease expires.
+	public static final long DEFAULT_TICK_MILLIS = 1000;
+	public static final int WHEEL_SLOTS = 512;                               //One revolution is longer than a lease, at the default tick.
+
+	private final ConnectionPool connectionPool;
+	private final long leaseMillis;
+	private final long heartbeatIntervalMillis;
+	private final long tickMillis;
+	private final Consumer<List<String>> expiredFiles;
+	private final TimingWheel<String> wheel;
+	private final ScheduledExecutorService reaper;
+
+	/*The lease expiry of each known peer, and the renewals not yet written to the database */
+	private final ConcurrentHashMap<String, Long> leaseExpiries = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Long> pendingRenewals = new ConcurrentHashMap<>();
+	private volatile boolean loaded;
+
+	/*Counters used for metrics */
+	private final LongAdder renewals = new LongAdder();
+	private final LongAdder expiredPeers = new LongAdder();
+
+
+	/**
+	 * Creates the lease tracker. The leases are loaded from the database, and expired peers are
+	 * deleted, once start() is called.
+	 * @param connectionPool ConnectionPool used to access the database
+	 * @param leaseMillis long duration of a lease, renewed by each heartbeat
+	 * @param heartbeatIntervalMillis long interval at which peers are asked to send heartbeats
+	 * @param tickMillis long interval at which renewals are written and expired peers are deleted
+	 * @param expiredFiles Consumer called with the names of the files shared by deleted peers, once for each share
+	 */
+	public PeerLeases(ConnectionPool connectionPool, long leaseMillis, long heartbeatIntervalMillis, long tickMillis,
+			Consumer<List<String>> expiredFiles)
+	{
+		this.connectionPool = connectionPool;
+		this.leaseMillis = leaseMillis;
+		this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+		this.tickMillis = tickMillis;
+		this.expiredFiles = expiredFiles;
+		wheel = new TimingWheel<>(WHEEL_SLOTS, tickMillis, System.currentTimeMillis());
+
+		reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "peer-lease-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
+	/**
+	 * Starts the background thread which writes renewals and deletes expired peers.
+	 */
+	public void start()
+	{
+		reaper.scheduleWithFixedDelay(this::tick, 0, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Stops the background thread, after writing the renewals which are pending.
+	 */
+	public void shutdown()
+	{
+		reaper.shutdownNow();
+		try
+		{
+			reaper.awaitTermination(tickMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		writeRenewals();
+	}
+
+
+	public long getLeaseMillis()
+	{
+		return leaseMillis;
+	}
+
+
+	public long getHeartbeatIntervalMillis()
+	{
+		return heartbeatIntervalMillis;
+	}
+
+
+	/**
+	 * Get the time at which a lease granted now expires. Used when a peer shares a file, so that
+	 * the lease can be written in the same transaction as its files.
+	 * @return long lease expiry in milliseconds since the epoch
+	 */
+	public long newLeaseExpiry()
+	{
+		return System.currentTimeMillis() + leaseMillis;
+	}
+
+
+	/**
+	 * Records the lease of a peer which was written to the database, after the transaction has
+	 * been committed. The lease is tracked from now on if the peer was not known.
+	 * @param hostAddress String with the address of the peer
+	 * @param leaseExpiry long lease expiry written to the database
+	 */
+	public void granted(String hostAddress, long leaseExpiry)
+	{
+		/*A known peer is already scheduled, and is scheduled again at its new expiry when it is due. */
+		boolean[] added = new boolean[1];
+		leaseExpiries.compute(hostAddress, (host, expiry) -> {
+			added[0] = (expiry == null);
+			return added[0] ? leaseExpiry : Math.max(expiry, leaseExpiry);
+		});
+
+		if (added[0])
+			wheel.schedule(hostAddress, leaseExpiry);
+	}
+
+
+	/**
+	 * Renews the leases of the specified peers. Only peers which are known to the index service,
+	 * i.e. which share files and whose lease has not expired, can be renewed. A peer which is not
+	 * known must share its files again. The database is updated by the next tick.
+	 * @param hostAddresses Collection of the addresses of the peers
+	 * @return List of the addresses which are not known, in the order given
+	 */
+	public List<String> renew(Collection<String> hostAddresses)
+	{
+		long leaseExpiry = newLeaseExpiry();
+		List<String> unknownHosts = new ArrayList<>();
+		for (String hostAddress : hostAddresses)
+		{
+			/*A peer removed by the reaper is not added again, as its records may already be deleted. */
+			if (leaseExpiries.computeIfPresent(hostAddress, (host, expiry) -> Math.max(expiry, leaseExpiry)) == null)
+			{
+				unknownHosts.add(hostAddress);
+				continue;
+			}
+
+			pendingRenewals.merge(hostAddress, leaseExpiry, Math::max);
+			renewals.increment();
+		}
+		return unknownHosts;
+	}
+
+
+	/**
+	 * Get the number of peers whose lease is tracked.
+	 * @return int number of known peers
+	 */
+	public int getPeerCount()
+	{
+		return leaseExpiries.size();
+	}
+
+
+	/**
+	 * Get the number of leases renewed by heartbeats since the index service started.
+	 * @return long number of renewals
+	 */
+	public long getRenewalCount()
+	{
+		return renewals.sum();
+	}
+
+
+	/**
+	 * Get the number of peers deleted because their lease expired since the index service started.
+	 * @return long number of expired peers
+	 */
+	public long getExpiredCount()
+	{
+		return expiredPeers.sum();
+	}
+
+
+	private void tick()
+	{
+		try
+		{
+			if (!loaded)
+				loaded = loadLeases();
+
+			writeRenewals();
+
+			long now = System.currentTimeMillis();
+			List<String> expiredHosts = new ArrayList<>();
+			for (String hostAddress : wheel.advance(now))
+			{
+				Long leaseExpiry = leaseExpiries.get(hostAddress);
+				if (leaseExpiry == null)
+					continue;                                             //Already deleted, through an earlier entry.
+
+				if (leaseExpiry > now)
+				{
+					wheel.schedule(hostAddress, leaseExpiry);             //Renewed since it was scheduled.
+					continue;
+				}
+
+				/*Removed only if it was not renewed meanwhile, so that a concurrent heartbeat either
+				 * extends the lease or is told that the peer is not known. */
+				if (leaseExpiries.remove(hostAddress, leaseExpiry))
+					expiredHosts.add(hostAddress);
+				else
+					wheel.schedule(hostAddress, now);
+			}
+
+			for (int start = 0; start < expiredHosts.size(); start += FileShared.MAX_BATCH_QUERY_NAMES)
+			{
+				deleteExpired(expiredHosts.subList(start, Math.min(expiredHosts.size(), start + FileShared.MAX_BATCH_QUERY_NAMES)), now);
+			}
+		}
+		catch (RuntimeException failed)
+		{
+			System.err.println("The peer leases could not be updated: " + failed.getMessage());   //Retried by the next tick.
+		}
+	}
+
+
+	/**
+	 * Loads the leases of all peers from the database and schedules their expiry.
+	 * @return boolean true if the leases were loaded
+	 */
+	private boolean loadLeases()
+	{
+		Map<String, Long> storedLeases;
+		try (Connection dbConnection = connectionPool.getConnection())
+		{
+			storedLeases = Peer.queryLeases(dbConnection);
+		}
+		catch (SQLException ex)
+		{
+			System.err.println("The peer leases could not be loaded: " + ex.getMessage() + " \n " + ex.getSQLState());
+			return false;
+		}
+
+		for (Map.Entry<String, Long> lease : storedLeases.entrySet())
+		{
+			granted(lease.getKey(), lease.getValue());
+		}
+		return true;
+	}
+
+
+	/**
+	 * Writes the renewed leases to the database in one batched statement. If this fails, the
+	 * renewals are kept and written by the next tick.
+	 */
+	private void writeRenewals()
+	{
+		if (pendingRenewals.isEmpty())
+			return;
+
+		Map<String, Long> batch = new HashMap<>();
+		for (String hostAddress : pendingRenewals.keySet())
+		{
+			Long leaseExpiry = pendingRenewals.remove(hostAddress);
+			if (leaseExpiry != null)
+				batch.put(hostAddress, leaseExpiry);
+		}
+
+		try (Connection dbConnection = connectionPool.getConnection())
+		{
+			Peer.renewLeases(dbConnection, batch);
+		}
+		catch (SQLException ex)
+		{
+			System.err.println("The peer leases could not be renewed: " + ex.getMessage() + " \n " + ex.getSQLState());
+			for (Map.Entry<String, Long> lease : batch.entrySet())
+			{
+				pendingRenewals.merge(lease.getKey(), lease.getValue(), Math::max);
+			}
+		}
+	}
+
+
+	/**
+	 * Deletes the specified expired peers in one transaction. If this fails, the peers are tracked
+	 * again and deleted by the next tick, unless they send a heartbeat first.
+	 */
+	private void deleteExpired(List<String> hostAddresses, long now)
+	{
+		List<String> fileNames = null;
+		try (Connection dbConnection = connectionPool.getConnection())
+		{
+			dbConnection.setAutoCommit(false);                   //The pool rolls back and restores autocommit on return.
+			fileNames = Peer.deleteExpired(dbConnection, hostAddresses, now);
+			dbConnection.commit();
+			expiredPeers.add(hostAddresses.size());
+		}
+		catch (SQLException ex)
+		{
+			System.err.println("The expired peers could not be deleted: " + ex.getMessage() + " \n " + ex.getSQLState());
+			for (String hostAddress : hostAddresses)
+			{
+				granted(hostAddress, now);
+			}
+			return;
+		}
+
+		expiredFiles.accept(fileNames);
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * TimingWheel.java
+ *
+ * A hashed timing wheel, which holds keys to be handled at a deadline. Time is divided into ticks,
+ * and the wheel has a fixed number of slots, each holding the keys whose deadline falls in a tick
+ * congruent to the slot. Scheduling a key adds it to its slot, and advance() only visits the slots
+ * of the ticks which have passed, so the cost of both does not depend on the number of keys held.
+ * Keys whose deadline is more than one revolution ahead stay in their slot until a later revolution.
+ *
+ * Deadlines are rounded up to the next tick, so a key is never returned before its deadline, and is
+ * returned at most one tick after it when advance() is called every tick. A key which is scheduled
+ * twice is returned twice. Callers should check whether the key is still due when it is returned,
+ * and schedule it again if its deadline has moved, rather than removing it from the wheel.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.lease;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class TimingWheel<K>
+{
+	private final long tickMillis;
+	private final List<List<Entry<K>>> slots;
+	private long currentTick;                                  //Last tick handled by advance().
+	private int size;
+
+	private static final class Entry<K>
+	{
+		final K key;
+		final long deadlineTick;
+
+		Entry(K key, long deadlineTick)
+		{
+			this.key = key;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+
+
+	/**
+	 * Creates a wheel which starts at the specified time.
+	 * @param slotCount int number of slots. One revolution lasts slotCount * tickMillis.
+	 * @param tickMillis long duration of a tick in milliseconds
+	 * @param startMillis long current time in milliseconds
+	 */
+	public TimingWheel(int slotCount, long tickMillis, long startMillis)
+	{
+		this.tickMillis = tickMillis;
+		this.currentTick = startMillis / tickMillis;
+		slots = new ArrayList<>(slotCount);
+		for (int i = 0; i < slotCount; i++)
+		{
+			slots.add(new ArrayList<Entry<K>>());
+		}
+	}
+
+
+	/**
+	 * Adds a key to be returned by advance() once the deadline has passed. A deadline which has
+	 * already passed is returned by the next advance().
+	 * @param key K to be returned
+	 * @param deadlineMillis long time in milliseconds after which the key is due
+	 */
+	public synchronized void schedule(K key, long deadlineMillis)
+	{
+		long deadlineTick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick + 1);
+		slots.get((int) (deadlineTick % slots.size())).add(new Entry<>(key, deadlineTick));
+		size++;
+	}
+
+
+	/**
+	 * Removes and returns the keys which are due at the specified time.
+	 * @param nowMillis long current time in milliseconds
+	 * @return List of the keys whose deadline has passed, which is empty if there are none
+	 */
+	public synchronized List<K> advance(long nowMillis)
+	{
+		List<K> due = new ArrayList<>();
+		long nowTick = nowMillis / tickMillis;
+
+		/*After a pause of more than one revolution every slot is visited once */
+		long firstTick = Math.max(currentTick + 1, nowTick - slots.size() + 1);
+		for (long tick = firstTick; tick <= nowTick; tick++)
+		{
+			Iterator<Entry<K>> entries = slots.get((int) (tick % slots.size())).iterator();
+			while (entries.hasNext())
+			{
+				Entry<K> entry = entries.next();
+				if (entry.deadlineTick <= nowTick)
+				{
+					due.add(entry.key);
+					entries.remove();
+				}
+			}
+		}
+
+		currentTick = Math.max(currentTick, nowTick);
+		size -= due.size();
+		return due;
+	}
+
+
+	/**
+	 * Get the number of keys held by the wheel.
+	 * @return int number of scheduled keys
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+}
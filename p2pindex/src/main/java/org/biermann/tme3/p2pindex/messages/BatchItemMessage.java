@@ -0,0 +1,72 @@
+/**
+ * BatchItemMessage.java
+ * 
+ * Represents the outcome of a single item in a batch share or unshare request. May be serialized
+ * as XML for transmission. Contains fields for the file name and host address of the item, the 
+ * HTTP status code which the equivalent single-file request would have returned, and a message.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.messages;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class BatchItemMessage 
+{
+	private String fileName;
+	private String hostAddress;
+	private int statusCode;
+	private String message;
+	
+	public BatchItemMessage()
+	{}
+	
+	public BatchItemMessage(String fileName, String hostAddress, int statusCode, String message)
+	{
+		this.fileName = fileName;
+		this.hostAddress = hostAddress;
+		this.statusCode = statusCode;
+		this.message = message;
+	}
+
+	public String getFileName() 
+	{
+		return fileName;
+	}
+
+	public void setFileName(String fileName) 
+	{
+		this.fileName = fileName;
+	}
+
+	public String getHostAddress() 
+	{
+		return hostAddress;
+	}
+
+	public void setHostAddress(String hostAddress) 
+	{
+		this.hostAddress = hostAddress;
+	}
+
+	public int getStatusCode() 
+	{
+		return statusCode;
+	}
+
+	public void setStatusCode(int statusCode) 
+	{
+		this.statusCode = statusCode;
+	}
+
+	public String getMessage() 
+	{
+		return message;
+	}
+
+	public void setMessage(String message) 
+	{
+		this.message = message;
+	}
+}
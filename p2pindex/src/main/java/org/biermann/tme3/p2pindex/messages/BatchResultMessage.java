@@ -0,0 +1,40 @@
+/**
+ * BatchResultMessage.java
+ * 
+ * Represents the per-item outcomes of a batch share or unshare request, in the same order as the
+ * items of the request. May be serialized as XML for transmission.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class BatchResultMessage 
+{
+	private List<BatchItemMessage> results = new ArrayList<>();
+	
+	public BatchResultMessage()
+	{}
+	
+	public BatchResultMessage(List<BatchItemMessage> results)
+	{
+		this.results = results;
+	}
+
+	@XmlElement(name = "result")
+	public List<BatchItemMessage> getResults() 
+	{
+		return results;
+	}
+
+	public void setResults(List<BatchItemMessage> results) 
+	{
+		this.results = results;
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * CacheStatsListMessage.java
+ * 
+ * Represents a list of CacheStatsMessage instances, one for each lookup cache, which may be 
+ * serialized as XML for transmission.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class CacheStatsListMessage 
+{
+	private List<CacheStatsMessage> caches = new ArrayList<>();
+	
+	public CacheStatsListMessage()
+	{}
+	
+	public CacheStatsListMessage(List<CacheStatsMessage> caches)
+	{
+		this.caches = caches;
+	}
+
+	@XmlElement(name = "cache")
+	public List<CacheStatsMessage> getCaches() 
+	{
+		return caches;
+	}
+
+	public void setCaches(List<CacheStatsMessage> caches) 
+	{
+		this.caches = caches;
+	}
+}
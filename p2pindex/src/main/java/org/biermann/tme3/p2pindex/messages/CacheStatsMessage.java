@@ -0,0 +1,126 @@
+/**
+ * CacheStatsMessage.java
+ * 
+ * Represents the statistics of a single lookup cache which may be serialized as XML for 
+ * transmission. Contains fields for the cache name and size, and the hit, miss, eviction,
+ * expiration and invalidation counts.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.messages;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.biermann.tme3.p2pindex.cache.LookupCache;
+
+@XmlRootElement
+public class CacheStatsMessage 
+{
+	private String name;
+	private int size;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+	private long expirationCount;
+	private long invalidationCount;
+	
+	public CacheStatsMessage()
+	{}
+	
+	/**
+	 * Creates a message holding the current statistics of the specified cache.
+	 * @param cache LookupCache from which to read the statistics
+	 */
+	public CacheStatsMessage(LookupCache<?, ?> cache)
+	{
+		name = cache.getName();
+		size = cache.size();
+		hitCount = cache.getHitCount();
+		missCount = cache.getMissCount();
+		evictionCount = cache.getEvictionCount();
+		expirationCount = cache.getExpirationCount();
+		invalidationCount = cache.getInvalidationCount();
+	}
+
+	public String getName() 
+	{
+		return name;
+	}
+
+	public void setName(String name) 
+	{
+		this.name = name;
+	}
+
+	public int getSize() 
+	{
+		return size;
+	}
+
+	public void setSize(int size) 
+	{
+		this.size = size;
+	}
+
+	public long getHitCount() 
+	{
+		return hitCount;
+	}
+
+	public void setHitCount(long hitCount) 
+	{
+		this.hitCount = hitCount;
+	}
+
+	public long getMissCount() 
+	{
+		return missCount;
+	}
+
+	public void setMissCount(long missCount) 
+	{
+		this.missCount = missCount;
+	}
+
+	public long getEvictionCount() 
+	{
+		return evictionCount;
+	}
+
+	public void setEvictionCount(long evictionCount) 
+	{
+		this.evictionCount = evictionCount;
+	}
+
+	public long getExpirationCount() 
+	{
+		return expirationCount;
+	}
+
+	public void setExpirationCount(long expirationCount) 
+	{
+		this.expirationCount = expirationCount;
+	}
+
+	public long getInvalidationCount() 
+	{
+		return invalidationCount;
+	}
+
+	public void setInvalidationCount(long invalidationCount) 
+	{
+		this.invalidationCount = invalidationCount;
+	}
+	
+	/**
+	 * Get the fraction of lookups which were served from the cache.
+	 * @return double hit ratio between 0 and 1
+	 */
+	@XmlElement
+	public double getHitRatio()
+	{
+		long lookups = hitCount + missCount;
+		return (lookups == 0) ? 0.0 : hitCount / (double) lookups;
+	}
+}
@@ -6,6 +6,10 @@
  * fields for the file name and the host address, as well as methods for 
  * accessing and modifying these values.
  * 
+ * The content hash and size of the file are optional. When present, they identify the content of
+ * the file, so that downloads can be verified. The content hash is the SHA-256 hash of the SHA-256 
+ * hashes of the 256 KB chunks of the file, as hexadecimal.
+ * 
  * @author Oloff Biermann
  */
 
@@ -18,6 +22,8 @@ public class FileMessage
 {
 	private String fileName;
 	private String hostAddress;
+	private String contentHash;
+	private Long fileSize;
 	
 	
 	public FileMessage()
@@ -28,6 +34,14 @@ public class FileMessage
 		this.fileName = fileName;
 		this.hostAddress = hostAddress;
 	}
+	
+	public FileMessage(String fileName, String hostAddress, String contentHash, Long fileSize)
+	{
+		this.fileName = fileName;
+		this.hostAddress = hostAddress;
+		this.contentHash = contentHash;
+		this.fileSize = fileSize;
+	}
 
 	public String getFileName() 
 	{
@@ -48,6 +62,26 @@ public class FileMessage
 	{
 		this.hostAddress = hostAddress;
 	}
+
+	public String getContentHash() 
+	{
+		return contentHash;
+	}
+
+	public void setContentHash(String contentHash) 
+	{
+		this.contentHash = contentHash;
+	}
+
+	public Long getFileSize() 
+	{
+		return fileSize;
+	}
+
+	public void setFileSize(Long fileSize) 
+	{
+		this.fileSize = fileSize;
+	}
 	
 	
 }
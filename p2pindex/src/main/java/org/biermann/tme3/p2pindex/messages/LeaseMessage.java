@@ -0,0 +1,69 @@
+/**
+ * LeaseMessage.java
+ * 
+ * Represents the reply of the index service to a heartbeat. Holds the duration of the renewed 
+ * leases, the interval at which the peer should send heartbeats, and the addresses in the 
+ * heartbeat which are not known to the index service. A peer whose address is not known has no 
+ * lease, for example because it expired, and must share its files again. May be serialized as 
+ * XML for transmission.
+ * 
+ * @author Oloff Biermann
+ */
+
+package org.biermann.tme3.p2pindex.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class LeaseMessage 
+{
+	private long leaseMillis;
+	private long heartbeatIntervalMillis;
+	private List<String> unknownHostAddresses = new ArrayList<>();
+	
+	
+	public LeaseMessage()
+	{}
+	
+	public LeaseMessage(long leaseMillis, long heartbeatIntervalMillis, List<String> unknownHostAddresses)
+	{
+		this.leaseMillis = leaseMillis;
+		this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+		this.unknownHostAddresses = unknownHostAddresses;
+	}
+
+	public long getLeaseMillis() 
+	{
+		return leaseMillis;
+	}
+
+	public void setLeaseMillis(long leaseMillis) 
+	{
+		this.leaseMillis = leaseMillis;
+	}
+
+	public long getHeartbeatIntervalMillis() 
+	{
+		return heartbeatIntervalMillis;
+	}
+
+	public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) 
+	{
+		this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+	}
+
+	@XmlElement(name = "unknownHostAddress")
+	public List<String> getUnknownHostAddresses() 
+	{
+		return unknownHostAddresses;
+	}
+
+	public void setUnknownHostAddresses(List<String> unknownHostAddresses) 
+	{
+		this.unknownHostAddresses = unknownHostAddresses;
+	}
+}
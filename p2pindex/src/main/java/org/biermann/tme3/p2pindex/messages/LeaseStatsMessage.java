@@ -0,0 +1,78 @@
+/**
+ * LeaseStatsMessage.java
+ * 
+ * Represents a snapshot of the metrics for the peer leases. May be serialized as XML for 
+ * transmission. Contains fields for the number of peers whose lease is tracked, the number of 
+ * leases renewed by heartbeats, and the number of peers deleted because their lease expired.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.messages;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.biermann.tme3.p2pindex.lease.PeerLeases;
+
+@XmlRootElement
+public class LeaseStatsMessage 
+{
+	private int peerCount;
+	private long renewalCount;
+	private long expiredCount;
+	private long leaseMillis;
+	
+	public LeaseStatsMessage()
+	{}
+	
+	/**
+	 * Creates a message holding the current metrics of the specified leases.
+	 * @param leases PeerLeases from which to read the metrics
+	 */
+	public LeaseStatsMessage(PeerLeases leases)
+	{
+		peerCount = leases.getPeerCount();
+		renewalCount = leases.getRenewalCount();
+		expiredCount = leases.getExpiredCount();
+		leaseMillis = leases.getLeaseMillis();
+	}
+
+	public int getPeerCount() 
+	{
+		return peerCount;
+	}
+
+	public void setPeerCount(int peerCount) 
+	{
+		this.peerCount = peerCount;
+	}
+
+	public long getRenewalCount() 
+	{
+		return renewalCount;
+	}
+
+	public void setRenewalCount(long renewalCount) 
+	{
+		this.renewalCount = renewalCount;
+	}
+
+	public long getExpiredCount() 
+	{
+		return expiredCount;
+	}
+
+	public void setExpiredCount(long expiredCount) 
+	{
+		this.expiredCount = expiredCount;
+	}
+
+	public long getLeaseMillis() 
+	{
+		return leaseMillis;
+	}
+
+	public void setLeaseMillis(long leaseMillis) 
+	{
+		this.leaseMillis = leaseMillis;
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * PoolStatsMessage.java
+ * 
+ * Represents a snapshot of the metrics for the database connection pool. May be serialized
+ * as XML for transmission. Contains fields for the number of active, idle and total connections,
+ * the number of waiting callers, and the time spent waiting to borrow connections.
+ * 
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.messages;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.biermann.tme3.p2pindex.pool.ConnectionPool;
+
+@XmlRootElement
+public class PoolStatsMessage 
+{
+	private int activeConnections;
+	private int idleConnections;
+	private int totalConnections;
+	private int maxConnections;
+	private int waitingThreads;
+	private long borrowCount;
+	private double averageWaitMillis;
+	private double maxWaitMillis;
+	private long timeoutCount;
+	private long createdCount;
+	private long destroyedCount;
+	private long leakCount;
+	
+	public PoolStatsMessage()
+	{}
+	
+	/**
+	 * Creates a message holding the current metrics of the specified pool.
+	 * @param pool ConnectionPool from which to read the metrics
+	 */
+	public PoolStatsMessage(ConnectionPool pool)
+	{
+		activeConnections = pool.getActiveCount();
+		idleConnections = pool.getIdleCount();
+		totalConnections = pool.getTotalCount();
+		maxConnections = pool.getMaxSize();
+		waitingThreads = pool.getWaitingCount();
+		borrowCount = pool.getBorrowCount();
+		averageWaitMillis = pool.getAverageWaitMillis();
+		maxWaitMillis = pool.getMaxWaitMillis();
+		timeoutCount = pool.getTimeoutCount();
+		createdCount = pool.getCreatedCount();
+		destroyedCount = pool.getDestroyedCount();
+		leakCount = pool.getLeakCount();
+	}
+
+	public int getActiveConnections() 
+	{
+		return activeConnections;
+	}
+
+	public void setActiveConnections(int activeConnections) 
+	{
+		this.activeConnections = activeConnections;
+	}
+
+	public int getIdleConnections() 
+	{
+		return idleConnections;
+	}
+
+	public void setIdleConnections(int idleConnections) 
+	{
+		this.idleConnections = idleConnections;
+	}
+
+	public int getTotalConnections() 
+	{
+		return totalConnections;
+	}
+
+	public void setTotalConnections(int totalConnections) 
+	{
+		this.totalConnections = totalConnections;
+	}
+
+	public int getMaxConnections() 
+	{
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) 
+	{
+		this.maxConnections = maxConnections;
+	}
+
+	public int getWaitingThreads() 
+	{
+		return waitingThreads;
+	}
+
+	public void setWaitingThreads(int waitingThreads) 
+	{
+		this.waitingThreads = waitingThreads;
+	}
+
+	public long getBorrowCount() 
+	{
+		return borrowCount;
+	}
+
+	public void setBorrowCount(long borrowCount) 
+	{
+		this.borrowCount = borrowCount;
+	}
+
+	public double getAverageWaitMillis() 
+	{
+		return averageWaitMillis;
+	}
+
+	public void setAverageWaitMillis(double averageWaitMillis) 
+	{
+		this.averageWaitMillis = averageWaitMillis;
+	}
+
+	public double getMaxWaitMillis() 
+	{
+		return maxWaitMillis;
+	}
+
+	public void setMaxWaitMillis(double maxWaitMillis) 
+	{
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	public long getTimeoutCount() 
+	{
+		return timeoutCount;
+	}
+
+	public void setTimeoutCount(long timeoutCount) 
+	{
+		this.timeoutCount = timeoutCount;
+	}
+
+	public long getCreatedCount() 
+	{
+		return createdCount;
+	}
+
+	public void setCreatedCount(long createdCount) 
+	{
+		this.createdCount = createdCount;
+	}
+
+	public long getDestroyedCount() 
+	{
+		return destroyedCount;
+	}
+
+	public void setDestroyedCount(long destroyedCount) 
+	{
+		this.destroyedCount = destroyedCount;
+	}
+
+	public long getLeakCount() 
+	{
+		return leakCount;
+	}
+
+	public void setLeakCount(long leakCount) 
+	{
+		this.leakCount = leakCount;
+	}
+}
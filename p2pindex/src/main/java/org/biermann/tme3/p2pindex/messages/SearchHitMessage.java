@@ -0,0 +1,49 @@
+/**
+ * SearchHitMessage.java
+ * 
+ * Represents a file name matching a search, with the number of peers sharing a file under that
+ * name. May be serialized as XML for transmission, as part of a SearchResultMessage.
+ * 
+ * @author Oloff Biermann
+ */
+
+package org.biermann.tme3.p2pindex.messages;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class SearchHitMessage 
+{
+	private String fileName;
+	private int shareCount;
+	
+	
+	public SearchHitMessage()
+	{}
+	
+	public SearchHitMessage(String fileName, int shareCount)
+	{
+		this.fileName = fileName;
+		this.shareCount = shareCount;
+	}
+
+	public String getFileName() 
+	{
+		return fileName;
+	}
+
+	public void setFileName(String fileName) 
+	{
+		this.fileName = fileName;
+	}
+
+	public int getShareCount() 
+	{
+		return shareCount;
+	}
+
+	public void setShareCount(int shareCount) 
+	{
+		this.shareCount = shareCount;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * SearchResultMessage.java
+ * 
+ * Represents a page of the file names matching a search, in ranked order. May be serialized as 
+ * XML for transmission. 
+ * 
+ * The number of matches is exact when the result is complete. Otherwise the search stopped early 
+ * to bound its cost, the number of matches is a lower bound, and a more specific query should be
+ * used to find the remaining names.
+ * 
+ * @author Oloff Biermann
+ */
+
+package org.biermann.tme3.p2pindex.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class SearchResultMessage 
+{
+	private String query;
+	private int offset;
+	private int limit;
+	private int totalMatches;
+	private boolean complete;
+	private List<SearchHitMessage> hits = new ArrayList<>();
+	
+	
+	public SearchResultMessage()
+	{}
+	
+	public SearchResultMessage(String query, int offset, int limit, int totalMatches, boolean complete, 
+			List<SearchHitMessage> hits)
+	{
+		this.query = query;
+		this.offset = offset;
+		this.limit = limit;
+		this.totalMatches = totalMatches;
+		this.complete = complete;
+		this.hits = hits;
+	}
+
+	public String getQuery() 
+	{
+		return query;
+	}
+
+	public void setQuery(String query) 
+	{
+		this.query = query;
+	}
+
+	public int getOffset() 
+	{
+		return offset;
+	}
+
+	public void setOffset(int offset) 
+	{
+		this.offset = offset;
+	}
+
+	public int getLimit() 
+	{
+		return limit;
+	}
+
+	public void setLimit(int limit) 
+	{
+		this.limit = limit;
+	}
+
+	public int getTotalMatches() 
+	{
+		return totalMatches;
+	}
+
+	public void setTotalMatches(int totalMatches) 
+	{
+		this.totalMatches = totalMatches;
+	}
+
+	public boolean isComplete() 
+	{
+		return complete;
+	}
+
+	public void setComplete(boolean complete) 
+	{
+		this.complete = complete;
+	}
+
+	@XmlElement(name = "hit")
+	public List<SearchHitMessage> getHits() 
+	{
+		return hits;
+	}
+
+	public void setHits(List<SearchHitMessage> hits) 
+	{
+		this.hits = hits;
+	}
+}
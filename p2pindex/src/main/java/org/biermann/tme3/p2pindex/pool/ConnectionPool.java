@@ -0,0 +1,469 @@
+/**
+ * ConnectionPool.java
+ *
+ * A bounded pool of JDBC connections. Physical connections are opened once and then shared by
+ * borrowing them for the duration of a single operation. Callers obtain a Connection with
+ * getConnection() and return it by calling close() on it, normally in a try-with-resources block.
+ *
+ * The pool provides:
+ * 1) A hard bound on the number of physical connections. Callers wait up to the borrow timeout
+ *    for a connection when the pool is exhausted.
+ * 2) Validation of connections which have been idle longer than the validation interval before
+ *    they are handed out. Invalid or broken connections are discarded.
+ * 3) Idle eviction of connections above the minimum idle count which have not been used within
+ *    the idle timeout. Idle connections are reused most recently used first, so that surplus
+ *    connections age out after a burst.
+ * 4) Leak detection, reporting connections which have been borrowed longer than the leak
+ *    threshold along with the stack of the borrowing thread.
+ * 5) Metrics for the number of active and idle connections and the time spent waiting for them.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.pool;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ConnectionPool
+{
+	private final ConnectionPoolSettings settings;
+	private final LinkedBlockingDeque<PooledConnection> idleConnections;
+	private final Set<PooledConnection> activeConnections;
+	private final Semaphore borrowPermits;                    //One permit per connection which may be borrowed.
+	private final AtomicInteger totalConnections;             //Physical connections which are open or being opened.
+	private final ScheduledExecutorService housekeeper;
+	private volatile boolean closed;
+
+	/*Counters used for metrics */
+	private final LongAdder borrowCount = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final LongAdder timeoutCount = new LongAdder();
+	private final LongAdder createdCount = new LongAdder();
+	private final LongAdder destroyedCount = new LongAdder();
+	private final LongAdder leakCount = new LongAdder();
+
+	/**
+	 * Creates a pool with the specified settings and starts the background housekeeping task.
+	 * Connections for the minimum idle count are opened by the first housekeeping run, so
+	 * the constructor does not fail if the database is temporarily unavailable.
+	 * @param settings ConnectionPoolSettings with connection details, bounds and timeouts
+	 */
+	public ConnectionPool(ConnectionPoolSettings settings)
+	{
+		this.settings = settings;
+		idleConnections = new LinkedBlockingDeque<>();
+		activeConnections = ConcurrentHashMap.newKeySet();
+		borrowPermits = new Semaphore(settings.getMaxSize(), true);     //Fair, so waiting callers are served in order.
+		totalConnections = new AtomicInteger();
+
+		housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "connection-pool-housekeeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		long interval = settings.getHousekeepingIntervalMillis();
+		housekeeper.scheduleWithFixedDelay(this::housekeep, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Borrows a connection from the pool. Waits up to the borrow timeout if all connections are in use.
+	 * The returned Connection must be closed to return it to the pool.
+	 * @return Connection which is valid for the calling operation
+	 * @throws SQLTransientConnectionException if no connection becomes available within the borrow timeout
+	 * @throws SQLException if a new physical connection cannot be opened
+	 */
+	public Connection getConnection() throws SQLException
+	{
+		if (closed)
+			throw new SQLException("The connection pool has been shut down.");
+
+		long waitStart = System.nanoTime();
+		boolean acquired;
+		try
+		{
+			acquired = borrowPermits.tryAcquire(settings.getBorrowTimeoutMillis(), TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException interruptEx)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLTransientConnectionException("Interrupted while waiting for a database connection.");
+		}
+
+		recordWait(System.nanoTime() - waitStart);
+
+		if (!acquired)
+		{
+			timeoutCount.increment();
+			throw new SQLTransientConnectionException("Timed out after " + settings.getBorrowTimeoutMillis()
+					+ " ms waiting for a database connection. Active: " + getActiveCount() + ", idle: " + getIdleCount());
+		}
+
+		try
+		{
+			PooledConnection pooled = takeIdleOrCreate();
+			activeConnections.add(pooled);
+			borrowCount.increment();
+			return pooled.lease(settings.getLeakThresholdMillis() > 0);
+		}
+		catch (SQLException | RuntimeException borrowEx)
+		{
+			borrowPermits.release();                                 //Give back the permit, since nothing was borrowed.
+			throw borrowEx;
+		}
+	}
+
+
+	/**
+	 * Returns a connection to the pool. Called when the proxy handed out by getConnection() is closed.
+	 * Any open transaction is rolled back and auto-commit is restored so the next borrower
+	 * starts from a clean state.
+	 * @param pooled PooledConnection being returned
+	 */
+	void release(PooledConnection pooled)
+	{
+		if (!activeConnections.remove(pooled))
+			return;
+
+		boolean reusable = !closed && !pooled.isBroken();
+		if (reusable)
+		{
+			try
+			{
+				Connection physical = pooled.getPhysicalConnection();
+				if (!physical.getAutoCommit())
+				{
+					physical.rollback();
+					physical.setAutoCommit(true);
+				}
+			}
+			catch (SQLException resetEx)
+			{
+				reusable = false;
+			}
+		}
+
+		pooled.markReturned();
+
+		if (reusable)
+			idleConnections.offerFirst(pooled);                      //Most recently used connections are reused first.
+		else
+			destroy(pooled);
+
+		borrowPermits.release();
+	}
+
+
+	/**
+	 * Closes all idle connections and stops the housekeeping task. Connections which are still
+	 * borrowed are closed when they are returned.
+	 */
+	public void shutdown()
+	{
+		closed = true;
+		housekeeper.shutdownNow();
+
+		PooledConnection pooled;
+		while ((pooled = idleConnections.pollFirst()) != null)
+		{
+			destroy(pooled);
+		}
+	}
+
+
+	/**
+	 * Get the number of connections currently borrowed.
+	 * @return int number of active connections
+	 */
+	public int getActiveCount()
+	{
+		return activeConnections.size();
+	}
+
+	/**
+	 * Get the number of open connections which are not currently borrowed.
+	 * @return int number of idle connections
+	 */
+	public int getIdleCount()
+	{
+		return idleConnections.size();
+	}
+
+	/**
+	 * Get the number of physical connections held by the pool, including those being opened.
+	 * @return int total number of connections
+	 */
+	public int getTotalCount()
+	{
+		return totalConnections.get();
+	}
+
+	/**
+	 * Get the approximate number of threads waiting for a connection.
+	 * @return int number of waiting threads
+	 */
+	public int getWaitingCount()
+	{
+		return borrowPermits.getQueueLength();
+	}
+
+	public int getMaxSize()
+	{
+		return settings.getMaxSize();
+	}
+
+	public long getBorrowCount()
+	{
+		return borrowCount.sum();
+	}
+
+	/**
+	 * Get the mean time callers have waited to borrow a connection.
+	 * @return double average wait time in milliseconds
+	 */
+	public double getAverageWaitMillis()
+	{
+		long borrows = borrowCount.sum() + timeoutCount.sum();
+		return (borrows == 0) ? 0.0 : (waitNanos.sum() / (double) borrows) / 1000000.0;
+	}
+
+	/**
+	 * Get the longest time any caller has waited to borrow a connection.
+	 * @return double maximum wait time in milliseconds
+	 */
+	public double getMaxWaitMillis()
+	{
+		return maxWaitNanos.get() / 1000000.0;
+	}
+
+	public long getTimeoutCount()
+	{
+		return timeoutCount.sum();
+	}
+
+	public long getCreatedCount()
+	{
+		return createdCount.sum();
+	}
+
+	public long getDestroyedCount()
+	{
+		return destroyedCount.sum();
+	}
+
+	public long getLeakCount()
+	{
+		return leakCount.sum();
+	}
+
+
+	/**
+	 * Takes the most recently used idle connection, validating it if needed, or opens a
+	 * new physical connection if no valid idle connection is available. The caller must
+	 * hold a borrow permit.
+	 * @return PooledConnection ready to be leased
+	 * @throws SQLException if a new connection cannot be opened
+	 */
+	private PooledConnection takeIdleOrCreate() throws SQLException
+	{
+		while (true)
+		{
+			PooledConnection pooled;
+			while ((pooled = idleConnections.pollFirst()) != null)
+			{
+				if (validate(pooled))
+					return pooled;
+
+				destroy(pooled);
+			}
+
+			/*No idle connection, so open a new one if the bound allows. Since this thread holds a permit,
+			 * the bound can only be reached if the housekeeper is concurrently adding an idle connection,
+			 * in which case the idle deque is checked again.
+			 */
+			if (reserveSlot())
+			{
+				return create();
+			}
+
+			Thread.yield();
+		}
+	}
+
+
+	/**
+	 * Validates a connection which has been idle longer than the validation interval.
+	 * @param pooled PooledConnection to check
+	 * @return boolean true if the connection may be used
+	 */
+	private boolean validate(PooledConnection pooled)
+	{
+		long idleMillis = System.currentTimeMillis() - pooled.getLastUsedMillis();
+		if (idleMillis < settings.getValidationIntervalMillis())
+			return true;
+
+		try
+		{
+			return pooled.getPhysicalConnection().isValid(settings.getValidationTimeoutSeconds());
+		}
+		catch (SQLException validationEx)
+		{
+			return false;
+		}
+	}
+
+
+	/**
+	 * Reserves room for one more physical connection, if the maximum size has not been reached.
+	 * @return boolean true if a slot was reserved
+	 */
+	private boolean reserveSlot()
+	{
+		int current;
+		do
+		{
+			current = totalConnections.get();
+			if (current >= settings.getMaxSize())
+				return false;
+		} while (!totalConnections.compareAndSet(current, current + 1));
+
+		return true;
+	}
+
+
+	/**
+	 * Opens a new physical connection in a previously reserved slot.
+	 * @return PooledConnection wrapping the new connection
+	 * @throws SQLException if the connection cannot be opened
+	 */
+	private PooledConnection create() throws SQLException
+	{
+		try
+		{
+			Connection physical = DriverManager.getConnection(settings.getUrl(), settings.getUser(), settings.getPassword());
+			createdCount.increment();
+			return new PooledConnection(this, physical);
+		}
+		catch (SQLException | RuntimeException openEx)
+		{
+			totalConnections.decrementAndGet();                      //Free the reserved slot.
+			throw openEx;
+		}
+	}
+
+
+	private void destroy(PooledConnection pooled)
+	{
+		pooled.closePhysical();
+		totalConnections.decrementAndGet();
+		destroyedCount.increment();
+	}
+
+
+	private void recordWait(long nanos)
+	{
+		waitNanos.add(nanos);
+		long max;
+		do
+		{
+			max = maxWaitNanos.get();
+			if (nanos <= max)
+				return;
+		} while (!maxWaitNanos.compareAndSet(max, nanos));
+	}
+
+
+	/**
+	 * Background task which evicts connections that have been idle too long, opens connections
+	 * to maintain the minimum idle count and reports connections that may have leaked.
+	 */
+	private void housekeep()
+	{
+		try
+		{
+			evictIdle();
+			fillMinIdle();
+			detectLeaks();
+		}
+		catch (RuntimeException housekeepEx)
+		{
+			System.err.println("Error during connection pool housekeeping: " + housekeepEx.getMessage());
+		}
+	}
+
+
+	private void evictIdle()
+	{
+		long now = System.currentTimeMillis();
+
+		/*Least recently used connections are at the tail of the deque, so iterate from there */
+		Iterator<PooledConnection> oldestFirst = idleConnections.descendingIterator();
+		while (oldestFirst.hasNext() && idleConnections.size() > settings.getMinIdle())
+		{
+			PooledConnection pooled = oldestFirst.next();
+			if (now - pooled.getLastUsedMillis() > settings.getIdleTimeoutMillis()
+					&& idleConnections.removeLastOccurrence(pooled))
+			{
+				destroy(pooled);
+			}
+		}
+	}
+
+
+	private void fillMinIdle()
+	{
+		while (!closed && idleConnections.size() < settings.getMinIdle() && reserveSlot())
+		{
+			try
+			{
+				idleConnections.offerLast(create());
+			}
+			catch (SQLException openEx)
+			{
+				System.err.println("Unable to open database connection for pool: " + settings.getUrl()
+						+ "\n" + openEx.getMessage());
+				return;
+			}
+		}
+	}
+
+
+	private void detectLeaks()
+	{
+		long threshold = settings.getLeakThresholdMillis();
+		if (threshold <= 0)
+			return;
+
+		long now = System.currentTimeMillis();
+		for (PooledConnection pooled : activeConnections)
+		{
+			long borrowed = pooled.getBorrowedMillis();
+			if (borrowed > 0 && !pooled.isLeakReported() && now - borrowed > threshold)
+			{
+				pooled.setLeakReported();
+				leakCount.increment();
+				System.err.println("Possible connection leak: connection borrowed " + (now - borrowed)
+						+ " ms ago has not been returned to the pool.");
+
+				Throwable site = pooled.getBorrowSite();
+				if (site != null)
+					site.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * ConnectionPoolSettings.java
+ *
+ * Holds the tunable parameters for a ConnectionPool. Contains the JDBC URL and credentials used
+ * to open physical connections, as well as the size bounds and the various timeouts which control
+ * validation, idle eviction and leak detection. All values have sensible defaults, so only the
+ * connection details must be provided.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.pool;
+
+public class ConnectionPoolSettings
+{
+	public static final int DEFAULT_MAX_SIZE = 20;
+	public static final int DEFAULT_MIN_IDLE = 2;
+	public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 5000;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 300000;
+	public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 30000;
+	public static final int DEFAULT_VALIDATION_TIMEOUT_SECONDS = 2;
+	public static final long DEFAULT_LEAK_THRESHOLD_MILLIS = 60000;
+	public static final long DEFAULT_HOUSEKEEPING_INTERVAL_MILLIS = 15000;
+
+	private String url;
+	private String user;
+	private String password;
+	private int maxSize = DEFAULT_MAX_SIZE;
+	private int minIdle = DEFAULT_MIN_IDLE;
+	private long borrowTimeoutMillis = DEFAULT_BORROW_TIMEOUT_MILLIS;
+	private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+	private long validationIntervalMillis = DEFAULT_VALIDATION_INTERVAL_MILLIS;
+	private int validationTimeoutSeconds = DEFAULT_VALIDATION_TIMEOUT_SECONDS;
+	private long leakThresholdMillis = DEFAULT_LEAK_THRESHOLD_MILLIS;
+	private long housekeepingIntervalMillis = DEFAULT_HOUSEKEEPING_INTERVAL_MILLIS;
+
+	/**
+	 * Creates settings for a pool which opens connections to the specified database
+	 * using the given credentials. All other values are set to their defaults.
+	 * @param url String with the JDBC connection URL
+	 * @param user String with the database user name
+	 * @param password String with the password for the database user
+	 */
+	public ConnectionPoolSettings(String url, String user, String password)
+	{
+		this.url = url;
+		this.user = user;
+		this.password = password;
+	}
+
+	public String getUrl()
+	{
+		return url;
+	}
+
+	public String getUser()
+	{
+		return user;
+	}
+
+	public String getPassword()
+	{
+		return password;
+	}
+
+	/**
+	 * Get the maximum number of physical connections, idle or in use, held by the pool.
+	 * @return int maximum pool size
+	 */
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the number of idle connections which the pool tries to keep open at all times.
+	 * @return int minimum number of idle connections
+	 */
+	public int getMinIdle()
+	{
+		return minIdle;
+	}
+
+	public void setMinIdle(int minIdle)
+	{
+		this.minIdle = minIdle;
+	}
+
+	/**
+	 * Get the time a caller will wait for a connection when the pool is exhausted.
+	 * @return long timeout in milliseconds
+	 */
+	public long getBorrowTimeoutMillis()
+	{
+		return borrowTimeoutMillis;
+	}
+
+	public void setBorrowTimeoutMillis(long borrowTimeoutMillis)
+	{
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+	}
+
+	/**
+	 * Get the time after which an unused connection above the minimum idle count is closed.
+	 * @return long idle timeout in milliseconds
+	 */
+	public long getIdleTimeoutMillis()
+	{
+		return idleTimeoutMillis;
+	}
+
+	public void setIdleTimeoutMillis(long idleTimeoutMillis)
+	{
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Get the time a connection may sit idle before it is validated again on borrow.
+	 * @return long validation interval in milliseconds
+	 */
+	public long getValidationIntervalMillis()
+	{
+		return validationIntervalMillis;
+	}
+
+	public void setValidationIntervalMillis(long validationIntervalMillis)
+	{
+		this.validationIntervalMillis = validationIntervalMillis;
+	}
+
+	public int getValidationTimeoutSeconds()
+	{
+		return validationTimeoutSeconds;
+	}
+
+	public void setValidationTimeoutSeconds(int validationTimeoutSeconds)
+	{
+		this.validationTimeoutSeconds = validationTimeoutSeconds;
+	}
+
+	/**
+	 * Get the time a connection may be held by a caller before it is reported as a possible leak.
+	 * @return long leak detection threshold in milliseconds
+	 */
+	public long getLeakThresholdMillis()
+	{
+		return leakThresholdMillis;
+	}
+
+	public void setLeakThresholdMillis(long leakThresholdMillis)
+	{
+		this.leakThresholdMillis = leakThresholdMillis;
+	}
+
+	/**
+	 * Get the interval between runs of the background task which evicts idle connections,
+	 * tops up the minimum idle count and checks for leaks.
+	 * @return long housekeeping interval in milliseconds
+	 */
+	public long getHousekeepingIntervalMillis()
+	{
+		return housekeepingIntervalMillis;
+	}
+
+	public void setHousekeepingIntervalMillis(long housekeepingIntervalMillis)
+	{
+		this.housekeepingIntervalMillis = housekeepingIntervalMillis;
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * PooledConnection.java
+ *
+ * Wraps a physical JDBC Connection which is owned by a ConnectionPool. Tracks when the connection
+ * was last used and, while it is borrowed, when and by whom it was borrowed so that leaks can be
+ * reported.
+ *
+ * Each time the connection is borrowed a new proxy implementing java.sql.Connection is handed out.
+ * Calling close() on the proxy returns the physical connection to the pool rather than closing it.
+ * Any further use of that proxy fails, so a caller which closes twice or keeps a stale reference
+ * can never interfere with the next borrower.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+class PooledConnection
+{
+	private final ConnectionPool pool;
+	private final Connection physicalConnection;
+	private final long createdMillis;
+	private volatile long lastUsedMillis;
+	private volatile long borrowedMillis;
+	private volatile Throwable borrowSite;
+	private volatile boolean leakReported;
+	private volatile boolean broken;
+
+	PooledConnection(ConnectionPool pool, Connection physicalConnection)
+	{
+		this.pool = pool;
+		this.physicalConnection = physicalConnection;
+		createdMillis = System.currentTimeMillis();
+		lastUsedMillis = createdMillis;
+	}
+
+	/**
+	 * Marks this connection as borrowed and creates the proxy handed to the caller.
+	 * @param recordSite boolean true if the stack of the borrowing thread should be kept for leak reports
+	 * @return Connection proxy which returns this connection to the pool when closed
+	 */
+	Connection lease(boolean recordSite)
+	{
+		borrowedMillis = System.currentTimeMillis();
+		borrowSite = recordSite ? new Throwable("Connection borrowed here") : null;
+		leakReported = false;
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new LeaseHandler());
+	}
+
+	/**
+	 * Marks this connection as returned and updates the last used time.
+	 */
+	void markReturned()
+	{
+		lastUsedMillis = System.currentTimeMillis();
+		borrowedMillis = 0;
+		borrowSite = null;
+	}
+
+	Connection getPhysicalConnection()
+	{
+		return physicalConnection;
+	}
+
+	long getCreatedMillis()
+	{
+		return createdMillis;
+	}
+
+	long getLastUsedMillis()
+	{
+		return lastUsedMillis;
+	}
+
+	long getBorrowedMillis()
+	{
+		return borrowedMillis;
+	}
+
+	Throwable getBorrowSite()
+	{
+		return borrowSite;
+	}
+
+	boolean isLeakReported()
+	{
+		return leakReported;
+	}
+
+	void setLeakReported()
+	{
+		leakReported = true;
+	}
+
+	/**
+	 * Determine if a SQLException was raised while this connection was borrowed which
+	 * indicates the physical connection can no longer be used.
+	 * @return boolean true if the connection should be discarded rather than reused
+	 */
+	boolean isBroken()
+	{
+		return broken;
+	}
+
+	/**
+	 * Closes the physical connection, ignoring any error since the connection is being discarded.
+	 */
+	void closePhysical()
+	{
+		try
+		{
+			physicalConnection.close();
+		}
+		catch (SQLException closeEx)
+		{
+			System.err.println("Error closing pooled database connection: " + closeEx.getMessage());
+		}
+	}
+
+
+	/**
+	 * InvocationHandler for a single lease of the physical connection. Intercepts close() and
+	 * isClosed(), and forwards every other call to the physical connection while the lease is open.
+	 */
+	private class LeaseHandler implements InvocationHandler
+	{
+		private boolean returned = false;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			String name = method.getName();
+
+			if (name.equals("close"))
+			{
+				/*Closing twice is a no-op, as required by the Connection contract */
+				if (!returned)
+				{
+					returned = true;
+					pool.release(PooledConnection.this);
+				}
+				return null;
+			}
+
+			if (name.equals("isClosed"))
+			{
+				return returned || physicalConnection.isClosed();
+			}
+
+			if (name.equals("equals"))
+			{
+				return proxy == args[0];
+			}
+
+			if (name.equals("hashCode"))
+			{
+				return System.identityHashCode(proxy);
+			}
+
+			if (returned)
+			{
+				throw new SQLException("The connection has already been returned to the pool.");
+			}
+
+			try
+			{
+				return method.invoke(physicalConnection, args);
+			}
+			catch (InvocationTargetException invocationEx)
+			{
+				Throwable cause = invocationEx.getCause();
+
+				/*SQL state class 08 indicates a connection exception, so the physical connection is unusable. */
+				if (cause instanceof SQLException)
+				{
+					String state = ((SQLException) cause).getSQLState();
+					if (state != null && state.startsWith("08"))
+						broken = true;
+				}
+				throw cause;
+			}
+		}
+	}
+}
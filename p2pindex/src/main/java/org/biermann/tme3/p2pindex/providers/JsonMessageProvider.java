@@ -0,0 +1,467 @@
+/**
+ * JsonMessageProvider.java
+ *
+ * Reads and writes FileMessage and ErrorMessage as JSON, without JAXB or a JSON library. The message
+ * is encoded directly into a reused WireBuffer, and decoded by a small parser which only creates the
+ * strings of the fields. Fields which are null are omitted, as they are in XML. For example:
+ *   {"fileName":"a.iso","hostAddress":"10.0.0.5","contentHash":"9f86...","fileSize":1048576}
+ *   {"message":"The file a.iso is not shared by any host.","statusCode":404}
+ *
+ * Unknown fields are ignored when reading, so fields may be added in later versions.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.providers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import org.biermann.tme3.p2pindex.messages.ErrorMessage;
+import org.biermann.tme3.p2pindex.messages.FileMessage;
+
+@Provider
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class JsonMessageProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object>
+{
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+	static boolean isSupported(Class<?> type)
+	{
+		return type == FileMessage.class || type == ErrorMessage.class;
+	}
+
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+	{
+		return isSupported(type);
+	}
+
+
+	@Override
+	public long getSize(Object message, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+	{
+		return -1;
+	}
+
+
+	@Override
+	public void writeTo(Object message, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException
+	{
+		WireBuffer buffer = WireBuffer.get();
+		buffer.writeByte('{');
+		if (message instanceof FileMessage)
+		{
+			FileMessage file = (FileMessage) message;
+			boolean first = writeField(buffer, true, "fileName", file.getFileName());
+			first = writeField(buffer, first, "hostAddress", file.getHostAddress());
+			first = writeField(buffer, first, "contentHash", file.getContentHash());
+			if (file.getFileSize() != null)
+				writeNumber(buffer, first, "fileSize", file.getFileSize());
+		}
+		else
+		{
+			ErrorMessage error = (ErrorMessage) message;
+			boolean first = writeField(buffer, true, "message", error.getMessage());
+			writeNumber(buffer, first, "statusCode", error.getStatusCode());
+		}
+		buffer.writeByte('}');
+		buffer.writeTo(entityStream);
+	}
+
+
+	/**
+	 * Writes a string field, unless the value is null.
+	 * @return boolean true if no field has been written yet
+	 */
+	private static boolean writeField(WireBuffer buffer, boolean first, String name, String value)
+	{
+		if (value == null)
+			return first;
+
+		writeName(buffer, first, name);
+		buffer.writeByte('"');
+		for (int i = 0; i < value.length(); )
+		{
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+			{
+				buffer.writeByte('\\');
+				buffer.writeByte(c);
+				i++;
+			}
+			else if (c < 0x20)
+			{
+				buffer.writeAscii("\\u00");
+				buffer.writeByte(HEX_DIGITS[c >> 4]);
+				buffer.writeByte(HEX_DIGITS[c & 0xF]);
+				i++;
+			}
+			else
+			{
+				i = buffer.writeUtf8Char(value, i);
+			}
+		}
+		buffer.writeByte('"');
+		return false;
+	}
+
+
+	private static boolean writeNumber(WireBuffer buffer, boolean first, String name, long value)
+	{
+		writeName(buffer, first, name);
+		buffer.writeAscii(Long.toString(value));
+		return false;
+	}
+
+
+	private static void writeName(WireBuffer buffer, boolean first, String name)
+	{
+		if (!first)
+			buffer.writeByte(',');
+
+		buffer.writeByte('"');
+		buffer.writeAscii(name);
+		buffer.writeAscii("\":");
+	}
+
+
+	@Override
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+	{
+		return isSupported(type);
+	}
+
+
+	@Override
+	public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException
+	{
+		WireBuffer buffer = WireBuffer.get();
+		try
+		{
+			buffer.readFrom(entityStream);
+			return FileMessage.class.equals(type) ? parseFileMessage(buffer) : parseErrorMessage(buffer);
+		}
+		catch (IllegalArgumentException | ArithmeticException invalidJson)
+		{
+			throw new BadRequestException("Invalid JSON message: " + invalidJson.getMessage());
+		}
+	}
+
+
+	private static FileMessage parseFileMessage(WireBuffer buffer)
+	{
+		FileMessage message = new FileMessage();
+		JsonReader json = new JsonReader(buffer);
+		json.beginObject();
+		while (json.nextField())
+		{
+			if (json.fieldIs("fileName"))
+				message.setFileName(json.readString());
+			else if (json.fieldIs("hostAddress"))
+				message.setHostAddress(json.readString());
+			else if (json.fieldIs("contentHash"))
+				message.setContentHash(json.readString());
+			else if (json.fieldIs("fileSize"))
+				message.setFileSize(json.readLong());
+			else
+				json.skipValue();
+		}
+		json.end();
+		return message;
+	}
+
+
+	private static ErrorMessage parseErrorMessage(WireBuffer buffer)
+	{
+		ErrorMessage message = new ErrorMessage();
+		JsonReader json = new JsonReader(buffer);
+		json.beginObject();
+		while (json.nextField())
+		{
+			if (json.fieldIs("message"))
+			{
+				message.setMessage(json.readString());
+			}
+			else if (json.fieldIs("statusCode"))
+			{
+				Long statusCode = json.readLong();
+				message.setStatusCode((statusCode == null) ? 0 : statusCode.intValue());
+			}
+			else
+			{
+				json.skipValue();
+			}
+		}
+		json.end();
+		return message;
+	}
+
+
+	/**
+	 * Parses a flat JSON object held in a WireBuffer. Nested values are skipped.
+	 */
+	private static final class JsonReader
+	{
+		private final WireBuffer buffer;
+		private final byte[] bytes;
+		private int nameStart, nameEnd;                                    //The name of the current field, unescaped.
+		private boolean first = true;
+
+		JsonReader(WireBuffer buffer)
+		{
+			this.buffer = buffer;
+			this.bytes = buffer.bytes;
+		}
+
+		void beginObject()
+		{
+			expect('{');
+		}
+
+		/**
+		 * Moves to the next field of the object.
+		 * @return boolean false at the end of the object
+		 */
+		boolean nextField()
+		{
+			if (peek() == '}')
+			{
+				buffer.position++;
+				return false;
+			}
+
+			if (!first)
+				expect(',');
+			first = false;
+
+			expect('"');
+			nameStart = buffer.position;
+			int c;
+			while ((c = buffer.readByte()) != '"')
+			{
+				if (c == '\\')
+					buffer.readByte();                                         //Names of known fields have no escapes.
+			}
+			nameEnd = buffer.position - 1;
+			expect(':');
+			return true;
+		}
+
+		/**
+		 * Determines if the current field has the specified ASCII name, without creating a string.
+		 */
+		boolean fieldIs(String name)
+		{
+			if (nameEnd - nameStart != name.length())
+				return false;
+
+			for (int i = 0; i < name.length(); i++)
+			{
+				if (bytes[nameStart + i] != name.charAt(i))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Reads a string or null value.
+		 */
+		String readString()
+		{
+			if (peek() == 'n')
+			{
+				expectLiteral("null");
+				return null;
+			}
+
+			expect('"');
+			int start = buffer.position;
+			boolean escaped = false;
+			int c;
+			while ((c = buffer.readByte()) != '"')
+			{
+				if (c == '\\')
+				{
+					escaped = true;
+					buffer.readByte();
+				}
+			}
+
+			if (!escaped)
+				return new String(bytes, start, buffer.position - 1 - start, StandardCharsets.UTF_8);
+
+			return unescape(start, buffer.position - 1);
+		}
+
+		private String unescape(int start, int end)
+		{
+			StringBuilder value = new StringBuilder(end - start);
+			int runStart = start;
+			for (int i = start; i < end; i++)
+			{
+				if (bytes[i] != '\\')
+					continue;
+
+				value.append(new String(bytes, runStart, i - runStart, StandardCharsets.UTF_8));
+				char escape = (char) bytes[++i];
+				switch (escape)
+				{
+					case 'b': value.append('\b'); break;
+					case 'f': value.append('\f'); break;
+					case 'n': value.append('\n'); break;
+					case 'r': value.append('\r'); break;
+					case 't': value.append('\t'); break;
+					case 'u':
+						if (i + 4 >= end)
+							throw new IllegalArgumentException("Invalid escape in string.");
+						value.append((char) Integer.parseInt(new String(bytes, i + 1, 4, StandardCharsets.US_ASCII), 16));
+						i += 4;
+						break;
+					default: value.append(escape);                         //Quote, backslash or slash.
+				}
+				runStart = i + 1;
+			}
+			value.append(new String(bytes, runStart, end - runStart, StandardCharsets.UTF_8));
+			return value.toString();
+		}
+
+		/**
+		 * Reads an integer or null value.
+		 */
+		Long readLong()
+		{
+			int c = peek();
+			if (c == 'n')
+			{
+				expectLiteral("null");
+				return null;
+			}
+
+			boolean negative = (c == '-');
+			if (negative)
+				buffer.position++;
+
+			long value = 0;
+			int digits = 0;
+			while (buffer.hasRemaining() && bytes[buffer.position] >= '0' && bytes[buffer.position] <= '9')
+			{
+				value = Math.multiplyExact(value, 10) + (bytes[buffer.position++] - '0');
+				digits++;
+			}
+
+			if (digits == 0)
+				throw new IllegalArgumentException("Expected a number.");
+
+			return negative ? -value : value;
+		}
+
+		/**
+		 * Skips a value of any type, including nested objects and arrays.
+		 */
+		void skipValue()
+		{
+			int c = peek();
+			if (c == '"')
+			{
+				readString();
+				return;
+			}
+
+			if (c != '{' && c != '[')
+			{
+				/*A number or literal ends at the next delimiter */
+				while (buffer.hasRemaining() && ",}] \t\r\n".indexOf(bytes[buffer.position]) < 0)
+				{
+					buffer.position++;
+				}
+				return;
+			}
+
+			int depth = 0;
+			do
+			{
+				c = buffer.readByte();
+				if (c == '"')
+				{
+					buffer.position--;
+					readString();
+				}
+				else if (c == '{' || c == '[')
+				{
+					depth++;
+				}
+				else if (c == '}' || c == ']')
+				{
+					depth--;
+				}
+			}
+			while (depth > 0);
+		}
+
+		/**
+		 * Checks that nothing but whitespace follows the object.
+		 */
+		void end()
+		{
+			skipWhitespace();
+			if (buffer.hasRemaining())
+				throw new IllegalArgumentException("Unexpected data after the object.");
+		}
+
+		private int peek()
+		{
+			skipWhitespace();
+			if (!buffer.hasRemaining())
+				throw new IllegalArgumentException("The message ends unexpectedly.");
+
+			return bytes[buffer.position];
+		}
+
+		private void expect(char expected)
+		{
+			if (peek() != expected)
+				throw new IllegalArgumentException("Expected '" + expected + "' at offset " + buffer.position + ".");
+
+			buffer.position++;
+		}
+
+		private void expectLiteral(String literal)
+		{
+			for (int i = 0; i < literal.length(); i++)
+			{
+				if (buffer.readByte() != literal.charAt(i))
+					throw new IllegalArgumentException("Expected " + literal + ".");
+			}
+		}
+
+		private void skipWhitespace()
+		{
+			while (buffer.hasRemaining())
+			{
+				byte c = bytes[buffer.position];
+				if (c != ' ' && c != '\t' && c != '\r' && c != '\n')
+					return;
+
+				buffer.position++;
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * WireBuffer.java
+ *
+ * A growable byte array used by the JSON and binary message providers to encode a message before
+ * it is written, and to hold a message while it is decoded. Each thread reuses one buffer, so
+ * encoding and decoding a message allocates little more than the resulting strings.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.providers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+final class WireBuffer
+{
+	public static final int MAX_MESSAGE_BYTES = 64 * 1024;                 //Longest message accepted.
+	private static final int INITIAL_BYTES = 512;
+	private static final int MAX_RETAINED_BYTES = 8 * 1024;               //Larger buffers are not kept for reuse.
+	private static final ThreadLocal<WireBuffer> BUFFERS = ThreadLocal.withInitial(WireBuffer::new);
+
+	byte[] bytes = new byte[INITIAL_BYTES];
+	int length;                                                          //Bytes written, or bytes available to read.
+	int position;                                                        //Next byte to read.
+
+
+	/**
+	 * Get the empty buffer of the current thread.
+	 * @return WireBuffer which must not be used after the current message has been encoded or decoded
+	 */
+	static WireBuffer get()
+	{
+		WireBuffer buffer = BUFFERS.get();
+		if (buffer.bytes.length > MAX_RETAINED_BYTES)
+			buffer.bytes = new byte[INITIAL_BYTES];
+
+		buffer.length = 0;
+		buffer.position = 0;
+		return buffer;
+	}
+
+
+	private void ensure(int more)
+	{
+		if (length + more > bytes.length)
+		{
+			byte[] larger = new byte[Math.max(bytes.length * 2, length + more)];
+			System.arraycopy(bytes, 0, larger, 0, length);
+			bytes = larger;
+		}
+	}
+
+
+	void writeByte(int b)
+	{
+		ensure(1);
+		bytes[length++] = (byte) b;
+	}
+
+
+	/**
+	 * Writes a string which only contains ASCII characters, such as a field name.
+	 */
+	void writeAscii(String value)
+	{
+		ensure(value.length());
+		for (int i = 0; i < value.length(); i++)
+		{
+			bytes[length++] = (byte) value.charAt(i);
+		}
+	}
+
+
+	/**
+	 * Writes a character as UTF-8. A surrogate pair is written as one code point.
+	 * @return int index of the next character of the string
+	 */
+	int writeUtf8Char(String value, int index)
+	{
+		char c = value.charAt(index);
+		if (c < 0x80)
+		{
+			writeByte(c);
+			return index + 1;
+		}
+
+		ensure(4);
+		if (c < 0x800)
+		{
+			bytes[length++] = (byte) (0xC0 | (c >> 6));
+			bytes[length++] = (byte) (0x80 | (c & 0x3F));
+			return index + 1;
+		}
+
+		if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1)))
+		{
+			int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+			bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+			bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+			bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+			bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+			return index + 2;
+		}
+
+		if (Character.isSurrogate(c))
+			c = '?';                                                       //An unpaired surrogate cannot be encoded.
+
+		bytes[length++] = (byte) (0xE0 | (c >> 12));
+		bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+		bytes[length++] = (byte) (0x80 | (c & 0x3F));
+		return index + 1;
+	}
+
+
+	/**
+	 * Writes a string as its length in bytes, as a varint, followed by its UTF-8 bytes.
+	 */
+	void writeString(String value)
+	{
+		writeVarLong(utf8Length(value));
+		for (int i = 0; i < value.length(); )
+		{
+			i = writeUtf8Char(value, i);
+		}
+	}
+
+
+	/**
+	 * Get the number of bytes written by writeUtf8Char() for every character of the string.
+	 */
+	static int utf8Length(String value)
+	{
+		int byteCount = 0;
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c < 0x80)
+				byteCount += 1;
+			else if (c < 0x800)
+				byteCount += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1)))
+			{
+				byteCount += 4;
+				i++;                                                         //The pair is one code point.
+			}
+			else
+				byteCount += 3;
+		}
+		return byteCount;
+	}
+
+
+	/**
+	 * Writes an unsigned value using 7 bits per byte, least significant first.
+	 */
+	void writeVarLong(long value)
+	{
+		ensure(10);
+		while ((value & ~0x7FL) != 0)
+		{
+			bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[length++] = (byte) value;
+	}
+
+
+	void writeTo(OutputStream outStream) throws IOException
+	{
+		outStream.write(bytes, 0, length);
+	}
+
+
+	/**
+	 * Reads the whole stream into the buffer.
+	 * @throws IllegalArgumentException if the stream holds more than MAX_MESSAGE_BYTES
+	 */
+	void readFrom(InputStream inStream) throws IOException
+	{
+		int read;
+		while ((read = inStream.read(bytes, length, bytes.length - length)) >= 0)
+		{
+			length += read;
+			if (length > MAX_MESSAGE_BYTES)
+				throw new IllegalArgumentException("The message is longer than " + MAX_MESSAGE_BYTES + " bytes.");
+
+			ensure(1);
+		}
+	}
+
+
+	boolean hasRemaining()
+	{
+		return position < length;
+	}
+
+
+	int readByte()
+	{
+		if (position >= length)
+			throw new IllegalArgumentException("The message ends unexpectedly.");
+
+		return bytes[position++] & 0xFF;
+	}
+
+
+	long readVarLong()
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("A number in the message is too long.");
+	}
+
+
+	/**
+	 * Reads a string written by writeString().
+	 */
+	String readString()
+	{
+		long byteCount = readVarLong();
+		if (byteCount < 0 || byteCount > length - position)
+			throw new IllegalArgumentException("The message ends unexpectedly.");
+
+		String value = new String(bytes, position, (int) byteCount, StandardCharsets.UTF_8);
+		position += (int) byteCount;
+		return value;
+	}
+}
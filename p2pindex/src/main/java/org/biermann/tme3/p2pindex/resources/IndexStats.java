@@ -0,0 +1,68 @@
+/**
+ *  Provides read-only REST resources which report the internal metrics of the index service, 
+ *  allowing operators to monitor and size its resources.
+ *  
+ *  @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Singleton;
+import javax.ws.rs.*;
+import javax.ws.rs.core.*;
+
+import org.biermann.tme3.p2pindex.cache.LookupCache;
+import org.biermann.tme3.p2pindex.controllers.IndexServiceController;
+import org.biermann.tme3.p2pindex.messages.CacheStatsListMessage;
+import org.biermann.tme3.p2pindex.messages.CacheStatsMessage;
+import org.biermann.tme3.p2pindex.messages.LeaseStatsMessage;
+import org.biermann.tme3.p2pindex.messages.PoolStatsMessage;
+
+@Produces(MediaType.APPLICATION_XML)
+@Path("/stats")
+@Singleton
+public class IndexStats 
+{
+	private IndexServiceController controller;                                    //Controller which owns the monitored resources.
+	
+	public IndexStats()
+	{
+		controller = IndexServiceController.getInstance();
+	}
+	
+	
+	@GET
+	@Path("/pool")
+	public Response getPoolStats()
+	{
+		/*Return a "200 OK" response containing a snapshot of the connection pool metrics */
+		return Response.ok(new PoolStatsMessage(controller.getConnectionPool())).build();
+	}
+	
+	
+	@GET
+	@Path("/cache")
+	public Response getCacheStats()
+	{
+		List<CacheStatsMessage> caches = new ArrayList<>();
+		for (LookupCache<?, ?> cache : controller.getLookupCaches())
+		{
+			caches.add(new CacheStatsMessage(cache));
+		}
+		
+		/*Return a "200 OK" response containing the statistics of every lookup cache */
+		return Response.ok(new CacheStatsListMessage(caches)).build();
+	}
+	
+	
+	@GET
+	@Path("/leases")
+	public Response getLeaseStats()
+	{
+		/*Return a "200 OK" response containing a snapshot of the peer lease metrics */
+		return Response.ok(new LeaseStatsMessage(controller.getPeerLeases())).build();
+	}
+	
+}
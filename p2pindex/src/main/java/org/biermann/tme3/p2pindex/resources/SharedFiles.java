@@ -1,102 +1,378 @@
 /**
  *  Provides a simple REST API to clients to support file sharing. Sharing peers may register a new file for sharing,
- *  unregister a shared file, and perform host address lookup for a shared file. 
+ *  unregister a shared file, and perform host address lookup for a shared file. The lookup may return a 
+ *  single host, or every host sharing the file so that it can be downloaded from several hosts at once.
+ *  Hosts are chosen and ranked by their load, as reported with their heartbeats.
  *  
  *  All operations are mapped to REST resource paths. Clients must use the appropriate HTTP method for
  *  each operation.
  *  
+ *  Messages are XML by default. The operations on a single file also accept and return FileMessage
+ *  (and ErrorMessage) as JSON or in a compact binary format, chosen by the Content-Type and Accept
+ *  headers. These are written without JAXB, see the providers package.
+ *  
+ *  A single instance of this resource serves all requests. It uses the application-wide 
+ *  IndexServiceController, which borrows a pooled database connection for each operation.
+ *  
+ *  The operations on a single file suspend the request and run on the DatabaseExecutor of the
+ *  controller, so the threads of the web server keep accepting requests while the database is slow.
+ *  If too many operations are waiting, or an operation does not complete in time, the request is
+ *  answered with "503 Service Unavailable" and a Retry-After header.
+ *  
+ *  Sharing a file grants the peer a lease, which it renews by posting a heartbeat to 
+ *  /sharedfiles/_index/heartbeat at the interval returned. Peers whose lease expires are no longer returned by lookups, and are deleted.
+ *  
+ *  Files may be searched for by the words in their names, e.g. GET /sharedfiles?q=ubuntu+desktop.
+ *  Searches are answered from memory on the thread of the web server, and return one page of names.
+ *  
+ *  Operations on the index as a whole, rather than on one file, are mapped below /sharedfiles/_index. 
+ *  Their paths hold two segments or more, while the name in a lookup is a single segment, so no file
+ *  name is shadowed by them, even a file named e.g. "listing".
+ *  
+ *  The catalog may be listed a page at a time, all files at /sharedfiles/_index/listing, the files of a 
+ *  peer at /sharedfiles/_index/listing/peeraddress={peeraddress}, and the peers sharing a file at
+ *  /sharedfiles/_index/listing/filename={filename}. Each page ends with the key to pass as "after" to get
+ *  the next page, unless it is the last. The rows are written as they are read from the database,
+ *  so a page is streamed rather than built in memory.
+ *  
  *  @author Oloff Biermann
  */
 package org.biermann.tme3.p2pindex.resources;
 
+import java.io.IOException;
 import java.net.URI;
 
+import javax.inject.Singleton;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.*;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
+import org.biermann.tme3.p2pindex.controllers.DatabaseExecutor;
 import org.biermann.tme3.p2pindex.controllers.IndexServiceController;
+import org.biermann.tme3.p2pindex.controllers.IndexServiceController.ListingWriter;
+import org.biermann.tme3.p2pindex.messages.BatchResultMessage;
 import org.biermann.tme3.p2pindex.messages.FileMessage;
+import org.biermann.tme3.p2pindex.messages.FileMessageList;
+import org.biermann.tme3.p2pindex.messages.HeartbeatMessage;
+import org.biermann.tme3.p2pindex.messages.PeerListMessage;
+import org.biermann.tme3.p2pindex.providers.BinaryMessageProvider;
 
 @Consumes(MediaType.APPLICATION_XML)
 @Produces(MediaType.APPLICATION_XML)
 @Path("/sharedfiles")
+@Singleton
 public class SharedFiles 
 {
+	public static final int MAX_HEARTBEAT_HOSTS = 1000;                          //Most host addresses renewed by one heartbeat.
+	public static final int MAX_SEARCH_LIMIT = 100;                              //Most names returned by one search.
+	public static final int MAX_SEARCH_WINDOW = 1000;                            //Most ranked names a search may page through.
+	public static final int MAX_QUERY_LENGTH = 256;
+	public static final int MAX_LISTING_LIMIT = 100000;                          //Most rows written by one page of a listing.
+	
+	public static final String INDEX_PATH = "/_index";                           //Prefix of the operations on the whole index.
+	
+	/*Each listed file is written as a FileMessage, so clients read the rows as they read single files. */
+	private static final JAXBContext LISTING_CONTEXT = createListingContext();
+	private static final XMLOutputFactory LISTING_OUTPUT = XMLOutputFactory.newInstance();
+	
+	/*Lists one page of rows with the writer, see IndexServiceController.listFiles() */
+	@FunctionalInterface
+	private interface ListingSource
+	{
+		int list(ListingWriter writer) throws IOException;
+	}
 
 	private IndexServiceController controller;                                    //Controller for interacting with data classes.
+	private DatabaseExecutor databaseExecutor;                                    //Runs the operations of suspended requests.
 		
 	public SharedFiles()
 	{
-		controller = new IndexServiceController();                               //Initialize the controller.
+		controller = IndexServiceController.getInstance();                       //Get the shared controller.
+		databaseExecutor = controller.getDatabaseExecutor();
+	}
+	
+	
+	@GET
+	public Response searchFiles(@QueryParam("q") String query, @QueryParam("offset") @DefaultValue("0") int offset,
+			@QueryParam("limit") @DefaultValue("20") int limit)
+	{
+		if (query == null || query.trim().isEmpty() || query.length() > MAX_QUERY_LENGTH)
+		{
+			throw new BadRequestException("The query must contain between 1 and " + MAX_QUERY_LENGTH + " characters.");
+		}
+		if (offset < 0 || limit < 1 || limit > MAX_SEARCH_LIMIT || offset + limit > MAX_SEARCH_WINDOW)
+		{
+			throw new BadRequestException("The limit must be between 1 and " + MAX_SEARCH_LIMIT 
+					+ ", and the offset and limit may not exceed " + MAX_SEARCH_WINDOW + " together.");
+		}
+		
+		/* Return a "200 OK" response containing the matching names, best first */
+		return Response.ok(controller.search(query, offset, limit)).build();
+	}
+	
+	
+	@GET
+	@Path(INDEX_PATH + "/listing")
+	public Response listFiles(@QueryParam("after") @DefaultValue("0") int after, 
+			@QueryParam("limit") @DefaultValue("1000") int limit)
+	{
+		requireListingPage(after, limit);
+		return listing(writer -> controller.listFiles(after, limit, writer));
+	}
+	
+	
+	@GET
+	@Path(INDEX_PATH + "/listing/peeraddress={peeraddress}")
+	public Response listPeerFiles(@PathParam("peeraddress") String peerAddress, 
+			@QueryParam("after") @DefaultValue("0") int after, @QueryParam("limit") @DefaultValue("1000") int limit)
+	{
+		requireListingPage(after, limit);
+		return listing(writer -> controller.listPeerFiles(peerAddress, after, limit, writer));
+	}
+	
+	
+	@GET
+	@Path(INDEX_PATH + "/listing/filename={filename}")
+	public Response listFilePeers(@PathParam("filename") String fileName, 
+			@QueryParam("after") @DefaultValue("0") int after, @QueryParam("limit") @DefaultValue("1000") int limit)
+	{
+		requireListingPage(after, limit);
+		return listing(writer -> controller.listFilePeers(fileName, after, limit, writer));
 	}
 	
 	
 	@GET
 	@Path("/{filename}")
-	public Response getSharingPeer(@PathParam("filename") String fileName, @Context UriInfo uriInfo)
+	@Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, BinaryMessageProvider.APPLICATION_P2P_BINARY})
+	public void getSharingPeer(@PathParam("filename") String fileName, @Context UriInfo uriInfo, 
+			@Suspended AsyncResponse asyncResponse)
+	{
+		UriBuilder baseUri = uriInfo.getBaseUriBuilder();                        //UriInfo is only available on the request thread.
+		databaseExecutor.submit(asyncResponse, () -> {
+			FileMessage message = new FileMessage(fileName, controller.getPeerHost(fileName));
+			
+			/* Return a "200 OK" response containing the FileMessage and the URL for accessing
+			 * the resource.
+			 */
+			return Response.ok(message)
+					.location(createSharedFileURI(fileName, message.getHostAddress(), baseUri))
+					.build();
+		});
+	}
+	
+	
+	@GET
+	@Path("/{filename}/peers")
+	public Response getSharingPeers(@PathParam("filename") String fileName)
 	{
-		FileMessage message = new FileMessage(fileName, controller.getPeerHost(fileName));
+		/*Throws a FileNotSharedException if no host shares the file */
+		PeerListMessage message = controller.getPeerList(fileName);
 		
-		/* Return a "200 OK" response containing the FileMessage and the URL for accessing
-		 * the resource.
-		 */
-		return Response.ok(message)
-				.location(createSharedFileURI(fileName, message.getHostAddress(), uriInfo))
-				.build();
+		/* Return a "200 OK" response containing the address of every host sharing the file, in ranked order */
+		return Response.ok(message).build();
 	}
 	
 	
 	@GET
 	@Path("/filename={filename}/peeraddress={peeraddress}")
-	public Response checkSharingPeer(@PathParam("filename") String fileName, @PathParam("peeraddress") String peerAddress, @Context UriInfo uriInfo)
+	@Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, BinaryMessageProvider.APPLICATION_P2P_BINARY})
+	public void checkSharingPeer(@PathParam("filename") String fileName, @PathParam("peeraddress") String peerAddress, 
+			@Context UriInfo uriInfo, @Suspended AsyncResponse asyncResponse)
 	{
-		controller.affirmPeerSharing(fileName, peerAddress);                     //Throws a FileNotSharedException if file not shared.
-		FileMessage message = new FileMessage(fileName, peerAddress);
-		
-		/* Return a "200 OK" response containing the FileMessage and the URL for accessing
-		 * the resource. This URL should be the same as the one mapped to this method, including
-		 * the path params.
-		 */
-		return Response.ok(message)
-				.location(createSharedFileURI(fileName, peerAddress, uriInfo))
-				.build();
+		UriBuilder baseUri = uriInfo.getBaseUriBuilder();
+		databaseExecutor.submit(asyncResponse, () -> {
+			controller.affirmPeerSharing(fileName, peerAddress);                 //Throws a FileNotSharedException if file not shared.
+			FileMessage message = new FileMessage(fileName, peerAddress);
+			
+			/* Return a "200 OK" response containing the FileMessage and the URL for accessing
+			 * the resource. This URL should be the same as the one mapped to this method, including
+			 * the path params.
+			 */
+			return Response.ok(message)
+					.location(createSharedFileURI(fileName, peerAddress, baseUri))
+					.build();
+		});
 	}
 	
 	
 	@POST
-	public Response shareFile(FileMessage clientMessage, @Context UriInfo uriInfo)
+	@Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, BinaryMessageProvider.APPLICATION_P2P_BINARY})
+	@Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, BinaryMessageProvider.APPLICATION_P2P_BINARY})
+	public void shareFile(FileMessage clientMessage, @Context UriInfo uriInfo, @Suspended AsyncResponse asyncResponse)
 	{
 		String fileName = clientMessage.getFileName();
 		String hostAddress = clientMessage.getHostAddress();
+		if (!IndexServiceController.isValidContent(clientMessage.getContentHash(), clientMessage.getFileSize()))
+		{
+			throw new BadRequestException("The content hash must be 64 hexadecimal digits and be sent with the file size.");
+		}
 		
-		/*Attempt to register file in db. Throws a FileAlreadySharedException if the file is already shared. */
-		controller.registerFile(fileName, hostAddress);           
-		
-		/*Return a "201 Created" response with the location header set to the URL that
-		 * can be used to access the resource.
-		 */
-		return Response.created(createSharedFileURI(fileName, hostAddress, uriInfo)).build();
+		UriBuilder baseUri = uriInfo.getBaseUriBuilder();
+		databaseExecutor.submit(asyncResponse, () -> {
+			/*Attempt to register file in db. Throws a FileAlreadySharedException if the file is already shared. */
+			controller.registerFile(fileName, hostAddress, clientMessage.getContentHash(), clientMessage.getFileSize());           
+			
+			/*Return a "201 Created" response with the location header set to the URL that
+			 * can be used to access the resource.
+			 */
+			return Response.created(createSharedFileURI(fileName, hostAddress, baseUri)).build();
+		});
 	}
 	
 	
 	@DELETE
 	@Path("/filename={filename}/peeraddress={peeraddress}")
-	public Response unshareFile(@PathParam("filename") String fileName, @PathParam("peeraddress") String peerAddress)
+	@Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, BinaryMessageProvider.APPLICATION_P2P_BINARY})
+	public void unshareFile(@PathParam("filename") String fileName, @PathParam("peeraddress") String peerAddress, 
+			@Suspended AsyncResponse asyncResponse)
+	{
+		databaseExecutor.submit(asyncResponse, () -> {
+			/*Attempt to deregister file by removing database record. Throws a FileNotSharedException if the file
+			 * is not shared by the specified peer.
+			 */
+			controller.deregisterFile(fileName, peerAddress);                    
+			
+			/*Return a "204 No Content" response on succesful deregistration */
+			return Response.noContent().build();
+		});
+	}
+	
+	
+	@POST
+	@Path(INDEX_PATH + "/batch")
+	public Response shareFiles(FileMessageList clientMessage)
+	{
+		/*Register all files in one transaction. Files which are already shared are reported in the
+		 * result of the corresponding item rather than failing the whole request. */
+		requireFiles(clientMessage);
+		BatchResultMessage result = new BatchResultMessage(controller.registerFiles(clientMessage.getFiles()));
+		
+		/*Return a "200 OK" response containing the outcome of each item */
+		return Response.ok(result).build();
+	}
+	
+	
+	@DELETE
+	@Path(INDEX_PATH + "/batch")
+	public Response unshareFiles(FileMessageList clientMessage)
+	{
+		/*Deregister all files in one transaction. Files which are not shared by the specified peer
+		 * are reported in the result of the corresponding item. */
+		requireFiles(clientMessage);
+		BatchResultMessage result = new BatchResultMessage(controller.deregisterFiles(clientMessage.getFiles()));
+		
+		/*Return a "200 OK" response containing the outcome of each item */
+		return Response.ok(result).build();
+	}
+	
+	
+	@POST
+	@Path(INDEX_PATH + "/heartbeat")
+	public Response renewLeases(HeartbeatMessage clientMessage)
+	{
+		if (clientMessage == null || clientMessage.getHostAddresses() == null || clientMessage.getHostAddresses().isEmpty()
+				|| clientMessage.getHostAddresses().size() > MAX_HEARTBEAT_HOSTS)
+		{
+			throw new BadRequestException("The request must contain between 1 and " + MAX_HEARTBEAT_HOSTS + " host addresses.");
+		}
+		
+		/*Renewals are written to the database in the background, so the heartbeat is answered on this thread.
+		 * Return a "200 OK" response containing the lease and the addresses which must share their files again. */
+		return Response.ok(controller.renewLeases(clientMessage)).build();
+	}
+	
+	
+	private static void requireListingPage(int after, int limit)
+	{
+		if (after < 0 || limit < 1 || limit > MAX_LISTING_LIMIT)
+		{
+			throw new BadRequestException("The key must not be negative, and the limit must be between 1 and " 
+					+ MAX_LISTING_LIMIT + ".");
+		}
+	}
+	
+	
+	/**
+	 * Creates a response which writes a page of a listing as it is read. The body is written after
+	 * this method returns, without a length, so it is sent with chunked encoding. A failure while 
+	 * writing aborts the response, which the client sees as a document without its closing tag.
+	 */
+	private static Response listing(ListingSource source)
 	{
-		/*Attempt to deregister file by removing database record. Throws a FileNotSharedException if the file
-		 * is not shared by the specified peer.
-		 */
-		controller.deregisterFile(fileName, peerAddress);                    
+		StreamingOutput body = stream -> {
+			try
+			{
+				XMLStreamWriter xml = LISTING_OUTPUT.createXMLStreamWriter(stream, "UTF-8");
+				Marshaller marshaller = LISTING_CONTEXT.createMarshaller();
+				marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);          //No XML declaration for each row.
+				
+				xml.writeStartDocument("UTF-8", "1.0");
+				xml.writeStartElement("fileListing");
+				int next = source.list(file -> {
+					try
+					{
+						marshaller.marshal(file, xml);
+					}
+					catch (JAXBException ex)
+					{
+						throw new IOException("A listed file could not be written: " + ex.getMessage(), ex);
+					}
+				});
+				
+				if (next >= 0)
+				{
+					xml.writeStartElement("next");
+					xml.writeCharacters(Integer.toString(next));
+					xml.writeEndElement();
+				}
+				xml.writeEndElement();
+				xml.writeEndDocument();
+				xml.flush();
+			}
+			catch (XMLStreamException | JAXBException ex)
+			{
+				throw new IOException("The listing could not be written: " + ex.getMessage(), ex);
+			}
+		};
 		
-		/*Return a "204 No Content" response on succesful deregistration */
-		return Response.noContent().build();
+		/* Return a "200 OK" response, whose rows are written as they are read from the database */
+		return Response.ok(body, MediaType.APPLICATION_XML).build();
+	}
+	
+	
+	private static JAXBContext createListingContext()
+	{
+		try
+		{
+			return JAXBContext.newInstance(FileMessage.class);
+		}
+		catch (JAXBException ex)
+		{
+			throw new RuntimeException("Unable to create the JAXB context for listings: " + ex.getMessage());
+		}
+	}
+	
+	
+	private static void requireFiles(FileMessageList clientMessage)
+	{
+		if (clientMessage == null || clientMessage.getFiles() == null)
+		{
+			throw new BadRequestException("The request must contain a list of files.");
+		}
 	}
 	
 	
-	private static URI createSharedFileURI(String fileName, String peerAddress, UriInfo uriContext)
+	private static URI createSharedFileURI(String fileName, String peerAddress, UriBuilder baseUri)
 	{
 		/*Return a URI constructed starting with the base URL for accessing services on the server. */
-		return uriContext.getBaseUriBuilder()
+		return baseUri
 				.path(SharedFiles.class)                                   //Add path element for accessing resources in this class
 				.path(SharedFiles.class, "checkSharingPeer")               //Add specific path mapped to the checkSharingPeer() method
 				.resolveTemplate("filename", fileName)                     //Resolve the filename path param required by checkSharingPeer()
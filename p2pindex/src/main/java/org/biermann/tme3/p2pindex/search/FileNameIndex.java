@@ -0,0 +1,718 @@
+/**
+ * FileNameIndex.java
+ *
+ * An in-memory search index over the names of the shared files, so that peers can find files
+ * without knowing their exact names. A name is split into tokens at every character which is not a
+ * letter or digit, after being normalized as the database compares names (see FileNameKeys), so
+ * "Ubuntu-24.04-Desktop.iso" has the tokens "ubuntu", "24", "04", "desktop" and "iso".
+ *
+ * The index holds:
+ * 1) A TokenTrie mapping each token to an id, used to find the tokens starting with a query term.
+ * 2) An inverted index holding, for each token, the sorted ids of the names containing it.
+ * 3) For each name, its UTF-8 bytes, the ids of its tokens, and the number of shares of the name.
+ * 4) A hash table from each normalized name to its id, used by add() and remove().
+ *
+ * A query matches the names which contain, for each of its terms, a token starting with the term.
+ * The candidates are read from the inverted index of the term with the fewest postings, and the
+ * other terms are checked against the tokens of each candidate, so no posting lists are merged.
+ * At most MAX_PREFIX_TOKENS tokens are used for each term and MAX_SCANNED_NAMES candidates are
+ * checked, which bounds the work of a query regardless of the number of names. A result which may
+ * have missed matches because of these bounds is reported as incomplete.
+ *
+ * Matches are ranked by the number of terms matching a whole token rather than only its start,
+ * then by whether the first token of the name matches the first term, then by the number of shares
+ * of the name, and then by the number of tokens in the name, so more specific names come first.
+ *
+ * Names are added and removed as files are shared and unshared. Reads share a read lock, and
+ * updates, which are short, take the write lock. Until the names already in the database have been
+ * loaded (see setLoaded()), results are reported as incomplete.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.search;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.biermann.tme3.p2pindex.cache.FileNameKeys;
+
+public class FileNameIndex
+{
+	public static final int MAX_QUERY_TERMS = 8;
+	public static final int MAX_PREFIX_TOKENS = 64;                       //Most tokens a query term is expanded to.
+	public static final int MAX_SCANNED_NAMES = 10000;                    //Most candidates checked by one query.
+	public static final int MAX_TOKENS_PER_NAME = 32;
+	public static final int MAX_TOKEN_LENGTH = 64;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final TokenTrie tokenTrie = new TokenTrie();
+
+	/*Names by id. An id is free when its name is null, and is then on the free list. */
+	private byte[][] names = new byte[INITIAL_CAPACITY][];
+	private int[][] nameTokens = new int[INITIAL_CAPACITY][];
+	private int[] shareCounts = new int[INITIAL_CAPACITY];
+	private int[] freeNameIds = new int[16];
+	private int freeNameCount;
+	private int nameIdLimit;                                               //Ids below this have been used.
+	private int nameCount;
+
+	/*Posting lists by token id, each sorted by name id */
+	private int[][] postings = new int[INITIAL_CAPACITY][];
+	private int[] postingSizes = new int[INITIAL_CAPACITY];
+	private String[] tokens = new String[INITIAL_CAPACITY];
+	private int[] freeTokenIds = new int[16];
+	private int freeTokenCount;
+	private int tokenIdLimit;
+
+	/*Open addressing table from the hash of a normalized name to its id + 1, or 0 if empty, or -1 if removed */
+	private long[] tableHashes = new long[INITIAL_CAPACITY * 2];
+	private int[] tableIds = new int[INITIAL_CAPACITY * 2];
+	private int tableUsed;
+
+	private volatile boolean loaded;
+
+
+	/**
+	 * A name matching a query, with the number of times it is shared.
+	 */
+	public static final class Hit
+	{
+		private final String fileName;
+		private final int shareCount;
+
+		Hit(String fileName, int shareCount)
+		{
+			this.fileName = fileName;
+			this.shareCount = shareCount;
+		}
+
+		public String getFileName()
+		{
+			return fileName;
+		}
+
+		public int getShareCount()
+		{
+			return shareCount;
+		}
+	}
+
+
+	/**
+	 * A page of the names matching a query.
+	 */
+	public static final class Result
+	{
+		private final List<Hit> hits;
+		private final int totalMatches;
+		private final boolean complete;
+
+		Result(List<Hit> hits, int totalMatches, boolean complete)
+		{
+			this.hits = hits;
+			this.totalMatches = totalMatches;
+			this.complete = complete;
+		}
+
+		public List<Hit> getHits()
+		{
+			return hits;
+		}
+
+		/**
+		 * @return int number of matches found, which is a lower bound if the result is not complete
+		 */
+		public int getTotalMatches()
+		{
+			return totalMatches;
+		}
+
+		/**
+		 * @return boolean false if the bounds on a query may have caused matches to be missed
+		 */
+		public boolean isComplete()
+		{
+			return complete;
+		}
+	}
+
+
+	/**
+	 * A candidate being ranked.
+	 */
+	private static final class Match
+	{
+		final int nameId;
+		final int exactTerms;
+		final boolean leading;
+		final int shareCount;
+		final int tokenCount;
+
+		Match(int nameId, int exactTerms, boolean leading, int shareCount, int tokenCount)
+		{
+			this.nameId = nameId;
+			this.exactTerms = exactTerms;
+			this.leading = leading;
+			this.shareCount = shareCount;
+			this.tokenCount = tokenCount;
+		}
+	}
+
+	/*Orders the best match first */
+	private static final Comparator<Match> RANKING = Comparator
+			.comparingInt((Match match) -> -match.exactTerms)
+			.thenComparing(match -> !match.leading)
+			.thenComparingInt(match -> -match.shareCount)
+			.thenComparingInt(match -> match.tokenCount)
+			.thenComparingInt(match -> match.nameId);
+
+
+	/**
+	 * Splits a file name or query into its normalized tokens, without duplicates.
+	 * @param text String with the file name or query
+	 * @return List of the tokens, in the order in which they occur
+	 */
+	public static List<String> tokenize(String text)
+	{
+		String normalized = FileNameKeys.normalize(text);
+		Set<String> found = new LinkedHashSet<>();
+		int start = -1;
+		for (int i = 0; i <= normalized.length() && found.size() < MAX_TOKENS_PER_NAME; i++)
+		{
+			boolean tokenChar = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+			if (tokenChar && start < 0)
+			{
+				start = i;
+			}
+			else if (!tokenChar && start >= 0)
+			{
+				found.add(normalized.substring(start, Math.min(i, start + MAX_TOKEN_LENGTH)));
+				start = -1;
+			}
+		}
+		return new ArrayList<>(found);
+	}
+
+
+	/**
+	 * Records a share of a file name. A name which is not yet indexed is added.
+	 * @param fileName String with the name of the shared file
+	 * @param shares int number of shares to record
+	 */
+	public void add(String fileName, int shares)
+	{
+		String normalized = FileNameKeys.normalize(fileName);
+		long hash = hash(normalized);
+		lock.writeLock().lock();
+		try
+		{
+			int nameId = findName(normalized, hash);
+			if (nameId >= 0)
+			{
+				shareCounts[nameId] += shares;
+				return;
+			}
+
+			insertName(fileName, normalized, hash, shares);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Records a share of a file name, unless the name is already indexed. Used when loading the
+	 * index from the database while names are being added, so a name added meanwhile is not counted twice.
+	 * @param fileName String with the name of the shared file
+	 * @param shares int number of shares of the name
+	 */
+	public void addIfAbsent(String fileName, int shares)
+	{
+		String normalized = FileNameKeys.normalize(fileName);
+		long hash = hash(normalized);
+		lock.writeLock().lock();
+		try
+		{
+			if (findName(normalized, hash) < 0)
+				insertName(fileName, normalized, hash, shares);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Removes a share of a file name. The name is removed from the index once it has no shares.
+	 * @param fileName String with the name of the file which is no longer shared
+	 */
+	public void remove(String fileName)
+	{
+		String normalized = FileNameKeys.normalize(fileName);
+		long hash = hash(normalized);
+		lock.writeLock().lock();
+		try
+		{
+			int nameId = findName(normalized, hash);
+			if (nameId < 0 || --shareCounts[nameId] > 0)
+				return;
+
+			deleteName(nameId, hash);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Records that the names in the database have been loaded, so that results may be complete.
+	 */
+	public void setLoaded()
+	{
+		loaded = true;
+	}
+
+
+	/**
+	 * Determine if the names in the database have been loaded.
+	 * @return boolean true once setLoaded() has been called
+	 */
+	public boolean isLoaded()
+	{
+		return loaded;
+	}
+
+
+	/**
+	 * Get the number of names in the index.
+	 * @return int number of distinct names
+	 */
+	public int size()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return nameCount;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Finds the names matching a query, ranked as described above.
+	 * @param query String with the terms to search for
+	 * @param offset int number of ranked matches to skip
+	 * @param limit int most matches to return
+	 * @return Result with the matches from offset, and the number of matches found
+	 */
+	public Result search(String query, int offset, int limit)
+	{
+		List<String> terms = tokenize(query);
+		if (terms.size() > MAX_QUERY_TERMS)
+			terms = terms.subList(0, MAX_QUERY_TERMS);
+		if (terms.isEmpty())
+			return new Result(new ArrayList<Hit>(), 0, loaded);
+
+		lock.readLock().lock();
+		try
+		{
+			return search(terms, offset, limit);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	private Result search(List<String> terms, int offset, int limit)
+	{
+		/*Expand each term to the tokens starting with it. One more token than used is requested,
+		 * to detect that a term was cut short. */
+		boolean complete = loaded;
+		int[][] termTokens = new int[terms.size()][];
+		int[] exactTokens = new int[terms.size()];
+		int driver = 0;
+		long driverPostings = Long.MAX_VALUE;
+		for (int term = 0; term < terms.size(); term++)
+		{
+			int[] expansion = new int[MAX_PREFIX_TOKENS + 1];
+			int found = tokenTrie.prefixMatches(terms.get(term), expansion);
+			if (found == 0)
+				return new Result(new ArrayList<Hit>(), 0, complete);
+			if (found > MAX_PREFIX_TOKENS)
+			{
+				complete = false;
+				found = MAX_PREFIX_TOKENS;
+			}
+
+			termTokens[term] = Arrays.copyOf(expansion, found);
+			exactTokens[term] = tokenTrie.get(terms.get(term));
+
+			long postingCount = 0;
+			for (int tokenId : termTokens[term])
+				postingCount += postingSizes[tokenId];
+			if (postingCount < driverPostings)
+			{
+				driver = term;
+				driverPostings = postingCount;
+			}
+		}
+
+		/*Sorted copies, so that the tokens of a candidate can be checked with a binary search */
+		int[][] sortedTermTokens = new int[terms.size()][];
+		for (int term = 0; term < terms.size(); term++)
+		{
+			sortedTermTokens[term] = termTokens[term].clone();
+			Arrays.sort(sortedTermTokens[term]);
+		}
+
+		/*Keep the best offset + limit matches, with the worst at the head */
+		int window = offset + limit;
+		PriorityQueue<Match> best = new PriorityQueue<>(Math.max(1, window), RANKING.reversed());
+		int matches = 0;
+		int scanned = 0;
+		int[] driverTokens = termTokens[driver];
+		scan:
+		for (int expansion = 0; expansion < driverTokens.length; expansion++)
+		{
+			int[] postingList = postings[driverTokens[expansion]];
+			int postingSize = postingSizes[driverTokens[expansion]];
+			for (int i = 0; i < postingSize; i++)
+			{
+				if (scanned++ >= MAX_SCANNED_NAMES)
+				{
+					complete = false;
+					break scan;
+				}
+
+				int nameId = postingList[i];
+				int[] tokenIds = nameTokens[nameId];
+
+				/*A name containing several of the driver's tokens is only counted under the first. */
+				if (containsAny(tokenIds, driverTokens, expansion))
+					continue;
+
+				Match match = match(nameId, tokenIds, sortedTermTokens, exactTokens, termTokens[0]);
+				if (match == null)
+					continue;
+
+				matches++;
+				if (window == 0)
+					continue;
+				if (best.size() < window)
+					best.add(match);
+				else if (RANKING.compare(match, best.peek()) < 0)
+				{
+					best.poll();
+					best.add(match);
+				}
+			}
+		}
+
+		List<Match> ranked = new ArrayList<>(best);
+		ranked.sort(RANKING);
+		List<Hit> hits = new ArrayList<>();
+		for (int i = offset; i < ranked.size(); i++)
+		{
+			Match match = ranked.get(i);
+			hits.add(new Hit(new String(names[match.nameId], StandardCharsets.UTF_8), match.shareCount));
+		}
+		return new Result(hits, matches, complete);
+	}
+
+
+	/**
+	 * Checks that a name matches every term, and ranks it.
+	 * @return Match for the name, or null if a term does not match
+	 */
+	private Match match(int nameId, int[] tokenIds, int[][] sortedTermTokens, int[] exactTokens, int[] firstTermTokens)
+	{
+		int exactTerms = 0;
+		for (int term = 0; term < sortedTermTokens.length; term++)
+		{
+			boolean matched = false;
+			for (int tokenId : tokenIds)
+			{
+				if (tokenId == exactTokens[term])
+				{
+					exactTerms++;
+					matched = true;
+					break;
+				}
+				if (Arrays.binarySearch(sortedTermTokens[term], tokenId) >= 0)
+					matched = true;
+			}
+			if (!matched)
+				return null;
+		}
+
+		boolean leading = tokenIds.length > 0 && containsToken(firstTermTokens, tokenIds[0]);
+		return new Match(nameId, exactTerms, leading, shareCounts[nameId], tokenIds.length);
+	}
+
+
+	private static boolean containsAny(int[] tokenIds, int[] expansion, int before)
+	{
+		for (int i = 0; i < before; i++)
+		{
+			if (containsToken(tokenIds, expansion[i]))
+				return true;
+		}
+		return false;
+	}
+
+
+	private static boolean containsToken(int[] tokenIds, int tokenId)
+	{
+		for (int id : tokenIds)
+		{
+			if (id == tokenId)
+				return true;
+		}
+		return false;
+	}
+
+
+	private void insertName(String fileName, String normalized, long hash, int shares)
+	{
+		List<String> nameTokenList = tokenize(normalized);
+		int nameId = allocateNameId();
+		names[nameId] = fileName.getBytes(StandardCharsets.UTF_8);
+		shareCounts[nameId] = shares;
+
+		int[] tokenIds = new int[nameTokenList.size()];
+		for (int i = 0; i < tokenIds.length; i++)
+		{
+			tokenIds[i] = tokenIdFor(nameTokenList.get(i));
+			addPosting(tokenIds[i], nameId);
+		}
+		nameTokens[nameId] = tokenIds;
+		nameCount++;
+		putTable(hash, nameId);
+	}
+
+
+	private void deleteName(int nameId, long hash)
+	{
+		for (int tokenId : nameTokens[nameId])
+		{
+			removePosting(tokenId, nameId);
+			if (postingSizes[tokenId] == 0)
+			{
+				tokenTrie.remove(tokens[tokenId]);
+				tokens[tokenId] = null;
+				postings[tokenId] = null;
+				freeTokenIds = push(freeTokenIds, freeTokenCount++, tokenId);
+			}
+		}
+
+		removeTable(hash, nameId);
+		names[nameId] = null;
+		nameTokens[nameId] = null;
+		shareCounts[nameId] = 0;
+		freeNameIds = push(freeNameIds, freeNameCount++, nameId);
+		nameCount--;
+	}
+
+
+	private int allocateNameId()
+	{
+		if (freeNameCount > 0)
+			return freeNameIds[--freeNameCount];
+
+		if (nameIdLimit == names.length)
+		{
+			int capacity = names.length * 2;
+			names = Arrays.copyOf(names, capacity);
+			nameTokens = Arrays.copyOf(nameTokens, capacity);
+			shareCounts = Arrays.copyOf(shareCounts, capacity);
+		}
+		return nameIdLimit++;
+	}
+
+
+	private int tokenIdFor(String token)
+	{
+		int tokenId = tokenTrie.get(token);
+		if (tokenId >= 0)
+			return tokenId;
+
+		if (freeTokenCount > 0)
+		{
+			tokenId = freeTokenIds[--freeTokenCount];
+		}
+		else
+		{
+			if (tokenIdLimit == tokens.length)
+			{
+				int capacity = tokens.length * 2;
+				tokens = Arrays.copyOf(tokens, capacity);
+				postings = Arrays.copyOf(postings, capacity);
+				postingSizes = Arrays.copyOf(postingSizes, capacity);
+			}
+			tokenId = tokenIdLimit++;
+		}
+
+		tokens[tokenId] = token;
+		postings[tokenId] = new int[2];
+		postingSizes[tokenId] = 0;
+		tokenTrie.putIfAbsent(token, tokenId);
+		return tokenId;
+	}
+
+
+	/**
+	 * Inserts a name id into a posting list, keeping it sorted. New ids are usually the largest,
+	 * so they are appended, while reused ids are inserted in place.
+	 */
+	private void addPosting(int tokenId, int nameId)
+	{
+		int[] postingList = postings[tokenId];
+		int size = postingSizes[tokenId];
+		int index = (size == 0 || postingList[size - 1] < nameId) ? size : -(Arrays.binarySearch(postingList, 0, size, nameId) + 1);
+
+		if (size == postingList.length)
+			postingList = postings[tokenId] = Arrays.copyOf(postingList, size * 2);
+		System.arraycopy(postingList, index, postingList, index + 1, size - index);
+		postingList[index] = nameId;
+		postingSizes[tokenId] = size + 1;
+	}
+
+
+	private void removePosting(int tokenId, int nameId)
+	{
+		int[] postingList = postings[tokenId];
+		int size = postingSizes[tokenId];
+		int index = Arrays.binarySearch(postingList, 0, size, nameId);
+		if (index < 0)
+			return;
+
+		System.arraycopy(postingList, index + 1, postingList, index, size - index - 1);
+		postingSizes[tokenId] = --size;
+
+		/*Shrink lists which have become much smaller than their capacity */
+		if (postingList.length > 16 && size < postingList.length / 4)
+			postings[tokenId] = Arrays.copyOf(postingList, postingList.length / 2);
+	}
+
+
+	private static int[] push(int[] stack, int size, int value)
+	{
+		if (size == stack.length)
+			stack = Arrays.copyOf(stack, size * 2);
+		stack[size] = value;
+		return stack;
+	}
+
+
+	/**
+	 * Finds the id of a normalized name in the hash table. Names with the same hash are told apart
+	 * by normalizing the stored name.
+	 */
+	private int findName(String normalized, long hash)
+	{
+		int mask = tableHashes.length - 1;
+		for (int slot = (int) hash & mask; tableIds[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int nameId = tableIds[slot] - 1;
+			if (nameId >= 0 && tableHashes[slot] == hash
+					&& FileNameKeys.normalize(new String(names[nameId], StandardCharsets.UTF_8)).equals(normalized))
+				return nameId;
+		}
+		return -1;
+	}
+
+
+	private void putTable(long hash, int nameId)
+	{
+		if ((tableUsed + 1) * 2 > tableHashes.length)
+			rehash();
+
+		int mask = tableHashes.length - 1;
+		int slot = (int) hash & mask;
+		while (tableIds[slot] > 0)
+			slot = (slot + 1) & mask;
+
+		if (tableIds[slot] == 0)
+			tableUsed++;                                                     //A removed slot is already counted.
+		tableHashes[slot] = hash;
+		tableIds[slot] = nameId + 1;
+	}
+
+
+	private void removeTable(long hash, int nameId)
+	{
+		int mask = tableHashes.length - 1;
+		for (int slot = (int) hash & mask; tableIds[slot] != 0; slot = (slot + 1) & mask)
+		{
+			if (tableIds[slot] == nameId + 1)
+			{
+				tableIds[slot] = -1;
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * Grows the table if it is mostly full of names, and drops removed slots.
+	 */
+	private void rehash()
+	{
+		long[] oldHashes = tableHashes;
+		int[] oldIds = tableIds;
+		int capacity = (nameCount + 1) * 4 > oldHashes.length ? oldHashes.length * 2 : oldHashes.length;
+
+		tableHashes = new long[capacity];
+		tableIds = new int[capacity];
+		tableUsed = 0;
+		int mask = capacity - 1;
+		for (int i = 0; i < oldIds.length; i++)
+		{
+			if (oldIds[i] <= 0)
+				continue;
+
+			int slot = (int) oldHashes[i] & mask;
+			while (tableIds[slot] != 0)
+				slot = (slot + 1) & mask;
+			tableHashes[slot] = oldHashes[i];
+			tableIds[slot] = oldIds[i];
+			tableUsed++;
+		}
+	}
+
+
+	/**
+	 * 64-bit FNV-1a hash of a normalized name, mixed so that the low bits used by the table are well distributed.
+	 */
+	private static long hash(String normalized)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < normalized.length(); i++)
+		{
+			hash ^= normalized.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		return hash ^ (hash >>> 33);
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ * TokenTrie.java
+ *
+ * A radix trie mapping each token of the shared file names to its id. Each edge is labelled with a
+ * string rather than a single character, and a node with a single child and no token is merged
+ * with that child, so the number of nodes is at most twice the number of tokens.
+ *
+ * prefixMatches() finds the tokens starting with a prefix in breadth-first order, so the prefix
+ * itself and its shortest completions come first.
+ *
+ * Not thread safe. FileNameIndex guards all access with its lock.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.search;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+final class TokenTrie
+{
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	private final Node root = new Node("");
+
+	private static final class Node
+	{
+		String label;
+		Node[] children = NO_CHILDREN;                                     //Sorted by the first character of their labels.
+		int value = -1;                                                      //Id of the token ending here, or -1.
+
+		Node(String label)
+		{
+			this.label = label;
+		}
+
+		int indexOf(char first)
+		{
+			int low = 0;
+			int high = children.length - 1;
+			while (low <= high)
+			{
+				int middle = (low + high) >>> 1;
+				char label = children[middle].label.charAt(0);
+				if (label < first)
+					low = middle + 1;
+				else if (label > first)
+					high = middle - 1;
+				else
+					return middle;
+			}
+			return -(low + 1);
+		}
+
+		Node child(char first)
+		{
+			int index = indexOf(first);
+			return (index < 0) ? null : children[index];
+		}
+
+		void putChild(Node child)
+		{
+			int index = indexOf(child.label.charAt(0));
+			if (index >= 0)
+			{
+				children[index] = child;
+				return;
+			}
+
+			int insertAt = -(index + 1);
+			Node[] grown = new Node[children.length + 1];
+			System.arraycopy(children, 0, grown, 0, insertAt);
+			grown[insertAt] = child;
+			System.arraycopy(children, insertAt, grown, insertAt + 1, children.length - insertAt);
+			children = grown;
+		}
+
+		void removeChild(char first)
+		{
+			int index = indexOf(first);
+			if (index < 0)
+				return;
+
+			Node[] shrunk = (children.length == 1) ? NO_CHILDREN : new Node[children.length - 1];
+			System.arraycopy(children, 0, shrunk, 0, index);
+			System.arraycopy(children, index + 1, shrunk, index, children.length - index - 1);
+			children = shrunk;
+		}
+	}
+
+
+	/**
+	 * Get the id of a token.
+	 * @param token String with the token
+	 * @return int id of the token, or -1 if it is not held
+	 */
+	int get(String token)
+	{
+		Node node = find(token);
+		return (node == null) ? -1 : node.value;
+	}
+
+
+	/**
+	 * Adds a token with the specified id, unless it is already held.
+	 * @param token String with the token, which must not be empty
+	 * @param value int id for the token
+	 * @return int id of the token, which is the existing id if it was already held
+	 */
+	int putIfAbsent(String token, int value)
+	{
+		Node node = root;
+		int position = 0;
+		while (position < token.length())
+		{
+			Node child = node.child(token.charAt(position));
+			if (child == null)
+			{
+				Node leaf = new Node(token.substring(position));
+				leaf.value = value;
+				node.putChild(leaf);
+				return value;
+			}
+
+			int common = commonPrefix(child.label, token, position);
+			if (common < child.label.length())
+			{
+				/*The token diverges within the label, so split the edge at the divergence. The middle
+				 * node replaces the child before its label changes, as the children are found by label. */
+				Node middle = new Node(child.label.substring(0, common));
+				node.putChild(middle);
+				child.label = child.label.substring(common);
+				middle.putChild(child);
+				child = middle;
+			}
+
+			node = child;
+			position += common;
+		}
+
+		if (node.value < 0)
+			node.value = value;
+		return node.value;
+	}
+
+
+	/**
+	 * Removes a token. Nodes which are no longer needed are removed or merged.
+	 * @param token String with the token
+	 */
+	void remove(String token)
+	{
+		Node parent = null;
+		Node node = root;
+		int position = 0;
+		while (position < token.length())
+		{
+			Node child = node.child(token.charAt(position));
+			if (child == null || !token.startsWith(child.label, position))
+				return;
+
+			parent = node;
+			node = child;
+			position += child.label.length();
+		}
+
+		if (node == root || node.value < 0)
+			return;
+
+		node.value = -1;
+		if (node.children.length == 0)
+		{
+			parent.removeChild(node.label.charAt(0));
+			if (parent != root && parent.value < 0 && parent.children.length == 1)
+				mergeWithChild(parent);
+		}
+		else if (node.children.length == 1)
+		{
+			mergeWithChild(node);
+		}
+	}
+
+
+	/**
+	 * Finds the ids of the tokens starting with the prefix, nearest completions first.
+	 * @param prefix String with the prefix
+	 * @param ids int[] receiving the ids, which limits the number found
+	 * @return int number of ids found
+	 */
+	int prefixMatches(String prefix, int[] ids)
+	{
+		Node node = root;
+		int position = 0;
+		while (position < prefix.length())
+		{
+			Node child = node.child(prefix.charAt(position));
+			if (child == null)
+				return 0;
+
+			int remaining = prefix.length() - position;
+			if (remaining <= child.label.length())
+			{
+				/*The prefix ends within this label, so every token below the child matches. */
+				if (!child.label.regionMatches(0, prefix, position, remaining))
+					return 0;
+				node = child;
+				break;
+			}
+
+			if (!prefix.startsWith(child.label, position))
+				return 0;
+			node = child;
+			position += child.label.length();
+		}
+
+		int found = 0;
+		ArrayDeque<Node> queue = new ArrayDeque<>();
+		queue.add(node);
+		while (!queue.isEmpty() && found < ids.length)
+		{
+			Node next = queue.poll();
+			if (next.value >= 0)
+				ids[found++] = next.value;
+			queue.addAll(Arrays.asList(next.children));
+		}
+		return found;
+	}
+
+
+	private Node find(String token)
+	{
+		Node node = root;
+		int position = 0;
+		while (position < token.length())
+		{
+			Node child = node.child(token.charAt(position));
+			if (child == null || !token.startsWith(child.label, position))
+				return null;
+
+			node = child;
+			position += child.label.length();
+		}
+		return node;
+	}
+
+
+	private static void mergeWithChild(Node node)
+	{
+		Node child = node.children[0];
+		node.label = node.label + child.label;
+		node.children = child.children;
+		node.value = child.value;
+	}
+
+
+	private static int commonPrefix(String label, String token, int position)
+	{
+		int length = Math.min(label.length(), token.length() - position);
+		int common = 0;
+		while (common < length && label.charAt(common) == token.charAt(position + common))
+			common++;
+		return common;
+	}
+}
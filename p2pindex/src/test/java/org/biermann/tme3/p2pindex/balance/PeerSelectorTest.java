@@ -0,0 +1,181 @@
+/**
+ * PeerSelectorTest.java
+ *
+ * Unit tests of PeerSelector: that the ranked list holds each candidate once, that a busier peer is
+ * placed behind a less busy one, that a download is counted for every peer the client is given and
+ * for none of the others, and that a report replaces the counted downloads or is discarded once old.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.balance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PeerSelectorTest extends TestCase
+{
+	private static final long MAX_AGE_MILLIS = 60 * 1000;
+	private static final int ROUNDS = 100;                                   //Rankings are random, so each is repeated.
+
+	private final PeerSelector selector = new PeerSelector(MAX_AGE_MILLIS);
+
+
+	/**
+	 * Create the test case
+	 * @param testName name of the test case
+	 */
+	public PeerSelectorTest(String testName)
+	{
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite()
+	{
+		return new TestSuite(PeerSelectorTest.class);
+	}
+
+
+	public void testEmptyList()
+	{
+		assertTrue(selector.rank(new ArrayList<String>(), 1).isEmpty());
+		assertEquals(0, selector.getTrackedCount());
+	}
+
+
+	public void testRankedListIsPermutation()
+	{
+		List<String> hosts = hosts(10);
+		List<String> original = new ArrayList<>(hosts);
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			List<String> ranked = selector.rank(hosts, 0);
+			assertEquals(original, hosts);                                   //The candidates are not modified.
+			assertEquals(hosts.size(), ranked.size());
+
+			List<String> sorted = new ArrayList<>(ranked);
+			Collections.sort(sorted);
+			assertEquals(original, sorted);
+		}
+	}
+
+
+	public void testBusiestPeerIsLast()
+	{
+		List<String> hosts = hosts(8);
+		long now = System.currentTimeMillis();
+		selector.report(Arrays.asList("host-3"), new PeerLoad(4, 0, 1000, now));
+		selector.report(Arrays.asList("host-5"), new PeerLoad(1, 3, 1000, now));
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			List<String> ranked = selector.rank(hosts, 0);
+			assertEquals("host-3", ranked.get(ranked.size() - 1));
+		}
+	}
+
+
+	public void testLessLoadedOfTwoIsFirst()
+	{
+		long now = System.currentTimeMillis();
+		selector.report(Arrays.asList("busy"), new PeerLoad(3, 1, 1000, now));
+		selector.report(Arrays.asList("idle"), new PeerLoad(0, 4, 1000, now));
+		selector.report(Arrays.asList("slow"), new PeerLoad(0, 4, 10, now));
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			assertEquals(Arrays.asList("idle", "busy"), selector.rank(Arrays.asList("busy", "idle"), 0));
+			assertEquals(Arrays.asList("idle", "slow"), selector.rank(Arrays.asList("slow", "idle"), 0));    //The same load, but faster.
+		}
+	}
+
+
+	/**
+	 * Two peers which did not report their load are equally loaded until a download is directed to
+	 * one of them, after which the other is returned, so lookups which each return one peer are
+	 * spread evenly over them.
+	 */
+	public void testSingleLookupsAreSpread()
+	{
+		List<String> hosts = Arrays.asList("a", "b");
+		int firstA = 0;
+		for (int round = 0; round < 2 * ROUNDS; round++)
+		{
+			if (selector.rank(hosts, 1).get(0).equals("a"))
+				firstA++;
+		}
+		assertEquals(ROUNDS, firstA);
+	}
+
+
+	public void testEveryReturnedPeerIsCounted()
+	{
+		selector.rank(Arrays.asList("a", "b", "c"), 3);
+		assertEquals(3, selector.getTrackedCount());
+		for (String host : Arrays.asList("a", "b", "c"))
+		{
+			for (int round = 0; round < ROUNDS; round++)
+			{
+				assertEquals("fresh", selector.rank(Arrays.asList(host, "fresh"), 0).get(0));
+			}
+		}
+	}
+
+
+	public void testOnlyReturnedPeersAreCounted()
+	{
+		selector.rank(Arrays.asList("a", "b", "c"), 0);
+		assertEquals(0, selector.getTrackedCount());
+
+		selector.rank(Arrays.asList("a", "b", "c"), 2);
+		assertEquals(2, selector.getTrackedCount());
+
+		selector.rank(Arrays.asList("d"), 5);                                //More than were returned.
+		assertEquals(3, selector.getTrackedCount());
+	}
+
+
+	public void testReportReplacesCountedDownloads()
+	{
+		for (int i = 0; i < 10; i++)
+		{
+			selector.rank(Arrays.asList("a"), 1);
+		}
+		assertEquals("fresh", selector.rank(Arrays.asList("a", "fresh"), 0).get(0));
+
+		selector.report(Arrays.asList("a"), new PeerLoad(0, PeerSelector.DEFAULT_UPLOAD_SLOTS, 1000, System.currentTimeMillis()));
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			assertEquals("a", selector.rank(Arrays.asList("a", "fresh"), 0).get(0));     //As loaded, but known to be fast.
+		}
+	}
+
+
+	public void testOldReportIsDiscarded()
+	{
+		long now = System.currentTimeMillis();
+		selector.report(Arrays.asList("stale"), new PeerLoad(4, 0, 1000, now - 2 * MAX_AGE_MILLIS));
+		selector.report(Arrays.asList("half"), new PeerLoad(2, 2, 1000, now));
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			assertEquals("stale", selector.rank(Arrays.asList("half", "stale"), 0).get(0));
+		}
+	}
+
+
+	private static List<String> hosts(int count)
+	{
+		List<String> hosts = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+		{
+			hosts.add("host-" + i);
+		}
+		return hosts;
+	}
+}
@@ -0,0 +1,256 @@
+/**
+ * FileNameIndexTest.java
+ *
+ * Unit tests of FileNameIndex: how names are split into tokens, that a query matches the names with a
+ * token starting with each of its terms, the order in which matches are ranked, that shares are
+ * counted as names are added and removed, and when a result is reported as incomplete.
+ *
+ * @author Oloff Biermann
+ */
+package org.biermann.tme3.p2pindex.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class FileNameIndexTest extends TestCase
+{
+	private final FileNameIndex index = new FileNameIndex();
+
+
+	/**
+	 * Create the test case
+	 * @param testName name of the test case
+	 */
+	public FileNameIndexTest(String testName)
+	{
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite()
+	{
+		return new TestSuite(FileNameIndexTest.class);
+	}
+
+
+	public void testTokenize()
+	{
+		assertEquals(Arrays.asList("ubuntu", "24", "04", "desktop", "iso"), FileNameIndex.tokenize("Ubuntu-24.04-Desktop.iso"));
+		assertEquals(Arrays.asList("cafe", "menu", "txt"), FileNameIndex.tokenize("Caf\u00e9 menu.TXT  "));
+		assertEquals(Arrays.asList("a", "b"), FileNameIndex.tokenize("a b a b"));                         //Without duplicates.
+		assertTrue(FileNameIndex.tokenize("-- ..").isEmpty());
+	}
+
+
+	public void testTokensAreBounded()
+	{
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 2 * FileNameIndex.MAX_TOKENS_PER_NAME; i++)
+		{
+			name.append("t").append(i).append(' ');
+		}
+		assertEquals(FileNameIndex.MAX_TOKENS_PER_NAME, FileNameIndex.tokenize(name.toString()).size());
+
+		char[] longToken = new char[2 * FileNameIndex.MAX_TOKEN_LENGTH];
+		Arrays.fill(longToken, 'x');
+		assertEquals(FileNameIndex.MAX_TOKEN_LENGTH, FileNameIndex.tokenize(new String(longToken)).get(0).length());
+	}
+
+
+	public void testPrefixesOfEveryTermMustMatch()
+	{
+		index.add("Ubuntu-24.04-Desktop.iso", 1);
+		index.add("Ubuntu-24.04-Server.iso", 1);
+		index.add("Debian Desktop.iso", 1);
+		index.setLoaded();
+
+		assertEquals(Arrays.asList("Ubuntu-24.04-Desktop.iso"), names(index.search("ubu DESK", 0, 10)));
+		assertEquals(2, index.search("ubuntu", 0, 10).getTotalMatches());
+		assertEquals(2, index.search("desk", 0, 10).getTotalMatches());
+		assertEquals(3, index.search("iso", 0, 10).getTotalMatches());
+		assertEquals(0, index.search("ubuntu debian", 0, 10).getTotalMatches());
+		assertEquals(0, index.search("buntu", 0, 10).getTotalMatches());                                 //Only the start of a token matches.
+		assertEquals(0, index.search("fedora", 0, 10).getTotalMatches());
+	}
+
+
+	public void testNameIsReturnedAsShared()
+	{
+		index.add("Caf\u00e9 Menu.txt", 1);
+		index.setLoaded();
+
+		FileNameIndex.Result result = index.search("cafe", 0, 10);
+		assertEquals(1, result.getHits().size());
+		assertEquals("Caf\u00e9 Menu.txt", result.getHits().get(0).getFileName());
+	}
+
+
+	public void testWholeTokenMatchesRankFirst()
+	{
+		index.add("desktop.iso", 1);
+		index.add("desk.iso", 1);
+		index.setLoaded();
+
+		assertEquals(Arrays.asList("desk.iso", "desktop.iso"), names(index.search("desk", 0, 10)));
+	}
+
+
+	public void testLeadingMatchesRankBeforeOthers()
+	{
+		index.add("ubuntu.iso", 1);
+		index.add("iso ubuntu.txt", 1);
+		index.setLoaded();
+
+		assertEquals(Arrays.asList("iso ubuntu.txt", "ubuntu.iso"), names(index.search("iso", 0, 10)));
+	}
+
+
+	public void testSharedNamesRankBeforeShorterNames()
+	{
+		index.add("a x.dat", 1);
+		index.add("b c x.dat", 3);
+		index.add("x.dat", 1);
+		index.setLoaded();
+
+		/*No name starts with a token matching the term, so they are ranked by shares and then by tokens */
+		List<FileNameIndex.Hit> hits = index.search("dat", 0, 10).getHits();
+		assertEquals("b c x.dat", hits.get(0).getFileName());
+		assertEquals(3, hits.get(0).getShareCount());
+		assertEquals("x.dat", hits.get(1).getFileName());                                                //Fewest tokens.
+		assertEquals("a x.dat", hits.get(2).getFileName());
+	}
+
+
+	public void testPaging()
+	{
+		for (int i = 0; i < 25; i++)
+		{
+			index.add(String.format("song %02d.mp3", i), 25 - i);                                          //Ranked in order of their numbers.
+		}
+		index.setLoaded();
+
+		FileNameIndex.Result page = index.search("song", 10, 10);
+		assertEquals(25, page.getTotalMatches());
+		assertEquals(10, page.getHits().size());
+		assertEquals("song 10.mp3", page.getHits().get(0).getFileName());
+
+		page = index.search("song", 20, 10);
+		assertEquals(5, page.getHits().size());
+		assertEquals("song 24.mp3", page.getHits().get(4).getFileName());
+
+		page = index.search("song", 0, 0);
+		assertEquals(25, page.getTotalMatches());                                                        //Counted without returning any.
+		assertTrue(page.getHits().isEmpty());
+	}
+
+
+	public void testSharesAreCounted()
+	{
+		index.add("a.dat", 1);
+		index.add("A.DAT ", 2);                                                                          //The same name once normalized.
+		assertEquals(1, index.size());
+		assertEquals(3, index.search("a", 0, 10).getHits().get(0).getShareCount());
+
+		index.remove("a.dat");
+		index.remove("a.dat");
+		assertEquals(1, index.size());
+		assertEquals(1, index.search("a", 0, 10).getHits().get(0).getShareCount());
+
+		index.remove("a.dat");
+		assertEquals(0, index.size());
+		assertEquals(0, index.search("a", 0, 10).getTotalMatches());
+		assertEquals(0, index.search("dat", 0, 10).getTotalMatches());
+
+		index.remove("a.dat");                                                                           //Not indexed, so ignored.
+		assertEquals(0, index.size());
+	}
+
+
+	public void testAddIfAbsent()
+	{
+		index.add("a.dat", 1);
+		index.addIfAbsent("a.dat", 5);
+		index.addIfAbsent("b.dat", 2);
+		assertEquals(2, index.size());
+		assertEquals(1, index.search("a", 0, 10).getHits().get(0).getShareCount());
+		assertEquals(2, index.search("b", 0, 10).getHits().get(0).getShareCount());
+	}
+
+
+	/**
+	 * Adds more names than the initial capacity of the index, removes every other one and adds them
+	 * again, so that ids and tokens are reused.
+	 */
+	public void testManyNames()
+	{
+		int count = 3000;
+		for (int i = 0; i < count; i++)
+		{
+			index.add("file " + i + ".dat", 1);
+		}
+		for (int i = 0; i < count; i += 2)
+		{
+			index.remove("file " + i + ".dat");
+		}
+		index.setLoaded();
+
+		assertEquals(count / 2, index.size());
+		assertEquals(count / 2, index.search("file", 0, 10).getTotalMatches());
+		assertEquals(0, index.search("file 2998", 0, 10).getTotalMatches());
+		assertEquals(Arrays.asList("file 2999.dat"), names(index.search("file 2999", 0, 10)));
+
+		for (int i = 0; i < count; i += 2)
+		{
+			index.add("file " + i + ".dat", 1);
+		}
+		assertEquals(count, index.size());
+		assertEquals(count, index.search("dat", 0, 10).getTotalMatches());
+		assertEquals(Arrays.asList("file 2998.dat"), names(index.search("2998 file", 0, 10)));
+	}
+
+
+	public void testIncompleteUntilLoaded()
+	{
+		index.add("a.dat", 1);
+		assertFalse(index.isLoaded());
+		assertFalse(index.search("a", 0, 10).isComplete());
+		assertFalse(index.search("", 0, 10).isComplete());
+
+		index.setLoaded();
+		assertTrue(index.search("a", 0, 10).isComplete());
+		assertTrue(index.search("missing", 0, 10).isComplete());
+	}
+
+
+	public void testIncompleteWhenTermHasTooManyTokens()
+	{
+		for (int i = 0; i <= FileNameIndex.MAX_PREFIX_TOKENS; i++)
+		{
+			index.add("t" + i + ".dat", 1);
+		}
+		index.setLoaded();
+
+		FileNameIndex.Result result = index.search("t", 0, 10);
+		assertFalse(result.isComplete());
+		assertEquals(FileNameIndex.MAX_PREFIX_TOKENS, result.getTotalMatches());
+		assertTrue(index.search("t1", 0, 10).isComplete());
+	}
+
+
+	private static List<String> names(FileNameIndex.Result result)
+	{
+		List<String> names = new ArrayList<>();
+		for (FileNameIndex.Hit hit : result.getHits())
+		{
+			names.add(hit.getFileName());
+		}
+		return names;
+	}
+}